@@ -117,7 +117,7 @@ public class CircleProgressBar extends View {
         float size = Math.min(mWidth,mHeight);
         canvas.drawCircle(mWidth/2,mHeight/2,(size - mProgressWidth)/2,mCirclePaint);
         canvas.drawArc(mRectF,-90,(mProgress*360f/mMaxProgress) ,false,mProgressPaint);
-        String text = mProgress*100/mMaxProgress+"%";
+        String text = mProgress * 100L / mMaxProgress + "%";
         mTextPaint.getFontMetrics(mFontMetrics);
         canvas.drawText(text,mWidth/2,mHeight/2 - (mFontMetrics.descent + mFontMetrics.ascent)/2,mTextPaint);
     }
@@ -5,10 +5,10 @@ package com.lh.fractal;
  */
 
 public class Complex {
-    public float re;
-    public float im;
+    public double re;
+    public double im;
 
-    public Complex(float re, float im) {
+    public Complex(double re, double im) {
         this.re = re;
         this.im = im;
     }
@@ -25,12 +25,12 @@ public class Complex {
      * @param c
      */
     public void mul(Complex c){
-        float temp = re * c.re - im * c.im;
+        double temp = re * c.re - im * c.im;
         im = im * c.re + re * c.im;
         re = temp;
     }
 
-    public float abs(){
-        return (float) Math.sqrt(re*re + im*im);
+    public double abs(){
+        return Math.sqrt(re*re + im*im);
     }
 }
@@ -5,23 +5,46 @@ import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Matrix;
-import android.graphics.Rect;
+import android.graphics.Paint;
 import android.graphics.SurfaceTexture;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.support.annotation.IntRange;
-import android.support.annotation.Nullable;
 import android.util.AttributeSet;
+import android.util.Log;
 import android.view.MotionEvent;
 import android.view.Surface;
 import android.view.TextureView;
 import android.view.ViewConfiguration;
 
+import com.lh.fractal.engine.ColorMapper;
+import com.lh.fractal.engine.Coloring;
+import com.lh.fractal.engine.CostMap;
+import com.lh.fractal.engine.DiskTileStore;
+import com.lh.fractal.engine.Formula;
+import com.lh.fractal.engine.FractalKernel;
+import com.lh.fractal.engine.IterationBudget;
+import com.lh.fractal.engine.LatencyRecorder;
+import com.lh.fractal.engine.Palette;
+import com.lh.fractal.engine.PerturbationKernel;
+import com.lh.fractal.engine.Precision;
+import com.lh.fractal.engine.RenderMetrics;
+import com.lh.fractal.engine.Supersampler;
+import com.lh.fractal.engine.Tile;
+import com.lh.fractal.engine.TileCache;
+import com.lh.fractal.engine.TilePyramid;
+import com.lh.fractal.engine.TileRenderer;
+import com.lh.fractal.engine.TileScheduler;
+import com.lh.fractal.engine.Viewport;
+
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
-
-import io.reactivex.disposables.CompositeDisposable;
-import io.reactivex.schedulers.Schedulers;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by home on 2017/1/3.
@@ -30,10 +53,15 @@ import io.reactivex.schedulers.Schedulers;
 
 public class FractalView extends TextureView {
 
-    private static final int COUNT = 8;
+    private static final String TAG = "FractalView";
+
+    /**
+     * 渐进渲染的遍数：1/8、1/4、1/2和完整分辨率
+     */
+    private static final int PROGRESSIVE_PASSES = 4;
 
-    private int mPeerRectXSize;
-    private int mPeerRectYSize;
+    private static final long DEFAULT_TILE_CACHE_BYTES = 32L * 1024 * 1024;
+    private static final long DEFAULT_DISK_CACHE_BYTES = 64L * 1024 * 1024;
 
     private Complex mComplex;
 
@@ -42,27 +70,120 @@ public class FractalView extends TextureView {
 
     private int mIterateTimes = 256;
 
-    private float mMinX;
-    private float mMaxX;
-    private float mMinY;
-    private float mMaxY;
+    /**
+     * 默认显示的实部范围为[-2.5, 2.5]
+     */
+    private static final double DEFAULT_HALF_WIDTH = 2.5;
+
+    /**
+     * {@link #generateColor(int)}的周期，默认调色板的长度
+     */
+    private static final int COLOR_PERIOD = 64;
+
+    /**
+     * 自动选择迭代上限时，完整渲染一幅画面的目标耗时
+     */
+    private static final long AUTO_TIME_BUDGET_NANOS = 500000000;
+    /**
+     * 同一个画面完成后最多按统计调整几次上限
+     */
+    private static final int MAX_AUTO_PASSES = 3;
+
+    /**
+     * 两次通知{@link OnProgressChangeListener}的最小间隔
+     */
+    private static final long PROGRESS_INTERVAL_NANOS = 16000000;
+    /**
+     * 两次推送{@link RenderMetrics.Snapshot}的最小间隔
+     */
+    private static final long METRICS_INTERVAL_NANOS = 250000000;
+    /**
+     * 耗时热图的不透明度
+     */
+    private static final int HEATMAP_ALPHA = 0x80;
 
-    private Surface mSurface;
-    private CompositeDisposable mWorksDisposables;
-    private Bitmap mBitmap;
-    private final Object mLock = new Object();
+    private Viewport mViewport;
+
+    /**
+     * 最近一次开始渲染时的坐标范围，平移时以此为基准对齐到整像素
+     */
+    private Viewport mRenderedViewport;
+    private boolean mScaled;
+
+    /**
+     * 显示用的Surface交给mPresenter独占，这里只记录是否可用。
+     * mPresenter从渲染器的像素复制到自己的位图，与工作线程之间没有共同的锁
+     */
+    private boolean mSurfaceAvailable;
+    private SurfacePresenter mPresenter;
+    private TileRenderer mRenderer;
+    private TileScheduler mScheduler;
+    private int mParallelism = Runtime.getRuntime().availableProcessors();
+    /**
+     * 渲染线程：开始渲染、平移、重新着色和抗锯齿依次在这里调用渲染器，
+     * 它们要等上一次的分块退出后才能读写缓冲区，主线程只取消，不等待
+     */
+    private volatile Handler mRenderHandler;
+    /**
+     * 每次创建内核时加1，作为画面的编号交给mPresenter，过时的分块报告的变化会被丢弃。只在主线程访问
+     */
+    private int mGeneration;
 
     private Matrix mMatrix;
 
     private boolean mShouldBeginDraw;
 
     private int mShowIndex = 1;
+    private Formula mFormula = Formula.QUADRATIC;
 
-    private int mTotalProgress;
-    private int mProgress;
+    private boolean mSubdivision = true;
+    private boolean mProgressive = true;
+    private boolean mTileCacheEnabled;
+    private final TilePyramid mTilePyramid = new TilePyramid(new TileCache(DEFAULT_TILE_CACHE_BYTES));
+    private boolean mVerifySubdivision;
+    /**
+     * 渲染器保留了每个像素的迭代次数，更换着色方式时只重新查表
+     */
+    private volatile Coloring mColoring;
+    /**
+     * 渲染途中更换了着色方式，完成后要重新着色已经画好的分块
+     */
+    private volatile boolean mRecolorPending;
+
+    /**
+     * 渲染完成后对边缘像素做自适应超采样
+     */
+    private boolean mAntialias;
+    private final Supersampler mSupersampler = new Supersampler();
+    /**
+     * 最近一次开始渲染的内核，重新着色后用它重新做抗锯齿
+     */
+    private volatile FractalKernel mKernel;
+    /**
+     * 所有分块都已完成的最近一个内核，等于mKernel时画面是完整的
+     */
+    private volatile FractalKernel mRenderedKernel;
+
+    private boolean mAutoIterateTimes;
+    private final IterationBudget mIterationBudget = new IterationBudget(AUTO_TIME_BUDGET_NANOS);
+    private int mAutoPasses;
+
+    /**
+     * 当前这一次渲染的进度，每次渲染换成新的计数，过时的分块累加到旧的计数上不影响显示
+     */
+    private volatile int mTotalProgress;
+    private volatile AtomicInteger mProgress = new AtomicInteger();
+    private final AtomicLong mLastProgressTime = new AtomicLong();
+    /**
+     * 已经post了进度通知但还没有执行，避免每个分块都post一次
+     */
+    private final AtomicBoolean mProgressPosted = new AtomicBoolean();
     private int mTouchSlop;
 
+    private boolean mShowCostHeatmap;
+
     private OnProgressChangeListener mOnProgressChangeListener;
+    private OnRenderMetricsListener mOnRenderMetricsListener;
 
     public FractalView(Context context) {
         super(context);
@@ -79,26 +200,341 @@ public class FractalView extends TextureView {
         init();
     }
 
+    /**
+     * 更换调色板或着色方式，已经计算好的画面直接重新查表，不重新迭代
+     */
+    public void setColoring(Coloring coloring) {
+        mColoring = coloring;
+        if (mRenderer == null) {
+            return;
+        }
+        mRenderer.setColoring(coloring);
+        // 先登记再检查是否完成，最后一个分块先设置mRenderedKernel再检查登记，
+        // 两边至少有一边会看到对方，不会漏掉；两边都看到时只是在渲染线程上多着色一次
+        mRecolorPending = true;
+        if (mRenderedKernel == mKernel) {
+            recolor(mKernel, mGeneration);
+            antialias(mKernel);
+        }
+    }
+
+    public Coloring getColoring() {
+        return mColoring;
+    }
+
+    /**
+     * 在渲染线程用渲染器保留的迭代次数重新计算kernel的整个画面的颜色。
+     * 新的渲染也在渲染线程开始，检查kernel之后到着色完成之间不会有工作线程写入缓冲区；
+     * kernel已经被取消或者还没有完成时不做
+     *
+     * @param generation kernel的画面编号
+     */
+    private void recolor(final FractalKernel kernel, final int generation) {
+        final TileRenderer renderer = mRenderer;
+        runOnRenderThread(new Runnable() {
+            @Override
+            public void run() {
+                if (kernel == null || kernel.isCancelled() || kernel != mRenderedKernel) {
+                    return;
+                }
+                mRecolorPending = false;
+                // 执行时才读取，期间再次更换的着色方式也包括在内
+                Coloring coloring = mColoring;
+                long start = System.nanoTime();
+                renderer.recolor(coloring, kernel.getIterateTimes());
+                Log.d(TAG, "recolor: " + (System.nanoTime() - start) / 1000000f + "ms");
+                SurfacePresenter presenter = mPresenter;
+                if (presenter != null) {
+                    presenter.reload(generation, null);
+                }
+            }
+        });
+    }
+
+    /**
+     * 画面没有移动并且上一次渲染已经完成时，只继续计算上次没有发散的像素，降低上限时只重新着色
+     */
     public void setIterateTimes(int times) {
+        mAutoIterateTimes = false;
+        changeIterateTimes(times);
+    }
+
+    public int getIterateTimes() {
+        return mIterateTimes;
+    }
+
+    /**
+     * 自动选择迭代上限：新的画面按缩放深度和之前的统计估计，渲染完成后按达到上限的比例和迭代次数分布调整，
+     * 见{@link IterationBudget}。调用{@link #setIterateTimes(int)}后关闭
+     */
+    public void setAutoIterateTimes(boolean auto) {
+        mAutoIterateTimes = auto;
+        if (auto) {
+            beginDrawBitmap();
+        }
+    }
+
+    public boolean isAutoIterateTimes() {
+        return mAutoIterateTimes;
+    }
+
+    /**
+     * 是否在渲染完成后对颜色与相邻像素相差很大的像素补充子像素采样，默认关闭。
+     * 采样数受{@link Supersampler}的预算限制，关闭时恢复单次采样的结果
+     */
+    public void setAntialias(boolean antialias) {
+        if (antialias == mAntialias) {
+            return;
+        }
+        mAntialias = antialias;
+        if (mRenderer == null || mRenderedKernel != mKernel) {
+            return;
+        }
+        if (antialias) {
+            antialias(mKernel);
+        } else {
+            recolor(mKernel, mGeneration);
+        }
+    }
+
+    public boolean isAntialias() {
+        return mAntialias;
+    }
+
+    /**
+     * @return 最近一次抗锯齿细化的像素占整个画面的比例，没有做过抗锯齿时为0
+     */
+    public float getRefinedFraction() {
+        Supersampler.Selection selection = mRenderer == null ? null : mRenderer.getAntialiasSelection();
+        return selection == null ? 0 : selection.getRefinedFraction();
+    }
+
+    private void changeIterateTimes(int times) {
         mIterateTimes = times;
+        if (mSurfaceAvailable && mRenderer != null && !mIsDraging && !usesTilePyramid()) {
+            // 能否继续上一次渲染要在渲染线程等上一次的分块退出后才能确定
+            beginDrawBitmap(newKernel(), true);
+            return;
+        }
         beginDrawBitmap();
     }
 
+    /**
+     * 是否使用矩形细分(Mariani-Silver)加速渲染，默认开启。
+     * 只对连通的集合有效，Burning Ship、Newton和不连通的Julia集总是逐像素计算，见{@link Formula#isSubdivisionSafe}
+     */
+    public void setSubdivision(boolean subdivision) {
+        mSubdivision = subdivision;
+        if (mRenderer != null) {
+            mRenderer.setSubdivision(subdivision);
+        }
+    }
+
+    /**
+     * 设置渲染使用的线程数，默认为CPU核数
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism == mParallelism) {
+            return;
+        }
+        mParallelism = parallelism;
+        if (mScheduler != null) {
+            mScheduler.shutdown();
+            mScheduler = null;
+        }
+    }
+
+    /**
+     * @return 渲染线程池，可以读取每个线程的忙碌和空闲时间
+     */
+    public TileScheduler getScheduler() {
+        if (mScheduler == null) {
+            mScheduler = new TileScheduler(mParallelism);
+        }
+        return mScheduler;
+    }
+
+    /**
+     * 是否先渲染低分辨率的完整画面再逐步细化，默认开启
+     */
+    public void setProgressive(boolean progressive) {
+        mProgressive = progressive;
+    }
+
+    /**
+     * 开启后画面由缓存的金字塔分块拼成，回到之前看过的位置和缩放级别时不需要重新计算，默认关闭。
+     * 分块同时保存在应用的缓存目录中，下次启动时可以直接读取。
+     * 分块按2的幂的缩放级别最近邻采样，画面最多放大约1.4倍，并且没有|z|，
+     * 这时渐进渲染、平移增量计算、平滑着色、继续迭代、抗锯齿和对称复制都不可用
+     */
+    public void setTileCacheEnabled(boolean enabled) {
+        if (enabled == mTileCacheEnabled) {
+            return;
+        }
+        mTileCacheEnabled = enabled;
+        if (mSurfaceAvailable && mComplex != null) {
+            beginDrawBitmap();
+        }
+    }
+
+    public boolean isTileCacheEnabled() {
+        return mTileCacheEnabled;
+    }
+
+    /**
+     * 打开磁盘上的分块存储，失败时只使用内存缓存
+     */
+    private void openDiskStore() {
+        if (mTilePyramid.getDiskStore() != null) {
+            return;
+        }
+        try {
+            mTilePyramid.setDiskStore(DiskTileStore.open(new File(getContext().getCacheDir(), "tiles"),
+                    DEFAULT_DISK_CACHE_BYTES));
+        } catch (IOException e) {
+            Log.w(TAG, "can not open tile store", e);
+        }
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        if (mRenderHandler == null) {
+            HandlerThread thread = new HandlerThread("FractalRender");
+            thread.start();
+            mRenderHandler = new Handler(thread.getLooper());
+        }
+        if (mPresenter == null) {
+            mPresenter = new SurfacePresenter();
+            if (mRenderer != null) {
+                // 重新添加到窗口，显示之前已经渲染的像素
+                mPresenter.setSource(mRenderer.getPixels(), mWidth, mHeight);
+                mPresenter.reload(mGeneration, null);
+            }
+            if (mShowCostHeatmap) {
+                mPresenter.setOverlay(mHeatmapOverlay);
+            }
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        cancelRender();
+        if (mPresenter != null) {
+            mPresenter.quit();
+            mPresenter = null;
+        }
+        // 分块退出后才能关闭它们还在写入的磁盘存储和线程池，在渲染线程等待
+        final TileRenderer renderer = mRenderer;
+        final TileScheduler scheduler = mScheduler;
+        mScheduler = null;
+        final Handler handler = mRenderHandler;
+        mRenderHandler = null;
+        if (handler == null) {
+            return;
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (renderer != null) {
+                    renderer.awaitIdle();
+                }
+                DiskTileStore diskStore = mTilePyramid.getDiskStore();
+                if (diskStore != null) {
+                    mTilePyramid.setDiskStore(null);
+                    diskStore.close();
+                }
+                if (scheduler != null) {
+                    scheduler.shutdown();
+                }
+                handler.getLooper().quit();
+            }
+        });
+    }
+
+    /**
+     * 在渲染线程依次执行task，没有添加到窗口时丢弃
+     */
+    private void runOnRenderThread(Runnable task) {
+        Handler handler = mRenderHandler;
+        if (handler != null) {
+            handler.post(task);
+        }
+    }
+
+    /**
+     * 设置分块缓存占用内存的上限
+     */
+    public void setTileCacheSize(long maxBytes) {
+        mTilePyramid.getCache().setMaxBytes(maxBytes);
+    }
+
+    /**
+     * @return 分块缓存，可以读取命中、未命中和淘汰次数
+     */
+    public TileCache getTileCache() {
+        return mTilePyramid.getCache();
+    }
+
+    /**
+     * 调试用：每次渲染结束后在日志中输出矩形细分与逐像素计算结果不同的像素数
+     */
+    public void setVerifySubdivision(boolean verify) {
+        mVerifySubdivision = verify;
+        if (mRenderer != null) {
+            mRenderer.setVerifySubdivision(verify);
+        }
+    }
+
+    /**
+     * @return 手势输入到对应画面显示在屏幕上的延迟
+     */
+    public LatencyRecorder getPresentLatency() {
+        return mPresenter == null ? null : mPresenter.getLatency();
+    }
+
     public void setOnProgressChangeListener(OnProgressChangeListener listener) {
         mOnProgressChangeListener = listener;
     }
 
+    /**
+     * @param listener 在主线程接收渲染统计，渲染中至多每{@link #METRICS_INTERVAL_NANOS}一次，结束时一定有一次
+     */
+    public void setOnRenderMetricsListener(OnRenderMetricsListener listener) {
+        mOnRenderMetricsListener = listener;
+    }
+
+    /**
+     * @return 当前或最近一次渲染的统计，尚未确定大小时返回null
+     */
+    public RenderMetrics.Snapshot getRenderMetrics() {
+        return mRenderer == null ? null : mRenderer.getMetrics().snapshot();
+    }
+
+    /**
+     * 调试用：在画面上叠加每个区域最近的计算耗时热图，默认关闭
+     */
+    public void setShowCostHeatmap(boolean show) {
+        mShowCostHeatmap = show;
+        if (mPresenter != null) {
+            mPresenter.setOverlay(show ? mHeatmapOverlay : null);
+        }
+    }
+
+    public boolean isShowCostHeatmap() {
+        return mShowCostHeatmap;
+    }
+
     private void init() {
         mMatrix = new Matrix();
         setSurfaceTextureListener(TVListener);
         mTouchSlop = ViewConfiguration.get(getContext()).getScaledTouchSlop();
+        mColoring = new Coloring(Palette.fromMapper(mColorMapper, COLOR_PERIOD), Coloring.MODE_BANDED);
     }
 
     public void restSize() {
-        mMinX = -2.5f;
-        mMaxX = 2.5f;
-        mMaxY = mMaxX * mHeight / mWidth;
-        mMinY = -mMaxY;
+        mViewport.reset(DEFAULT_HALF_WIDTH);
         beginDrawBitmap();
     }
 
@@ -110,6 +546,8 @@ public class FractalView extends TextureView {
 
     @Override
     public boolean onTouchEvent(MotionEvent event) {
+        // 事件发生的时刻，换算到System.nanoTime()
+        long inputTime = System.nanoTime() - (SystemClock.uptimeMillis() - event.getEventTime()) * 1000000L;
         switch (event.getActionMasked()) {
             case MotionEvent.ACTION_DOWN:
                 int firstIndex = event.getActionIndex();
@@ -156,12 +594,14 @@ public class FractalView extends TextureView {
                 float currentY = event.getY(firstIndex);
                 float dx = currentX - mLastX[0];
                 float dy = currentY - mLastY[0];
-                if (Math.abs(dx) > mTouchSlop || Math.abs(dy) > mTouchSlop) {
+                if (!mIsDraging && (Math.abs(dx) > mTouchSlop || Math.abs(dy) > mTouchSlop)) {
                     mIsDraging = true;
+                    // 画面开始移动，正在进行的渲染已经过时，不再占用CPU；只作废，不等待
+                    cancelRender();
                 }
                 if (mIsDraging) {
                     if (mSecondPointId == MotionEvent.INVALID_POINTER_ID) {
-                        translateBitmap(-dx, -dy);
+                        translateBitmap(-dx, -dy, inputTime);
                         mLastX[0] = currentX;
                         mLastY[0] = currentY;
                     } else {
@@ -179,7 +619,8 @@ public class FractalView extends TextureView {
                         float centerXLast = (mLastX[0] + mLastX[1]) / 2;
                         float centerYLast = (mLastY[0] + mLastY[1]) / 2;
 
-                        scaleAndMoveBitmap(scale, centerX, centerY, centerXLast - centerX, centerYLast - centerY);
+                        scaleAndMoveBitmap(scale, centerX, centerY, centerXLast - centerX, centerYLast - centerY,
+                                inputTime);
                         mLastX[0] = currentX;
                         mLastY[0] = currentY;
                         mLastX[1] = currentX1;
@@ -190,7 +631,14 @@ public class FractalView extends TextureView {
             case MotionEvent.ACTION_UP:
             case MotionEvent.ACTION_CANCEL:
                 if (mIsDraging) {
-                    beginDrawBitmap();
+                    if (mPresenter != null) {
+                        Log.d(TAG, "gesture: input to present " + mPresenter.getLatency());
+                    }
+                    if (!mScaled && !usesTilePyramid() && mRenderedKernel == mKernel) {
+                        panBitmap();
+                    } else {
+                        beginDrawBitmap();
+                    }
                 }
                 break;
         }
@@ -201,44 +649,22 @@ public class FractalView extends TextureView {
         return (float) Math.sqrt(Math.pow(x2 - x1, 2) + Math.pow(y2 - y1, 2));
     }
 
-    private void scale(float scale, float x, float y) {
-        float tx = x * (mMaxX - mMinX) / mWidth + mMinX;
-        float ty = y * (mMinY - mMaxY) / mHeight + mMaxY;
-        translate(tx, ty);
-        scale(scale);
-        translate(-tx, -ty);
-    }
-
-    private void scale(float scale) {
-        mMaxX *= scale;
-        mMinX *= scale;
-        mMaxY *= scale;
-        mMinY *= scale;
-    }
-
-    private void translate(float dx, float dy) {
-        mMaxY -= dy;
-        mMinY -= dy;
-        mMaxX -= dx;
-        mMinX -= dx;
-    }
-
-    private void translateBitmap(float distanceX, float distanceY) {
-        float diffY = distanceY * (mMaxY - mMinY) / mHeight;
-        float diffX = distanceX * (mMaxX - mMinX) / mWidth;
-        translate(-diffX, diffY);
+    /**
+     * 手势只移动已有的画面，交给mPresenter绘制，不等待渲染线程
+     */
+    private void translateBitmap(float distanceX, float distanceY, long inputTime) {
+        mViewport.translate(distanceX, distanceY);
         mMatrix.postTranslate(-distanceX, -distanceY);
-        syncDraw(mBitmap, mMatrix, true);
+        present(mMatrix, inputTime);
     }
 
-    private void scaleAndMoveBitmap(float scale, float x, float y, float dx, float dy) {
-        float diffY = dy * (mMaxY - mMinY) / mHeight;
-        float diffX = dx * (mMaxX - mMinX) / mWidth;
-        translate(-diffX, diffY);
-        scale(scale, x, y);
+    private void scaleAndMoveBitmap(float scale, float x, float y, float dx, float dy, long inputTime) {
+        mViewport.translate(dx, dy);
+        mViewport.scale(scale, x, y);
         mMatrix.postTranslate(-dx, -dy);
         mMatrix.postScale(1 / scale, 1 / scale, x, y);
-        syncDraw(mBitmap, mMatrix, true);
+        mScaled = true;
+        present(mMatrix, inputTime);
     }
 
     @Override
@@ -246,13 +672,18 @@ public class FractalView extends TextureView {
         super.onSizeChanged(w, h, oldw, oldh);
         mWidth = w;
         mHeight = h;
-        mPeerRectXSize = mWidth / COUNT;
-        mPeerRectYSize = mHeight / COUNT;
-        mMinX = -2.5f;
-        mMaxX = 2.5f;
-        mMaxY = mMaxX * mHeight / mWidth;
-        mMinY = -mMaxY;
-        mBitmap = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
+        mViewport = new Viewport(mWidth, mHeight);
+        mViewport.reset(DEFAULT_HALF_WIDTH);
+        cancelRender();
+        mRenderedKernel = null;
+        mRenderer = new TileRenderer(mWidth, mHeight);
+        mRenderer.setSubdivision(mSubdivision);
+        mRenderer.setVerifySubdivision(mVerifySubdivision);
+        mRenderer.setColoring(mColoring);
+        mRenderer.getMetrics().setOnMetricsListener(mMetricsListener, METRICS_INTERVAL_NANOS);
+        if (mPresenter != null) {
+            mPresenter.setSource(mRenderer.getPixels(), mWidth, mHeight);
+        }
     }
 
 
@@ -260,12 +691,11 @@ public class FractalView extends TextureView {
 
         @Override
         public void onSurfaceTextureAvailable(SurfaceTexture surface, int width, int height) {
-            mSurface = new Surface(surface);
-            if (mBitmap != null && !mBitmap.isRecycled()) {
-                Canvas canvas = mSurface.lockCanvas(null);
-                canvas.drawBitmap(mBitmap, 0, 0, null);
-                mSurface.unlockCanvasAndPost(canvas);
+            mSurfaceAvailable = true;
+            if (mPresenter != null) {
+                mPresenter.setSurface(new Surface(surface));
             }
+            present(null, 0);
             if (mShouldBeginDraw) {
                 mShouldBeginDraw = false;
                 beginDrawBitmap();
@@ -279,12 +709,10 @@ public class FractalView extends TextureView {
 
         @Override
         public boolean onSurfaceTextureDestroyed(SurfaceTexture surface) {
-            if (mSurface != null) {
-                mSurface.release();
-                mSurface = null;
-            }
-            if (mWorksDisposables != null && !mWorksDisposables.isDisposed()) {
-                mWorksDisposables.dispose();
+            mSurfaceAvailable = false;
+            cancelRender();
+            if (mPresenter != null) {
+                mPresenter.setSurface(null);
             }
             return false;
         }
@@ -295,108 +723,460 @@ public class FractalView extends TextureView {
         }
     };
 
-    public void beginDraw(float real, float im, @IntRange(from = 1, to = 2) int mode) {
+    public void beginDraw(double real, double im, @IntRange(from = 1, to = 2) int mode) {
         mShowIndex = mode;
         mComplex = new Complex(real, im);
-        if (mSurface != null) {
+        if (mSurfaceAvailable) {
             beginDrawBitmap();
         } else {
             mShouldBeginDraw = true;
         }
     }
 
+    /**
+     * 设置迭代公式，默认为z^2 + c。模式和参数c仍由{@link #beginDraw}指定，已经开始绘制时立即重新渲染
+     */
+    public void setFormula(Formula formula) {
+        if (formula.equals(mFormula)) {
+            return;
+        }
+        mFormula = formula;
+        if (mSurfaceAvailable && mComplex != null) {
+            beginDrawBitmap();
+        }
+    }
+
+    public Formula getFormula() {
+        return mFormula;
+    }
+
     private void beginDrawBitmap() {
-        mMatrix.reset();
-        Canvas canvas = new Canvas(mBitmap);
-        canvas.drawColor(Color.WHITE);
-        if (mWorksDisposables != null && !mWorksDisposables.isDisposed()) {
-            mWorksDisposables.dispose();
+        if (mAutoIterateTimes && mViewport != null) {
+            mIterateTimes = mIterationBudget.initial(mViewport.getMaxX() - mViewport.getMinX(), mWidth * mHeight);
+            mAutoPasses = 0;
         }
+        beginDrawBitmap(newKernel(), false);
+    }
+
+    /**
+     * 在渲染线程开始渲染kernel，之前清空画面
+     *
+     * @param deepen 能继续上一次渲染时只计算上次达到上限的像素，见{@link TileRenderer#deepen}，画面不清空
+     */
+    private void beginDrawBitmap(final FractalKernel kernel, final boolean deepen) {
+        mMatrix.reset();
+        resetStatistics();
+        final TileRenderer renderer = mRenderer;
+        final TileScheduler scheduler = getScheduler();
+        final int generation = mGeneration;
+        final boolean pyramid = usesTilePyramid();
+        final boolean progressive = mProgressive;
+        runOnRenderThread(new Runnable() {
+            @Override
+            public void run() {
+                if (kernel.isCancelled()) {
+                    // 还没开始就已经被新的渲染或手势代替
+                    return;
+                }
+                SurfacePresenter presenter = mPresenter;
+                if (deepen && renderer.canDeepen(kernel)) {
+                    if (presenter != null) {
+                        presenter.reload(generation, null);
+                    }
+                    renderer.deepen(kernel, scheduler,
+                            newTileListener(kernel, generation, renderer, scheduler, mWidth * mHeight));
+                    return;
+                }
+                if (presenter != null) {
+                    presenter.clear(generation);
+                    presenter.present(new SurfacePresenter.Frame(null, 0));
+                }
+                if (pyramid) {
+                    openDiskStore();
+                    renderer.renderPyramid(kernel, mTilePyramid, scheduler,
+                            newTileListener(kernel, generation, renderer, scheduler, mWidth * mHeight));
+                    return;
+                }
+
+                // 整个画面交给调度器按代价切分，不再是固定的8x8网格
+                TileRenderer.OnTileRenderedListener tileListener = newTileListener(kernel, generation, renderer,
+                        scheduler, progressive ? mWidth * mHeight * PROGRESSIVE_PASSES : mWidth * mHeight);
+                if (progressive) {
+                    renderer.renderProgressive(kernel, scheduler, tileListener,
+                            new TileRenderer.OnPassRenderedListener() {
+                                @Override
+                                public void onPassRendered(int step) {
+                                    if (step == TileRenderer.COARSEST_STEP) {
+                                        Log.d(TAG, "render: first complete frame after "
+                                                + renderer.getTimeToFirstFrame() / 1000000f + "ms");
+                                    }
+                                }
+                            });
+                } else {
+                    renderer.render(kernel, scheduler, tileListener);
+                }
+            }
+        });
+    }
+
+    /**
+     * 只有平移时，在渲染线程把上次的结果移动整数个像素，只计算新露出的区域
+     */
+    private void panBitmap() {
+        float[] values = new float[9];
+        mMatrix.getValues(values);
+        final int dx = Math.round(values[Matrix.MTRANS_X]);
+        final int dy = Math.round(values[Matrix.MTRANS_Y]);
+        mViewport = new Viewport(mRenderedViewport);
+        mViewport.translate(-dx, -dy);
+        mMatrix.reset();
 
-        final ArrayList<Rect> list = new ArrayList<>(COUNT * COUNT);
-        for (int i = 0; i < COUNT; i++) {
-            for (int j = 0; j < COUNT; j++) {
-                Rect r = new Rect(i * mPeerRectXSize, j * mPeerRectYSize, (i + 1) * mPeerRectXSize, (j + 1) * mPeerRectYSize);
-                list.add(r);
+        final FractalKernel kernel = newKernel();
+        resetStatistics();
+        final TileRenderer renderer = mRenderer;
+        final TileScheduler scheduler = getScheduler();
+        final int generation = mGeneration;
+        runOnRenderThread(new Runnable() {
+            @Override
+            public void run() {
+                if (kernel.isCancelled()) {
+                    return;
+                }
+                // shift会先取消上一次渲染并等待它的分块退出
+                List<Tile> list = renderer.shift(dx, dy);
+                SurfacePresenter presenter = mPresenter;
+                if (presenter != null) {
+                    // 平移后的像素和去掉平移的变换一起显示
+                    presenter.reload(generation, new SurfacePresenter.Frame(null, 0));
+                }
+                int total = 0;
+                for (Tile tile : list) {
+                    total += tile.width() * tile.height();
+                }
+                renderer.renderIncremental(kernel, list, scheduler,
+                        newTileListener(kernel, generation, renderer, scheduler, total));
             }
+        });
+    }
+
+    /**
+     * 金字塔分块按double坐标对齐，深度缩放时不使用；分块的键中没有公式，只缓存z^2 + c
+     */
+    private boolean usesTilePyramid() {
+        return mTileCacheEnabled && !mViewport.isDeep() && Formula.QUADRATIC.equals(mFormula);
+    }
+
+    /**
+     * 以当前参数创建内核，同时记下本次渲染的坐标范围，之前的渲染被取消。
+     * z^2 + c按缩放深度选择精度，见{@link Precision}；其他公式总是double
+     */
+    private FractalKernel newKernel() {
+        cancelRender();
+        mGeneration++;
+        mRenderedViewport = new Viewport(mViewport);
+        mScaled = false;
+        Log.d(TAG, "render: " + mFormula + " " + mRenderedViewport + " with " + Precision.getName(
+                Formula.QUADRATIC.equals(mFormula) ? mRenderedViewport.getPrecision() : Precision.DOUBLE));
+        mKernel = mFormula.createKernel(mShowIndex, mComplex.re, mComplex.im, mRenderedViewport,
+                mIterateTimes, mColorMapper);
+        return mKernel;
+    }
+
+    /**
+     * 开始新的渲染前清零线程池和显示的统计
+     */
+    private void resetStatistics() {
+        getScheduler().resetStatistics();
+        if (mPresenter != null) {
+            mPresenter.resetStatistics();
+        }
+    }
+
+    /**
+     * 取消正在进行的渲染，不等待，可以在主线程调用：工作线程之后完成的分块会被丢弃，
+     * 下一次渲染在渲染线程等它们退出后才开始写入缓冲区
+     */
+    private void cancelRender() {
+        FractalKernel kernel = mKernel;
+        if (kernel != null) {
+            // 渲染线程可能还没有把它交给渲染器
+            kernel.cancel();
         }
-        mTotalProgress = list.size();
-        mProgress = 0;
-//        Collections.shuffle(list);
-        mWorksDisposables = new CompositeDisposable();
-        for (final Rect rect : list)
-            mWorksDisposables.add(Schedulers.computation().createWorker().schedule(new Runnable() {
-                @Override
-                public void run() {
-                    synchronized (mLock) {
-                        calculateBitmap(rect, mComplex.re, mComplex.im);
+        if (mRenderer != null) {
+            mRenderer.cancel();
+        }
+    }
+
+    /**
+     * 在渲染线程开始渲染前调用，显示的进度同时换成这一次的
+     *
+     * @param generation kernel的画面编号，mPresenter已经换成新的画面时报告的变化被丢弃
+     * @param total      这一次渲染回调的像素总数，累加到total时是最后一个分块
+     */
+    private TileRenderer.OnTileRenderedListener newTileListener(final FractalKernel kernel, final int generation,
+                                                                final TileRenderer renderer,
+                                                                final TileScheduler scheduler, final int total) {
+        final AtomicInteger progress = new AtomicInteger();
+        mTotalProgress = total;
+        mProgress = progress;
+        return new TileRenderer.OnTileRenderedListener() {
+            @Override
+            public void onTileRendered(Tile tile) {
+                if (kernel.isCancelled()) {
+                    // 已经开始了新的渲染，过时的结果直接丢弃
+                    return;
+                }
+                SurfacePresenter presenter = mPresenter;
+                if (presenter != null) {
+                    presenter.invalidate(generation, tile.left, tile.top, tile.right, tile.bottom);
+                }
+                boolean last = progress.addAndGet(tile.width() * tile.height()) == total;
+                // 最后一个分块回调时也可能已经被取消，之后的统计和日志属于下一次渲染
+                if (last && !kernel.isCancelled()) {
+                    mRenderedKernel = kernel;
+                    Log.d(TAG, "render: iterated " + renderer.getIteratedPixels() + " of " + mWidth * mHeight
+                            + " pixels, " + renderer.getIterations() + " iterations, "
+                            + renderer.getSkippedIterations() + " skipped");
+                    if (kernel instanceof PerturbationKernel) {
+                        PerturbationKernel perturbation = (PerturbationKernel) kernel;
+                        Log.d(TAG, "perturbation: " + perturbation.getReferenceCount() + " reference orbits, "
+                                + perturbation.getGlitchCount() + " glitches, series skipped "
+                                + perturbation.getSeriesSkip() + " iterations");
+                    }
+                    Log.d(TAG, scheduler.toString());
+                    if (presenter != null) {
+                        Log.d(TAG, "present: " + presenter.getFramesPresented() + " frames, "
+                                + presenter.getBytesBlitted() / 1024 + "KB blitted");
                     }
-                    syncDraw(mBitmap, true);
-                    mProgress++;
-                    post(new Runnable() {
-                        @Override
-                        public void run() {
-                            if (mOnProgressChangeListener != null) {
-                                mOnProgressChangeListener.onProgressChange(mTotalProgress, mProgress);
+                    if (mVerifySubdivision) {
+                        Log.d(TAG, "subdivision: " + renderer.getDifferentPixels() + " pixels differ from brute force");
+                    }
+                    if (mAutoIterateTimes || mAntialias) {
+                        post(new Runnable() {
+                            @Override
+                            public void run() {
+                                // 还要提高上限时等最后一遍再做抗锯齿
+                                if (!adjustIterateTimes(kernel)) {
+                                    antialias(kernel);
+                                }
                             }
+                        });
+                    }
+                    if (mRecolorPending || mColoring.isGlobal()) {
+                        // 直方图均衡要等整个画面的迭代次数都确定。mRenderedKernel已经先设置，见setColoring
+                        recolor(kernel, generation);
+                    }
+                    if (mTileCacheEnabled) {
+                        Log.d(TAG, mTilePyramid.getCache().toString());
+                        DiskTileStore diskStore = mTilePyramid.getDiskStore();
+                        if (diskStore != null) {
+                            Log.d(TAG, diskStore.toString());
                         }
-                    });
+                    }
+                }
+                if (!kernel.isCancelled()) {
+                    postProgress(last);
                 }
-            }));
+            }
+        };
     }
 
-
-    private void syncDraw(Bitmap bitmap, @Nullable Matrix matrix, boolean clear) {
-        if (bitmap == null || bitmap.isRecycled()) {
+    /**
+     * 在渲染线程报告进度，不加锁：至多每{@link #PROGRESS_INTERVAL_NANOS}一次，同一时间只有一个等待执行的通知。
+     * 通知执行时才读取进度，最后一个分块的通知即使被合并，先前等待的通知也会读到完成时的值
+     */
+    private void postProgress(boolean last) {
+        long now = System.nanoTime();
+        if (!last && now - mLastProgressTime.get() < PROGRESS_INTERVAL_NANOS) {
             return;
         }
-        synchronized (mLock) {
-            if (mSurface != null) {
-                Canvas canvas = mSurface.lockCanvas(null);
-                if (clear) {
-                    canvas.drawColor(Color.WHITE);
+        if (mProgressPosted.compareAndSet(false, true)) {
+            mLastProgressTime.set(now);
+            post(mProgressRunnable);
+        }
+    }
+
+    private final Runnable mProgressRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mProgressPosted.set(false);
+            if (mOnProgressChangeListener != null) {
+                mOnProgressChangeListener.onProgressChange(mTotalProgress, mProgress.get());
+            }
+        }
+    };
+
+    /**
+     * 渲染器在工作线程推送的统计，结束时写日志，再转到主线程
+     */
+    private final RenderMetrics.OnMetricsListener mMetricsListener = new RenderMetrics.OnMetricsListener() {
+        @Override
+        public void onMetrics(final RenderMetrics.Snapshot snapshot) {
+            boolean finished = snapshot.isComplete() || snapshot.isCancelled();
+            if (finished) {
+                Log.d(TAG, snapshot.toString());
+            }
+            SurfacePresenter presenter = mPresenter;
+            // 取消时画面已经属于下一次渲染，热图不再按旧的耗时重画
+            if (mShowCostHeatmap && presenter != null && !snapshot.isCancelled()) {
+                // 分块的耗时在回调之后才记录，热图要再画一次
+                presenter.invalidate();
+            }
+            final OnRenderMetricsListener listener = mOnRenderMetricsListener;
+            if (listener != null) {
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onRenderMetrics(snapshot);
+                    }
+                });
+            }
+        }
+    };
+
+    /**
+     * 调试用：按{@link TileRenderer}记录的每像素耗时给{@link CostMap}的每个格子着色，
+     * 按对数刻度从蓝(最快)到红(最慢)，没有观测的格子不画
+     */
+    private final SurfacePresenter.Overlay mHeatmapOverlay = new SurfacePresenter.Overlay() {
+
+        private final Paint mPaint = new Paint();
+        private final float[] mHsv = {0, 1, 1};
+
+        @Override
+        public void draw(Canvas canvas, SurfacePresenter.Frame frame) {
+            TileRenderer renderer = mRenderer;
+            if (renderer == null) {
+                return;
+            }
+            CostMap costs = renderer.getCostMap();
+            float min = Float.MAX_VALUE;
+            float max = 0;
+            for (int row = 0; row < costs.getRows(); row++) {
+                for (int column = 0; column < costs.getColumns(); column++) {
+                    float cost = costs.getCost(column, row);
+                    if (cost > 0) {
+                        min = Math.min(min, cost);
+                        max = Math.max(max, cost);
+                    }
                 }
-                if (matrix == null) {
-                    canvas.drawBitmap(bitmap, 0, 0, null);
-                } else {
-                    canvas.drawBitmap(bitmap, matrix, null);
+            }
+            if (max == 0) {
+                return;
+            }
+            double range = Math.log(max / min);
+            canvas.save();
+            if (frame.matrix != null) {
+                canvas.concat(frame.matrix);
+            }
+            for (int row = 0; row < costs.getRows(); row++) {
+                for (int column = 0; column < costs.getColumns(); column++) {
+                    float cost = costs.getCost(column, row);
+                    if (cost <= 0) {
+                        continue;
+                    }
+                    double t = range == 0 ? 1 : Math.log(cost / min) / range;
+                    mHsv[0] = (float) (240 * (1 - t));
+                    mPaint.setColor(Color.HSVToColor(HEATMAP_ALPHA, mHsv));
+                    int left = column * CostMap.CELL_SIZE;
+                    int top = row * CostMap.CELL_SIZE;
+                    canvas.drawRect(left, top, Math.min(left + CostMap.CELL_SIZE, renderer.getWidth()),
+                            Math.min(top + CostMap.CELL_SIZE, renderer.getHeight()), mPaint);
                 }
-                mSurface.unlockCanvasAndPost(canvas);
             }
+            canvas.restore();
         }
-    }
+    };
 
-    private void syncDraw(Bitmap bitmap, boolean clear) {
-        syncDraw(bitmap, null, clear);
+    /**
+     * 渲染完成后按统计调整迭代上限，提高时只继续没有发散的像素，见{@link TileRenderer#deepen}
+     *
+     * @return 是否以新的上限开始了下一遍渲染
+     */
+    private boolean adjustIterateTimes(FractalKernel kernel) {
+        if (!mAutoIterateTimes || mIsDraging || kernel.isCancelled() || mRenderedKernel != kernel
+                || mAutoPasses >= MAX_AUTO_PASSES) {
+            return false;
+        }
+        int limit = kernel.getIterateTimes();
+        int next = mIterationBudget.next(kernel.getMaxX() - kernel.getMinX(), mRenderer.getCounts(), limit,
+                mRenderer.getIterations(), mRenderer.getSkippedIterations(), mRenderer.getRenderTime());
+        Log.d(TAG, mIterationBudget.toString());
+        if (next != limit) {
+            mAutoPasses++;
+            Log.d(TAG, "auto iterations: " + limit + " -> " + next);
+            changeIterateTimes(next);
+            return true;
+        }
+        return false;
     }
 
-    private void calculateBitmap(Rect r, float re, float im) {
-        Complex z = new Complex(0f, 0f);
-        Complex c = new Complex(re, im);
-        for (int i = r.left; i < r.right; i++) {
-            for (int j = r.top; j < r.bottom; j++) {
-                if (mShowIndex == 1) {
-                    z.re = i * (mMaxX - mMinX) / mWidth + mMinX;
-                    z.im = j * (mMinY - mMaxY) / mHeight + mMaxY;
-                } else {
-                    c.re = i * (mMaxX - mMinX) / mWidth + mMinX;
-                    c.im = j * (mMinY - mMaxY) / mHeight + mMaxY;
-                    z.re = 0;
-                    z.im = 0;
-                }
-                int k = 0;
-                int color = Color.BLACK;
-                for (; k < mIterateTimes; k++) {
-                    if (z.abs() > 4) {
-                        color = generateColor(k);
-                        break;
-                    }
-                    z.mul(z);
-                    z.add(c);
+    /**
+     * 在渲染线程对kernel渲染完的画面做自适应超采样，细化的像素逐块交给mPresenter
+     */
+    private void antialias(final FractalKernel kernel) {
+        if (!mAntialias || kernel == null || kernel.isCancelled() || mIsDraging || usesTilePyramid()) {
+            // 金字塔拼出的画面没有完整的迭代次数
+            return;
+        }
+        final TileRenderer renderer = mRenderer;
+        final TileScheduler scheduler = getScheduler();
+        final int generation = mGeneration;
+        runOnRenderThread(new Runnable() {
+            @Override
+            public void run() {
+                final long start = System.nanoTime();
+                final AtomicInteger remaining = new AtomicInteger(mWidth * mHeight);
+                TileScheduler.Batch batch = renderer.antialias(kernel, mSupersampler, scheduler,
+                        new TileRenderer.OnTileRenderedListener() {
+                            @Override
+                            public void onTileRendered(Tile tile) {
+                                if (kernel.isCancelled()) {
+                                    return;
+                                }
+                                SurfacePresenter presenter = mPresenter;
+                                if (presenter != null) {
+                                    presenter.invalidate(generation, tile.left, tile.top, tile.right, tile.bottom);
+                                }
+                                if (remaining.addAndGet(-tile.width() * tile.height()) == 0) {
+                                    Log.d(TAG, "antialias: " + (System.nanoTime() - start) / 1000000f + "ms, "
+                                            + renderer.getAntialiasIterations() + " iterations");
+                                }
+                            }
+                        });
+                if (batch != null) {
+                    Log.d(TAG, renderer.getAntialiasSelection().toString());
                 }
-                mBitmap.setPixel(i, j, color);
             }
+        });
+    }
+
+    /**
+     * @return 最近一次渲染从开始到整个画面第一次全部填满所用的纳秒数，尚未填满时返回-1
+     */
+    public long getTimeToFirstFrame() {
+        return mRenderer == null ? -1 : mRenderer.getTimeToFirstFrame();
+    }
+
+    private final ColorMapper mColorMapper = new ColorMapper() {
+        @Override
+        public int getColor(int k, int maxIterations) {
+            return k >= maxIterations ? Color.BLACK : generateColor(k);
         }
+    };
+
+
+    /**
+     * 以matrix显示当前的画面，在mPresenter的线程绘制，不会阻塞
+     *
+     * @param matrix    为null时原样显示
+     * @param inputTime 产生这一帧的输入事件时刻，不是由输入产生时为0
+     */
+    private void present(Matrix matrix, long inputTime) {
+        if (mPresenter == null) {
+            return;
+        }
+        mPresenter.present(new SurfacePresenter.Frame(matrix, inputTime));
     }
 
     /**
@@ -413,13 +1193,29 @@ public class FractalView extends TextureView {
         return Color.argb(255, r, g, b);
     }
 
+    /**
+     * 保存当前的画面，开启了抗锯齿时包括已经细化的像素。
+     * 保存的是此刻像素的副本，渲染还在进行时其中可能有刚写了一半的分块
+     */
     public void saveToFile(File file) throws IOException {
+        Bitmap bitmap = Bitmap.createBitmap(mRenderer.getPixels(), mWidth, mHeight, Bitmap.Config.ARGB_8888);
         FileOutputStream outputStream = new FileOutputStream(file);
-        mBitmap.compress(Bitmap.CompressFormat.JPEG, 100, outputStream);
-        outputStream.close();
+        try {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, 100, outputStream);
+        } finally {
+            outputStream.close();
+            bitmap.recycle();
+        }
     }
 
     public interface OnProgressChangeListener {
         void onProgressChange(int max, int current);
     }
+
+    public interface OnRenderMetricsListener {
+        /**
+         * 在主线程调用
+         */
+        void onRenderMetrics(RenderMetrics.Snapshot snapshot);
+    }
 }
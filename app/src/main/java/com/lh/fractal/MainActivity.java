@@ -14,10 +14,13 @@ import android.view.inputmethod.EditorInfo;
 import android.widget.EditText;
 import android.widget.Toast;
 
+import com.lh.fractal.engine.Formula;
+import com.lh.fractal.engine.IterationBudget;
 import com.lh.permissionlibrary.RxPermission;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Locale;
 
 import io.reactivex.functions.Consumer;
 
@@ -26,8 +29,8 @@ public class MainActivity extends AppCompatActivity implements FractalView.OnPro
 
     private FractalView mSurface;
     private int mCheckedIndex = 1;
-    private float mRe = 0.285f;
-    private float mIm = 0.01f;
+    private double mRe = 0.285;
+    private double mIm = 0.01;
 
     private CircleProgressBar mProgressBar;
 
@@ -36,7 +39,7 @@ public class MainActivity extends AppCompatActivity implements FractalView.OnPro
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
         mSurface = (FractalView) findViewById(R.id.surface);
-        mSurface.beginDraw(0.285f, 0.01f, mCheckedIndex);
+        mSurface.beginDraw(mRe, mIm, mCheckedIndex);
         mSurface.setOnProgressChangeListener(this);
     }
 
@@ -54,6 +57,10 @@ public class MainActivity extends AppCompatActivity implements FractalView.OnPro
         MenuItem juliaMenu = menu.findItem(R.id.julia);
         MenuItem mandelbrotMenu = menu.findItem(R.id.mandelbrot);
         MenuItem draw = menu.findItem(R.id.begin_draw);
+        menu.findItem(R.id.auto_iterate_times).setChecked(mSurface.isAutoIterateTimes());
+        menu.findItem(R.id.antialias).setChecked(mSurface.isAntialias());
+        menu.findItem(R.id.cost_heatmap).setChecked(mSurface.isShowCostHeatmap());
+        menu.findItem(R.id.tile_cache).setChecked(mSurface.isTileCacheEnabled());
         if (mCheckedIndex == 1) {
             juliaMenu.setChecked(true);
             mandelbrotMenu.setChecked(false);
@@ -78,8 +85,8 @@ public class MainActivity extends AppCompatActivity implements FractalView.OnPro
                     .setPositiveButton("确认", new DialogInterface.OnClickListener() {
                         @Override
                         public void onClick(DialogInterface dialogInterface, int i) {
-                            mRe = parseFloat(editTextRe.getText().toString(), mRe);
-                            mIm = parseFloat(editTextIm.getText().toString(), mIm);
+                            mRe = parseDouble(editTextRe.getText().toString(), mRe);
+                            mIm = parseDouble(editTextIm.getText().toString(), mIm);
                             mSurface.beginDraw(mRe, mIm, mCheckedIndex);
                         }
                     })
@@ -110,43 +117,83 @@ public class MainActivity extends AppCompatActivity implements FractalView.OnPro
                 item.setChecked(true);
                 mSurface.beginDraw(mRe, mIm, mCheckedIndex);
             }
+        } else if (formulaOf(item.getItemId()) != null) {
+            item.setChecked(true);
+            mSurface.setFormula(formulaOf(item.getItemId()));
         } else if (item.getItemId() == R.id.reset_size) {
             mSurface.restSize();
         } else if (item.getItemId() == R.id.iterate_times) {
             final EditText editText = new EditText(this);
             editText.setInputType(EditorInfo.TYPE_CLASS_NUMBER);
+            editText.setHint(String.valueOf(mSurface.getIterateTimes()));
             AlertDialog.Builder builder = new AlertDialog.Builder(this)
                     .setTitle("输入参数")
                     .setView(editText)
                     .setPositiveButton("确认", new DialogInterface.OnClickListener() {
                         @Override
                         public void onClick(DialogInterface dialogInterface, int i) {
-                            int times = parseInt(editText.getText().toString(), 64);
+                            int times = parseInt(editText.getText().toString(), IterationBudget.DEFAULT_LIMIT);
                             mSurface.setIterateTimes(times);
                         }
                     })
                     .setNegativeButton("取消", null);
             builder.show();
+        } else if (item.getItemId() == R.id.auto_iterate_times) {
+            item.setChecked(!item.isChecked());
+            mSurface.setAutoIterateTimes(item.isChecked());
+        } else if (item.getItemId() == R.id.antialias) {
+            item.setChecked(!item.isChecked());
+            mSurface.setAntialias(item.isChecked());
+        } else if (item.getItemId() == R.id.cost_heatmap) {
+            item.setChecked(!item.isChecked());
+            mSurface.setShowCostHeatmap(item.isChecked());
+        } else if (item.getItemId() == R.id.tile_cache) {
+            item.setChecked(!item.isChecked());
+            mSurface.setTileCacheEnabled(item.isChecked());
         }
         return true;
     }
 
+    /**
+     * @return 公式菜单项对应的公式，不是公式菜单项时返回null
+     */
+    private static Formula formulaOf(int itemId) {
+        if (itemId == R.id.formula_quadratic) {
+            return Formula.QUADRATIC;
+        } else if (itemId == R.id.formula_cubic) {
+            return Formula.power(3);
+        } else if (itemId == R.id.formula_quartic) {
+            return Formula.power(4);
+        } else if (itemId == R.id.formula_burning_ship) {
+            return Formula.BURNING_SHIP;
+        } else if (itemId == R.id.formula_tricorn) {
+            return Formula.TRICORN;
+        } else if (itemId == R.id.formula_newton) {
+            return Formula.NEWTON;
+        }
+        return null;
+    }
+
     private void saveToFile() {
         String path = Environment.getExternalStorageDirectory().getAbsolutePath();
         File file = new File(path, "fractal.jpg");
         try {
             mSurface.saveToFile(file);
-            Toast.makeText(this, "成功(" + file.getAbsolutePath() + ")", Toast.LENGTH_SHORT).show();
+            String message = "成功(" + file.getAbsolutePath() + ")";
+            if (mSurface.isAntialias()) {
+                message += String.format(Locale.US, "，抗锯齿细化了%.1f%%的像素", 100 * mSurface.getRefinedFraction());
+            }
+            Toast.makeText(this, message, Toast.LENGTH_SHORT).show();
         } catch (IOException e) {
             e.printStackTrace();
             Toast.makeText(this, "失败(" + e.getMessage() + ")", Toast.LENGTH_SHORT).show();
         }
     }
 
-    private float parseFloat(String text, float defaultValue) {
-        float result;
+    private double parseDouble(String text, double defaultValue) {
+        double result;
         try {
-            result = Float.parseFloat(text);
+            result = Double.parseDouble(text);
         } catch (Exception e) {
             result = defaultValue;
         }
@@ -0,0 +1,410 @@
+package com.lh.fractal;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Rect;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.Surface;
+
+import com.lh.fractal.engine.LatencyRecorder;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 独占显示用的Surface，在自己的线程上把渲染结果画到屏幕上。
+ * 手势和渲染线程只是替换一个不可变的{@link Frame}或报告变化的区域，不会等待正在进行的绘制。
+ * <p>
+ * 显示用的位图只在绘制线程访问：渲染器的像素数组是后台缓冲，绘制前把其中变化的区域复制到位图，
+ * 写入像素和绘制之间不需要共同的锁。复制时工作线程可能正在写同一区域，这样的区域最多显示一帧写了一半的内容，
+ * 写完后它自己的变化会再复制一次
+ * <p>
+ * 每个显示帧最多绘制一次：两次绘制之间提交的帧只画最后一个，渲染线程报告的变化区域合并为一个脏矩形，
+ * 帧没有变化时只用{@link Surface#lockCanvas(Rect)}重画脏矩形，不再每个分块都清屏并画整个位图
+ */
+
+public class SurfacePresenter {
+
+    private static final String TAG = "SurfacePresenter";
+
+    /**
+     * 保存最近多少次输入到显示的延迟
+     */
+    private static final int LATENCY_SAMPLES = 256;
+
+    /**
+     * 没有Choreographer(API 16以下)时两次绘制的最小间隔
+     */
+    private static final long FRAME_INTERVAL_MILLIS = 16;
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final Object mSurfaceLock = new Object();
+    private Surface mSurface;
+
+    private final AtomicReference<Frame> mFrame = new AtomicReference<>();
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+    /**
+     * 自上次绘制以来源像素中变化的区域，位图坐标，为空表示没有变化。
+     * 以它为锁保护下面几个字段，只在读写这几个字段时短暂持有，复制和绘制时不持有
+     */
+    private final Rect mDirty = new Rect();
+    private int[] mSource;
+    private int mSourceWidth;
+    private int mSourceHeight;
+    /**
+     * 当前画面的编号，报告变化时编号不同的区域属于已经被代替的画面，直接丢弃
+     */
+    private int mGeneration;
+    /**
+     * 下次绘制前要把位图清为白色
+     */
+    private boolean mClearPending;
+    /**
+     * 显示的位图，只在绘制线程访问
+     */
+    private Bitmap mBitmap;
+    /**
+     * 上次绘制的帧，只在绘制线程访问。帧被替换后需要重画整个Surface
+     */
+    private Frame mDrawnFrame;
+    private long mLastDrawTime;
+    private VsyncCallback mVsyncCallback;
+
+    private volatile long mFramesPresented;
+    private volatile long mBytesBlitted;
+    /**
+     * 已经统计过延迟的帧，只在绘制线程访问
+     */
+    private Frame mMeasuredFrame;
+    private final LatencyRecorder mLatency = new LatencyRecorder(LATENCY_SAMPLES);
+    private volatile Overlay mOverlay;
+
+    public SurfacePresenter() {
+        mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_DISPLAY);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * 设置绘制的目标，之前的Surface会被释放。传入null时等待正在进行的绘制结束后返回
+     */
+    public void setSurface(@Nullable Surface surface) {
+        synchronized (mSurfaceLock) {
+            if (mSurface != null && mSurface != surface) {
+                mSurface.release();
+            }
+            mSurface = surface;
+        }
+        if (surface != null) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    // 新的Surface上还没有内容
+                    mDrawnFrame = null;
+                    schedule();
+                }
+            });
+        }
+    }
+
+    /**
+     * 设置显示内容的来源，之后报告的变化从pixels复制。位图先清为白色，等待新的画面报告变化
+     *
+     * @param pixels 行优先的argb像素，行长度为width，由渲染线程继续写入
+     */
+    public void setSource(int[] pixels, int width, int height) {
+        synchronized (mDirty) {
+            mSource = pixels;
+            mSourceWidth = width;
+            mSourceHeight = height;
+            mClearPending = true;
+            mDirty.setEmpty();
+        }
+        schedule();
+    }
+
+    /**
+     * 替换当前显示的帧并尽快绘制，不会阻塞
+     */
+    public void present(Frame frame) {
+        mFrame.set(frame);
+        schedule();
+    }
+
+    /**
+     * 开始编号为generation的新画面：位图清为白色，之前的画面还没有复制的变化全部丢弃，不会阻塞
+     */
+    public void clear(int generation) {
+        synchronized (mDirty) {
+            mGeneration = generation;
+            mClearPending = true;
+            mDirty.setEmpty();
+        }
+        schedule();
+    }
+
+    /**
+     * 源像素整体变化，例如平移或重新着色之后：切换到编号为generation的画面，
+     * 下一帧复制全部源像素并同时换成frame，两者不会分开显示。不会阻塞
+     *
+     * @param frame 为null时保持当前的帧
+     */
+    public void reload(int generation, @Nullable Frame frame) {
+        synchronized (mDirty) {
+            mGeneration = generation;
+            mClearPending = false;
+            mDirty.set(0, 0, mSourceWidth, mSourceHeight);
+            if (frame != null) {
+                mFrame.set(frame);
+            }
+        }
+        schedule();
+    }
+
+    /**
+     * 在每一帧的位图上面再画overlay，为null时不画。之后整个画面重画一次
+     */
+    public void setOverlay(@Nullable Overlay overlay) {
+        mOverlay = overlay;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mDrawnFrame = null;
+                schedule();
+            }
+        });
+    }
+
+    /**
+     * @return 当前显示的帧，尚未提交时返回null
+     */
+    @Nullable
+    public Frame getFrame() {
+        return mFrame.get();
+    }
+
+    /**
+     * 只重画一次，源像素没有变化，例如overlay的内容变了。不会阻塞
+     */
+    public void invalidate() {
+        schedule();
+    }
+
+    /**
+     * 编号为generation的画面中区域[left, right) x [top, bottom)的源像素有变化，
+     * 与其他变化合并后在下一个显示帧复制并重画；已经被代替的画面报告的变化直接丢弃。不会阻塞
+     */
+    public void invalidate(int generation, int left, int top, int right, int bottom) {
+        synchronized (mDirty) {
+            if (generation != mGeneration) {
+                return;
+            }
+            mDirty.union(left, top, right, bottom);
+        }
+        schedule();
+    }
+
+    private void schedule() {
+        if (mScheduled.compareAndSet(false, true)) {
+            mHandler.post(mScheduleRunnable);
+        }
+    }
+
+    /**
+     * @return 上次{@link #resetStatistics()}之后画到屏幕上的帧数
+     */
+    public long getFramesPresented() {
+        return mFramesPresented;
+    }
+
+    /**
+     * @return 上次{@link #resetStatistics()}之后复制到Surface的字节数
+     */
+    public long getBytesBlitted() {
+        return mBytesBlitted;
+    }
+
+    public void resetStatistics() {
+        mFramesPresented = 0;
+        mBytesBlitted = 0;
+    }
+
+    /**
+     * @return 从输入事件发生到对应的帧画到屏幕上的延迟
+     */
+    public LatencyRecorder getLatency() {
+        return mLatency;
+    }
+
+    /**
+     * 释放Surface并结束绘制线程，之后不能再使用
+     */
+    public void quit() {
+        setSurface(null);
+        mThread.quit();
+    }
+
+    /**
+     * 在绘制线程等待下一个显示帧
+     */
+    private final Runnable mScheduleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                if (mVsyncCallback == null) {
+                    mVsyncCallback = new VsyncCallback(mDrawRunnable);
+                }
+                mVsyncCallback.post();
+            } else {
+                mHandler.postAtTime(mDrawRunnable, Math.max(SystemClock.uptimeMillis(),
+                        mLastDrawTime + FRAME_INTERVAL_MILLIS));
+            }
+        }
+    };
+
+    private final Runnable mDrawRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mScheduled.set(false);
+            mLastDrawTime = SystemClock.uptimeMillis();
+            draw();
+        }
+    };
+
+    private void draw() {
+        Frame frame;
+        int[] source;
+        int width;
+        int height;
+        boolean clear;
+        Rect dirty = new Rect();
+        synchronized (mDirty) {
+            frame = mFrame.get();
+            source = mSource;
+            if (frame == null || source == null) {
+                return;
+            }
+            width = mSourceWidth;
+            height = mSourceHeight;
+            clear = mClearPending;
+            mClearPending = false;
+            dirty.set(mDirty);
+            mDirty.setEmpty();
+        }
+        if (mBitmap == null || mBitmap.getWidth() != width || mBitmap.getHeight() != height) {
+            mBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            clear = true;
+        }
+        if (clear) {
+            mBitmap.eraseColor(Color.WHITE);
+        }
+        boolean changed = dirty.intersect(0, 0, width, height);
+        if (changed) {
+            mBitmap.setPixels(source, dirty.top * width + dirty.left, width, dirty.left, dirty.top,
+                    dirty.width(), dirty.height());
+        }
+        boolean full = clear || frame != mDrawnFrame || frame.matrix != null || !changed;
+        synchronized (mSurfaceLock) {
+            if (mSurface == null || !mSurface.isValid()) {
+                return;
+            }
+            Canvas canvas;
+            try {
+                // 系统可能扩大脏矩形，之后按它实际的大小统计
+                canvas = mSurface.lockCanvas(full ? null : dirty);
+            } catch (IllegalArgumentException | Surface.OutOfResourcesException e) {
+                Log.w(TAG, "can not lock surface", e);
+                return;
+            }
+            try {
+                if (full) {
+                    canvas.drawColor(Color.WHITE);
+                    dirty.set(0, 0, canvas.getWidth(), canvas.getHeight());
+                }
+                if (frame.matrix == null) {
+                    canvas.drawBitmap(mBitmap, 0, 0, null);
+                } else {
+                    canvas.drawBitmap(mBitmap, frame.matrix, null);
+                }
+                Overlay overlay = mOverlay;
+                if (overlay != null) {
+                    // 只重画脏矩形时canvas已经裁剪到脏矩形
+                    overlay.draw(canvas, frame);
+                }
+            } finally {
+                mSurface.unlockCanvasAndPost(canvas);
+            }
+        }
+        mDrawnFrame = frame;
+        mFramesPresented++;
+        mBytesBlitted += (long) dirty.width() * dirty.height() * 4;
+        if (frame.inputTime > 0 && frame != mMeasuredFrame) {
+            mMeasuredFrame = frame;
+            mLatency.record(System.nanoTime() - frame.inputTime);
+        }
+    }
+
+    /**
+     * 单独的类，API 16以下不会加载Choreographer
+     */
+    private static final class VsyncCallback implements Choreographer.FrameCallback {
+
+        private final Runnable mDraw;
+
+        VsyncCallback(Runnable draw) {
+            mDraw = draw;
+        }
+
+        /**
+         * 在当前线程的下一个显示帧回调
+         */
+        void post() {
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mDraw.run();
+        }
+    }
+
+    public interface Overlay {
+        /**
+         * 在绘制线程调用，此时画面已经按frame的变换画到canvas上
+         */
+        void draw(Canvas canvas, Frame frame);
+    }
+
+    /**
+     * 一帧要显示的内容：当前的画面在屏幕上的变换，创建后不再改变
+     */
+    public static final class Frame {
+
+        /**
+         * 为null时原样显示
+         */
+        public final Matrix matrix;
+        /**
+         * 产生这一帧的输入事件的{@link System#nanoTime()}，不是由输入产生时为0
+         */
+        public final long inputTime;
+
+        /**
+         * @param matrix 会被复制，之后修改传入的matrix不影响这一帧
+         */
+        public Frame(@Nullable Matrix matrix, long inputTime) {
+            this.matrix = matrix == null ? null : new Matrix(matrix);
+            this.inputTime = inputTime;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.lh.fractal.benchmark;
+
+import com.lh.fractal.engine.Coloring;
+import com.lh.fractal.engine.Palette;
+import com.lh.fractal.engine.Scene;
+import com.lh.fractal.engine.Tile;
+import com.lh.fractal.engine.TileRenderer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 用保留的迭代次数和|z|^2重新着色一整幅画面，不包括迭代
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ColoringBenchmark {
+
+    private static final int LIMIT = 1024;
+
+    @Param({"julia", "seahorse"})
+    public String scene;
+
+    @Param({"0", "1", "2"})
+    public int mode;
+
+    private TileRenderer mRenderer;
+    private Coloring mColoring;
+
+    @Setup(Level.Trial)
+    public void render() {
+        mRenderer = new TileRenderer(KernelBenchmark.WIDTH, KernelBenchmark.HEIGHT);
+        mRenderer.renderSync(Scene.forName(scene).createKernel(KernelBenchmark.WIDTH, KernelBenchmark.HEIGHT,
+                LIMIT, KernelBenchmark.IDENTITY),
+                Collections.singletonList(new Tile(0, 0, KernelBenchmark.WIDTH, KernelBenchmark.HEIGHT)));
+        mColoring = new Coloring(Palette.gradient(256, 0xff000000, 0xff000764, 0xff206bcb, 0xffedffff,
+                0xffffaa00, 0xff000200), mode);
+    }
+
+    @Benchmark
+    public int[] recolor() {
+        mRenderer.recolor(mColoring, LIMIT);
+        return mRenderer.getPixels();
+    }
+}
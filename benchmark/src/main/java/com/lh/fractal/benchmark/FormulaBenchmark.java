@@ -0,0 +1,447 @@
+package com.lh.fractal.benchmark;
+
+import com.lh.fractal.engine.Formula;
+import com.lh.fractal.engine.FractalKernel;
+import com.lh.fractal.engine.IterationCounter;
+import com.lh.fractal.engine.Tile;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 单线程逐像素计算一整幅Mandelbrot模式的画面：{@link Formula}创建的内核，
+ * 与只为这一个公式手写的循环(同样的逃逸半径和周期检测)对比，两者应当相当。
+ * z^2 + c的内核还跳过主心形线和周期2圆盘，比手写的循环快得多，不在比较之列
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FormulaBenchmark {
+
+    private static final double MIN_X = -2.5;
+    private static final double MAX_X = 1.5;
+    private static final double MIN_Y = -1.5;
+    private static final double MAX_Y = 1.5;
+
+    private static final double ESCAPE_RADIUS_SQUARED = 16;
+    private static final double PERIODICITY_EPSILON = 1e-13;
+
+    @Param({"z^2", "z^3", "z^4", "z^5", "burning-ship", "tricorn", "newton"})
+    public String formula;
+
+    @Param({"256"})
+    public int limit;
+
+    private FractalKernel mKernel;
+    private final Tile mTile = new Tile(0, 0, KernelBenchmark.WIDTH, KernelBenchmark.HEIGHT);
+    private final int[] mCounts = new int[KernelBenchmark.WIDTH * KernelBenchmark.HEIGHT];
+    private final float[] mMagnitudes = new float[KernelBenchmark.WIDTH * KernelBenchmark.HEIGHT];
+
+    @Setup(Level.Trial)
+    public void createKernel() {
+        // 都用double的内核，z^2 + c不经过精度阶梯
+        mKernel = Formula.forName(formula).createKernel(FractalKernel.MODE_MANDELBROT, 0, 0, MIN_X, MAX_X,
+                MIN_Y, MAX_Y, KernelBenchmark.WIDTH, KernelBenchmark.HEIGHT, limit, KernelBenchmark.IDENTITY);
+    }
+
+    @Setup(Level.Invocation)
+    public void clearCounts() {
+        Arrays.fill(mCounts, -1);
+    }
+
+    @Benchmark
+    public long kernel() {
+        IterationCounter counter = new IterationCounter();
+        mKernel.iterate(mCounts, mMagnitudes, KernelBenchmark.WIDTH, mTile, counter);
+        return counter.iterations;
+    }
+
+    /**
+     * 按公式选择手写的循环只在这里发生一次，每个循环里只有一种公式，与内核的条件相同
+     *
+     * @return 所有像素的迭代次数之和
+     */
+    @Benchmark
+    public long handWritten() {
+        switch (formula) {
+            case "z^2":
+                return quadraticFrame();
+            case "z^3":
+                return cubicFrame();
+            case "z^4":
+                return quarticFrame();
+            case "z^5":
+                return quinticFrame();
+            case "burning-ship":
+                return burningShipFrame();
+            case "tricorn":
+                return tricornFrame();
+            default:
+                return newtonFrame();
+        }
+    }
+
+    private long quadraticFrame() {
+        final int width = KernelBenchmark.WIDTH;
+        final int height = KernelBenchmark.HEIGHT;
+        final double stepX = (MAX_X - MIN_X) / width;
+        final double stepY = (MIN_Y - MAX_Y) / height;
+        final int max = limit;
+        final int[] counts = mCounts;
+        long iterations = 0;
+        for (int j = 0; j < height; j++) {
+            double y = j * stepY + MAX_Y;
+            for (int i = 0, index = j * width; i < width; i++, index++) {
+                int k = quadratic(i * stepX + MIN_X, y, max);
+                counts[index] = k;
+                iterations += k;
+            }
+        }
+        return iterations;
+    }
+
+    private long cubicFrame() {
+        final int width = KernelBenchmark.WIDTH;
+        final int height = KernelBenchmark.HEIGHT;
+        final double stepX = (MAX_X - MIN_X) / width;
+        final double stepY = (MIN_Y - MAX_Y) / height;
+        final int max = limit;
+        final int[] counts = mCounts;
+        long iterations = 0;
+        for (int j = 0; j < height; j++) {
+            double y = j * stepY + MAX_Y;
+            for (int i = 0, index = j * width; i < width; i++, index++) {
+                int k = cubic(i * stepX + MIN_X, y, max);
+                counts[index] = k;
+                iterations += k;
+            }
+        }
+        return iterations;
+    }
+
+    private long quarticFrame() {
+        final int width = KernelBenchmark.WIDTH;
+        final int height = KernelBenchmark.HEIGHT;
+        final double stepX = (MAX_X - MIN_X) / width;
+        final double stepY = (MIN_Y - MAX_Y) / height;
+        final int max = limit;
+        final int[] counts = mCounts;
+        long iterations = 0;
+        for (int j = 0; j < height; j++) {
+            double y = j * stepY + MAX_Y;
+            for (int i = 0, index = j * width; i < width; i++, index++) {
+                int k = quartic(i * stepX + MIN_X, y, max);
+                counts[index] = k;
+                iterations += k;
+            }
+        }
+        return iterations;
+    }
+
+    private long quinticFrame() {
+        final int width = KernelBenchmark.WIDTH;
+        final int height = KernelBenchmark.HEIGHT;
+        final double stepX = (MAX_X - MIN_X) / width;
+        final double stepY = (MIN_Y - MAX_Y) / height;
+        final int max = limit;
+        final int[] counts = mCounts;
+        long iterations = 0;
+        for (int j = 0; j < height; j++) {
+            double y = j * stepY + MAX_Y;
+            for (int i = 0, index = j * width; i < width; i++, index++) {
+                int k = quintic(i * stepX + MIN_X, y, max);
+                counts[index] = k;
+                iterations += k;
+            }
+        }
+        return iterations;
+    }
+
+    private long burningShipFrame() {
+        final int width = KernelBenchmark.WIDTH;
+        final int height = KernelBenchmark.HEIGHT;
+        final double stepX = (MAX_X - MIN_X) / width;
+        final double stepY = (MIN_Y - MAX_Y) / height;
+        final int max = limit;
+        final int[] counts = mCounts;
+        long iterations = 0;
+        for (int j = 0; j < height; j++) {
+            double y = j * stepY + MAX_Y;
+            for (int i = 0, index = j * width; i < width; i++, index++) {
+                int k = burningShip(i * stepX + MIN_X, y, max);
+                counts[index] = k;
+                iterations += k;
+            }
+        }
+        return iterations;
+    }
+
+    private long tricornFrame() {
+        final int width = KernelBenchmark.WIDTH;
+        final int height = KernelBenchmark.HEIGHT;
+        final double stepX = (MAX_X - MIN_X) / width;
+        final double stepY = (MIN_Y - MAX_Y) / height;
+        final int max = limit;
+        final int[] counts = mCounts;
+        long iterations = 0;
+        for (int j = 0; j < height; j++) {
+            double y = j * stepY + MAX_Y;
+            for (int i = 0, index = j * width; i < width; i++, index++) {
+                int k = tricorn(i * stepX + MIN_X, y, max);
+                counts[index] = k;
+                iterations += k;
+            }
+        }
+        return iterations;
+    }
+
+    private long newtonFrame() {
+        final int width = KernelBenchmark.WIDTH;
+        final int height = KernelBenchmark.HEIGHT;
+        final double stepX = (MAX_X - MIN_X) / width;
+        final double stepY = (MIN_Y - MAX_Y) / height;
+        final int max = limit;
+        final int[] counts = mCounts;
+        long iterations = 0;
+        for (int j = 0; j < height; j++) {
+            double y = j * stepY + MAX_Y;
+            for (int i = 0, index = j * width; i < width; i++, index++) {
+                int k = newton(i * stepX + MIN_X, y, max);
+                counts[index] = k;
+                iterations += k;
+            }
+        }
+        return iterations;
+    }
+
+    private static int quadratic(double cr, double ci, int max) {
+        double zr = 0;
+        double zi = 0;
+        double zr2 = 0;
+        double zi2 = 0;
+        double checkR = 0;
+        double checkI = 0;
+        int checkPeriod = 1;
+        int checkCount = 0;
+        for (int k = 0; k < max; k++) {
+            if (zr2 + zi2 > ESCAPE_RADIUS_SQUARED) {
+                return k;
+            }
+            zi = 2 * zr * zi + ci;
+            zr = zr2 - zi2 + cr;
+            zr2 = zr * zr;
+            zi2 = zi * zi;
+            if (Math.abs(zr - checkR) < PERIODICITY_EPSILON && Math.abs(zi - checkI) < PERIODICITY_EPSILON) {
+                return max;
+            }
+            if (++checkCount == checkPeriod) {
+                checkCount = 0;
+                checkPeriod <<= 1;
+                checkR = zr;
+                checkI = zi;
+            }
+        }
+        return max;
+    }
+
+    private static int cubic(double cr, double ci, int max) {
+        double zr = 0;
+        double zi = 0;
+        double zr2 = 0;
+        double zi2 = 0;
+        double checkR = 0;
+        double checkI = 0;
+        int checkPeriod = 1;
+        int checkCount = 0;
+        for (int k = 0; k < max; k++) {
+            if (zr2 + zi2 > ESCAPE_RADIUS_SQUARED) {
+                return k;
+            }
+            double r = zr * (zr2 - 3 * zi2) + cr;
+            zi = zi * (3 * zr2 - zi2) + ci;
+            zr = r;
+            zr2 = zr * zr;
+            zi2 = zi * zi;
+            if (Math.abs(zr - checkR) < PERIODICITY_EPSILON && Math.abs(zi - checkI) < PERIODICITY_EPSILON) {
+                return max;
+            }
+            if (++checkCount == checkPeriod) {
+                checkCount = 0;
+                checkPeriod <<= 1;
+                checkR = zr;
+                checkI = zi;
+            }
+        }
+        return max;
+    }
+
+    private static int quartic(double cr, double ci, int max) {
+        double zr = 0;
+        double zi = 0;
+        double zr2 = 0;
+        double zi2 = 0;
+        double checkR = 0;
+        double checkI = 0;
+        int checkPeriod = 1;
+        int checkCount = 0;
+        for (int k = 0; k < max; k++) {
+            if (zr2 + zi2 > ESCAPE_RADIUS_SQUARED) {
+                return k;
+            }
+            double sr = zr2 - zi2;
+            double si = 2 * zr * zi;
+            zr = sr * sr - si * si + cr;
+            zi = 2 * sr * si + ci;
+            zr2 = zr * zr;
+            zi2 = zi * zi;
+            if (Math.abs(zr - checkR) < PERIODICITY_EPSILON && Math.abs(zi - checkI) < PERIODICITY_EPSILON) {
+                return max;
+            }
+            if (++checkCount == checkPeriod) {
+                checkCount = 0;
+                checkPeriod <<= 1;
+                checkR = zr;
+                checkI = zi;
+            }
+        }
+        return max;
+    }
+
+    /**
+     * z^5 = z^4 * z，展开写出，作为内核中按二进制位平方再乘的对照
+     */
+    private static int quintic(double cr, double ci, int max) {
+        double zr = 0;
+        double zi = 0;
+        double checkR = 0;
+        double checkI = 0;
+        int checkPeriod = 1;
+        int checkCount = 0;
+        for (int k = 0; k < max; k++) {
+            double zr2 = zr * zr;
+            double zi2 = zi * zi;
+            if (zr2 + zi2 > ESCAPE_RADIUS_SQUARED) {
+                return k;
+            }
+            double sr = zr2 - zi2;
+            double si = 2 * zr * zi;
+            double qr = sr * sr - si * si;
+            double qi = 2 * sr * si;
+            double r = qr * zr - qi * zi + cr;
+            zi = qr * zi + qi * zr + ci;
+            zr = r;
+            if (Math.abs(zr - checkR) < PERIODICITY_EPSILON && Math.abs(zi - checkI) < PERIODICITY_EPSILON) {
+                return max;
+            }
+            if (++checkCount == checkPeriod) {
+                checkCount = 0;
+                checkPeriod <<= 1;
+                checkR = zr;
+                checkI = zi;
+            }
+        }
+        return max;
+    }
+
+    private static int burningShip(double cr, double ci, int max) {
+        double zr = 0;
+        double zi = 0;
+        double zr2 = 0;
+        double zi2 = 0;
+        double checkR = 0;
+        double checkI = 0;
+        int checkPeriod = 1;
+        int checkCount = 0;
+        for (int k = 0; k < max; k++) {
+            if (zr2 + zi2 > ESCAPE_RADIUS_SQUARED) {
+                return k;
+            }
+            zi = 2 * Math.abs(zr * zi) + ci;
+            zr = zr2 - zi2 + cr;
+            zr2 = zr * zr;
+            zi2 = zi * zi;
+            if (Math.abs(zr - checkR) < PERIODICITY_EPSILON && Math.abs(zi - checkI) < PERIODICITY_EPSILON) {
+                return max;
+            }
+            if (++checkCount == checkPeriod) {
+                checkCount = 0;
+                checkPeriod <<= 1;
+                checkR = zr;
+                checkI = zi;
+            }
+        }
+        return max;
+    }
+
+    private static int tricorn(double cr, double ci, int max) {
+        double zr = 0;
+        double zi = 0;
+        double zr2 = 0;
+        double zi2 = 0;
+        double checkR = 0;
+        double checkI = 0;
+        int checkPeriod = 1;
+        int checkCount = 0;
+        for (int k = 0; k < max; k++) {
+            if (zr2 + zi2 > ESCAPE_RADIUS_SQUARED) {
+                return k;
+            }
+            zi = -2 * zr * zi + ci;
+            zr = zr2 - zi2 + cr;
+            zr2 = zr * zr;
+            zi2 = zi * zi;
+            if (Math.abs(zr - checkR) < PERIODICITY_EPSILON && Math.abs(zi - checkI) < PERIODICITY_EPSILON) {
+                return max;
+            }
+            if (++checkCount == checkPeriod) {
+                checkCount = 0;
+                checkPeriod <<= 1;
+                checkR = zr;
+                checkI = zi;
+            }
+        }
+        return max;
+    }
+
+    /**
+     * z^3 - 1的牛顿迭代，p和p'直接展开
+     */
+    private static int newton(double zr, double zi, int max) {
+        for (int k = 0; k < max; k++) {
+            double z2r = zr * zr - zi * zi;
+            double z2i = 2 * zr * zi;
+            double pr = z2r * zr - z2i * zi - 1;
+            double pi = z2r * zi + z2i * zr;
+            double dr = 3 * z2r;
+            double di = 3 * z2i;
+            double d = dr * dr + di * di;
+            if (d == 0) {
+                return max;
+            }
+            double sr = (pr * dr + pi * di) / d;
+            double si = (pi * dr - pr * di) / d;
+            zr -= sr;
+            zi -= si;
+            if (sr * sr + si * si < 1e-12) {
+                return k + 1;
+            }
+        }
+        return max;
+    }
+}
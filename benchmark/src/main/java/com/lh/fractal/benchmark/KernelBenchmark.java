@@ -0,0 +1,84 @@
+package com.lh.fractal.benchmark;
+
+import com.lh.fractal.engine.ColorMapper;
+import com.lh.fractal.engine.FractalKernel;
+import com.lh.fractal.engine.IterationCounter;
+import com.lh.fractal.engine.MarianiSilver;
+import com.lh.fractal.engine.Scene;
+import com.lh.fractal.engine.Tile;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 单线程计算一整幅参考画面：逐像素的逃逸时间迭代，以及加上矩形细分
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class KernelBenchmark {
+
+    static final int WIDTH = 320;
+    static final int HEIGHT = 240;
+
+    static final ColorMapper IDENTITY = new ColorMapper() {
+        @Override
+        public int getColor(int k, int maxIterations) {
+            return k;
+        }
+    };
+
+    @Param({"julia", "mandelbrot", "seahorse", "deep"})
+    public String scene;
+
+    @Param({"64", "256", "1024"})
+    public int limit;
+
+    private FractalKernel mKernel;
+    private final Tile mTile = new Tile(0, 0, WIDTH, HEIGHT);
+    private final int[] mCounts = new int[WIDTH * HEIGHT];
+    private final float[] mMagnitudes = new float[WIDTH * HEIGHT];
+
+    @Setup(Level.Trial)
+    public void createKernel() {
+        mKernel = Scene.forName(scene).createKernel(WIDTH, HEIGHT, limit, IDENTITY);
+    }
+
+    @Setup(Level.Invocation)
+    public void clearCounts() {
+        Arrays.fill(mCounts, -1);
+    }
+
+    /**
+     * @return 迭代次数，返回给JMH避免被优化掉
+     */
+    @Benchmark
+    public long perPixel() {
+        IterationCounter counter = new IterationCounter();
+        mKernel.iterate(mCounts, mMagnitudes, WIDTH, mTile, counter);
+        return counter.iterations;
+    }
+
+    @Benchmark
+    public long subdivision() {
+        IterationCounter counter = new IterationCounter();
+        MarianiSilver.render(mKernel, mCounts, mMagnitudes, WIDTH, mTile, counter);
+        return counter.iterations;
+    }
+}
@@ -0,0 +1,94 @@
+package com.lh.fractal.benchmark;
+
+import com.lh.fractal.engine.FractalKernel;
+import com.lh.fractal.engine.Scene;
+import com.lh.fractal.engine.TileRenderer;
+import com.lh.fractal.engine.TileScheduler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 用{@link TileScheduler}并行渲染一整幅参考画面，包括切分、窃取和着色，从开始到所有分块完成
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SchedulerBenchmark {
+
+    /**
+     * 一次渲染的时间上限，最慢的组合(deep, 1024, 单线程)也只需要几十毫秒
+     */
+    private static final long RENDER_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    @Param({"julia", "mandelbrot", "seahorse", "deep"})
+    public String scene;
+
+    @Param({"256", "1024"})
+    public int limit;
+
+    @Param({"1", "2", "4"})
+    public int threads;
+
+    @Param({"false", "true"})
+    public boolean progressive;
+
+    private TileScheduler mScheduler;
+    private TileRenderer mRenderer;
+
+    @Setup(Level.Trial)
+    public void createScheduler() {
+        mScheduler = new TileScheduler(threads);
+        mRenderer = new TileRenderer(KernelBenchmark.WIDTH, KernelBenchmark.HEIGHT);
+    }
+
+    @TearDown(Level.Trial)
+    public void shutdown() {
+        mScheduler.shutdown();
+    }
+
+    @Benchmark
+    public long render() {
+        // 每次都创建新的内核，上一次的结果和调度代价不会被复用
+        FractalKernel kernel = Scene.forName(scene).createKernel(KernelBenchmark.WIDTH, KernelBenchmark.HEIGHT,
+                limit, KernelBenchmark.IDENTITY);
+        TileScheduler.Batch batch;
+        if (progressive) {
+            batch = mRenderer.renderProgressive(kernel, mScheduler, null, null);
+        } else {
+            batch = mRenderer.render(kernel, mScheduler, null);
+        }
+        // 分块失败时渲染永远不会完成，抛出异常让JMH报告这个组合失败，而不是一直等下去
+        long deadline = System.nanoTime() + RENDER_TIMEOUT_NANOS;
+        while (!mRenderer.isComplete()) {
+            Throwable error = batch.getError();
+            if (error != null) {
+                throw new IllegalStateException("render of " + scene + " failed", error);
+            }
+            if (System.nanoTime() > deadline) {
+                mRenderer.cancel();
+                throw new IllegalStateException("render of " + scene + " did not complete in "
+                        + TimeUnit.NANOSECONDS.toSeconds(RENDER_TIMEOUT_NANOS) + "s");
+            }
+            LockSupport.parkNanos(10000);
+        }
+        return mRenderer.getIterations();
+    }
+}
@@ -0,0 +1,99 @@
+package com.lh.fractal.engine;
+
+/**
+ * Burning Ship：z(n+1) = (|Re z(n)| + i|Im z(n)|)^2 + c，模式的含义与{@link FractalKernel}相同，
+ * Mandelbrot模式下z(0) = 0。按数学方向(虚轴向上)绘制时船是倒置的
+ */
+
+public final class BurningShipKernel extends FractalKernel {
+
+    private final boolean mJulia;
+
+    public BurningShipKernel(int mode, double re, double im, double minX, double maxX, double minY, double maxY,
+                             int width, int height, int iterateTimes, ColorMapper colorMapper) {
+        super(mode, re, im, minX, maxX, minY, maxY, width, height, iterateTimes, colorMapper);
+        mJulia = mode == MODE_JULIA;
+    }
+
+    @Override
+    public Formula getFormula() {
+        return Formula.BURNING_SHIP;
+    }
+
+    @Override
+    public int iterate(int i, int j, IterationCounter counter) {
+        return iteratePixel(mColumnX[i], mRowY[j], getIterateTimes(), counter);
+    }
+
+    @Override
+    public int iterate(int i, int j, double dx, double dy, IterationCounter counter) {
+        return iteratePixel(sampleX(i, dx), sampleY(j, dy), getIterateTimes(), counter);
+    }
+
+    @Override
+    public int iterate(int[] counts, float[] magnitudes, OrbitBuffer orbits, int stride, Tile r,
+                       IterationCounter counter) {
+        if (counter == null) {
+            counter = new IterationCounter();
+        }
+        final double[] columnX = mColumnX;
+        final int max = getIterateTimes();
+        int iterated = 0;
+        for (int j = r.top; j < r.bottom && !isCancelled(); j++) {
+            final double y = mRowY[j];
+            int index = j * stride + r.left;
+            for (int i = r.left; i < r.right; i++, index++) {
+                if (counts[index] < 0) {
+                    store(counts, magnitudes, orbits, index, iteratePixel(columnX[i], y, max, counter), max,
+                            counter);
+                    iterated++;
+                }
+            }
+        }
+        return iterated;
+    }
+
+    @Override
+    int resumeOrbit(double zr, double zi, double cr, double ci, int max, IterationCounter counter) {
+        return iterate(zr, zi, cr, ci, max, counter);
+    }
+
+    private int iteratePixel(double x, double y, int max, IterationCounter counter) {
+        return mJulia ? iterate(x, y, getRe(), getIm(), max, counter) : iterate(0, 0, x, y, max, counter);
+    }
+
+    /**
+     * 与{@link FractalKernel}相同的逃逸时间迭代和Brent周期检测，只是先取实部和虚部的绝对值
+     */
+    private int iterate(double zr, double zi, double cr, double ci, int max, IterationCounter counter) {
+        double zr2 = zr * zr;
+        double zi2 = zi * zi;
+        double checkR = zr;
+        double checkI = zi;
+        int checkPeriod = 1;
+        int checkCount = 0;
+        int k = 0;
+        for (; k < max; k++) {
+            if (zr2 + zi2 > ESCAPE_RADIUS_SQUARED) {
+                break;
+            }
+            if ((k & (CANCEL_CHECK_INTERVAL - 1)) == 0 && isCancelled()) {
+                return CANCELLED;
+            }
+            zi = 2 * Math.abs(zr * zi) + ci;
+            zr = zr2 - zi2 + cr;
+            zr2 = zr * zr;
+            zi2 = zi * zi;
+            if (Math.abs(zr - checkR) < PERIODICITY_EPSILON && Math.abs(zi - checkI) < PERIODICITY_EPSILON) {
+                return bounded(counter, k + 1, max);
+            }
+            if (++checkCount == checkPeriod) {
+                checkCount = 0;
+                checkPeriod <<= 1;
+                checkR = zr;
+                checkI = zi;
+            }
+        }
+        return finish(counter, k, zr, zi, zr2 + zi2);
+    }
+}
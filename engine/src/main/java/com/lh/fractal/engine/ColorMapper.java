@@ -0,0 +1,14 @@
+package com.lh.fractal.engine;
+
+/**
+ * map iterate times to argb color
+ */
+
+public interface ColorMapper {
+    /**
+     * @param k             iterate times, equals maxIterations when the point never escaped
+     * @param maxIterations iterate limit of the render
+     * @return argb color
+     */
+    int getColor(int k, int maxIterations);
+}
@@ -0,0 +1,150 @@
+package com.lh.fractal.engine;
+
+/**
+ * 由每个像素保留的迭代次数和最后的|z|^2计算颜色。
+ * 更换调色板或着色方式只需要用{@link #apply}遍历一次像素，不需要重新迭代。
+ * 牛顿迭代没有|z|^2，这个位置记录的是收敛到的根，见{@link #encodeRoot}，每个根的吸引域使用调色板的不同部分
+ */
+
+public class Coloring implements ColorMapper {
+
+    /**
+     * 迭代次数直接查表，得到一条条色带
+     */
+    public static final int MODE_BANDED = 0;
+    /**
+     * 连续的逃逸次数 k + 1 - log2(log|z|)，色带之间平滑过渡
+     */
+    public static final int MODE_SMOOTH = 1;
+    /**
+     * 直方图均衡：按迭代次数在整幅画面中的累积比例查表，颜色均匀分布在各个像素上
+     */
+    public static final int MODE_HISTOGRAM = 2;
+
+    private static final double LOG_2 = Math.log(2);
+
+    private final Palette mPalette;
+    private final int mMode;
+    /**
+     * 直方图均衡时每个迭代次数对应的查表位置，由{@link #prepare}计算
+     */
+    private volatile float[] mEqualized;
+
+    public Coloring(Palette palette, int mode) {
+        mPalette = palette;
+        mMode = mode;
+    }
+
+    public Palette getPalette() {
+        return mPalette;
+    }
+
+    public int getMode() {
+        return mMode;
+    }
+
+    /**
+     * @return 是否需要每个像素最后的|z|^2
+     */
+    public boolean usesMagnitudes() {
+        return mMode == MODE_SMOOTH;
+    }
+
+    /**
+     * @return 颜色是否取决于整幅画面，此时要在画面完成后调用{@link #apply}
+     */
+    public boolean isGlobal() {
+        return mMode == MODE_HISTOGRAM;
+    }
+
+    /**
+     * 把收敛到的根编码成小于0的magnitude，与|z|^2区分：count个根中的第root个记为-(1 + root / count)，在(-2, -1]内
+     */
+    public static float encodeRoot(int root, int count) {
+        return -(1 + (float) root / count);
+    }
+
+    /**
+     * @return {@link #encodeRoot}编码的根的序号
+     */
+    public static int decodeRoot(float magnitude, int count) {
+        return Math.round((-magnitude - 1) * count);
+    }
+
+    @Override
+    public int getColor(int k, int maxIterations) {
+        return getColor(k, 0, maxIterations);
+    }
+
+    /**
+     * @param k         迭代次数，小于0表示尚未计算，返回透明
+     * @param magnitude 最后的|z|^2，未知时为0，平滑着色退化为色带；
+     *                  小于0时是{@link #encodeRoot}编码的根，查表位置按根的序号平移
+     */
+    public int getColor(int k, float magnitude, int maxIterations) {
+        if (k < 0) {
+            return 0;
+        }
+        if (k >= maxIterations) {
+            return mPalette.getInteriorColor();
+        }
+        if (mMode == MODE_SMOOTH && magnitude > 1) {
+            return mPalette.getColor(smooth(k, magnitude));
+        }
+        float shift = magnitude < 0 ? (-magnitude - 1) * mPalette.size() : 0;
+        if (mMode == MODE_HISTOGRAM) {
+            float[] equalized = mEqualized;
+            if (equalized != null && k < equalized.length) {
+                return mPalette.getColor(equalized[k] + shift);
+            }
+        }
+        return shift == 0 ? mPalette.getColor(k) : mPalette.getColor(k + shift);
+    }
+
+    /**
+     * 连续的逃逸次数。逃逸半径为4，刚发散时4 < |z| <= 16，结果在[k - 1, k)内，与下一条色带衔接
+     */
+    static float smooth(int k, float magnitude) {
+        double logZ = Math.log(magnitude) / 2;
+        double nu = Math.log(logZ / LOG_2) / LOG_2;
+        return (float) Math.max(0, k + 1 - nu);
+    }
+
+    /**
+     * 统计迭代次数的直方图，只在{@link #MODE_HISTOGRAM}时需要
+     */
+    public void prepare(int[] counts, int maxIterations) {
+        if (mMode != MODE_HISTOGRAM) {
+            return;
+        }
+        int[] histogram = new int[maxIterations];
+        int total = 0;
+        for (int k : counts) {
+            if (k >= 0 && k < maxIterations) {
+                histogram[k]++;
+                total++;
+            }
+        }
+        float[] equalized = new float[maxIterations];
+        // 最后一个颜色不回绕到第一个
+        float scale = total == 0 ? 0 : (float) (mPalette.size() - 1) / total;
+        int cumulative = 0;
+        for (int k = 0; k < maxIterations; k++) {
+            cumulative += histogram[k];
+            equalized[k] = cumulative * scale;
+        }
+        mEqualized = equalized;
+    }
+
+    /**
+     * 按迭代次数和|z|^2重新计算整幅画面的颜色
+     *
+     * @param magnitudes 可以为null
+     */
+    public void apply(int[] counts, float[] magnitudes, int[] pixels, int maxIterations) {
+        prepare(counts, maxIterations);
+        for (int i = 0; i < counts.length; i++) {
+            pixels[i] = getColor(counts[i], magnitudes == null ? 0 : magnitudes[i], maxIterations);
+        }
+    }
+}
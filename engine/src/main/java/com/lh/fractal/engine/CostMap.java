@@ -0,0 +1,85 @@
+package com.lh.fractal.engine;
+
+import java.util.Arrays;
+
+/**
+ * 按{@link #CELL_SIZE}划分的画面网格，记录最近观测到的每个像素的计算耗时，
+ * {@link TileScheduler}据此估计一个区域的代价并决定是否继续切分。
+ * 多个工作线程同时读写，个别读数过时只影响切分的粒度，不影响结果，因此不加锁
+ */
+
+public class CostMap {
+
+    public static final int CELL_SIZE = 32;
+
+    private final int mColumns;
+    private final int mRows;
+    /**
+     * 每个格子平均每像素的纳秒数，0表示尚未观测
+     */
+    private final float[] mCost;
+
+    public CostMap(int width, int height) {
+        mColumns = (width + CELL_SIZE - 1) / CELL_SIZE;
+        mRows = (height + CELL_SIZE - 1) / CELL_SIZE;
+        mCost = new float[mColumns * mRows];
+    }
+
+    /**
+     * 记录在区域r上花费的时间，与格子里原有的值取平均
+     */
+    public void record(Tile r, long nanos) {
+        float cost = (float) nanos / (r.width() * r.height());
+        int right = Math.min((r.right - 1) / CELL_SIZE, mColumns - 1);
+        int bottom = Math.min((r.bottom - 1) / CELL_SIZE, mRows - 1);
+        for (int y = r.top / CELL_SIZE; y <= bottom; y++) {
+            for (int x = r.left / CELL_SIZE; x <= right; x++) {
+                int index = y * mColumns + x;
+                float old = mCost[index];
+                mCost[index] = old == 0 ? cost : (old + cost) / 2;
+            }
+        }
+    }
+
+    /**
+     * @return 区域r的估计耗时(纳秒)，没有任何观测时返回-1
+     */
+    public long estimate(Tile r) {
+        float sum = 0;
+        int known = 0;
+        int right = Math.min((r.right - 1) / CELL_SIZE, mColumns - 1);
+        int bottom = Math.min((r.bottom - 1) / CELL_SIZE, mRows - 1);
+        for (int y = r.top / CELL_SIZE; y <= bottom; y++) {
+            for (int x = r.left / CELL_SIZE; x <= right; x++) {
+                float cost = mCost[y * mColumns + x];
+                if (cost > 0) {
+                    sum += cost;
+                    known++;
+                }
+            }
+        }
+        if (known == 0) {
+            return -1;
+        }
+        return (long) (sum / known * r.width() * r.height());
+    }
+
+    public int getColumns() {
+        return mColumns;
+    }
+
+    public int getRows() {
+        return mRows;
+    }
+
+    /**
+     * @return 格子(column, row)最近平均每像素的纳秒数，0表示尚未观测
+     */
+    public float getCost(int column, int row) {
+        return mCost[row * mColumns + column];
+    }
+
+    public void clear() {
+        Arrays.fill(mCost, 0);
+    }
+}
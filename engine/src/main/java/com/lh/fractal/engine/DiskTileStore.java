@@ -0,0 +1,358 @@
+package com.lh.fractal.engine;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 保存在磁盘上的分块迭代次数，进程重启后仍然可用
+ * <p>
+ * 数据按顺序追加到若干个内存映射的段文件中，每个段文件有{@link #SLOTS_PER_SEGMENT}个固定大小的槽，
+ * 每个槽保存一个分块：64字节的头(键、长度、校验和)之后是{@link TilePyramid#TILE_SIZE}^2个按本机字节序保存的int。
+ * 打开时扫描所有段的头部重建索引；总大小超过上限时删除最旧的段。
+ * <p>
+ * 读取返回映射内存上的只读{@link IntBuffer}，在映射的内存上直接校验，损坏的槽会被丢弃，不复制数据。
+ * 槽只追加、不会被覆盖，写入的数据在放入索引之前已经完成，因此读取不加锁，多个工作线程可以同时读取；
+ * 写入和淘汰由一个写锁串行。淘汰的段只关闭文件，不解除映射，正在读取的视图仍然有效。
+ * 所有方法都是线程安全的
+ */
+
+public class DiskTileStore implements Closeable {
+
+    public static final int SLOTS_PER_SEGMENT = 64;
+
+    /**
+     * 数据改为本机字节序时更换，旧格式的段在打开时被当作空段
+     */
+    private static final int MAGIC = 0x46524355;
+    private static final int HEADER_SIZE = 64;
+    private static final int PAYLOAD_INTS = TilePyramid.TILE_SIZE * TilePyramid.TILE_SIZE;
+    private static final int SLOT_SIZE = HEADER_SIZE + PAYLOAD_INTS * 4;
+    private static final long SEGMENT_SIZE = (long) SLOT_SIZE * SLOTS_PER_SEGMENT;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".tiles";
+
+    private final File mDirectory;
+    private final int mMaxSegments;
+    /**
+     * 由mWriteLock保护
+     */
+    private final List<Segment> mSegments = new ArrayList<>();
+    private final ConcurrentMap<TileKey, Slot> mIndex = new ConcurrentHashMap<>();
+    private final Object mWriteLock = new Object();
+
+    private final AtomicLong mReadCount = new AtomicLong();
+    private final AtomicLong mWriteCount = new AtomicLong();
+    private final AtomicLong mChecksumFailureCount = new AtomicLong();
+    private final AtomicLong mEvictedSegmentCount = new AtomicLong();
+
+    private DiskTileStore(File directory, int maxSegments) {
+        mDirectory = directory;
+        mMaxSegments = maxSegments;
+    }
+
+    /**
+     * 打开或创建directory下的存储
+     *
+     * @param maxBytes 所有段文件总大小的上限，至少保留两个段
+     */
+    public static DiskTileStore open(File directory, long maxBytes) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("can not create " + directory);
+        }
+        DiskTileStore store = new DiskTileStore(directory, (int) Math.max(2, maxBytes / SEGMENT_SIZE));
+        store.load();
+        return store;
+    }
+
+    private void load() throws IOException {
+        File[] files = mDirectory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (files == null) {
+            files = new File[0];
+        }
+        List<Segment> segments = new ArrayList<>();
+        for (File file : files) {
+            try {
+                segments.add(Segment.map(file, parseSequence(file)));
+            } catch (NumberFormatException e) {
+                // 不是本类创建的文件，忽略
+            }
+        }
+        Collections.sort(segments, new Comparator<Segment>() {
+            @Override
+            public int compare(Segment a, Segment b) {
+                return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+            }
+        });
+        for (Segment segment : segments) {
+            mSegments.add(segment);
+            for (int i = 0; i < SLOTS_PER_SEGMENT; i++) {
+                TileKey key = segment.readKey(i);
+                if (key == null) {
+                    break;
+                }
+                mIndex.put(key, new Slot(segment, i));
+                segment.used = i + 1;
+            }
+        }
+        while (mSegments.size() > mMaxSegments) {
+            evictOldest();
+        }
+    }
+
+    private static long parseSequence(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * 不加锁，不复制数据
+     *
+     * @return 分块在映射内存上的只读视图，{@link TilePyramid#TILE_SIZE}^2个int；不存在或校验失败时返回null
+     */
+    public IntBuffer read(TileKey key) {
+        Slot slot = mIndex.get(key);
+        if (slot == null) {
+            return null;
+        }
+        IntBuffer payload = slot.segment.payload(slot.index);
+        if (checksum(payload) != slot.segment.readChecksum(slot.index)) {
+            mChecksumFailureCount.incrementAndGet();
+            mIndex.remove(key, slot);
+            return null;
+        }
+        mReadCount.incrementAndGet();
+        return payload.asReadOnlyBuffer();
+    }
+
+    /**
+     * 读取分块到dst
+     *
+     * @param dst 长度为{@link TilePyramid#TILE_SIZE}^2
+     * @return 存在且校验通过时返回true
+     */
+    public boolean read(TileKey key, int[] dst) {
+        IntBuffer payload = read(key);
+        if (payload == null) {
+            return false;
+        }
+        payload.get(dst, 0, PAYLOAD_INTS);
+        return true;
+    }
+
+    public void write(TileKey key, int[] counts) throws IOException {
+        if (counts.length != PAYLOAD_INTS) {
+            return;
+        }
+        synchronized (mWriteLock) {
+            if (mIndex.containsKey(key)) {
+                return;
+            }
+            Segment segment = mSegments.isEmpty() ? null : mSegments.get(mSegments.size() - 1);
+            if (segment == null || segment.used == SLOTS_PER_SEGMENT) {
+                long sequence = segment == null ? 0 : segment.sequence + 1;
+                segment = Segment.map(new File(mDirectory, SEGMENT_PREFIX + sequence + SEGMENT_SUFFIX), sequence);
+                mSegments.add(segment);
+                while (mSegments.size() > mMaxSegments) {
+                    evictOldest();
+                }
+            }
+            int index = segment.used++;
+            segment.write(index, key, counts, checksum(counts));
+            // 放入索引之后其他线程才能读到这个槽，写入的数据对它们可见
+            mIndex.put(key, new Slot(segment, index));
+            mWriteCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * 持有mWriteLock时调用
+     */
+    private void evictOldest() {
+        Segment oldest = mSegments.remove(0);
+        Iterator<Slot> iterator = mIndex.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().segment == oldest) {
+                iterator.remove();
+            }
+        }
+        oldest.close();
+        //noinspection ResultOfMethodCallIgnored
+        oldest.file.delete();
+        mEvictedSegmentCount.incrementAndGet();
+    }
+
+    /**
+     * 64位FNV-1a，按int计算
+     */
+    static long checksum(int[] counts) {
+        long hash = 0xcbf29ce484222325L;
+        for (int count : counts) {
+            hash = (hash ^ count) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * 同{@link #checksum(int[])}，按绝对位置读取，不改变buffer的位置
+     */
+    static long checksum(IntBuffer counts) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0, n = counts.limit(); i < n; i++) {
+            hash = (hash ^ counts.get(i)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    public int getTileCount() {
+        return mIndex.size();
+    }
+
+    public long getReadCount() {
+        return mReadCount.get();
+    }
+
+    public long getWriteCount() {
+        return mWriteCount.get();
+    }
+
+    public long getChecksumFailureCount() {
+        return mChecksumFailureCount.get();
+    }
+
+    public long getEvictedSegmentCount() {
+        return mEvictedSegmentCount.get();
+    }
+
+    @Override
+    public void close() {
+        synchronized (mWriteLock) {
+            mIndex.clear();
+            for (Segment segment : mSegments) {
+                segment.close();
+            }
+            mSegments.clear();
+        }
+    }
+
+    @Override
+    public String toString() {
+        int segments;
+        synchronized (mWriteLock) {
+            segments = mSegments.size();
+        }
+        return "DiskTileStore(" + mIndex.size() + " tiles in " + segments + " segments, reads=" + mReadCount
+                + ", writes=" + mWriteCount + ", checksum failures=" + mChecksumFailureCount
+                + ", evicted segments=" + mEvictedSegmentCount + ")";
+    }
+
+    private static final class Slot {
+        final Segment segment;
+        final int index;
+
+        Slot(Segment segment, int index) {
+            this.segment = segment;
+            this.index = index;
+        }
+    }
+
+    private static final class Segment {
+        final File file;
+        final long sequence;
+        final RandomAccessFile randomAccessFile;
+        final MappedByteBuffer buffer;
+        int used;
+
+        private Segment(File file, long sequence, RandomAccessFile randomAccessFile, MappedByteBuffer buffer) {
+            this.file = file;
+            this.sequence = sequence;
+            this.randomAccessFile = randomAccessFile;
+            this.buffer = buffer;
+        }
+
+        static Segment map(File file, long sequence) throws IOException {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            try {
+                randomAccessFile.setLength(SEGMENT_SIZE);
+                MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+                return new Segment(file, sequence, randomAccessFile, buffer);
+            } catch (IOException e) {
+                randomAccessFile.close();
+                throw e;
+            }
+        }
+
+        TileKey readKey(int index) {
+            int offset = index * SLOT_SIZE;
+            if (buffer.getInt(offset) != MAGIC || buffer.getInt(offset + 48) != PAYLOAD_INTS) {
+                return null;
+            }
+            return new TileKey(buffer.getInt(offset + 4),
+                    Double.longBitsToDouble(buffer.getLong(offset + 8)),
+                    Double.longBitsToDouble(buffer.getLong(offset + 16)),
+                    buffer.getInt(offset + 24),
+                    buffer.getInt(offset + 28),
+                    buffer.getLong(offset + 32),
+                    buffer.getLong(offset + 40));
+        }
+
+        long readChecksum(int index) {
+            return buffer.getLong(index * SLOT_SIZE + 56);
+        }
+
+        IntBuffer payload(int index) {
+            ByteBuffer duplicate = buffer.duplicate();
+            duplicate.position(index * SLOT_SIZE + HEADER_SIZE);
+            duplicate.limit(index * SLOT_SIZE + SLOT_SIZE);
+            return duplicate.slice().order(ByteOrder.nativeOrder()).asIntBuffer();
+        }
+
+        /**
+         * 先写数据再写头，最后写入MAGIC，写到一半进程退出时这个槽不会被当作有效数据
+         */
+        void write(int index, TileKey key, int[] counts, long checksum) {
+            int offset = index * SLOT_SIZE;
+            buffer.putInt(offset, 0);
+            payload(index).put(counts);
+            buffer.putInt(offset + 4, key.mode);
+            buffer.putLong(offset + 8, Double.doubleToLongBits(key.re));
+            buffer.putLong(offset + 16, Double.doubleToLongBits(key.im));
+            buffer.putInt(offset + 24, key.iterateTimes);
+            buffer.putInt(offset + 28, key.level);
+            buffer.putLong(offset + 32, key.x);
+            buffer.putLong(offset + 40, key.y);
+            buffer.putInt(offset + 48, PAYLOAD_INTS);
+            buffer.putLong(offset + 56, checksum);
+            buffer.putInt(offset, MAGIC);
+        }
+
+        void close() {
+            try {
+                randomAccessFile.close();
+            } catch (IOException e) {
+                // 映射的内存在关闭文件后仍然有效，这里的错误可以忽略
+            }
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.lh.fractal.engine;
+
+import java.math.BigDecimal;
+
+/**
+ * 用double-double(两个double之和，约106位有效位)迭代的内核，精度阶梯的第三级
+ * 加法和乘法用Dekker/Knuth的无误差变换实现，不依赖fma
+ * <p>
+ * 深度缩放时画面可能整个落在心形线边界附近，double的心形线判断和周期检测已经不可靠，这里都不使用
+ */
+
+public class DoubleDoubleKernel extends FractalKernel {
+
+    private static final double ESCAPE_RADIUS_SQUARED = 16.0;
+    /**
+     * 2^27 + 1，用于把double拆成两个26位的部分
+     */
+    private static final double SPLIT = 134217729.0;
+
+    private final double mCr;
+    private final double mCi;
+    private final double[] mColumnHi;
+    private final double[] mColumnLo;
+    private final double[] mRowHi;
+    private final double[] mRowLo;
+    private final double mPixelSize;
+
+    public DoubleDoubleKernel(int mode, double re, double im, Viewport viewport, int iterateTimes,
+                              ColorMapper colorMapper) {
+        super(mode, re, im, viewport.getMinX(), viewport.getMaxX(), viewport.getMinY(), viewport.getMaxY(),
+                viewport.getWidth(), viewport.getHeight(), iterateTimes, colorMapper);
+        mCr = re;
+        mCi = im;
+        int width = viewport.getWidth();
+        int height = viewport.getHeight();
+        double pixelSize = viewport.getPixelSize();
+        mPixelSize = pixelSize;
+        BigDecimal centerX = viewport.getCenterX();
+        BigDecimal centerY = viewport.getCenterY();
+        double centerXHi = centerX.doubleValue();
+        double centerXLo = centerX.subtract(new BigDecimal(centerXHi)).doubleValue();
+        double centerYHi = centerY.doubleValue();
+        double centerYLo = centerY.subtract(new BigDecimal(centerYHi)).doubleValue();
+        mColumnHi = new double[width];
+        mColumnLo = new double[width];
+        for (int i = 0; i < width; i++) {
+            double offset = (i - width / 2.0) * pixelSize;
+            double s = centerXHi + offset;
+            double b = s - centerXHi;
+            double e = (centerXHi - (s - b)) + (offset - b) + centerXLo;
+            mColumnHi[i] = s + e;
+            mColumnLo[i] = e - (mColumnHi[i] - s);
+        }
+        mRowHi = new double[height];
+        mRowLo = new double[height];
+        for (int j = 0; j < height; j++) {
+            double offset = -(j - height / 2.0) * pixelSize;
+            double s = centerYHi + offset;
+            double b = s - centerYHi;
+            double e = (centerYHi - (s - b)) + (offset - b) + centerYLo;
+            mRowHi[j] = s + e;
+            mRowLo[j] = e - (mRowHi[j] - s);
+        }
+    }
+
+    @Override
+    public int iterate(int i, int j, IterationCounter counter) {
+        if (getMode() == MODE_JULIA) {
+            return iterate(mColumnHi[i], mColumnLo[i], mRowHi[j], mRowLo[j], mCr, 0, mCi, 0,
+                    getIterateTimes(), counter);
+        } else {
+            return iterate(0, 0, 0, 0, mColumnHi[i], mColumnLo[i], mRowHi[j], mRowLo[j],
+                    getIterateTimes(), counter);
+        }
+    }
+
+    @Override
+    public int iterate(int i, int j, double dx, double dy, IterationCounter counter) {
+        double offsetX = dx * mPixelSize;
+        double xHi = mColumnHi[i] + offsetX;
+        double xLo = twoSumError(mColumnHi[i], offsetX, xHi) + mColumnLo[i];
+        double offsetY = -dy * mPixelSize;
+        double yHi = mRowHi[j] + offsetY;
+        double yLo = twoSumError(mRowHi[j], offsetY, yHi) + mRowLo[j];
+        double s = xHi + xLo;
+        xLo = xLo - (s - xHi);
+        xHi = s;
+        s = yHi + yLo;
+        yLo = yLo - (s - yHi);
+        yHi = s;
+        if (getMode() == MODE_JULIA) {
+            return iterate(xHi, xLo, yHi, yLo, mCr, 0, mCi, 0, getIterateTimes(), counter);
+        } else {
+            return iterate(0, 0, 0, 0, xHi, xLo, yHi, yLo, getIterateTimes(), counter);
+        }
+    }
+
+    /**
+     * @return a + b的舍入误差，sum为a + b的double结果
+     */
+    private static double twoSumError(double a, double b, double sum) {
+        double v = sum - a;
+        return (a - (sum - v)) + (b - v);
+    }
+
+    /**
+     * z由两个double-double组成，不保存，提高上限时重新渲染
+     */
+    @Override
+    public boolean isResumable() {
+        return false;
+    }
+
+    @Override
+    public int iterate(int[] counts, float[] magnitudes, int stride, Tile r, IterationCounter counter) {
+        if (counter == null) {
+            counter = new IterationCounter();
+        }
+        int iterated = 0;
+        for (int j = r.top; j < r.bottom && !isCancelled(); j++) {
+            int index = j * stride + r.left;
+            for (int i = r.left; i < r.right; i++, index++) {
+                if (counts[index] < 0) {
+                    counts[index] = iterate(i, j, counter);
+                    if (magnitudes != null) {
+                        magnitudes[index] = counter.magnitude;
+                    }
+                    iterated++;
+                }
+            }
+        }
+        return iterated;
+    }
+
+    /**
+     * z(n+1) = z(n)^2 + c，每个量都由hi和lo两部分组成
+     */
+    private int iterate(double zrHi, double zrLo, double ziHi, double ziLo,
+                               double crHi, double crLo, double ciHi, double ciLo,
+                               int max, IterationCounter counter) {
+        int k = 0;
+        for (; k < max; k++) {
+            if (zrHi * zrHi + ziHi * ziHi > ESCAPE_RADIUS_SQUARED) {
+                break;
+            }
+            if ((k & (CANCEL_CHECK_INTERVAL - 1)) == 0 && isCancelled()) {
+                return CANCELLED;
+            }
+            // zr^2
+            double t = SPLIT * zrHi;
+            double rh = t - (t - zrHi);
+            double rl = zrHi - rh;
+            double p = zrHi * zrHi;
+            double e = ((rh * rh - p) + 2 * rh * rl) + rl * rl + 2 * zrHi * zrLo;
+            double zr2Hi = p + e;
+            double zr2Lo = e - (zr2Hi - p);
+            // zi^2
+            t = SPLIT * ziHi;
+            double ih = t - (t - ziHi);
+            double il = ziHi - ih;
+            p = ziHi * ziHi;
+            e = ((ih * ih - p) + 2 * ih * il) + il * il + 2 * ziHi * ziLo;
+            double zi2Hi = p + e;
+            double zi2Lo = e - (zi2Hi - p);
+            // 2 * zr * zi
+            p = zrHi * ziHi;
+            e = ((rh * ih - p) + rh * il + rl * ih) + rl * il + zrHi * ziLo + zrLo * ziHi;
+            double productHi = 2 * (p + e);
+            double productLo = 2 * (e - (p + e - p));
+
+            // zi = 2 * zr * zi + ci
+            double s = productHi + ciHi;
+            double b = s - productHi;
+            e = (productHi - (s - b)) + (ciHi - b) + productLo + ciLo;
+            ziHi = s + e;
+            ziLo = e - (ziHi - s);
+            // zr = zr^2 - zi^2 + cr
+            s = zr2Hi - zi2Hi;
+            b = s - zr2Hi;
+            e = (zr2Hi - (s - b)) + (-zi2Hi - b) + zr2Lo - zi2Lo;
+            double dHi = s + e;
+            double dLo = e - (dHi - s);
+            s = dHi + crHi;
+            b = s - dHi;
+            e = (dHi - (s - b)) + (crHi - b) + dLo + crLo;
+            zrHi = s + e;
+            zrLo = e - (zrHi - s);
+        }
+        if (counter != null) {
+            counter.iterations += k;
+            counter.magnitude = (float) (zrHi * zrHi + ziHi * ziHi);
+        }
+        return k;
+    }
+}
@@ -0,0 +1,323 @@
+package com.lh.fractal.engine;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.math.BigDecimal;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 命令行导出，在没有图形界面的机器上渲染大尺寸PNG：
+ * <pre>
+ * java -jar engine.jar --scene seahorse --size 32768x32768 --limit 1024 seahorse.png
+ * </pre>
+ * 不指定的参数取自画面，--center和--view-width可以导出画面以外的任意区域。
+ * 指定--frames时输出缩放动画的PNG序列，输出参数是目录：
+ * <pre>
+ * java -jar engine.jar --scene deep --size 1280x720 --view-width 4 --end-width 4e-40 --frames 1200 frames
+ * </pre>
+ */
+
+public final class ExportTool {
+
+    private static final String USAGE = "usage: ExportTool [options] output.png\n"
+            + "       ExportTool [options] --frames N --end-width W directory\n"
+            + "  --scene NAME         julia, mandelbrot, seahorse or deep (default julia)\n"
+            + "  --size WxH           image size in pixels (default 1920x1080)\n"
+            + "  --limit N            iteration limit (default: chosen from the zoom depth)\n"
+            + "  --center RE,IM       center of the image (default: from the scene)\n"
+            + "  --view-width W       width of the image on the real axis (default: from the scene)\n"
+            + "  --julia RE,IM        render the Julia set for c = RE + IM i\n"
+            + "  --mandelbrot         render the Mandelbrot set\n"
+            + "  --formula NAME       z^N, burning-ship, tricorn, newton or newton:A,B,... (default z^2)\n"
+            + "  --coloring MODE      banded, smooth or histogram (default smooth)\n"
+            + "  --threads N          worker threads (default: all processors)\n"
+            + "  --strip N            rows per strip (default " + StripExporter.DEFAULT_STRIP_HEIGHT + ")\n"
+            + "  --level N            deflate level 0-9 (default 6)\n"
+            + "  --no-subdivision     iterate every pixel instead of Mariani-Silver subdivision\n"
+            + "  --frames N           write a zoom animation of N frames into the output directory\n"
+            + "  --end-width W        width of the last frame on the real axis (default: view width / 1000)";
+
+    private static final int PALETTE_SIZE = 256;
+
+    private ExportTool() {
+    }
+
+    public static void main(String[] args) {
+        try {
+            System.exit(run(args, System.out, System.err));
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+    }
+
+    /**
+     * @return 进程的退出码
+     * @throws IllegalArgumentException 参数错误
+     */
+    static int run(String[] args, PrintStream out, final PrintStream err) {
+        Scene scene = Scene.JULIA;
+        int width = 1920;
+        int height = 1080;
+        int limit = 0;
+        BigDecimal centerX = null;
+        BigDecimal centerY = null;
+        double viewWidth = 0;
+        int mode = 0;
+        Formula formula = Formula.QUADRATIC;
+        double re = 0;
+        double im = 0;
+        int coloringMode = Coloring.MODE_SMOOTH;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int strip = StripExporter.DEFAULT_STRIP_HEIGHT;
+        int level = 6;
+        boolean subdivision = true;
+        int frames = 0;
+        double endWidth = 0;
+        String output = null;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                if (output != null) {
+                    throw new IllegalArgumentException("more than one output file");
+                }
+                output = arg;
+                continue;
+            }
+            if (arg.equals("--mandelbrot")) {
+                mode = FractalKernel.MODE_MANDELBROT;
+                continue;
+            }
+            if (arg.equals("--no-subdivision")) {
+                subdivision = false;
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("missing value for " + arg);
+            }
+            String value = args[++i];
+            switch (arg) {
+                case "--scene":
+                    scene = Scene.forName(value);
+                    break;
+                case "--size": {
+                    String[] size = split(value, 'x');
+                    width = parseInt(size[0]);
+                    height = parseInt(size[1]);
+                    break;
+                }
+                case "--limit":
+                    limit = parseInt(value);
+                    break;
+                case "--center": {
+                    String[] center = split(value, ',');
+                    centerX = new BigDecimal(center[0]);
+                    centerY = new BigDecimal(center[1]);
+                    break;
+                }
+                case "--view-width":
+                    viewWidth = Double.parseDouble(value);
+                    break;
+                case "--julia": {
+                    String[] c = split(value, ',');
+                    mode = FractalKernel.MODE_JULIA;
+                    re = Double.parseDouble(c[0]);
+                    im = Double.parseDouble(c[1]);
+                    break;
+                }
+                case "--formula":
+                    formula = Formula.forName(value);
+                    break;
+                case "--coloring":
+                    coloringMode = parseColoring(value);
+                    break;
+                case "--threads":
+                    threads = parseInt(value);
+                    break;
+                case "--strip":
+                    strip = parseInt(value);
+                    break;
+                case "--level":
+                    level = parseInt(value);
+                    break;
+                case "--frames":
+                    frames = parseInt(value);
+                    break;
+                case "--end-width":
+                    endWidth = Double.parseDouble(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option " + arg);
+            }
+        }
+        if (output == null) {
+            throw new IllegalArgumentException("missing output file");
+        }
+        if (mode == 0) {
+            mode = scene.getMode();
+            re = scene.getRe();
+            im = scene.getIm();
+        }
+        if (centerX == null) {
+            centerX = scene.getCenterX();
+            centerY = scene.getCenterY();
+        }
+        if (viewWidth <= 0) {
+            viewWidth = scene.getViewWidth();
+        }
+        Coloring coloring = new Coloring(Palette.gradient(PALETTE_SIZE, 0xff000000, 0xff000764, 0xff206bcb,
+                0xffedffff, 0xffffaa00, 0xff000200), coloringMode);
+        if (frames > 0) {
+            if (!Formula.QUADRATIC.equals(formula)) {
+                throw new IllegalArgumentException("--frames only supports " + Formula.QUADRATIC);
+            }
+            if (endWidth <= 0) {
+                endWidth = viewWidth / 1000;
+            }
+            return animate(mode, re, im, centerX, centerY, viewWidth, endWidth, width, height, frames, limit,
+                    coloring, threads, level, output, out, err);
+        }
+        if (limit <= 0) {
+            limit = IterationBudget.forZoom(viewWidth);
+        }
+
+        Viewport viewport = new Viewport(width, height);
+        viewport.set(centerX, centerY, viewWidth / width);
+        FractalKernel kernel = formula.createKernel(mode, re, im, viewport, limit, coloring);
+
+        TileScheduler scheduler = new TileScheduler(threads);
+        StripExporter exporter = new StripExporter(scheduler);
+        exporter.setStripHeight(strip);
+        exporter.setSubdivision(subdivision);
+        exporter.setColoring(coloring);
+        exporter.setCompressionLevel(level);
+        exporter.setOnProgressListener(new StripExporter.OnProgressListener() {
+            private int mPercent = -1;
+
+            @Override
+            public void onProgress(int rows, int height) {
+                int percent = (int) (100L * rows / height);
+                if (percent != mPercent) {
+                    mPercent = percent;
+                    err.print("\r" + percent + "%");
+                    if (rows == height) {
+                        err.println();
+                    }
+                }
+            }
+        });
+        out.println(String.format(Locale.US, "%dx%d, %s, limit %d, %s, %d threads, strip buffers %.1f MB",
+                width, height, formula, limit, Precision.getName(Formula.QUADRATIC.equals(formula)
+                        ? viewport.getPrecision() : Precision.DOUBLE),
+                threads, exporter.getBufferBytes(width) / 1e6));
+        try {
+            OutputStream stream = new BufferedOutputStream(new FileOutputStream(new File(output)));
+            exporter.export(kernel, stream);
+        } catch (IOException e) {
+            err.println("can not write " + output + ": " + e.getMessage());
+            return 1;
+        } catch (InterruptedException e) {
+            return 1;
+        } finally {
+            scheduler.shutdown();
+        }
+        double seconds = exporter.getElapsedTime() / 1e9;
+        out.println(String.format(Locale.US,
+                "%.2f s, %.1f Mpixel/s, %d iterations (%.1f M/s), encoding %.2f s, %.1f MB written",
+                seconds, (double) width * height / seconds / 1e6, exporter.getIterations(),
+                exporter.getIterations() / seconds / 1e6, exporter.getEncodeTime() / 1e9,
+                exporter.getBytesWritten() / 1e6));
+        return 0;
+    }
+
+    /**
+     * @param limit 0表示每个关键帧按缩放深度选择
+     */
+    private static int animate(int mode, double re, double im, BigDecimal centerX, BigDecimal centerY,
+                               double startWidth, double endWidth, int width, int height, final int frames,
+                               int limit, Coloring coloring, int threads, int level, String output,
+                               PrintStream out, final PrintStream err) {
+        File directory = new File(output);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            err.println("can not create directory " + output);
+            return 1;
+        }
+        TileScheduler scheduler = new TileScheduler(threads);
+        ZoomAnimator animator = new ZoomAnimator(scheduler);
+        animator.setColoring(coloring);
+        animator.setIterateTimes(limit);
+        animator.setCompressionLevel(level);
+        animator.setOnFrameWrittenListener(new ZoomAnimator.OnFrameWrittenListener() {
+            private final AtomicInteger mWritten = new AtomicInteger();
+
+            @Override
+            public void onFrameWritten(int index, File file) {
+                int written = mWritten.incrementAndGet();
+                synchronized (err) {
+                    err.print("\r" + written + "/" + frames);
+                    if (written == frames) {
+                        err.println();
+                    }
+                }
+            }
+        });
+        out.println(String.format(Locale.US, "%d frames %dx%d, width %g to %g, %d threads",
+                frames, width, height, startWidth, endWidth, threads));
+        try {
+            animator.render(mode, re, im, centerX, centerY, startWidth, endWidth, width, height, frames, directory);
+        } catch (IOException e) {
+            err.println("can not write " + output + ": " + e.getMessage());
+            return 1;
+        } catch (InterruptedException e) {
+            return 1;
+        } finally {
+            scheduler.shutdown();
+        }
+        double seconds = animator.getElapsedTime() / 1e9;
+        out.println(String.format(Locale.US,
+                "%.2f s, %.1f frames/min, %d keyframes (%d sharing one reference orbit), "
+                        + "keyframe rendering %.2f s, %d iterations",
+                seconds, animator.getFramesPerMinute(), animator.getKeyframes(), animator.getSharedReferences(),
+                animator.getRenderTime() / 1e9, animator.getIterations()));
+        return 0;
+    }
+
+    private static String[] split(String value, char separator) {
+        int index = value.indexOf(separator);
+        if (index < 0) {
+            throw new IllegalArgumentException("expected two values separated by '" + separator + "': " + value);
+        }
+        return new String[]{value.substring(0, index), value.substring(index + 1)};
+    }
+
+    private static int parseInt(String value) {
+        try {
+            int result = Integer.parseInt(value);
+            if (result < 0) {
+                throw new IllegalArgumentException("negative value " + value);
+            }
+            return result;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("not a number: " + value);
+        }
+    }
+
+    private static int parseColoring(String value) {
+        switch (value) {
+            case "banded":
+                return Coloring.MODE_BANDED;
+            case "smooth":
+                return Coloring.MODE_SMOOTH;
+            case "histogram":
+                return Coloring.MODE_HISTOGRAM;
+            default:
+                throw new IllegalArgumentException("unknown coloring " + value);
+        }
+    }
+}
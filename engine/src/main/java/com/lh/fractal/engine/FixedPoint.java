@@ -0,0 +1,127 @@
+package com.lh.fractal.engine;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+
+/**
+ * 多limb定点数运算，供{@link FixedPointKernel}使用
+ * 一个数保存为int数组的补码，[0]为带符号的整数部分，之后每个元素是32位小数，越往后越低位。
+ * 每个limb只用32位，两个limb的乘积正好放进一个long，不需要128位乘法
+ */
+
+final class FixedPoint {
+
+    private static final long MASK = 0xffffffffL;
+    private static final double LIMB = 4294967296.0;
+
+    private FixedPoint() {
+    }
+
+    /**
+     * @param fractionBits 需要的小数位数
+     * @return 整数部分加上足够小数位的limb数
+     */
+    static int limbsFor(int fractionBits) {
+        return 1 + (fractionBits + 31) / 32;
+    }
+
+    static int[] valueOf(BigDecimal value, int limbs) {
+        BigInteger scaled = value.multiply(new BigDecimal(BigInteger.ONE.shiftLeft(32 * (limbs - 1))))
+                .setScale(0, RoundingMode.HALF_EVEN).toBigInteger();
+        int[] result = new int[limbs];
+        for (int k = limbs - 1; k >= 0; k--) {
+            result[k] = scaled.intValue();
+            scaled = scaled.shiftRight(32);
+        }
+        return result;
+    }
+
+    static int[] valueOf(double value, int limbs) {
+        return valueOf(new BigDecimal(value), limbs);
+    }
+
+    /**
+     * 取前两个limb近似为double，只用于逃逸判断
+     */
+    static double toDouble(int[] a) {
+        return a[0] + (a[1] & MASK) / LIMB;
+    }
+
+    static void add(int[] a, int[] b, int[] dst) {
+        long carry = 0;
+        for (int k = a.length - 1; k >= 0; k--) {
+            long sum = (a[k] & MASK) + (b[k] & MASK) + carry;
+            dst[k] = (int) sum;
+            carry = sum >>> 32;
+        }
+    }
+
+    static void subtract(int[] a, int[] b, int[] dst) {
+        long borrow = 0;
+        for (int k = a.length - 1; k >= 0; k--) {
+            long difference = (a[k] & MASK) - (b[k] & MASK) - borrow;
+            dst[k] = (int) difference;
+            borrow = difference >>> 63;
+        }
+    }
+
+    static void negate(int[] a, int[] dst) {
+        long carry = 1;
+        for (int k = a.length - 1; k >= 0; k--) {
+            long sum = (~a[k] & MASK) + carry;
+            dst[k] = (int) sum;
+            carry = sum >>> 32;
+        }
+    }
+
+    /**
+     * dst = a * b，低于最后一个limb的部分直接截断
+     *
+     * @param absA        临时数组，长度与a相同
+     * @param absB        临时数组，长度与a相同
+     * @param accumulator 临时数组，长度为a.length + 1
+     */
+    static void multiply(int[] a, int[] b, int[] dst, int[] absA, int[] absB, long[] accumulator) {
+        final int n = a.length;
+        boolean negative = (a[0] < 0) != (b[0] < 0);
+        abs(a, absA);
+        abs(b, absB);
+        for (int m = 0; m <= n; m++) {
+            accumulator[m] = 0;
+        }
+        for (int k = 0; k < n; k++) {
+            long ak = absA[k] & MASK;
+            if (ak == 0) {
+                continue;
+            }
+            for (int l = 0; l < n && k + l <= n; l++) {
+                long p = ak * (absB[l] & MASK);
+                int m = k + l;
+                accumulator[m] += p & MASK;
+                if (m > 0) {
+                    accumulator[m - 1] += p >>> 32;
+                }
+            }
+        }
+        long carry = 0;
+        for (int m = n; m >= 0; m--) {
+            long v = accumulator[m] + carry;
+            if (m < n) {
+                dst[m] = (int) v;
+            }
+            carry = v >>> 32;
+        }
+        if (negative) {
+            negate(dst, dst);
+        }
+    }
+
+    private static void abs(int[] a, int[] dst) {
+        if (a[0] < 0) {
+            negate(a, dst);
+        } else {
+            System.arraycopy(a, 0, dst, 0, a.length);
+        }
+    }
+}
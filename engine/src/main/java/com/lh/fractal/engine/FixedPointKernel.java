@@ -0,0 +1,145 @@
+package com.lh.fractal.engine;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+
+/**
+ * 用多limb定点数迭代的内核，不会被{@link Precision#choose}自动选择，用于对比和验证微扰的结果
+ * 小数位数按像素大小决定，每个像素都是完整精度的直接迭代，不会出现微扰的glitch，但每次乘法是O(limb^2)
+ */
+
+public class FixedPointKernel extends FractalKernel {
+
+    private static final double ESCAPE_RADIUS_SQUARED = 16.0;
+    /**
+     * 在区分相邻像素所需的位数之外多保留的小数位，吸收迭代中累积的截断误差
+     */
+    private static final int GUARD_BITS = 48;
+
+    private final int mLimbs;
+    private final int[] mCr;
+    private final int[] mCi;
+    private final int[][] mColumnFixed;
+    private final int[][] mRowFixed;
+    private final double mPixelSize;
+
+    public FixedPointKernel(int mode, double re, double im, Viewport viewport, int iterateTimes,
+                            ColorMapper colorMapper) {
+        super(mode, re, im, viewport.getMinX(), viewport.getMaxX(), viewport.getMinY(), viewport.getMaxY(),
+                viewport.getWidth(), viewport.getHeight(), iterateTimes, colorMapper);
+        double pixelSize = viewport.getPixelSize();
+        mPixelSize = pixelSize;
+        int fractionBits = (int) Math.ceil(-Math.log(pixelSize) / Math.log(2)) + GUARD_BITS;
+        mLimbs = FixedPoint.limbsFor(Math.max(fractionBits, 32));
+        mCr = FixedPoint.valueOf(re, mLimbs);
+        mCi = FixedPoint.valueOf(im, mLimbs);
+        int width = viewport.getWidth();
+        int height = viewport.getHeight();
+        MathContext mc = new MathContext(fractionBits / 3 + 10);
+        mColumnFixed = new int[width][];
+        for (int i = 0; i < width; i++) {
+            BigDecimal x = viewport.getCenterX().add(new BigDecimal((i - width / 2.0) * pixelSize), mc);
+            mColumnFixed[i] = FixedPoint.valueOf(x, mLimbs);
+        }
+        mRowFixed = new int[height][];
+        for (int j = 0; j < height; j++) {
+            BigDecimal y = viewport.getCenterY().subtract(new BigDecimal((j - height / 2.0) * pixelSize), mc);
+            mRowFixed[j] = FixedPoint.valueOf(y, mLimbs);
+        }
+    }
+
+    /**
+     * @return 每个数使用的limb数
+     */
+    public int getLimbs() {
+        return mLimbs;
+    }
+
+    @Override
+    public int iterate(int i, int j, IterationCounter counter) {
+        if (getMode() == MODE_JULIA) {
+            return iterate(mColumnFixed[i], mRowFixed[j], mCr, mCi, getIterateTimes(), counter);
+        } else {
+            return iterate(new int[mLimbs], new int[mLimbs], mColumnFixed[i], mRowFixed[j], getIterateTimes(), counter);
+        }
+    }
+
+    @Override
+    public int iterate(int i, int j, double dx, double dy, IterationCounter counter) {
+        int[] x = new int[mLimbs];
+        int[] y = new int[mLimbs];
+        FixedPoint.add(mColumnFixed[i], FixedPoint.valueOf(dx * mPixelSize, mLimbs), x);
+        FixedPoint.add(mRowFixed[j], FixedPoint.valueOf(-dy * mPixelSize, mLimbs), y);
+        if (getMode() == MODE_JULIA) {
+            return iterate(x, y, mCr, mCi, getIterateTimes(), counter);
+        } else {
+            return iterate(new int[mLimbs], new int[mLimbs], x, y, getIterateTimes(), counter);
+        }
+    }
+
+    /**
+     * 定点数的z保存起来太占内存，提高上限时重新渲染
+     */
+    @Override
+    public boolean isResumable() {
+        return false;
+    }
+
+    @Override
+    public int iterate(int[] counts, float[] magnitudes, int stride, Tile r, IterationCounter counter) {
+        if (counter == null) {
+            counter = new IterationCounter();
+        }
+        int iterated = 0;
+        for (int j = r.top; j < r.bottom && !isCancelled(); j++) {
+            int index = j * stride + r.left;
+            for (int i = r.left; i < r.right; i++, index++) {
+                if (counts[index] < 0) {
+                    counts[index] = iterate(i, j, counter);
+                    if (magnitudes != null) {
+                        magnitudes[index] = counter.magnitude;
+                    }
+                    iterated++;
+                }
+            }
+        }
+        return iterated;
+    }
+
+    /**
+     * z(n+1) = z(n)^2 + c
+     */
+    private int iterate(int[] z0r, int[] z0i, int[] cr, int[] ci, int max, IterationCounter counter) {
+        final int n = cr.length;
+        int[] zr = z0r.clone();
+        int[] zi = z0i.clone();
+        int[] zr2 = new int[n];
+        int[] zi2 = new int[n];
+        int[] product = new int[n];
+        int[] absA = new int[n];
+        int[] absB = new int[n];
+        long[] accumulator = new long[n + 1];
+        int k = 0;
+        for (; k < max; k++) {
+            // 一次定点迭代的代价是double的几十倍，每次都检查
+            if (isCancelled()) {
+                return CANCELLED;
+            }
+            FixedPoint.multiply(zr, zr, zr2, absA, absB, accumulator);
+            FixedPoint.multiply(zi, zi, zi2, absA, absB, accumulator);
+            if (FixedPoint.toDouble(zr2) + FixedPoint.toDouble(zi2) > ESCAPE_RADIUS_SQUARED) {
+                break;
+            }
+            FixedPoint.multiply(zr, zi, product, absA, absB, accumulator);
+            FixedPoint.add(product, product, product);
+            FixedPoint.add(product, ci, zi);
+            FixedPoint.subtract(zr2, zi2, zr);
+            FixedPoint.add(zr, cr, zr);
+        }
+        if (counter != null) {
+            counter.iterations += k;
+            counter.magnitude = (float) (FixedPoint.toDouble(zr2) + FixedPoint.toDouble(zi2));
+        }
+        return k;
+    }
+}
@@ -0,0 +1,196 @@
+package com.lh.fractal.engine;
+
+/**
+ * 用float迭代的内核，精度阶梯的第一级
+ * 像素间隔相对坐标足够大时float的误差看不出来，而float运算在没有双精度浮点单元的设备上更快
+ */
+
+public class FloatKernel extends FractalKernel {
+
+    private static final float ESCAPE_RADIUS_SQUARED = 16.0f;
+    /**
+     * 周期检测的距离，比double内核大，但仍只有十几个ulp
+     */
+    private static final float PERIODICITY_EPSILON = 1e-6f;
+
+    private final float mCr;
+    private final float mCi;
+    private final float[] mColumnFloat;
+    private final float[] mRowFloat;
+
+    public FloatKernel(int mode, double re, double im, Viewport viewport, int iterateTimes,
+                       ColorMapper colorMapper) {
+        super(mode, re, im, viewport.getMinX(), viewport.getMaxX(), viewport.getMinY(), viewport.getMaxY(),
+                viewport.getWidth(), viewport.getHeight(), iterateTimes, colorMapper);
+        mCr = (float) re;
+        mCi = (float) im;
+        int width = viewport.getWidth();
+        int height = viewport.getHeight();
+        float minX = (float) getMinX();
+        float maxY = (float) getMaxY();
+        float pixelSize = (float) viewport.getPixelSize();
+        mColumnFloat = new float[width];
+        for (int i = 0; i < width; i++) {
+            mColumnFloat[i] = i * pixelSize + minX;
+        }
+        mRowFloat = new float[height];
+        for (int j = 0; j < height; j++) {
+            mRowFloat[j] = maxY - j * pixelSize;
+        }
+        Symmetry.mirrorCoordinates(mColumnFloat, Symmetry.axisOf(getMinX(), (getMaxX() - getMinX()) / width, width));
+        Symmetry.mirrorCoordinates(mRowFloat, Symmetry.axisOf(getMaxY(), (getMinY() - getMaxY()) / height, height));
+    }
+
+    @Override
+    public int iterate(int i, int j, IterationCounter counter) {
+        if (getMode() == MODE_JULIA) {
+            return iterate(mColumnFloat[i], mRowFloat[j], mCr, mCi, getIterateTimes(), counter);
+        } else {
+            return iterateMandelbrot(mColumnFloat[i], mRowFloat[j], getIterateTimes(), counter);
+        }
+    }
+
+    @Override
+    public int iterate(int i, int j, double dx, double dy, IterationCounter counter) {
+        float x = mColumnFloat[i] + (float) (dx * (getMaxX() - getMinX()) / getWidth());
+        float y = mRowFloat[j] - (float) (dy * (getMaxY() - getMinY()) / getHeight());
+        if (getMode() == MODE_JULIA) {
+            return iterate(x, y, mCr, mCi, getIterateTimes(), counter);
+        } else {
+            return iterateMandelbrot(x, y, getIterateTimes(), counter);
+        }
+    }
+
+    @Override
+    public int iterate(int[] counts, float[] magnitudes, OrbitBuffer orbits, int stride, Tile r,
+                       IterationCounter counter) {
+        if (counter == null) {
+            counter = new IterationCounter();
+        }
+        final boolean julia = getMode() == MODE_JULIA;
+        final float[] columnX = mColumnFloat;
+        final int max = getIterateTimes();
+        int iterated = 0;
+        for (int j = r.top; j < r.bottom && !isCancelled(); j++) {
+            final float y = mRowFloat[j];
+            int index = j * stride + r.left;
+            for (int i = r.left; i < r.right; i++, index++) {
+                if (counts[index] < 0) {
+                    int k = julia
+                            ? iterate(columnX[i], y, mCr, mCi, max, counter)
+                            : iterateMandelbrot(columnX[i], y, max, counter);
+                    store(counts, magnitudes, orbits, index, k, max, counter);
+                    iterated++;
+                }
+            }
+        }
+        return iterated;
+    }
+
+    /**
+     * 与{@link FractalKernel}相同，保存的z本来就是float，转换回来没有误差
+     */
+    @Override
+    public int resume(int[] counts, float[] magnitudes, OrbitBuffer orbits, int stride, Tile r, int from,
+                      IterationCounter counter) {
+        if (counter == null) {
+            counter = new IterationCounter();
+        }
+        final boolean julia = getMode() == MODE_JULIA;
+        final float[] columnX = mColumnFloat;
+        final int max = getIterateTimes();
+        if (max <= from) {
+            return 0;
+        }
+        int iterated = 0;
+        for (int j = r.top; j < r.bottom && !isCancelled(); j++) {
+            final float y = mRowFloat[j];
+            int index = j * stride + r.left;
+            for (int i = r.left; i < r.right; i++, index++) {
+                if (counts[index] != from) {
+                    continue;
+                }
+                double zr = orbits.getReal(index);
+                int k;
+                if (Double.isNaN(zr)) {
+                    counter.skipped += max - from;
+                    counts[index] = max;
+                    continue;
+                } else if (zr == ORBIT_UNKNOWN) {
+                    counts[index] = -1;
+                    continue;
+                } else {
+                    float cr = julia ? mCr : columnX[i];
+                    float ci = julia ? mCi : y;
+                    k = iterate((float) zr, (float) orbits.getImag(index), cr, ci, max - from, counter);
+                    if (k != CANCELLED) {
+                        k += from;
+                    }
+                }
+                if (k == CANCELLED) {
+                    return iterated;
+                }
+                store(counts, magnitudes, orbits, index, k, max, counter);
+                iterated++;
+            }
+        }
+        return iterated;
+    }
+
+    private int iterateMandelbrot(float cr, float ci, int max, IterationCounter counter) {
+        if (isInCardioidOrBulb(cr, ci)) {
+            if (counter != null) {
+                counter.skipped += max;
+                counter.zr = ORBIT_BOUNDED;
+            }
+            return max;
+        }
+        return iterate(0, 0, cr, ci, max, counter);
+    }
+
+    /**
+     * 与{@link FractalKernel}相同的逃逸时间迭代和Brent周期检测，只是改用float
+     */
+    private int iterate(float zr, float zi, float cr, float ci, int max, IterationCounter counter) {
+        float zr2 = zr * zr;
+        float zi2 = zi * zi;
+        float checkR = zr;
+        float checkI = zi;
+        int checkPeriod = 1;
+        int checkCount = 0;
+        int k = 0;
+        for (; k < max; k++) {
+            if (zr2 + zi2 > ESCAPE_RADIUS_SQUARED) {
+                break;
+            }
+            if ((k & (CANCEL_CHECK_INTERVAL - 1)) == 0 && isCancelled()) {
+                return CANCELLED;
+            }
+            zi = 2 * zr * zi + ci;
+            zr = zr2 - zi2 + cr;
+            zr2 = zr * zr;
+            zi2 = zi * zi;
+            if (Math.abs(zr - checkR) < PERIODICITY_EPSILON && Math.abs(zi - checkI) < PERIODICITY_EPSILON) {
+                if (counter != null) {
+                    counter.iterations += k + 1;
+                    counter.skipped += max - k - 1;
+                    counter.zr = ORBIT_BOUNDED;
+                }
+                return max;
+            }
+            if (++checkCount == checkPeriod) {
+                checkCount = 0;
+                checkPeriod <<= 1;
+                checkR = zr;
+                checkI = zi;
+            }
+        }
+        if (counter != null) {
+            counter.iterations += k;
+            counter.magnitude = zr2 + zi2;
+            counter.zr = zr;
+            counter.zi = zi;
+        }
+        return k;
+    }
+}
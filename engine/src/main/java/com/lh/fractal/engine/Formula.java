@@ -0,0 +1,270 @@
+package com.lh.fractal.engine;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * 迭代公式，决定由哪个内核类计算像素：
+ * <pre>
+ * z^2 + c          FractalKernel和精度阶梯上的各级内核，见{@link Precision}
+ * z^n + c          MultibrotKernel
+ * Burning Ship     BurningShipKernel，(|Re z| + i|Im z|)^2 + c
+ * Tricorn          TricornKernel，conj(z)^2 + c
+ * Newton           NewtonKernel，z - p(z) / p'(z)，p为实系数多项式
+ * </pre>
+ * 每个内核类都在自己的像素循环里直接写出公式，循环中没有按公式的分支或虚方法调用，
+ * JIT编译的是只有一种公式的循环。选择公式只在创建内核时发生一次。
+ * 除z^2 + c外只有double精度，像素间隔接近double的分辨率后画面出现块状
+ */
+
+public final class Formula {
+
+    private static final int TYPE_POWER = 0;
+    private static final int TYPE_BURNING_SHIP = 1;
+    private static final int TYPE_TRICORN = 2;
+    private static final int TYPE_NEWTON = 3;
+
+    /**
+     * 判断Julia集是否连通时临界点轨道的迭代次数，c离连通区域的边界很近时可能误判为连通
+     */
+    private static final int CONNECTEDNESS_ITERATIONS = 1000;
+
+    public static final Formula QUADRATIC = new Formula(TYPE_POWER, 2, null, "z^2");
+    public static final Formula BURNING_SHIP = new Formula(TYPE_BURNING_SHIP, 2, null, "burning-ship");
+    public static final Formula TRICORN = new Formula(TYPE_TRICORN, 2, null, "tricorn");
+    /**
+     * p(z) = z^3 - 1，三个根把平面分成三个吸引域
+     */
+    public static final Formula NEWTON = new Formula(TYPE_NEWTON, 3, new double[]{1, 0, 0, -1}, "newton");
+
+    private final int mType;
+    private final int mDegree;
+    private final double[] mCoefficients;
+    private final String mName;
+
+    private Formula(int type, int degree, double[] coefficients, String name) {
+        mType = type;
+        mDegree = degree;
+        mCoefficients = coefficients;
+        mName = name;
+    }
+
+    /**
+     * @return z^n + c，n为2时就是{@link #QUADRATIC}
+     */
+    public static Formula power(int n) {
+        if (n < 2) {
+            throw new IllegalArgumentException("power must be at least 2: " + n);
+        }
+        return n == 2 ? QUADRATIC : new Formula(TYPE_POWER, n, null, "z^" + n);
+    }
+
+    /**
+     * @param coefficients p(z)的系数，从最高次开始，最高次系数不为0，至少是二次
+     * @return 对p(z)的牛顿迭代，像素是z的初值，统计收敛到某个根需要的次数
+     */
+    public static Formula newton(double... coefficients) {
+        if (coefficients.length < 3 || coefficients[0] == 0) {
+            throw new IllegalArgumentException("need a polynomial of degree 2 or more: "
+                    + Arrays.toString(coefficients));
+        }
+        double[] copy = coefficients.clone();
+        if (Arrays.equals(copy, NEWTON.mCoefficients)) {
+            return NEWTON;
+        }
+        StringBuilder name = new StringBuilder("newton:");
+        for (int i = 0; i < copy.length; i++) {
+            if (i > 0) {
+                name.append(',');
+            }
+            name.append(format(copy[i]));
+        }
+        return new Formula(TYPE_NEWTON, copy.length - 1, copy, name.toString());
+    }
+
+    private static String format(double value) {
+        return value == Math.rint(value) && Math.abs(value) < 1e15
+                ? String.valueOf((long) value) : String.valueOf(value);
+    }
+
+    /**
+     * @param name {@link #getName()}的结果：z^N、burning-ship、tricorn、newton，
+     *             或newton:a,b,c,...指定多项式的系数
+     */
+    public static Formula forName(String name) {
+        String lower = name.toLowerCase(Locale.US);
+        if (lower.equals(BURNING_SHIP.mName)) {
+            return BURNING_SHIP;
+        } else if (lower.equals(TRICORN.mName)) {
+            return TRICORN;
+        } else if (lower.equals(NEWTON.mName)) {
+            return NEWTON;
+        }
+        try {
+            if (lower.startsWith("z^")) {
+                return power(Integer.parseInt(lower.substring(2)));
+            } else if (lower.startsWith("newton:")) {
+                String[] values = lower.substring(7).split(",");
+                double[] coefficients = new double[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    coefficients[i] = Double.parseDouble(values[i].trim());
+                }
+                return newton(coefficients);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid formula " + name, e);
+        }
+        throw new IllegalArgumentException("unknown formula " + name);
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * @return 迭代的多项式次数，Newton为p(z)的次数
+     */
+    public int getDegree() {
+        return mDegree;
+    }
+
+    /**
+     * @return 以viewport需要的精度创建内核，z^2 + c以外的公式总是double精度
+     */
+    public FractalKernel createKernel(int mode, double re, double im, Viewport viewport, int iterateTimes,
+                                      ColorMapper colorMapper) {
+        if (this == QUADRATIC) {
+            return Precision.createKernel(mode, re, im, viewport, iterateTimes, colorMapper);
+        }
+        return createKernel(mode, re, im, viewport.getMinX(), viewport.getMaxX(), viewport.getMinY(),
+                viewport.getMaxY(), viewport.getWidth(), viewport.getHeight(), iterateTimes, colorMapper);
+    }
+
+    /**
+     * 以double精度创建内核，模式和坐标范围的含义同{@link FractalKernel}
+     */
+    public FractalKernel createKernel(int mode, double re, double im, double minX, double maxX, double minY,
+                                      double maxY, int width, int height, int iterateTimes,
+                                      ColorMapper colorMapper) {
+        switch (mType) {
+            case TYPE_POWER:
+                if (mDegree == 2) {
+                    return new FractalKernel(mode, re, im, minX, maxX, minY, maxY, width, height, iterateTimes,
+                            colorMapper);
+                }
+                return new MultibrotKernel(mDegree, mode, re, im, minX, maxX, minY, maxY, width, height,
+                        iterateTimes, colorMapper);
+            case TYPE_BURNING_SHIP:
+                return new BurningShipKernel(mode, re, im, minX, maxX, minY, maxY, width, height, iterateTimes,
+                        colorMapper);
+            case TYPE_TRICORN:
+                return new TricornKernel(mode, re, im, minX, maxX, minY, maxY, width, height, iterateTimes,
+                        colorMapper);
+            case TYPE_NEWTON:
+                return new NewtonKernel(mCoefficients, mode, re, im, minX, maxX, minY, maxY, width, height,
+                        iterateTimes, colorMapper);
+            default:
+                throw new IllegalStateException("unknown formula " + mName);
+        }
+    }
+
+    /**
+     * 矩形细分({@link MarianiSilver})在边框迭代次数相同时直接填充内部，只在集合连通时正确，
+     * 否则边框内部的小岛会被抹掉：
+     * <pre>
+     * z^n + c、Tricorn    Mandelbrot模式总是连通；Julia集在临界点0的轨道不发散时连通
+     * Burning Ship        不连通
+     * Newton              吸引域的边界是分形，同色的边框内部可以有其他吸引域
+     * </pre>
+     *
+     * @param re Julia集的参数c的实部
+     * @param im Julia集的参数c的虚部
+     * @return 能否用矩形细分计算
+     */
+    public boolean isSubdivisionSafe(int mode, double re, double im) {
+        switch (mType) {
+            case TYPE_POWER:
+            case TYPE_TRICORN:
+                return mode != FractalKernel.MODE_JULIA || isCriticalOrbitBounded(re, im);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * 从临界点0迭代z^n + c或conj(z)^2 + c
+     */
+    private boolean isCriticalOrbitBounded(double cr, double ci) {
+        // |z| > max(|c|, 2)之后一定发散
+        double escape = Math.max(cr * cr + ci * ci, 4);
+        double zr = 0;
+        double zi = 0;
+        for (int k = 0; k < CONNECTEDNESS_ITERATIONS; k++) {
+            double wr = zr;
+            double wi = mType == TYPE_TRICORN ? -zi : zi;
+            double pr = wr;
+            double pi = wi;
+            for (int n = 1; n < mDegree; n++) {
+                double temp = pr * wr - pi * wi;
+                pi = pr * wi + pi * wr;
+                pr = temp;
+            }
+            zr = pr + cr;
+            zi = pi + ci;
+            if (zr * zr + zi * zi > escape) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return z0和-z0迭代一次后相同，画面关于原点中心对称，保存的z也相同
+     */
+    boolean isPointSymmetric(int mode) {
+        if (mode != FractalKernel.MODE_JULIA) {
+            return false;
+        }
+        switch (mType) {
+            case TYPE_POWER:
+                return mDegree % 2 == 0;
+            case TYPE_BURNING_SHIP:
+            case TYPE_TRICORN:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @param im Julia集的参数c的虚部
+     * @return 共轭的像素迭代得到共轭的轨道，画面关于实轴对称
+     */
+    boolean isConjugateSymmetric(int mode, double im) {
+        switch (mType) {
+            case TYPE_POWER:
+            case TYPE_TRICORN:
+                return mode == FractalKernel.MODE_MANDELBROT || im == 0;
+            case TYPE_NEWTON:
+                // 实系数多项式的根和牛顿迭代都关于实轴对称，与模式无关
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o || (o instanceof Formula && mName.equals(((Formula) o).mName));
+    }
+
+    @Override
+    public int hashCode() {
+        return mName.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+}
@@ -0,0 +1,561 @@
+package com.lh.fractal.engine;
+
+/**
+ * 一次渲染的参数快照，负责计算指定区域的像素
+ * 只读取自身字段，写入调用者给定的区域，因此可以被多个线程同时使用
+ * 不依赖android，可以直接在JVM上测试
+ * <p>
+ * 每次渲染都创建新的内核，内核同时作为这次渲染的generation：{@link #cancel()}之后，
+ * 正在计算的像素每{@link #CANCEL_CHECK_INTERVAL}次迭代、批量计算每一行都会检查并尽快返回
+ */
+
+public class FractalKernel {
+
+    public static final int MODE_JULIA = 1;
+    public static final int MODE_MANDELBROT = 2;
+
+    /**
+     * 渲染已经取消时{@link #iterate(int, int, IterationCounter)}返回该值，与"尚未计算"相同
+     */
+    public static final int CANCELLED = -1;
+
+    /**
+     * 每隔多少次迭代检查一次是否已经取消，必须是2的幂
+     */
+    static final int CANCEL_CHECK_INTERVAL = 1024;
+
+    /**
+     * {@link OrbitBuffer}中zr为该值表示没有保存z，提高上限时要从头迭代，例如矩形细分直接填充的像素
+     */
+    public static final double ORBIT_UNKNOWN = Double.POSITIVE_INFINITY;
+
+    /**
+     * {@link OrbitBuffer}中zr为该值(NaN，用{@link Double#isNaN}判断)表示已经证明不会发散，提高上限也不需要迭代
+     */
+    public static final double ORBIT_BOUNDED = Double.NaN;
+
+    /**
+     * |z| > 4 时认为已经发散，比较平方避免开方
+     */
+    static final double ESCAPE_RADIUS_SQUARED = 16.0;
+
+    /**
+     * 周期检测时两点距离小于该值即认为轨道已经进入循环
+     */
+    static final double PERIODICITY_EPSILON = 1e-13;
+
+    private final int mMode;
+    private final double mRe;
+    private final double mIm;
+
+    private final double mMinX;
+    private final double mMaxX;
+    private final double mMinY;
+    private final double mMaxY;
+
+    private final int mWidth;
+    private final int mHeight;
+
+    /**
+     * 每一列的实部和每一行的虚部，避免在像素循环中重复计算。其他公式的内核直接读取
+     */
+    final double[] mColumnX;
+    final double[] mRowY;
+
+    private final int mIterateTimes;
+    private final ColorMapper mColorMapper;
+
+    private volatile boolean mCancelled;
+    /**
+     * 由{@link #withViewport}创建时，随创建它的内核一起取消
+     */
+    private FractalKernel mParent;
+
+    public FractalKernel(int mode, double re, double im,
+                         double minX, double maxX, double minY, double maxY,
+                         int width, int height, int iterateTimes, ColorMapper colorMapper) {
+        mMode = mode;
+        mRe = re;
+        mIm = im;
+        mMinX = minX;
+        mMaxX = maxX;
+        mMinY = minY;
+        mMaxY = maxY;
+        mWidth = width;
+        mHeight = height;
+        mIterateTimes = iterateTimes;
+        mColorMapper = colorMapper;
+
+        mColumnX = new double[width];
+        double stepX = (maxX - minX) / width;
+        for (int i = 0; i < width; i++) {
+            mColumnX[i] = i * stepX + minX;
+        }
+        mRowY = new double[height];
+        double stepY = (minY - maxY) / height;
+        for (int j = 0; j < height; j++) {
+            mRowY[j] = j * stepY + maxY;
+        }
+        // 与Symmetry.of使用同一个网格，镜像复制的像素与直接计算相同
+        Symmetry.mirrorCoordinates(mColumnX, Symmetry.axisOf(minX, stepX, width));
+        Symmetry.mirrorCoordinates(mRowY, Symmetry.axisOf(maxY, stepY, height));
+    }
+
+    /**
+     * 用相同的分形参数创建覆盖另一块区域的内核
+     */
+    public FractalKernel withViewport(double minX, double maxX, double minY, double maxY, int width, int height) {
+        FractalKernel kernel = getFormula().createKernel(mMode, mRe, mIm, minX, maxX, minY, maxY, width, height,
+                mIterateTimes, mColorMapper);
+        kernel.mParent = this;
+        return kernel;
+    }
+
+    public int getMode() {
+        return mMode;
+    }
+
+    /**
+     * @return 迭代的公式，其他公式的内核必须覆盖
+     */
+    public Formula getFormula() {
+        return Formula.QUADRATIC;
+    }
+
+    /**
+     * @return 能否用{@link MarianiSilver}矩形细分计算，见{@link Formula#isSubdivisionSafe}
+     */
+    public boolean isSubdivisionSafe() {
+        return getFormula().isSubdivisionSafe(mMode, mRe, mIm);
+    }
+
+    /**
+     * @return 像素的magnitude记录的是否为收敛到的根而不是|z|^2，见{@link Coloring#encodeRoot}。
+     * 此时任何着色方式都需要保留magnitude
+     */
+    public boolean recordsRoots() {
+        return false;
+    }
+
+    /**
+     * @return 共轭镜像的像素的magnitude，|z|^2不变；记录根的内核换成共轭的根
+     */
+    float conjugateMagnitude(float magnitude) {
+        return magnitude;
+    }
+
+    public double getRe() {
+        return mRe;
+    }
+
+    public double getIm() {
+        return mIm;
+    }
+
+    public double getMinX() {
+        return mMinX;
+    }
+
+    public double getMaxX() {
+        return mMaxX;
+    }
+
+    public double getMinY() {
+        return mMinY;
+    }
+
+    public double getMaxY() {
+        return mMaxY;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getIterateTimes() {
+        return mIterateTimes;
+    }
+
+    /**
+     * @return 能否用{@link #resume}从保存的z继续迭代。不支持的子类必须覆盖
+     * {@link #iterate(int[], float[], int, Tile, IterationCounter)}并返回false
+     */
+    public boolean isResumable() {
+        return true;
+    }
+
+    /**
+     * @return other是否以相同的分形参数和坐标范围计算同样的像素，迭代上限可以不同
+     */
+    public boolean isSameView(FractalKernel other) {
+        return other != null && other.getClass() == getClass() && other.getFormula().equals(getFormula())
+                && other.mMode == mMode
+                && other.mRe == mRe && other.mIm == mIm
+                && other.mMinX == mMinX && other.mMaxX == mMaxX && other.mMinY == mMinY && other.mMaxY == mMaxY
+                && other.mWidth == mWidth && other.mHeight == mHeight;
+    }
+
+    /**
+     * 取消这次渲染，之后的计算尽快返回{@link #CANCELLED}
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled || (mParent != null && mParent.isCancelled());
+    }
+
+    /**
+     * 计算单个像素的迭代次数
+     *
+     * @param i       像素列
+     * @param j       像素行
+     * @param counter 累加迭代统计，可以为null
+     * @return 发散前的迭代次数，不发散时返回{@link #getIterateTimes()}，已经取消时返回{@link #CANCELLED}
+     */
+    public int iterate(int i, int j, IterationCounter counter) {
+        if (mMode == MODE_JULIA) {
+            return iterate(mColumnX[i], mRowY[j], mRe, mIm, mIterateTimes, counter, this);
+        } else {
+            return iterateMandelbrot(mColumnX[i], mRowY[j], mIterateTimes, counter, this);
+        }
+    }
+
+    public int iterate(int i, int j) {
+        return iterate(i, j, null);
+    }
+
+    /**
+     * 在像素(i, j)的采样点偏移(dx, dy)个像素的位置计算迭代次数，用于抗锯齿的子像素采样。
+     * 偏移为0时与{@link #iterate(int, int, IterationCounter)}相同
+     *
+     * @param dx 向右的偏移，像素为单位，通常在[-0.5, 0.5)内
+     * @param dy 向下的偏移
+     */
+    public int iterate(int i, int j, double dx, double dy, IterationCounter counter) {
+        double x = sampleX(i, dx);
+        double y = sampleY(j, dy);
+        if (mMode == MODE_JULIA) {
+            return iterate(x, y, mRe, mIm, mIterateTimes, counter, this);
+        } else {
+            return iterateMandelbrot(x, y, mIterateTimes, counter, this);
+        }
+    }
+
+    /**
+     * @return 第i列向右偏移dx个像素处的实部
+     */
+    final double sampleX(int i, double dx) {
+        return mColumnX[i] + dx * (mMaxX - mMinX) / mWidth;
+    }
+
+    /**
+     * @return 第j行向下偏移dy个像素处的虚部
+     */
+    final double sampleY(int j, double dy) {
+        return mRowY[j] - dy * (mMaxY - mMinY) / mHeight;
+    }
+
+    public int getColor(int k) {
+        return mColorMapper.getColor(k, mIterateTimes);
+    }
+
+    /**
+     * 计算区域r内尚未计算的像素的迭代次数
+     *
+     * @param counts  迭代次数缓冲，行优先，小于0表示尚未计算
+     * @param stride  counts中每行的长度
+     * @param r       需要计算的区域
+     * @param counter 累加迭代统计，可以为null
+     * @return 实际迭代计算的像素数；取消后直接返回，剩下的像素保持未计算
+     */
+    public int iterate(int[] counts, int stride, Tile r, IterationCounter counter) {
+        return iterate(counts, null, stride, r, counter);
+    }
+
+    /**
+     * 同{@link #iterate(int[], int, Tile, IterationCounter)}，同时记录每个像素最后的|z|^2
+     *
+     * @param magnitudes 与counts布局相同，不为null时写入新计算的像素的{@link IterationCounter#magnitude}
+     */
+    public int iterate(int[] counts, float[] magnitudes, int stride, Tile r, IterationCounter counter) {
+        return iterate(counts, magnitudes, null, stride, r, counter);
+    }
+
+    /**
+     * 同{@link #iterate(int[], float[], int, Tile, IterationCounter)}，同时为不发散的像素保存最后的z，
+     * 之后提高上限时用{@link #resume}继续
+     *
+     * @param orbits 与counts的下标相同，stride必须等于它的宽度；为null或内核不支持时不保存
+     */
+    public int iterate(int[] counts, float[] magnitudes, OrbitBuffer orbits, int stride, Tile r,
+                       IterationCounter counter) {
+        if (!isResumable()) {
+            return iterate(counts, magnitudes, stride, r, counter);
+        }
+        if (counter == null) {
+            counter = new IterationCounter();
+        }
+        if (mMode == MODE_JULIA) {
+            return iterateJulia(counts, magnitudes, orbits, stride, r, counter);
+        } else {
+            return iterateMandelbrot(counts, magnitudes, orbits, stride, r, counter);
+        }
+    }
+
+    /**
+     * 把像素的计算结果写入缓冲区，不发散的像素在orbits中保存counter记下的z
+     */
+    static void store(int[] counts, float[] magnitudes, OrbitBuffer orbits, int index, int k, int max,
+                      IterationCounter counter) {
+        counts[index] = k;
+        if (magnitudes != null) {
+            magnitudes[index] = counter.magnitude;
+        }
+        if (orbits != null && k == max) {
+            orbits.set(index, counter.zr, counter.zi);
+        }
+    }
+
+    /**
+     * 像素的迭代结束：已经发散，或者达到上限时记下最后的z供{@link #resume}继续
+     *
+     * @return k
+     */
+    static int finish(IterationCounter counter, int k, double zr, double zi, double magnitude) {
+        if (counter != null) {
+            counter.iterations += k;
+            counter.magnitude = (float) magnitude;
+            counter.zr = zr;
+            counter.zi = zi;
+        }
+        return k;
+    }
+
+    /**
+     * 像素在第k次迭代时证明不会发散，剩下的迭代计为跳过
+     *
+     * @return max
+     */
+    static int bounded(IterationCounter counter, int k, int max) {
+        if (counter != null) {
+            counter.iterations += k;
+            counter.skipped += max - k;
+            counter.zr = ORBIT_BOUNDED;
+        }
+        return max;
+    }
+
+    /**
+     * 上次以from为上限计算了区域r，现在以{@link #getIterateTimes()}为上限继续计算其中迭代次数等于from的像素。
+     * 保存了z的像素从z继续迭代，证明不会发散的像素直接得到新的上限；没有保存z的像素标记为尚未计算，
+     * 由调用者再用矩形细分或{@link #iterate(int[], float[], double[], int, Tile, IterationCounter)}从头计算。
+     * 已经发散的像素保持不变，新的上限不大于from时不做任何计算
+     *
+     * @param orbits 由{@link #iterate(int[], float[], double[], int, Tile, IterationCounter)}或上一次resume保存
+     * @return 实际迭代计算的像素数；取消后直接返回，没有继续的像素保持原样
+     */
+    public int resume(int[] counts, float[] magnitudes, OrbitBuffer orbits, int stride, Tile r, int from,
+                      IterationCounter counter) {
+        if (!isResumable()) {
+            throw new UnsupportedOperationException(getClass().getSimpleName() + " can not resume");
+        }
+        if (counter == null) {
+            counter = new IterationCounter();
+        }
+        final boolean julia = mMode == MODE_JULIA;
+        final double[] columnX = mColumnX;
+        final int max = mIterateTimes;
+        if (max <= from) {
+            return 0;
+        }
+        int iterated = 0;
+        for (int j = r.top; j < r.bottom && !isCancelled(); j++) {
+            final double y = mRowY[j];
+            int index = j * stride + r.left;
+            for (int i = r.left; i < r.right; i++, index++) {
+                if (counts[index] != from) {
+                    continue;
+                }
+                double zr = orbits.getReal(index);
+                int k;
+                if (Double.isNaN(zr)) {
+                    counter.skipped += max - from;
+                    counts[index] = max;
+                    continue;
+                } else if (zr == ORBIT_UNKNOWN) {
+                    counts[index] = -1;
+                    continue;
+                } else {
+                    double cr = julia ? mRe : columnX[i];
+                    double ci = julia ? mIm : y;
+                    k = resumeOrbit(zr, orbits.getImag(index), cr, ci, max - from, counter);
+                    if (k != CANCELLED) {
+                        k += from;
+                    }
+                }
+                if (k == CANCELLED) {
+                    return iterated;
+                }
+                store(counts, magnitudes, orbits, index, k, max, counter);
+                iterated++;
+            }
+        }
+        return iterated;
+    }
+
+    /**
+     * 从保存的z继续迭代最多max次，其他公式的内核覆盖为自己的迭代
+     *
+     * @return 这次继续的迭代次数，不发散时返回max
+     */
+    int resumeOrbit(double zr, double zi, double cr, double ci, int max, IterationCounter counter) {
+        return iterate(zr, zi, cr, ci, max, counter, this);
+    }
+
+    private int iterateJulia(int[] counts, float[] magnitudes, OrbitBuffer orbits, int stride, Tile r,
+                             IterationCounter counter) {
+        final double[] columnX = mColumnX;
+        final int max = mIterateTimes;
+        int iterated = 0;
+        for (int j = r.top; j < r.bottom && !isCancelled(); j++) {
+            final double y = mRowY[j];
+            int index = j * stride + r.left;
+            for (int i = r.left; i < r.right; i++, index++) {
+                if (counts[index] < 0) {
+                    store(counts, magnitudes, orbits, index, iterate(columnX[i], y, mRe, mIm, max, counter, this),
+                            max, counter);
+                    iterated++;
+                }
+            }
+        }
+        return iterated;
+    }
+
+    private int iterateMandelbrot(int[] counts, float[] magnitudes, OrbitBuffer orbits, int stride, Tile r,
+                                  IterationCounter counter) {
+        final double[] columnX = mColumnX;
+        final int max = mIterateTimes;
+        int iterated = 0;
+        for (int j = r.top; j < r.bottom && !isCancelled(); j++) {
+            final double y = mRowY[j];
+            int index = j * stride + r.left;
+            for (int i = r.left; i < r.right; i++, index++) {
+                if (counts[index] < 0) {
+                    store(counts, magnitudes, orbits, index, iterateMandelbrot(columnX[i], y, max, counter, this),
+                            max, counter);
+                    iterated++;
+                }
+            }
+        }
+        return iterated;
+    }
+
+    /**
+     * z(n+1) = z(n)^2 + c，z(0)为像素坐标
+     *
+     * @return 发散前的迭代次数，不发散时返回max
+     */
+    public static int iterateJulia(double zr, double zi, double cr, double ci, int max, IterationCounter counter) {
+        return iterate(zr, zi, cr, ci, max, counter, null);
+    }
+
+    public static int iterateJulia(double zr, double zi, double cr, double ci, int max) {
+        return iterate(zr, zi, cr, ci, max, null, null);
+    }
+
+    /**
+     * z(n+1) = z(n)^2 + c，z(0) = 0，c为像素坐标
+     * 主心形线和周期2圆盘内的点一定不发散，直接返回
+     *
+     * @return 发散前的迭代次数，不发散时返回max
+     */
+    public static int iterateMandelbrot(double cr, double ci, int max, IterationCounter counter) {
+        return iterateMandelbrot(cr, ci, max, counter, null);
+    }
+
+    public static int iterateMandelbrot(double cr, double ci, int max) {
+        return iterateMandelbrot(cr, ci, max, null, null);
+    }
+
+    private static int iterateMandelbrot(double cr, double ci, int max, IterationCounter counter,
+                                         FractalKernel owner) {
+        if (isInCardioidOrBulb(cr, ci)) {
+            if (counter != null) {
+                counter.skipped += max;
+                counter.zr = ORBIT_BOUNDED;
+            }
+            return max;
+        }
+        return iterate(0, 0, cr, ci, max, counter, owner);
+    }
+
+    /**
+     * 判断c是否在Mandelbrot集的主心形线或以-1为圆心的周期2圆盘内
+     */
+    public static boolean isInCardioidOrBulb(double cr, double ci) {
+        double ci2 = ci * ci;
+        double x = cr - 0.25;
+        double q = x * x + ci2;
+        if (q * (q + x) <= 0.25 * ci2) {
+            return true;
+        }
+        double x1 = cr + 1;
+        return x1 * x1 + ci2 <= 0.0625;
+    }
+
+    /**
+     * 逃逸时间迭代，带Brent周期检测：每隔2^n次迭代保存一次z，
+     * 之后的z回到保存点附近说明轨道已经进入循环，不会再发散
+     *
+     * @param owner 不为null时定期检查它是否已经取消
+     */
+    private static int iterate(double zr, double zi, double cr, double ci, int max, IterationCounter counter,
+                               FractalKernel owner) {
+        double zr2 = zr * zr;
+        double zi2 = zi * zi;
+        double checkR = zr;
+        double checkI = zi;
+        int checkPeriod = 1;
+        int checkCount = 0;
+        int k = 0;
+        for (; k < max; k++) {
+            if (zr2 + zi2 > ESCAPE_RADIUS_SQUARED) {
+                break;
+            }
+            if ((k & (CANCEL_CHECK_INTERVAL - 1)) == 0 && owner != null && owner.isCancelled()) {
+                return CANCELLED;
+            }
+            zi = 2 * zr * zi + ci;
+            zr = zr2 - zi2 + cr;
+            zr2 = zr * zr;
+            zi2 = zi * zi;
+            if (Math.abs(zr - checkR) < PERIODICITY_EPSILON && Math.abs(zi - checkI) < PERIODICITY_EPSILON) {
+                if (counter != null) {
+                    counter.iterations += k + 1;
+                    counter.skipped += max - k - 1;
+                    counter.zr = ORBIT_BOUNDED;
+                }
+                return max;
+            }
+            if (++checkCount == checkPeriod) {
+                checkCount = 0;
+                checkPeriod <<= 1;
+                checkR = zr;
+                checkI = zi;
+            }
+        }
+        if (counter != null) {
+            counter.iterations += k;
+            counter.magnitude = (float) (zr2 + zi2);
+            counter.zr = zr;
+            counter.zi = zi;
+        }
+        return k;
+    }
+}
@@ -0,0 +1,178 @@
+package com.lh.fractal.engine;
+
+/**
+ * 自动选择迭代上限：先按缩放深度估计，每次渲染完成后再根据统计调整，在时间预算内保持固定的细节程度。
+ * <p>
+ * 细节程度指发散像素的迭代次数分布：{@link #DETAIL_PERCENTILE}的发散像素应该在上限的一半以内逃逸，
+ * 否则说明还有大量边界细节被上限截断，需要提高；反之说明不发散的像素都是真正的内部，可以降低。
+ * 时间由上一次渲染测得的迭代速度、达到上限的像素比例和周期检测省去的比例估计。
+ * 不是线程安全的，只在一个线程使用
+ */
+
+public class IterationBudget {
+
+    /**
+     * 默认画面(实部宽度5)使用的上限，与手动输入的默认值相同
+     */
+    public static final int DEFAULT_LIMIT = 64;
+
+    private static final int MIN_LIMIT = 16;
+    private static final int MAX_LIMIT = 1 << 20;
+
+    /**
+     * 默认画面的实部宽度
+     */
+    private static final double DEFAULT_VIEW_WIDTH = 5;
+
+    /**
+     * 每放大一倍增加的上限
+     */
+    private static final int LIMIT_PER_OCTAVE = 24;
+
+    /**
+     * 这个比例的发散像素应该在上限的一半以内逃逸
+     */
+    private static final double DETAIL_PERCENTILE = 0.995;
+
+    /**
+     * 新的上限与当前相差不到这个倍数时保持不变，避免在两个值之间反复
+     */
+    private static final double HYSTERESIS = 1.5;
+
+    /**
+     * 调整后的上限按这个粒度取整
+     */
+    private static final int ROUNDING = 16;
+
+    private final long mTimeBudget;
+
+    /**
+     * 统计得到的上限与按缩放深度估计的比值，新的画面沿用
+     */
+    private double mFactor = 1;
+    /**
+     * 每纳秒的迭代次数，还没有测量时为0
+     */
+    private double mRate;
+    /**
+     * 最近一次统计的画面中，每个达到上限的像素实际迭代的比例(其余由心形线判断和周期检测省去)
+     */
+    private double mActiveRatio = 1;
+    private double mCappedFraction;
+    private double mEscapedIterationsPerPixel;
+
+    /**
+     * @param timeBudgetNanos 完整渲染一幅画面的目标耗时
+     */
+    public IterationBudget(long timeBudgetNanos) {
+        mTimeBudget = timeBudgetNanos;
+    }
+
+    /**
+     * 只按缩放深度估计：默认画面为{@link #DEFAULT_LIMIT}，每放大一倍增加{@link #LIMIT_PER_OCTAVE}
+     *
+     * @param viewWidth 画面的实部宽度，即maxX - minX
+     */
+    public static int forZoom(double viewWidth) {
+        double octaves = Math.log(DEFAULT_VIEW_WIDTH / viewWidth) / Math.log(2);
+        return clamp(DEFAULT_LIMIT + LIMIT_PER_OCTAVE * Math.max(0, octaves));
+    }
+
+    /**
+     * 新画面的初始上限：缩放深度的估计乘以之前统计得到的修正，不超过时间预算
+     *
+     * @param pixels 画面的像素数
+     */
+    public int initial(double viewWidth, int pixels) {
+        return clamp(Math.min(forZoom(viewWidth) * mFactor, affordable(pixels)));
+    }
+
+    /**
+     * 根据刚完成的一次渲染调整上限
+     *
+     * @param viewWidth  画面的实部宽度
+     * @param counts     每个像素的迭代次数，不小于limit的像素当作不发散
+     * @param limit      这些迭代次数的上限
+     * @param iterations 这次渲染实际执行的迭代次数
+     * @param skipped    这次渲染由心形线判断和周期检测省去的迭代次数
+     * @param elapsed    这次渲染的纳秒数
+     * @return 新的上限，与limit相差不大时返回limit
+     */
+    public int next(double viewWidth, int[] counts, int limit, long iterations, long skipped, long elapsed) {
+        // 缓存的分块没有迭代，测不出速度
+        if (iterations > 0 && elapsed > 1000000) {
+            double rate = (double) iterations / elapsed;
+            mRate = mRate == 0 ? rate : (mRate + rate) / 2;
+        }
+        if (iterations + skipped > 0) {
+            mActiveRatio = Math.max(0.01, (double) iterations / (iterations + skipped));
+        }
+
+        int[] histogram = new int[limit];
+        int escaped = 0;
+        long escapedIterations = 0;
+        for (int k : counts) {
+            if (k >= 0 && k < limit) {
+                histogram[k]++;
+                escaped++;
+                escapedIterations += k;
+            }
+        }
+        int capped = 0;
+        for (int k : counts) {
+            if (k >= limit) {
+                capped++;
+            }
+        }
+        int total = escaped + capped;
+        if (total == 0) {
+            return limit;
+        }
+        mCappedFraction = (double) capped / total;
+        mEscapedIterationsPerPixel = (double) escapedIterations / total;
+
+        double target;
+        if (escaped == 0) {
+            // 整个画面都在集合内部，多迭代也看不到细节
+            target = forZoom(viewWidth);
+        } else {
+            int threshold = (int) Math.ceil(escaped * DETAIL_PERCENTILE);
+            int cumulative = 0;
+            int percentile = 0;
+            while (percentile < limit - 1 && (cumulative += histogram[percentile]) < threshold) {
+                percentile++;
+            }
+            // 分布的尾部被截断时约为limit * 2，继续提高直到尾部落在上限的一半以内
+            target = 2.0 * (percentile + 1);
+        }
+        target = Math.min(target, affordable(total));
+        int result = clamp(target);
+        if (result < limit * HYSTERESIS && result * HYSTERESIS > limit) {
+            result = limit;
+        }
+        mFactor = result / (double) forZoom(viewWidth);
+        return result;
+    }
+
+    /**
+     * @return 按最近的统计，pixels个像素在时间预算内能用的最大上限
+     */
+    private double affordable(int pixels) {
+        if (mRate == 0 || mCappedFraction == 0) {
+            return MAX_LIMIT;
+        }
+        double budget = mTimeBudget * mRate / pixels - mEscapedIterationsPerPixel;
+        return budget / (mCappedFraction * mActiveRatio);
+    }
+
+    private static int clamp(double limit) {
+        int rounded = (int) Math.min(MAX_LIMIT, Math.round(limit / ROUNDING) * ROUNDING);
+        return Math.max(MIN_LIMIT, rounded);
+    }
+
+    @Override
+    public String toString() {
+        return "iteration budget: " + mRate * 1e9 / 1e6 + "M iterations/s, "
+                + Math.round(mCappedFraction * 1000) / 10f + "% capped, factor " + mFactor;
+    }
+}
@@ -0,0 +1,37 @@
+package com.lh.fractal.engine;
+
+/**
+ * 迭代次数统计，由单个线程在计算一个分块时累加，不是线程安全的
+ */
+
+public class IterationCounter {
+    /**
+     * 实际执行的迭代次数
+     */
+    public long iterations;
+    /**
+     * 由心形线/圆盘判断或周期检测提前确定不发散而省去的迭代次数
+     */
+    public long skipped;
+    /**
+     * 最近一次迭代结束时的|z|^2，像素发散时用于平滑着色，不发散时没有意义
+     */
+    public float magnitude;
+    /**
+     * 最近一次迭代到上限仍未发散时最后的z，提高上限后由此继续迭代；
+     * 已经证明不会发散(心形线、圆盘、周期)时zr为{@link FractalKernel#ORBIT_BOUNDED}。
+     * 只有{@link FractalKernel#isResumable()}的内核写入
+     */
+    public double zr;
+    public double zi;
+
+    public void add(IterationCounter counter) {
+        iterations += counter.iterations;
+        skipped += counter.skipped;
+    }
+
+    public void reset() {
+        iterations = 0;
+        skipped = 0;
+    }
+}
@@ -0,0 +1,71 @@
+package com.lh.fractal.engine;
+
+import java.util.Arrays;
+
+/**
+ * 保存最近{@link #getCapacity()}个耗时样本，计算百分位数，用于统计输入到画面显示的延迟。
+ * 记录和读取可以在不同的线程
+ */
+
+public class LatencyRecorder {
+
+    private final long[] mSamples;
+    private int mCount;
+    private int mNext;
+
+    public LatencyRecorder(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        mSamples = new long[capacity];
+    }
+
+    public int getCapacity() {
+        return mSamples.length;
+    }
+
+    /**
+     * 记录一个样本，已满时覆盖最早的样本
+     */
+    public synchronized void record(long nanos) {
+        mSamples[mNext] = nanos;
+        mNext = (mNext + 1) % mSamples.length;
+        if (mCount < mSamples.length) {
+            mCount++;
+        }
+    }
+
+    /**
+     * @return 当前保存的样本数
+     */
+    public synchronized int getCount() {
+        return mCount;
+    }
+
+    /**
+     * @param percentile 0到100
+     * @return 不超过该比例样本的最小值(纳秒，取最近秩)，没有样本时返回-1
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (mCount == 0) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(mSamples, mCount);
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(percentile / 100 * mCount);
+        return sorted[Math.max(0, Math.min(mCount - 1, rank - 1))];
+    }
+
+    public synchronized void reset() {
+        mCount = 0;
+        mNext = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "p50 " + getPercentile(50) / 1000000f + "ms"
+                + " p90 " + getPercentile(90) / 1000000f + "ms"
+                + " p99 " + getPercentile(99) / 1000000f + "ms"
+                + " (" + getCount() + " samples)";
+    }
+}
@@ -0,0 +1,297 @@
+package com.lh.fractal.engine;
+
+import java.util.Arrays;
+
+/**
+ * Mariani-Silver矩形细分
+ * 先计算矩形的边框，边框上迭代次数全部相同时直接填充整个矩形，否则分成四块递归处理。
+ * 对于连通的集合(Mandelbrot集、连通的Julia集)，内部大片的黑色区域和同一条色带只需要计算边框。
+ * 不连通的集合会丢掉边框内部的小岛，调用者先用{@link FractalKernel#isSubdivisionSafe()}判断
+ */
+
+public final class MarianiSilver {
+
+    /**
+     * 边长不超过该值的矩形直接逐像素计算
+     */
+    private static final int MIN_SIZE = 6;
+
+    private final FractalKernel mKernel;
+    private final int[] mCounts;
+    /**
+     * 不为null时记录每个像素最后的|z|^2，直接填充的色带内部由边框插值，见{@link #fillMagnitudes}
+     */
+    private final float[] mMagnitudes;
+    /**
+     * 不为null时为不发散的像素保存最后的z，直接填充的像素标记为{@link FractalKernel#ORBIT_UNKNOWN}
+     */
+    private final OrbitBuffer mOrbits;
+    private final int mStride;
+    /**
+     * counts[0]对应的像素坐标
+     */
+    private final int mOriginX;
+    private final int mOriginY;
+    private final IterationCounter mCounter;
+    private int mIterated;
+
+    private MarianiSilver(FractalKernel kernel, int[] counts, float[] magnitudes, OrbitBuffer orbits, int stride,
+                          int originX, int originY, IterationCounter counter) {
+        mKernel = kernel;
+        mCounts = counts;
+        mMagnitudes = magnitudes;
+        mOrbits = orbits;
+        mStride = stride;
+        mOriginX = originX;
+        mOriginY = originY;
+        mCounter = counter;
+    }
+
+    /**
+     * 用矩形细分计算区域r内每个像素的迭代次数
+     *
+     * @param counts  迭代次数缓冲，行优先，小于0表示尚未计算；已经计算过的像素(例如渐进渲染的采样点)会被直接使用
+     * @param stride  counts中每行的长度
+     * @param counter 累加迭代统计，可以为null
+     * @return 实际迭代计算的像素数
+     */
+    public static int render(FractalKernel kernel, int[] counts, int stride, Tile r, IterationCounter counter) {
+        return render(kernel, counts, null, stride, r, counter);
+    }
+
+    /**
+     * 同{@link #render(FractalKernel, int[], int, Tile, IterationCounter)}，同时记录每个像素最后的|z|^2。
+     * 同一条色带内|z|^2仍然不同，直接填充的色带内部按边框插值，平滑着色与逐像素计算只有很小的差别
+     *
+     * @param magnitudes 与counts布局相同，可以为null
+     */
+    public static int render(FractalKernel kernel, int[] counts, float[] magnitudes, int stride, Tile r,
+                             IterationCounter counter) {
+        return render(kernel, counts, magnitudes, null, stride, r, counter);
+    }
+
+    /**
+     * 同{@link #render(FractalKernel, int[], float[], int, Tile, IterationCounter)}，
+     * 同时为不发散的像素保存最后的z，见{@link FractalKernel#resume}
+     *
+     * @param orbits 与counts的下标相同，可以为null；内核必须{@link FractalKernel#isResumable()}
+     */
+    public static int render(FractalKernel kernel, int[] counts, float[] magnitudes, OrbitBuffer orbits, int stride,
+                             Tile r, IterationCounter counter) {
+        if (r.width() <= 0 || r.height() <= 0) {
+            return 0;
+        }
+        if ((magnitudes != null || orbits != null) && counter == null) {
+            counter = new IterationCounter();
+        }
+        MarianiSilver subdivider = new MarianiSilver(kernel, counts, magnitudes, orbits, stride, 0, 0, counter);
+        subdivider.subdivide(r.left, r.top, r.right - 1, r.bottom - 1);
+        return subdivider.mIterated;
+    }
+
+    /**
+     * 同{@link #render(FractalKernel, int[], float[], int, Tile, IterationCounter)}，
+     * 但counts只覆盖画面中从(originX, originY)开始的一部分，用于远大于缓冲区的画面
+     */
+    public static int render(FractalKernel kernel, int[] counts, float[] magnitudes, int stride, int originX,
+                             int originY, Tile r, IterationCounter counter) {
+        if (r.width() <= 0 || r.height() <= 0) {
+            return 0;
+        }
+        if (magnitudes != null && counter == null) {
+            counter = new IterationCounter();
+        }
+        MarianiSilver subdivider = new MarianiSilver(kernel, counts, magnitudes, null, stride, originX, originY,
+                counter);
+        subdivider.subdivide(r.left, r.top, r.right - 1, r.bottom - 1);
+        return subdivider.mIterated;
+    }
+
+    /**
+     * 使用只覆盖区域r的临时缓冲计算迭代次数
+     */
+    private static int[] renderLocal(FractalKernel kernel, Tile r) {
+        int[] counts = new int[r.width() * r.height()];
+        Arrays.fill(counts, -1);
+        MarianiSilver subdivider = new MarianiSilver(kernel, counts, null, null, r.width(), r.left, r.top, null);
+        subdivider.subdivide(r.left, r.top, r.right - 1, r.bottom - 1);
+        return counts;
+    }
+
+    /**
+     * 用矩形细分计算区域r内的像素，写入pixels
+     */
+    public static void renderPixels(FractalKernel kernel, int[] pixels, int stride, Tile r) {
+        if (r.width() <= 0 || r.height() <= 0) {
+            return;
+        }
+        int[] counts = renderLocal(kernel, r);
+        int index = 0;
+        for (int j = r.top; j < r.bottom; j++) {
+            int offset = j * stride + r.left;
+            for (int i = 0; i < r.width(); i++, index++) {
+                pixels[offset + i] = kernel.getColor(counts[index]);
+            }
+        }
+    }
+
+    /**
+     * 正确性检查：分别用矩形细分和逐像素计算区域r，返回结果不同的像素数
+     */
+    public static int countDifferences(FractalKernel kernel, Tile r) {
+        if (r.width() <= 0 || r.height() <= 0) {
+            return 0;
+        }
+        int[] counts = renderLocal(kernel, r);
+        int differences = 0;
+        int index = 0;
+        for (int j = r.top; j < r.bottom; j++) {
+            for (int i = r.left; i < r.right; i++, index++) {
+                if (counts[index] != kernel.iterate(i, j)) {
+                    differences++;
+                }
+            }
+        }
+        return differences;
+    }
+
+    private int count(int x, int y) {
+        int index = (y - mOriginY) * mStride + x - mOriginX;
+        int k = mCounts[index];
+        if (k < 0) {
+            k = mKernel.iterate(x, y, mCounter);
+            if (mCounter != null) {
+                FractalKernel.store(mCounts, mMagnitudes, mOrbits, index, k, mKernel.getIterateTimes(), mCounter);
+            } else {
+                mCounts[index] = k;
+            }
+            mIterated++;
+        }
+        return k;
+    }
+
+    /**
+     * 处理闭区间[x0, x1] x [y0, y1]
+     * 相邻的子矩形共用中间的边，已经计算过的像素不会重复计算
+     */
+    private void subdivide(int x0, int y0, int x1, int y1) {
+        if (mKernel.isCancelled()) {
+            return;
+        }
+        if (x1 - x0 < MIN_SIZE || y1 - y0 < MIN_SIZE) {
+            for (int y = y0; y <= y1; y++) {
+                for (int x = x0; x <= x1; x++) {
+                    count(x, y);
+                }
+            }
+            return;
+        }
+        int k = count(x0, y0);
+        boolean uniform = true;
+        for (int x = x0; x <= x1; x++) {
+            uniform &= count(x, y0) == k;
+            uniform &= count(x, y1) == k;
+        }
+        for (int y = y0 + 1; y < y1; y++) {
+            uniform &= count(x0, y) == k;
+            uniform &= count(x1, y) == k;
+        }
+        // 内部已知的采样点与边框不同时，说明矩形内部有其他结构
+        for (int y = y0 + 1; uniform && y < y1; y++) {
+            int row = (y - mOriginY) * mStride - mOriginX;
+            for (int index = row + x0 + 1, end = row + x1; index < end; index++) {
+                int known = mCounts[index];
+                if (known >= 0 && known != k) {
+                    uniform = false;
+                    break;
+                }
+            }
+        }
+        if (uniform && mMagnitudes != null && k < mKernel.getIterateTimes()) {
+            uniform = fillMagnitudes(x0, y0, x1, y1);
+        }
+        // 取消后边框上是CANCELLED，不能当作均匀的边框填充
+        if (uniform && !mKernel.isCancelled()) {
+            for (int y = y0 + 1; y < y1; y++) {
+                int row = (y - mOriginY) * mStride - mOriginX;
+                Arrays.fill(mCounts, row + x0 + 1, row + x1, k);
+                if (mOrbits != null) {
+                    // 边框不发散不代表内部在更高的上限下也不发散
+                    for (int index = row + x0 + 1; index < row + x1; index++) {
+                        mOrbits.set(index, FractalKernel.ORBIT_UNKNOWN, 0);
+                    }
+                }
+            }
+            return;
+        }
+        int xm = (x0 + x1) >>> 1;
+        int ym = (y0 + y1) >>> 1;
+        subdivide(x0, y0, xm, ym);
+        subdivide(xm, y0, x1, ym);
+        subdivide(x0, ym, xm, y1);
+        subdivide(xm, ym, x1, y1);
+    }
+
+    /**
+     * 边框上迭代次数相同的发散矩形：由边框上的ln|z|^2按Coons曲面插值出内部每个像素的|z|^2。
+     * 同一条色带内ln|z|^2是调和函数，由边界决定，插值与逐像素计算的差别很小；结果限制在边框的取值范围内。
+     * 在填充迭代次数之前调用，内部已经计算过的像素不变
+     *
+     * @return 是否已经填充；边框上有未知的|z|^2时返回false，矩形继续细分
+     */
+    private boolean fillMagnitudes(int x0, int y0, int x1, int y1) {
+        int width = x1 - x0;
+        int height = y1 - y0;
+        float[] top = new float[width + 1];
+        float[] bottom = new float[width + 1];
+        float[] left = new float[height + 1];
+        float[] right = new float[height + 1];
+        float min = Float.MAX_VALUE;
+        float max = -Float.MAX_VALUE;
+        int topRow = (y0 - mOriginY) * mStride - mOriginX;
+        int bottomRow = (y1 - mOriginY) * mStride - mOriginX;
+        for (int x = x0; x <= x1; x++) {
+            float t = mMagnitudes[topRow + x];
+            float b = mMagnitudes[bottomRow + x];
+            if (t <= 1 || b <= 1) {
+                return false;
+            }
+            top[x - x0] = (float) Math.log(t);
+            bottom[x - x0] = (float) Math.log(b);
+            min = Math.min(min, Math.min(top[x - x0], bottom[x - x0]));
+            max = Math.max(max, Math.max(top[x - x0], bottom[x - x0]));
+        }
+        for (int y = y0; y <= y1; y++) {
+            int row = (y - mOriginY) * mStride - mOriginX;
+            float l = mMagnitudes[row + x0];
+            float r = mMagnitudes[row + x1];
+            if (l <= 1 || r <= 1) {
+                return false;
+            }
+            left[y - y0] = (float) Math.log(l);
+            right[y - y0] = (float) Math.log(r);
+            min = Math.min(min, Math.min(left[y - y0], right[y - y0]));
+            max = Math.max(max, Math.max(left[y - y0], right[y - y0]));
+        }
+        float p00 = top[0];
+        float p10 = top[width];
+        float p01 = bottom[0];
+        float p11 = bottom[width];
+        for (int y = y0 + 1; y < y1; y++) {
+            float v = (float) (y - y0) / height;
+            int row = (y - mOriginY) * mStride - mOriginX;
+            for (int x = x0 + 1; x < x1; x++) {
+                if (mCounts[row + x] >= 0) {
+                    // 已经计算过的采样点保留准确的值
+                    continue;
+                }
+                float u = (float) (x - x0) / width;
+                float value = (1 - v) * top[x - x0] + v * bottom[x - x0]
+                        + (1 - u) * left[y - y0] + u * right[y - y0]
+                        - ((1 - u) * (1 - v) * p00 + u * (1 - v) * p10 + (1 - u) * v * p01 + u * v * p11);
+                mMagnitudes[row + x] = (float) Math.exp(Math.max(min, Math.min(max, value)));
+            }
+        }
+        return true;
+    }
+}
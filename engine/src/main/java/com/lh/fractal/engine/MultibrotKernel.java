@@ -0,0 +1,201 @@
+package com.lh.fractal.engine;
+
+/**
+ * z(n+1) = z(n)^k + c，k >= 3，模式的含义与{@link FractalKernel}相同，Mandelbrot模式下z(0) = 0。
+ * 三次和四次各有展开成乘法的循环，更高次按次数的二进制位平方再乘z，z^5与手写的z^4 * z是同样的运算；
+ * 按次数选择循环在每个像素开始前进行。
+ * 平滑着色按二次公式估计小数部分，次数越高色带之间越不均匀
+ */
+
+public final class MultibrotKernel extends FractalKernel {
+
+    private final int mPower;
+    private final Formula mFormula;
+    private final boolean mJulia;
+
+    public MultibrotKernel(int power, int mode, double re, double im, double minX, double maxX, double minY,
+                           double maxY, int width, int height, int iterateTimes, ColorMapper colorMapper) {
+        super(mode, re, im, minX, maxX, minY, maxY, width, height, iterateTimes, colorMapper);
+        mFormula = Formula.power(power);
+        mPower = power;
+        mJulia = mode == MODE_JULIA;
+    }
+
+    @Override
+    public Formula getFormula() {
+        return mFormula;
+    }
+
+    @Override
+    public int iterate(int i, int j, IterationCounter counter) {
+        return iteratePixel(mColumnX[i], mRowY[j], getIterateTimes(), counter);
+    }
+
+    @Override
+    public int iterate(int i, int j, double dx, double dy, IterationCounter counter) {
+        return iteratePixel(sampleX(i, dx), sampleY(j, dy), getIterateTimes(), counter);
+    }
+
+    @Override
+    public int iterate(int[] counts, float[] magnitudes, OrbitBuffer orbits, int stride, Tile r,
+                       IterationCounter counter) {
+        if (counter == null) {
+            counter = new IterationCounter();
+        }
+        final double[] columnX = mColumnX;
+        final int max = getIterateTimes();
+        int iterated = 0;
+        for (int j = r.top; j < r.bottom && !isCancelled(); j++) {
+            final double y = mRowY[j];
+            int index = j * stride + r.left;
+            for (int i = r.left; i < r.right; i++, index++) {
+                if (counts[index] < 0) {
+                    store(counts, magnitudes, orbits, index, iteratePixel(columnX[i], y, max, counter), max,
+                            counter);
+                    iterated++;
+                }
+            }
+        }
+        return iterated;
+    }
+
+    @Override
+    int resumeOrbit(double zr, double zi, double cr, double ci, int max, IterationCounter counter) {
+        return iterate(zr, zi, cr, ci, max, counter);
+    }
+
+    private int iteratePixel(double x, double y, int max, IterationCounter counter) {
+        return mJulia ? iterate(x, y, getRe(), getIm(), max, counter) : iterate(0, 0, x, y, max, counter);
+    }
+
+    private int iterate(double zr, double zi, double cr, double ci, int max, IterationCounter counter) {
+        switch (mPower) {
+            case 3:
+                return iterateCubic(zr, zi, cr, ci, max, counter);
+            case 4:
+                return iterateQuartic(zr, zi, cr, ci, max, counter);
+            default:
+                return iteratePower(zr, zi, cr, ci, max, counter);
+        }
+    }
+
+    /**
+     * z^3 = (zr^3 - 3 zr zi^2) + i(3 zr^2 zi - zi^3)，逃逸和Brent周期检测与{@link FractalKernel}相同
+     */
+    private int iterateCubic(double zr, double zi, double cr, double ci, int max, IterationCounter counter) {
+        double zr2 = zr * zr;
+        double zi2 = zi * zi;
+        double checkR = zr;
+        double checkI = zi;
+        int checkPeriod = 1;
+        int checkCount = 0;
+        int k = 0;
+        for (; k < max; k++) {
+            if (zr2 + zi2 > ESCAPE_RADIUS_SQUARED) {
+                break;
+            }
+            if ((k & (CANCEL_CHECK_INTERVAL - 1)) == 0 && isCancelled()) {
+                return CANCELLED;
+            }
+            double r = zr * (zr2 - 3 * zi2) + cr;
+            zi = zi * (3 * zr2 - zi2) + ci;
+            zr = r;
+            zr2 = zr * zr;
+            zi2 = zi * zi;
+            if (Math.abs(zr - checkR) < PERIODICITY_EPSILON && Math.abs(zi - checkI) < PERIODICITY_EPSILON) {
+                return bounded(counter, k + 1, max);
+            }
+            if (++checkCount == checkPeriod) {
+                checkCount = 0;
+                checkPeriod <<= 1;
+                checkR = zr;
+                checkI = zi;
+            }
+        }
+        return finish(counter, k, zr, zi, zr2 + zi2);
+    }
+
+    /**
+     * z^4 = (z^2)^2
+     */
+    private int iterateQuartic(double zr, double zi, double cr, double ci, int max, IterationCounter counter) {
+        double zr2 = zr * zr;
+        double zi2 = zi * zi;
+        double checkR = zr;
+        double checkI = zi;
+        int checkPeriod = 1;
+        int checkCount = 0;
+        int k = 0;
+        for (; k < max; k++) {
+            if (zr2 + zi2 > ESCAPE_RADIUS_SQUARED) {
+                break;
+            }
+            if ((k & (CANCEL_CHECK_INTERVAL - 1)) == 0 && isCancelled()) {
+                return CANCELLED;
+            }
+            double sr = zr2 - zi2;
+            double si = 2 * zr * zi;
+            zr = sr * sr - si * si + cr;
+            zi = 2 * sr * si + ci;
+            zr2 = zr * zr;
+            zi2 = zi * zi;
+            if (Math.abs(zr - checkR) < PERIODICITY_EPSILON && Math.abs(zi - checkI) < PERIODICITY_EPSILON) {
+                return bounded(counter, k + 1, max);
+            }
+            if (++checkCount == checkPeriod) {
+                checkCount = 0;
+                checkPeriod <<= 1;
+                checkR = zr;
+                checkI = zi;
+            }
+        }
+        return finish(counter, k, zr, zi, zr2 + zi2);
+    }
+
+    /**
+     * 更高的次数按power的二进制位从高到低平方，位为1时再乘z，z^n只需O(log n)次复数乘法
+     */
+    private int iteratePower(double zr, double zi, double cr, double ci, int max, IterationCounter counter) {
+        final int power = mPower;
+        final int topBit = Integer.highestOneBit(power);
+        double magnitude = zr * zr + zi * zi;
+        double checkR = zr;
+        double checkI = zi;
+        int checkPeriod = 1;
+        int checkCount = 0;
+        int k = 0;
+        for (; k < max; k++) {
+            if (magnitude > ESCAPE_RADIUS_SQUARED) {
+                break;
+            }
+            if ((k & (CANCEL_CHECK_INTERVAL - 1)) == 0 && isCancelled()) {
+                return CANCELLED;
+            }
+            double pr = zr;
+            double pi = zi;
+            for (int bit = topBit >> 1; bit != 0; bit >>= 1) {
+                double r = pr * pr - pi * pi;
+                pi = 2 * pr * pi;
+                pr = r;
+                if ((power & bit) != 0) {
+                    r = pr * zr - pi * zi;
+                    pi = pr * zi + pi * zr;
+                    pr = r;
+                }
+            }
+            zr = pr + cr;
+            zi = pi + ci;
+            magnitude = zr * zr + zi * zi;
+            if (Math.abs(zr - checkR) < PERIODICITY_EPSILON && Math.abs(zi - checkI) < PERIODICITY_EPSILON) {
+                return bounded(counter, k + 1, max);
+            }
+            if (++checkCount == checkPeriod) {
+                checkCount = 0;
+                checkPeriod <<= 1;
+                checkR = zr;
+                checkI = zi;
+            }
+        }
+        return finish(counter, k, zr, zi, magnitude);
+    }
+}
@@ -0,0 +1,291 @@
+package com.lh.fractal.engine;
+
+/**
+ * 多项式p的牛顿迭代：z(n+1) = z(n) - p(z(n)) / p'(z(n))，z(0)为像素坐标，与模式和参数c无关。
+ * 结果是收敛到某个根(一步的长度小于{@link #CONVERGENCE_EPSILON})需要的迭代次数，
+ * 吸引域的边界附近次数变化剧烈；达到上限仍未收敛的像素与其他公式不发散的像素相同。
+ * 收敛到的是哪个根用{@link Coloring#encodeRoot}记在magnitude中，各个吸引域着上不同的颜色；
+ * 没有|z|可以用来平滑着色，平滑着色退化为色带。
+ * 系数只能是实数，画面因此关于实轴对称，见{@link Formula}。
+ * 只有两项的a z^n + b(比如z^3 - 1)不用Horner法，直接连乘出z^(n-1)，乘法少一半
+ */
+
+public final class NewtonKernel extends FractalKernel {
+
+    /**
+     * 牛顿迭代在根附近平方收敛，一步小于1e-6后再迭代一次就到了double的精度
+     */
+    private static final double CONVERGENCE_EPSILON = 1e-6;
+    private static final double CONVERGENCE_EPSILON_SQUARED = CONVERGENCE_EPSILON * CONVERGENCE_EPSILON;
+    /**
+     * 求根时Durand-Kerner迭代的最大轮数，单根几十轮就收敛，重根只是线性收敛
+     */
+    private static final int ROOT_ITERATIONS = 500;
+
+    private final Formula mFormula;
+    /**
+     * p的实系数，从最高次开始
+     */
+    private final double[] mCoefficients;
+    /**
+     * 除最高次和常数项外系数都为0
+     */
+    private final boolean mBinomial;
+    /**
+     * p的n个根，编号即{@link Coloring#encodeRoot}的序号
+     */
+    private final double[] mRootR;
+    private final double[] mRootI;
+    /**
+     * 第r个根的共轭是第mConjugateRoot[r]个根
+     */
+    private final int[] mConjugateRoot;
+
+    public NewtonKernel(double[] coefficients, int mode, double re, double im, double minX, double maxX,
+                        double minY, double maxY, int width, int height, int iterateTimes,
+                        ColorMapper colorMapper) {
+        super(mode, re, im, minX, maxX, minY, maxY, width, height, iterateTimes, colorMapper);
+        mFormula = Formula.newton(coefficients);
+        mCoefficients = coefficients.clone();
+        boolean binomial = true;
+        for (int m = 1; m < mCoefficients.length - 1; m++) {
+            binomial &= mCoefficients[m] == 0;
+        }
+        mBinomial = binomial;
+        int n = mCoefficients.length - 1;
+        mRootR = new double[n];
+        mRootI = new double[n];
+        findRoots(mCoefficients, mRootR, mRootI);
+        mConjugateRoot = new int[n];
+        for (int r = 0; r < n; r++) {
+            mConjugateRoot[r] = nearestRoot(mRootR[r], -mRootI[r]);
+        }
+    }
+
+    /**
+     * 用Durand-Kerner迭代同时求出p的所有根，只在创建内核时进行一次
+     */
+    private static void findRoots(double[] a, double[] rootR, double[] rootI) {
+        int n = rootR.length;
+        // 化成首一多项式，初值取在所有根的模的上界之内、不在实轴上，避免共轭的初值永远对称
+        double bound = 0;
+        for (int m = 1; m <= n; m++) {
+            bound = Math.max(bound, Math.abs(a[m] / a[0]));
+        }
+        bound = 1 + bound;
+        for (int r = 0; r < n; r++) {
+            double angle = 2 * Math.PI * r / n + 0.4;
+            rootR[r] = bound * Math.cos(angle);
+            rootI[r] = bound * Math.sin(angle);
+        }
+        for (int round = 0; round < ROOT_ITERATIONS; round++) {
+            double change = 0;
+            for (int r = 0; r < n; r++) {
+                double zr = rootR[r];
+                double zi = rootI[r];
+                double pr = 1;
+                double pi = 0;
+                for (int m = 1; m <= n; m++) {
+                    double t = pr * zr - pi * zi + a[m] / a[0];
+                    pi = pr * zi + pi * zr;
+                    pr = t;
+                }
+                // 除以与其他根的差的乘积
+                double qr = 1;
+                double qi = 0;
+                for (int s = 0; s < n; s++) {
+                    if (s != r) {
+                        double dr = zr - rootR[s];
+                        double di = zi - rootI[s];
+                        double t = qr * dr - qi * di;
+                        qi = qr * di + qi * dr;
+                        qr = t;
+                    }
+                }
+                double q = qr * qr + qi * qi;
+                if (q == 0) {
+                    continue;
+                }
+                double sr = (pr * qr + pi * qi) / q;
+                double si = (pi * qr - pr * qi) / q;
+                rootR[r] = zr - sr;
+                rootI[r] = zi - si;
+                change = Math.max(change, sr * sr + si * si);
+            }
+            if (change < 1e-28) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return 离z最近的根的序号
+     */
+    private int nearestRoot(double zr, double zi) {
+        final double[] rootR = mRootR;
+        final double[] rootI = mRootI;
+        int nearest = 0;
+        double nearestDistance = Double.MAX_VALUE;
+        for (int r = 0; r < rootR.length; r++) {
+            double dr = zr - rootR[r];
+            double di = zi - rootI[r];
+            double distance = dr * dr + di * di;
+            if (distance < nearestDistance) {
+                nearest = r;
+                nearestDistance = distance;
+            }
+        }
+        return nearest;
+    }
+
+    /**
+     * 收敛的像素在z处结束迭代，magnitude记录收敛到的根
+     */
+    private int converged(IterationCounter counter, int k, double zr, double zi) {
+        return finish(counter, k, zr, zi, Coloring.encodeRoot(nearestRoot(zr, zi), mRootR.length));
+    }
+
+    @Override
+    public boolean recordsRoots() {
+        return true;
+    }
+
+    @Override
+    float conjugateMagnitude(float magnitude) {
+        int count = mRootR.length;
+        return Coloring.encodeRoot(mConjugateRoot[Coloring.decodeRoot(magnitude, count)], count);
+    }
+
+    /**
+     * @return p的第r个根的实部，序号与{@link Coloring#decodeRoot}相同
+     */
+    public double getRootReal(int r) {
+        return mRootR[r];
+    }
+
+    public double getRootImag(int r) {
+        return mRootI[r];
+    }
+
+    @Override
+    public Formula getFormula() {
+        return mFormula;
+    }
+
+    @Override
+    public int iterate(int i, int j, IterationCounter counter) {
+        return iterate(mColumnX[i], mRowY[j], getIterateTimes(), counter);
+    }
+
+    @Override
+    public int iterate(int i, int j, double dx, double dy, IterationCounter counter) {
+        return iterate(sampleX(i, dx), sampleY(j, dy), getIterateTimes(), counter);
+    }
+
+    @Override
+    public int iterate(int[] counts, float[] magnitudes, OrbitBuffer orbits, int stride, Tile r,
+                       IterationCounter counter) {
+        if (counter == null) {
+            counter = new IterationCounter();
+        }
+        final double[] columnX = mColumnX;
+        final int max = getIterateTimes();
+        int iterated = 0;
+        for (int j = r.top; j < r.bottom && !isCancelled(); j++) {
+            final double y = mRowY[j];
+            int index = j * stride + r.left;
+            for (int i = r.left; i < r.right; i++, index++) {
+                if (counts[index] < 0) {
+                    store(counts, magnitudes, orbits, index, iterate(columnX[i], y, max, counter), max, counter);
+                    iterated++;
+                }
+            }
+        }
+        return iterated;
+    }
+
+    @Override
+    int resumeOrbit(double zr, double zi, double cr, double ci, int max, IterationCounter counter) {
+        return iterate(zr, zi, max, counter);
+    }
+
+    private int iterate(double zr, double zi, int max, IterationCounter counter) {
+        return mBinomial ? iterateBinomial(zr, zi, max, counter) : iterateHorner(zr, zi, max, counter);
+    }
+
+    private int iterateHorner(double zr, double zi, int max, IterationCounter counter) {
+        final double[] a = mCoefficients;
+        final int n = a.length;
+        for (int k = 0; k < max; k++) {
+            if ((k & (CANCEL_CHECK_INTERVAL - 1)) == 0 && isCancelled()) {
+                return CANCELLED;
+            }
+            // Horner法同时求p(z)和p'(z)
+            double pr = a[0];
+            double pi = 0;
+            double dr = 0;
+            double di = 0;
+            for (int m = 1; m < n; m++) {
+                double r = dr * zr - di * zi + pr;
+                di = dr * zi + di * zr + pi;
+                dr = r;
+                r = pr * zr - pi * zi + a[m];
+                pi = pr * zi + pi * zr;
+                pr = r;
+            }
+            double d = dr * dr + di * di;
+            if (d == 0) {
+                // 落在p'的零点上，迭代没有定义，当作不收敛
+                return bounded(counter, k, max);
+            }
+            // p / p' = p * conj(p') / |p'|^2
+            double sr = (pr * dr + pi * di) / d;
+            double si = (pi * dr - pr * di) / d;
+            zr -= sr;
+            zi -= si;
+            if (sr * sr + si * si < CONVERGENCE_EPSILON_SQUARED) {
+                return converged(counter, k + 1, zr, zi);
+            }
+        }
+        return finish(counter, max, zr, zi, 0);
+    }
+
+    /**
+     * p = a z^n + b，p' = n a z^(n-1)
+     */
+    private int iterateBinomial(double zr, double zi, int max, IterationCounter counter) {
+        final int n = mCoefficients.length - 1;
+        final double a = mCoefficients[0];
+        final double b = mCoefficients[n];
+        final double na = n * a;
+        for (int k = 0; k < max; k++) {
+            if ((k & (CANCEL_CHECK_INTERVAL - 1)) == 0 && isCancelled()) {
+                return CANCELLED;
+            }
+            double wr = zr;
+            double wi = zi;
+            for (int m = 2; m < n; m++) {
+                double r = wr * zr - wi * zi;
+                wi = wr * zi + wi * zr;
+                wr = r;
+            }
+            // w = z^(n-1)
+            double pr = a * (wr * zr - wi * zi) + b;
+            double pi = a * (wr * zi + wi * zr);
+            double dr = na * wr;
+            double di = na * wi;
+            double d = dr * dr + di * di;
+            if (d == 0) {
+                return bounded(counter, k, max);
+            }
+            double sr = (pr * dr + pi * di) / d;
+            double si = (pi * dr - pr * di) / d;
+            zr -= sr;
+            zi -= si;
+            if (sr * sr + si * si < CONVERGENCE_EPSILON_SQUARED) {
+                return converged(counter, k + 1, zr, zi);
+            }
+        }
+        return finish(counter, max, zr, zi, 0);
+    }
+}
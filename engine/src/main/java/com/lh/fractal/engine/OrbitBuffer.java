@@ -0,0 +1,193 @@
+package com.lh.fractal.engine;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 迭代到上限仍未发散的像素最后的z，提高上限时由此继续，见{@link FractalKernel#resume}
+ * <p>
+ * 只有不发散的像素需要z，发散的像素通常占画面的大部分，按像素分配两个double的整幅缓冲在1080x1920时约33MB。
+ * 这里把画面分成{@link #BLOCK_SIZE} x {@link #BLOCK_SIZE}的块，某个块第一次保存z时才分配它
+ * (每块{@link #BLOCK_BYTES}字节)，全部发散或由矩形细分直接填充的块不占内存。
+ * 没有分配的块中所有像素都是{@link FractalKernel#ORBIT_UNKNOWN}。
+ * <p>
+ * 上限很低时画面大部分像素都不发散，分块也会接近整幅缓冲的大小，因此总内存有上限：
+ * 超过上限后不再分配新的块，这些像素的z不保存，提高上限时和矩形细分填充的像素一样从头迭代，结果不变，只是更慢。
+ * <p>
+ * 像素用下标j * width + i表示。不同线程可以同时写入不同的像素，块的分配是原子的；
+ * 写入对其他线程的可见性由调用者保证，例如渲染完成之后才继续迭代
+ */
+
+public final class OrbitBuffer {
+
+    static final int BLOCK_SHIFT = 5;
+    static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+    private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+    /**
+     * 一个块的字节数，每个像素两个double
+     */
+    static final int BLOCK_BYTES = BLOCK_SIZE * BLOCK_SIZE * 2 * 8;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mColumns;
+    private final int mRows;
+    private final long mMaxBytes;
+    private AtomicReferenceArray<double[]> mBlocks;
+    private final AtomicLong mAllocatedBytes = new AtomicLong();
+    private final AtomicLong mDroppedOrbits = new AtomicLong();
+
+    /**
+     * @param maxBytes 所有块的总字节数上限
+     */
+    public OrbitBuffer(int width, int height, long maxBytes) {
+        mWidth = width;
+        mHeight = height;
+        mMaxBytes = maxBytes;
+        mColumns = (width + BLOCK_MASK) >> BLOCK_SHIFT;
+        mRows = (height + BLOCK_MASK) >> BLOCK_SHIFT;
+        mBlocks = new AtomicReferenceArray<>(mColumns * mRows);
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    /**
+     * @return 像素index保存的zr，没有保存时返回{@link FractalKernel#ORBIT_UNKNOWN}
+     */
+    public double getReal(int index) {
+        int j = index / mWidth;
+        double[] block = mBlocks.get(blockOf(index - j * mWidth, j));
+        return block == null ? FractalKernel.ORBIT_UNKNOWN : block[offsetOf(index - j * mWidth, j)];
+    }
+
+    /**
+     * @return 像素index保存的zi，zr为{@link FractalKernel#ORBIT_UNKNOWN}时没有意义
+     */
+    public double getImag(int index) {
+        int j = index / mWidth;
+        double[] block = mBlocks.get(blockOf(index - j * mWidth, j));
+        return block == null ? 0 : block[offsetOf(index - j * mWidth, j) + 1];
+    }
+
+    /**
+     * 保存像素index的z。zr为{@link FractalKernel#ORBIT_UNKNOWN}且所在的块还没有分配时不分配；
+     * 需要分配但已经达到内存上限时丢弃，之后读到的是{@link FractalKernel#ORBIT_UNKNOWN}
+     */
+    public void set(int index, double zr, double zi) {
+        int j = index / mWidth;
+        int i = index - j * mWidth;
+        int b = blockOf(i, j);
+        double[] block = mBlocks.get(b);
+        if (block == null) {
+            if (zr == FractalKernel.ORBIT_UNKNOWN) {
+                return;
+            }
+            block = allocate(b);
+            if (block == null) {
+                return;
+            }
+        }
+        int offset = offsetOf(i, j);
+        block[offset] = zr;
+        block[offset + 1] = zi;
+    }
+
+    /**
+     * @return 块b，其他线程已经分配时返回它的；超过内存上限时返回null，要保存的z计为丢弃
+     */
+    private double[] allocate(int b) {
+        if (mAllocatedBytes.addAndGet(BLOCK_BYTES) > mMaxBytes) {
+            mAllocatedBytes.addAndGet(-BLOCK_BYTES);
+            double[] existing = mBlocks.get(b);
+            if (existing == null) {
+                mDroppedOrbits.incrementAndGet();
+            }
+            return existing;
+        }
+        double[] block = new double[BLOCK_SIZE * BLOCK_SIZE * 2];
+        Arrays.fill(block, FractalKernel.ORBIT_UNKNOWN);
+        if (!mBlocks.compareAndSet(b, null, block)) {
+            mAllocatedBytes.addAndGet(-BLOCK_BYTES);
+            block = mBlocks.get(b);
+        }
+        return block;
+    }
+
+    /**
+     * 释放所有块，所有像素变为{@link FractalKernel#ORBIT_UNKNOWN}。调用时不能有其他线程在读写
+     */
+    public void clear() {
+        mBlocks = new AtomicReferenceArray<>(mColumns * mRows);
+        mAllocatedBytes.set(0);
+        mDroppedOrbits.set(0);
+    }
+
+    /**
+     * 与{@link TileRenderer#shift}一样平移画面内容，移出画面的z丢弃，露出的像素没有z。
+     * 调用时不能有其他线程在读写
+     */
+    public void shift(int dx, int dy) {
+        AtomicReferenceArray<double[]> source = mBlocks;
+        clear();
+        for (int b = 0; b < source.length(); b++) {
+            double[] block = source.get(b);
+            if (block == null) {
+                continue;
+            }
+            int left = (b % mColumns) << BLOCK_SHIFT;
+            int top = (b / mColumns) << BLOCK_SHIFT;
+            for (int y = 0; y < BLOCK_SIZE; y++) {
+                int j = top + y + dy;
+                if (j < 0 || j >= mHeight || top + y >= mHeight) {
+                    continue;
+                }
+                for (int x = 0; x < BLOCK_SIZE; x++) {
+                    int i = left + x + dx;
+                    int offset = 2 * (y * BLOCK_SIZE + x);
+                    if (i >= 0 && i < mWidth && left + x < mWidth) {
+                        set(j * mWidth + i, block[offset], block[offset + 1]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return 已经分配的块占用的字节数
+     */
+    public long getAllocatedBytes() {
+        return mAllocatedBytes.get();
+    }
+
+    /**
+     * @return 因为达到内存上限而没有保存的z的个数
+     */
+    public long getDroppedOrbits() {
+        return mDroppedOrbits.get();
+    }
+
+    private int blockOf(int i, int j) {
+        return (j >> BLOCK_SHIFT) * mColumns + (i >> BLOCK_SHIFT);
+    }
+
+    private static int offsetOf(int i, int j) {
+        return 2 * (((j & BLOCK_MASK) << BLOCK_SHIFT) + (i & BLOCK_MASK));
+    }
+
+    @Override
+    public String toString() {
+        return "OrbitBuffer(" + mWidth + "x" + mHeight + ", " + getAllocatedBytes() / 1024 + "KB, "
+                + getDroppedOrbits() + " dropped)";
+    }
+}
@@ -0,0 +1,88 @@
+package com.lh.fractal.engine;
+
+/**
+ * 调色板：预先计算好的颜色查找表，迭代次数或平滑后的连续值按表长取模查表，
+ * 着色时每个像素只需要一次数组访问
+ */
+
+public final class Palette {
+
+    private final int[] mColors;
+    private final int mInteriorColor;
+
+    /**
+     * @param colors        一个周期的颜色，会被复制
+     * @param interiorColor 不发散的点的颜色
+     */
+    public Palette(int[] colors, int interiorColor) {
+        if (colors.length == 0) {
+            throw new IllegalArgumentException("palette is empty");
+        }
+        mColors = colors.clone();
+        mInteriorColor = interiorColor;
+    }
+
+    /**
+     * 依次经过stops并回到第一个颜色的循环渐变
+     *
+     * @param size  查找表的长度
+     * @param stops 至少一个argb颜色
+     */
+    public static Palette gradient(int size, int interiorColor, int... stops) {
+        int[] colors = new int[size];
+        for (int i = 0; i < size; i++) {
+            float position = (float) i * stops.length / size;
+            int from = (int) position;
+            colors[i] = lerp(stops[from], stops[(from + 1) % stops.length], position - from);
+        }
+        return new Palette(colors, interiorColor);
+    }
+
+    /**
+     * 把按迭代次数着色的ColorMapper制成查找表，mapper必须以size为周期
+     */
+    public static Palette fromMapper(ColorMapper mapper, int size) {
+        int[] colors = new int[size];
+        for (int k = 0; k < size; k++) {
+            colors[k] = mapper.getColor(k, Integer.MAX_VALUE);
+        }
+        return new Palette(colors, mapper.getColor(Integer.MAX_VALUE, Integer.MAX_VALUE));
+    }
+
+    public int size() {
+        return mColors.length;
+    }
+
+    public int getInteriorColor() {
+        return mInteriorColor;
+    }
+
+    /**
+     * @param index 不小于0
+     */
+    public int getColor(int index) {
+        return mColors[index % mColors.length];
+    }
+
+    /**
+     * 在相邻的两个颜色之间线性插值
+     *
+     * @param value 不小于0
+     */
+    public int getColor(float value) {
+        int index = (int) value;
+        return lerp(getColor(index), getColor(index + 1), value - index);
+    }
+
+    static int lerp(int from, int to, float t) {
+        int a = lerpChannel(from >>> 24, to >>> 24, t);
+        int r = lerpChannel((from >> 16) & 0xff, (to >> 16) & 0xff, t);
+        int g = lerpChannel((from >> 8) & 0xff, (to >> 8) & 0xff, t);
+        int b = lerpChannel(from & 0xff, to & 0xff, t);
+        return a << 24 | r << 16 | g << 8 | b;
+    }
+
+    private static int lerpChannel(int from, int to, float t) {
+        return from + Math.round((to - from) * t);
+    }
+}
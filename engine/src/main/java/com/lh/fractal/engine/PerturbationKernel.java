@@ -0,0 +1,439 @@
+package com.lh.fractal.engine;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 深度缩放内核：用任意精度计算屏幕中心的一条参考轨道Z(n)，每个像素只用double迭代相对参考轨道的偏差
+ * <pre>
+ * Mandelbrot: δ(n+1) = 2Z(n)δ(n) + δ(n)^2 + δc，δ(0) = 0
+ * Julia:      δ(n+1) = 2Z(n)δ(n) + δ(n)^2，    δ(0) = 像素与参考点的距离
+ * </pre>
+ * 像素大小可以远小于double能区分的坐标间隔，只要偏差本身在double范围内(约1e-300)即可。
+ * <p>
+ * 当|Z(n) + δ(n)|远小于|Z(n)|时，偏差的有效位数已经被抵消，结果不可信(glitch)，
+ * 或者参考轨道先于像素发散时，这个像素改用离它最近的其他参考点重新计算；
+ * 没有合适的参考点时以该像素本身为新的参考点(最多{@link #MAX_REFERENCES}个)。
+ * 参考轨道的任意精度计算不持有锁，其他工作线程照常使用已有的参考点；只有完整的轨道才会被保存
+ * <p>
+ * 每条参考轨道附带一个{@link SeriesApproximation}，画面内所有像素直接从近似得到的第N次迭代开始
+ */
+
+public class PerturbationKernel extends FractalKernel {
+
+    /**
+     * |Z + δ|^2 < GLITCH_TOLERANCE * |Z|^2 时认为发生了glitch
+     */
+    private static final double GLITCH_TOLERANCE = 1e-6;
+    private static final double ESCAPE_RADIUS_SQUARED = 16.0;
+    private static final int MAX_REFERENCES = 16;
+    /**
+     * 与{@link #CANCELLED}区分
+     */
+    private static final int GLITCH = -2;
+
+    private final int mMode;
+    private final BigDecimal mRe;
+    private final BigDecimal mIm;
+    private final BigDecimal mCenterX;
+    private final BigDecimal mCenterY;
+    private final double mPixelSize;
+    /**
+     * 中心坐标对应的像素位置，宽高为奇数时位于像素中间
+     */
+    private final double mCenterI;
+    private final double mCenterJ;
+    private final MathContext mMathContext;
+
+    /**
+     * 已经完整计算的参考轨道，第一个是画面中心的
+     */
+    private final List<Reference> mReferences = new CopyOnWriteArrayList<>();
+    private volatile Reference mPrimary;
+    private final Object mReferenceLock = new Object();
+    /**
+     * 正在计算的参考点像素，见{@link #pixelKey}，由mReferenceLock保护
+     */
+    private final Set<Long> mComputing = new HashSet<>();
+    private final AtomicInteger mGlitchCount = new AtomicInteger();
+    private volatile boolean mSeriesApproximation = true;
+    /**
+     * 由{@link #shareReference}得到的画面中心的参考轨道，计算第一个参考点时使用
+     */
+    private volatile ReferenceOrbit mSharedOrbit;
+
+    public PerturbationKernel(int mode, double re, double im, Viewport viewport, int iterateTimes,
+                              ColorMapper colorMapper) {
+        super(mode, re, im, viewport.getMinX(), viewport.getMaxX(), viewport.getMinY(), viewport.getMaxY(),
+                viewport.getWidth(), viewport.getHeight(), iterateTimes, colorMapper);
+        mMode = mode;
+        mRe = new BigDecimal(re);
+        mIm = new BigDecimal(im);
+        mCenterX = viewport.getCenterX();
+        mCenterY = viewport.getCenterY();
+        mPixelSize = viewport.getPixelSize();
+        mCenterI = viewport.getWidth() / 2.0;
+        mCenterJ = viewport.getHeight() / 2.0;
+        mMathContext = viewport.getMathContext();
+    }
+
+    /**
+     * @return 已经计算的参考轨道数
+     */
+    public int getReferenceCount() {
+        return mReferences.size();
+    }
+
+    /**
+     * 是否用级数近似跳过前面的迭代，默认开启，需要在开始计算前设置
+     */
+    public void setSeriesApproximation(boolean enabled) {
+        mSeriesApproximation = enabled;
+    }
+
+    /**
+     * 直接使用source画面中心的参考轨道，不再用任意精度重新计算，例如缩放动画中以同一点为中心的各帧。
+     * 需要在开始计算前调用；两个内核的分形参数和中心必须相同，宽高都是偶数(中心正好落在像素上)，
+     * 并且source的精度和迭代上限都不低于这个内核，否则不共用
+     *
+     * @return 是否共用了source的参考轨道
+     */
+    public boolean shareReference(PerturbationKernel source) {
+        if (source.mMode != mMode || source.mRe.compareTo(mRe) != 0 || source.mIm.compareTo(mIm) != 0
+                || source.mCenterX.compareTo(mCenterX) != 0 || source.mCenterY.compareTo(mCenterY) != 0
+                || source.getIterateTimes() < getIterateTimes()
+                || source.mMathContext.getPrecision() < mMathContext.getPrecision()
+                || !hasCenterPixel() || !source.hasCenterPixel()) {
+            return false;
+        }
+        Reference primary = source.getPrimaryReference();
+        if (primary == null) {
+            // source已经取消，没有完整的轨道
+            return false;
+        }
+        mSharedOrbit = primary.orbit.at(getWidth() / 2, getHeight() / 2);
+        return true;
+    }
+
+    /**
+     * @return 中心是否正好是像素(width / 2, height / 2)的采样点
+     */
+    private boolean hasCenterPixel() {
+        return getWidth() % 2 == 0 && getHeight() % 2 == 0;
+    }
+
+    /**
+     * @return 画面中心的参考轨道上级数近似跳过的迭代次数
+     */
+    public int getSeriesSkip() {
+        Reference primary = getPrimaryReference();
+        return primary == null ? 0 : primary.series.skip;
+    }
+
+    /**
+     * @return 检测到glitch并换用其他参考点重新计算的次数
+     */
+    public int getGlitchCount() {
+        return mGlitchCount.get();
+    }
+
+    /**
+     * 继续迭代还要延长参考轨道，提高上限时重新渲染
+     */
+    @Override
+    public boolean isResumable() {
+        return false;
+    }
+
+    @Override
+    public int iterate(int[] counts, float[] magnitudes, int stride, Tile r, IterationCounter counter) {
+        if (counter == null) {
+            counter = new IterationCounter();
+        }
+        int iterated = 0;
+        for (int j = r.top; j < r.bottom && !isCancelled(); j++) {
+            int index = j * stride + r.left;
+            for (int i = r.left; i < r.right; i++, index++) {
+                if (counts[index] < 0) {
+                    counts[index] = iterate(i, j, counter);
+                    if (magnitudes != null) {
+                        magnitudes[index] = counter.magnitude;
+                    }
+                    iterated++;
+                }
+            }
+        }
+        return iterated;
+    }
+
+    @Override
+    public int iterate(int i, int j, IterationCounter counter) {
+        return iterate(i, j, 0, 0, counter);
+    }
+
+    /**
+     * 子像素采样同样相对参考轨道计算，glitch时换用离像素(i, j)最近的参考点
+     */
+    @Override
+    public int iterate(int i, int j, double dx, double dy, IterationCounter counter) {
+        if (isCancelled()) {
+            // 取消后计算出的参考轨道是不完整的，不能再用
+            return CANCELLED;
+        }
+        Reference primary = getPrimaryReference();
+        if (primary == null) {
+            return CANCELLED;
+        }
+        int k = iterate(primary, i, j, dx, dy, counter);
+        if (k != GLITCH) {
+            return k;
+        }
+        if (isCancelled()) {
+            return CANCELLED;
+        }
+        mGlitchCount.incrementAndGet();
+        Reference nearest = findNearestReference(i, j, primary);
+        if (nearest != null) {
+            k = iterate(nearest, i, j, dx, dy, counter);
+            if (k != GLITCH) {
+                return k;
+            }
+        }
+        Reference reference = createReference(i, j);
+        if (reference != null) {
+            k = iterate(reference, i, j, dx, dy, counter);
+            if (k != GLITCH) {
+                return k;
+            }
+        }
+        if (isCancelled()) {
+            return CANCELLED;
+        }
+        // 参考点已经用完，退回到double精度
+        return super.iterate(i, j, dx, dy, counter);
+    }
+
+    /**
+     * @return 画面中心的参考点，取消后还没有完整的轨道时返回null
+     */
+    private Reference getPrimaryReference() {
+        Reference primary = mPrimary;
+        return primary != null ? primary : obtainReference(getWidth() / 2, getHeight() / 2, true);
+    }
+
+    private Reference findNearestReference(int i, int j, Reference exclude) {
+        Reference nearest = null;
+        long nearestDistance = Long.MAX_VALUE;
+        for (Reference reference : mReferences) {
+            if (reference == exclude) {
+                continue;
+            }
+            long di = reference.orbit.i - i;
+            long dj = reference.orbit.j - j;
+            long distance = di * di + dj * dj;
+            if (distance < nearestDistance) {
+                nearest = reference;
+                nearestDistance = distance;
+            }
+        }
+        return nearest;
+    }
+
+    /**
+     * 以像素(i, j)为参考点计算新的参考轨道，已经达到数量上限或已经取消时返回null
+     */
+    private Reference createReference(int i, int j) {
+        return obtainReference(i, j, false);
+    }
+
+    /**
+     * 参考点(i, j)已经有完整的轨道时直接返回，另一个线程正在计算同一点时等它结束，否则由当前线程计算。
+     * 计算时不持有锁；计算期间被取消时轨道不完整，丢弃并返回null
+     *
+     * @param primary 是否为画面中心的参考点，可以使用共用的轨道，不受{@link #MAX_REFERENCES}限制
+     */
+    private Reference obtainReference(int i, int j, boolean primary) {
+        Long key = pixelKey(i, j);
+        boolean interrupted = false;
+        synchronized (mReferenceLock) {
+            try {
+                for (; ; ) {
+                    Reference existing = findReference(i, j);
+                    if (existing != null) {
+                        return existing;
+                    }
+                    if (isCancelled()) {
+                        return null;
+                    }
+                    if (!mComputing.contains(key)) {
+                        break;
+                    }
+                    // 计算的线程结束时通知，取消后它在一次任意精度的迭代内结束
+                    try {
+                        mReferenceLock.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (!primary && mReferences.size() + mComputing.size() >= MAX_REFERENCES) {
+                return null;
+            }
+            mComputing.add(key);
+        }
+        Reference reference = null;
+        try {
+            ReferenceOrbit shared = primary ? mSharedOrbit : null;
+            reference = shared != null ? withSeries(shared) : computeReference(i, j);
+        } finally {
+            synchronized (mReferenceLock) {
+                mComputing.remove(key);
+                if (reference != null && !isCancelled()) {
+                    mReferences.add(reference);
+                    if (primary) {
+                        mPrimary = reference;
+                    }
+                } else {
+                    reference = null;
+                }
+                mReferenceLock.notifyAll();
+            }
+        }
+        return reference;
+    }
+
+    private Reference findReference(int i, int j) {
+        for (Reference reference : mReferences) {
+            if (reference.orbit.i == i && reference.orbit.j == j) {
+                return reference;
+            }
+        }
+        return null;
+    }
+
+    private static Long pixelKey(int i, int j) {
+        return ((long) i << 32) | (j & 0xffffffffL);
+    }
+
+    private Reference computeReference(int i, int j) {
+        BigDecimal x = mCenterX.add(new BigDecimal((i - mCenterI) * mPixelSize), mMathContext);
+        BigDecimal y = mCenterY.subtract(new BigDecimal((j - mCenterJ) * mPixelSize), mMathContext);
+        ReferenceOrbit orbit;
+        if (mMode == MODE_JULIA) {
+            orbit = ReferenceOrbit.compute(i, j, x, y, mRe, mIm, getIterateTimes(), mMathContext, this);
+        } else {
+            orbit = ReferenceOrbit.compute(i, j, BigDecimal.ZERO, BigDecimal.ZERO, x, y, getIterateTimes(),
+                    mMathContext, this);
+        }
+        // 取消后轨道不完整，会被丢弃，不再为它计算级数
+        return isCancelled() ? null : withSeries(orbit);
+    }
+
+    /**
+     * 为这个画面的像素大小计算参考轨道的级数近似
+     */
+    private Reference withSeries(ReferenceOrbit orbit) {
+        int i = orbit.i;
+        int j = orbit.j;
+        // 以画面四角为验证点，它们离参考点最远
+        int right = getWidth() - 1;
+        int bottom = getHeight() - 1;
+        double[] probeR = {-i * mPixelSize, (right - i) * mPixelSize, -i * mPixelSize, (right - i) * mPixelSize};
+        double[] probeI = {j * mPixelSize, j * mPixelSize, -(bottom - j) * mPixelSize, -(bottom - j) * mPixelSize};
+        SeriesApproximation series = mSeriesApproximation
+                ? SeriesApproximation.compute(orbit, mMode == MODE_JULIA, probeR, probeI, getIterateTimes())
+                : SeriesApproximation.NONE;
+        return new Reference(orbit, series);
+    }
+
+    /**
+     * 相对参考轨道迭代像素(i, j)偏移(dx, dy)的位置
+     *
+     * @return 发散前的迭代次数，不发散时返回最大迭代次数，结果不可信时返回{@link #GLITCH}，
+     * 已经取消时返回{@link #CANCELLED}
+     */
+    private int iterate(Reference reference, int i, int j, double dx, double dy, IterationCounter counter) {
+        final ReferenceOrbit orbit = reference.orbit;
+        final SeriesApproximation series = reference.series;
+        double offsetR = (i - orbit.i + dx) * mPixelSize;
+        double offsetI = -(j - orbit.j + dy) * mPixelSize;
+        double dr;
+        double di;
+        double dcr;
+        double dci;
+        if (mMode == MODE_JULIA) {
+            dr = offsetR;
+            di = offsetI;
+            dcr = 0;
+            dci = 0;
+        } else {
+            dr = 0;
+            di = 0;
+            dcr = offsetR;
+            dci = offsetI;
+        }
+        final double[] referenceR = orbit.re;
+        final double[] referenceI = orbit.im;
+        final int length = orbit.length;
+        final int max = getIterateTimes();
+        final int skip = series.skip;
+        if (skip > 0) {
+            dr = series.getDeltaR(offsetR, offsetI);
+            di = series.getDeltaI(offsetR, offsetI);
+        }
+        boolean glitch = false;
+        double magnitude = 0;
+        int n = skip;
+        for (; n < max; n++) {
+            if (n >= length) {
+                // 参考点已经发散，没有后续的Z(n)
+                glitch = true;
+                break;
+            }
+            if ((n & (CANCEL_CHECK_INTERVAL - 1)) == 0 && isCancelled()) {
+                return CANCELLED;
+            }
+            double zr = referenceR[n];
+            double zi = referenceI[n];
+            double r = zr + dr;
+            double m = zi + di;
+            magnitude = r * r + m * m;
+            if (magnitude > ESCAPE_RADIUS_SQUARED) {
+                break;
+            }
+            if (magnitude < GLITCH_TOLERANCE * (zr * zr + zi * zi)) {
+                glitch = true;
+                break;
+            }
+            double temp = 2 * (zr * dr - zi * di) + dr * dr - di * di + dcr;
+            di = 2 * (zr * di + zi * dr) + 2 * dr * di + dci;
+            dr = temp;
+        }
+        if (counter != null) {
+            counter.iterations += n - skip;
+            counter.skipped += skip;
+            counter.magnitude = (float) magnitude;
+        }
+        return glitch ? GLITCH : n;
+    }
+
+    private static final class Reference {
+
+        final ReferenceOrbit orbit;
+        final SeriesApproximation series;
+
+        Reference(ReferenceOrbit orbit, SeriesApproximation series) {
+            this.orbit = orbit;
+            this.series = series;
+        }
+    }
+}
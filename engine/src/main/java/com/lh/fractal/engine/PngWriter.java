@@ -0,0 +1,252 @@
+package com.lh.fractal.engine;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * 逐行写入的PNG编码器，8位RGB，不隔行。
+ * 每一行按最小绝对值和的启发式从五种行过滤中选择一种，压缩后按固定大小分成IDAT块直接写入输出流，
+ * 内存占用只与图像宽度有关，与高度无关
+ */
+
+public class PngWriter implements Closeable {
+
+    private static final byte[] SIGNATURE = {(byte) 137, 'P', 'N', 'G', '\r', '\n', 26, '\n'};
+
+    private static final int COLOR_TYPE_RGB = 2;
+
+    private static final int FILTER_NONE = 0;
+    private static final int FILTER_SUB = 1;
+    private static final int FILTER_UP = 2;
+    private static final int FILTER_AVERAGE = 3;
+    private static final int FILTER_PAETH = 4;
+    private static final int FILTER_COUNT = 5;
+
+    /**
+     * 每个像素的字节数，过滤时与左边像素对应字节的距离
+     */
+    private static final int BYTES_PER_PIXEL = 3;
+
+    /**
+     * 每个IDAT块最多的压缩数据
+     */
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final OutputStream mOutput;
+    private final int mWidth;
+    private final int mHeight;
+    private final Deflater mDeflater;
+    private final CRC32 mCrc = new CRC32();
+
+    private byte[] mRow;
+    private byte[] mPreviousRow;
+    /**
+     * 每种过滤的结果，第一个字节是过滤类型
+     */
+    private final byte[][] mFiltered;
+    private final byte[] mChunk = new byte[CHUNK_SIZE];
+    private int mChunkLength;
+    private int mRowsWritten;
+    private long mBytesWritten;
+    private boolean mClosed;
+
+    /**
+     * @param level 压缩级别，0到9，见{@link Deflater}
+     */
+    public PngWriter(OutputStream output, int width, int height, int level) throws IOException {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("invalid size " + width + "x" + height);
+        }
+        mOutput = output;
+        mWidth = width;
+        mHeight = height;
+        mDeflater = new Deflater(level);
+        int rowBytes = width * BYTES_PER_PIXEL;
+        mRow = new byte[rowBytes];
+        mPreviousRow = new byte[rowBytes];
+        mFiltered = new byte[FILTER_COUNT][rowBytes + 1];
+
+        write(SIGNATURE, 0, SIGNATURE.length);
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = 8;
+        header[9] = COLOR_TYPE_RGB;
+        // 压缩方式、过滤方式、隔行都是0
+        writeChunk("IHDR", header, header.length);
+    }
+
+    public PngWriter(OutputStream output, int width, int height) throws IOException {
+        this(output, width, height, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * 写入下一行，忽略alpha
+     *
+     * @param argb   从offset开始的{@link #getWidth()}个像素
+     */
+    public void writeRow(int[] argb, int offset) throws IOException {
+        if (mRowsWritten >= mHeight) {
+            throw new IllegalStateException("all " + mHeight + " rows are already written");
+        }
+        byte[] row = mRow;
+        for (int i = 0, index = 0; i < mWidth; i++) {
+            int color = argb[offset + i];
+            row[index++] = (byte) (color >> 16);
+            row[index++] = (byte) (color >> 8);
+            row[index++] = (byte) color;
+        }
+        byte[] filtered = filter(row, mPreviousRow);
+        mDeflater.setInput(filtered, 0, filtered.length);
+        while (!mDeflater.needsInput()) {
+            deflate();
+        }
+        mRow = mPreviousRow;
+        mPreviousRow = row;
+        mRowsWritten++;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getRowsWritten() {
+        return mRowsWritten;
+    }
+
+    /**
+     * @return 已经写入输出流的字节数
+     */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * 写完剩下的压缩数据和IEND，并关闭输出流。必须已经写入所有行
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        try {
+            if (mRowsWritten != mHeight) {
+                throw new IllegalStateException("only " + mRowsWritten + " of " + mHeight + " rows written");
+            }
+            mDeflater.finish();
+            while (!mDeflater.finished()) {
+                deflate();
+            }
+            flushChunk();
+            writeChunk("IEND", mChunk, 0);
+        } finally {
+            mDeflater.end();
+            mOutput.close();
+        }
+    }
+
+    /**
+     * 选出绝对值和最小的过滤结果，把字节看作有符号数，接近0的值更容易压缩
+     */
+    private byte[] filter(byte[] row, byte[] previous) {
+        int length = row.length;
+        byte[] none = mFiltered[FILTER_NONE];
+        byte[] sub = mFiltered[FILTER_SUB];
+        byte[] up = mFiltered[FILTER_UP];
+        byte[] average = mFiltered[FILTER_AVERAGE];
+        byte[] paeth = mFiltered[FILTER_PAETH];
+        long[] sums = new long[FILTER_COUNT];
+        for (int i = 0; i < length; i++) {
+            int x = row[i] & 0xff;
+            int a = i >= BYTES_PER_PIXEL ? row[i - BYTES_PER_PIXEL] & 0xff : 0;
+            int b = previous[i] & 0xff;
+            int c = i >= BYTES_PER_PIXEL ? previous[i - BYTES_PER_PIXEL] & 0xff : 0;
+            byte value;
+            value = (byte) x;
+            none[i + 1] = value;
+            sums[FILTER_NONE] += Math.abs(value);
+            value = (byte) (x - a);
+            sub[i + 1] = value;
+            sums[FILTER_SUB] += Math.abs(value);
+            value = (byte) (x - b);
+            up[i + 1] = value;
+            sums[FILTER_UP] += Math.abs(value);
+            value = (byte) (x - ((a + b) >> 1));
+            average[i + 1] = value;
+            sums[FILTER_AVERAGE] += Math.abs(value);
+            value = (byte) (x - paethPredictor(a, b, c));
+            paeth[i + 1] = value;
+            sums[FILTER_PAETH] += Math.abs(value);
+        }
+        int best = FILTER_NONE;
+        for (int type = 1; type < FILTER_COUNT; type++) {
+            if (sums[type] < sums[best]) {
+                best = type;
+            }
+        }
+        byte[] result = mFiltered[best];
+        result[0] = (byte) best;
+        return result;
+    }
+
+    static int paethPredictor(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) {
+            return a;
+        }
+        return pb <= pc ? b : c;
+    }
+
+    private void deflate() throws IOException {
+        int length = mDeflater.deflate(mChunk, mChunkLength, CHUNK_SIZE - mChunkLength);
+        mChunkLength += length;
+        if (mChunkLength == CHUNK_SIZE) {
+            flushChunk();
+        }
+    }
+
+    private void flushChunk() throws IOException {
+        if (mChunkLength > 0) {
+            writeChunk("IDAT", mChunk, mChunkLength);
+            mChunkLength = 0;
+        }
+    }
+
+    private void writeChunk(String type, byte[] data, int length) throws IOException {
+        byte[] buffer = new byte[8];
+        putInt(buffer, 0, length);
+        for (int i = 0; i < 4; i++) {
+            buffer[4 + i] = (byte) type.charAt(i);
+        }
+        write(buffer, 0, 8);
+        write(data, 0, length);
+        mCrc.reset();
+        mCrc.update(buffer, 4, 4);
+        mCrc.update(data, 0, length);
+        putInt(buffer, 0, (int) mCrc.getValue());
+        write(buffer, 0, 4);
+    }
+
+    private void write(byte[] data, int offset, int length) throws IOException {
+        mOutput.write(data, offset, length);
+        mBytesWritten += length;
+    }
+
+    private static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+}
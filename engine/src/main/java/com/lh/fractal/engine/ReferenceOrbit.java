@@ -0,0 +1,84 @@
+package com.lh.fractal.engine;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+
+/**
+ * 用任意精度计算的参考轨道，保存为double供{@link PerturbationKernel}计算每个像素相对它的偏差
+ */
+
+public final class ReferenceOrbit {
+
+    private static final BigDecimal TWO = BigDecimal.valueOf(2);
+    private static final double ESCAPE_RADIUS_SQUARED = 16.0;
+    /**
+     * 参考点所在的像素
+     */
+    public final int i;
+    public final int j;
+    /**
+     * Z(0)到Z(length - 1)，参考点发散时最后一项已经在逃逸半径之外
+     */
+    public final double[] re;
+    public final double[] im;
+    public final int length;
+
+    private ReferenceOrbit(int i, int j, double[] re, double[] im, int length) {
+        this.i = i;
+        this.j = j;
+        this.re = re;
+        this.im = im;
+        this.length = length;
+    }
+
+    /**
+     * @return 同一条轨道，参考点位于另一个画面的像素(i, j)，共用轨道数据
+     */
+    ReferenceOrbit at(int i, int j) {
+        return new ReferenceOrbit(i, j, re, im, length);
+    }
+
+    /**
+     * Z(n+1) = Z(n)^2 + c
+     *
+     * @param i   参考点所在的像素列
+     * @param j   参考点所在的像素行
+     * @param zr  Z(0)的实部
+     * @param zi  Z(0)的虚部
+     * @param cr  c的实部
+     * @param ci  c的虚部
+     * @param max 最大迭代次数
+     */
+    public static ReferenceOrbit compute(int i, int j, BigDecimal zr, BigDecimal zi, BigDecimal cr, BigDecimal ci,
+                                         int max, MathContext mc) {
+        return compute(i, j, zr, zi, cr, ci, max, mc, null);
+    }
+
+    /**
+     * @param owner 不为null时每次迭代检查它是否已经取消，取消后返回已经计算的部分
+     */
+    public static ReferenceOrbit compute(int i, int j, BigDecimal zr, BigDecimal zi, BigDecimal cr, BigDecimal ci,
+                                         int max, MathContext mc, FractalKernel owner) {
+        double[] re = new double[max + 1];
+        double[] im = new double[max + 1];
+        int n = 0;
+        for (; ; ) {
+            double r = zr.doubleValue();
+            double m = zi.doubleValue();
+            re[n] = r;
+            im[n] = m;
+            n++;
+            if (n > max || r * r + m * m > ESCAPE_RADIUS_SQUARED) {
+                break;
+            }
+            // 任意精度的一次迭代要几微秒，每次都检查取消，相比之下读volatile的代价可以忽略
+            if (owner != null && owner.isCancelled()) {
+                break;
+            }
+            BigDecimal temp = zr.multiply(zr, mc).subtract(zi.multiply(zi, mc), mc).add(cr, mc);
+            zi = TWO.multiply(zr, mc).multiply(zi, mc).add(ci, mc);
+            zr = temp;
+        }
+        return new ReferenceOrbit(i, j, re, im, n);
+    }
+}
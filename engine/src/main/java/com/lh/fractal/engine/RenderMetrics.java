@@ -0,0 +1,514 @@
+package com.lh.fractal.engine;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 一次渲染的统计：总耗时、第一个像素和第一幅完整画面的时间、迭代次数、每个分块的耗时分布、
+ * 各工作线程的利用率、分块金字塔的缓存命中和被取消的分块数。
+ * <p>
+ * 工作线程每完成一个分块只更新几个原子变量，不加锁；读取时由{@link #snapshot()}汇总成不可变的{@link Snapshot}，
+ * 各项之间可能相差正在完成的几个分块。设置了监听器时按固定间隔推送，渲染完成或取消时一定推送最后一次
+ */
+
+public class RenderMetrics {
+
+    /**
+     * 监听器默认的最小推送间隔
+     */
+    public static final long DEFAULT_INTERVAL_NANOS = 100000000;
+
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_RUNNING = 1;
+    private static final int STATE_COMPLETE = 2;
+    private static final int STATE_CANCELLED = 3;
+
+    /**
+     * 分块耗时的直方图，每个2的幂次再等分为4档，误差不超过25%
+     */
+    private static final int SUB_BUCKETS = 4;
+    private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+    private final AtomicInteger mState = new AtomicInteger(STATE_IDLE);
+    private volatile long mStartTime;
+    private volatile long mEndTime;
+    private final AtomicLong mFirstPixelTime = new AtomicLong();
+    private final AtomicLong mFirstFrameTime = new AtomicLong();
+
+    private final AtomicInteger mTiles = new AtomicInteger();
+    private final AtomicInteger mCancelledTiles = new AtomicInteger();
+    private final AtomicLong mTilePixels = new AtomicLong();
+    private final AtomicLong mMirroredPixels = new AtomicLong();
+    private final AtomicLong mIterations = new AtomicLong();
+    private final AtomicLong mTileTime = new AtomicLong();
+    private final AtomicLong mMaxTileTime = new AtomicLong();
+    private final AtomicIntegerArray mHistogram = new AtomicIntegerArray(BUCKETS);
+
+    /**
+     * 开始时各项累计值的基准，渲染中第一次使用线程池或金字塔时记下
+     */
+    private final AtomicReference<SchedulerBase> mScheduler = new AtomicReference<>();
+    private final AtomicReference<PyramidBase> mPyramid = new AtomicReference<>();
+
+    private volatile OnMetricsListener mListener;
+    private volatile long mInterval = DEFAULT_INTERVAL_NANOS;
+    private final AtomicLong mLastPublishTime = new AtomicLong();
+    /**
+     * 推送按顺序进行，结束的状态在加锁前已经设置，之后的推送都会被跳过
+     */
+    private final Object mPublishLock = new Object();
+
+    /**
+     * @param listener 在工作线程或调用{@link TileRenderer#cancel()}的线程回调，为null时不再推送
+     * @param interval 两次推送的最小纳秒数，最后一次不受限制
+     */
+    public void setOnMetricsListener(OnMetricsListener listener, long interval) {
+        mInterval = interval;
+        mListener = listener;
+    }
+
+    /**
+     * 开始新的一次渲染，上一次还没有结束时按取消推送
+     */
+    void begin() {
+        cancel();
+        mTiles.set(0);
+        mCancelledTiles.set(0);
+        mTilePixels.set(0);
+        mMirroredPixels.set(0);
+        mIterations.set(0);
+        mTileTime.set(0);
+        mMaxTileTime.set(0);
+        for (int i = 0; i < BUCKETS; i++) {
+            mHistogram.set(i, 0);
+        }
+        mFirstPixelTime.set(0);
+        mFirstFrameTime.set(0);
+        mScheduler.set(null);
+        mPyramid.set(null);
+        mEndTime = 0;
+        mStartTime = System.nanoTime();
+        mLastPublishTime.set(mStartTime);
+        mState.set(STATE_RUNNING);
+    }
+
+    /**
+     * 本次渲染使用的线程池，只有第一次调用有效
+     */
+    void attach(TileScheduler scheduler) {
+        if (mScheduler.get() == null) {
+            mScheduler.compareAndSet(null, new SchedulerBase(scheduler));
+        }
+    }
+
+    /**
+     * 本次渲染使用的分块金字塔，只有第一次调用有效
+     */
+    void attach(TilePyramid pyramid) {
+        if (mPyramid.get() == null) {
+            mPyramid.compareAndSet(null, new PyramidBase(pyramid));
+        }
+    }
+
+    /**
+     * 在工作线程记录一个完成的分块，渐进渲染的每一遍分别记录
+     */
+    void recordTile(Tile tile, long nanos, long iterations) {
+        long now = System.nanoTime();
+        mFirstPixelTime.compareAndSet(0, now);
+        mTiles.incrementAndGet();
+        mTilePixels.addAndGet(tile.width() * tile.height());
+        mIterations.addAndGet(iterations);
+        mTileTime.addAndGet(nanos);
+        long max;
+        do {
+            max = mMaxTileTime.get();
+        } while (nanos > max && !mMaxTileTime.compareAndSet(max, nanos));
+        mHistogram.incrementAndGet(bucketOf(nanos));
+        publish(now, false);
+    }
+
+    /**
+     * 记录由对称的分块直接复制、没有迭代的区域，计入{@link Snapshot#getTilePixels()}
+     */
+    void recordMirrored(Tile tile) {
+        int pixels = tile.width() * tile.height();
+        mTilePixels.addAndGet(pixels);
+        mMirroredPixels.addAndGet(pixels);
+    }
+
+    /**
+     * 记录一个因为渲染被取消而没有完成或被丢弃的分块
+     */
+    void recordCancelled() {
+        mCancelledTiles.incrementAndGet();
+    }
+
+    /**
+     * 整个画面第一次全部填满，渐进渲染时是最粗的一遍完成
+     */
+    void firstFrame() {
+        mFirstFrameTime.compareAndSet(0, System.nanoTime());
+    }
+
+    void complete() {
+        finish(STATE_COMPLETE);
+    }
+
+    void cancel() {
+        finish(STATE_CANCELLED);
+    }
+
+    private void finish(int state) {
+        if (mState.compareAndSet(STATE_RUNNING, state)) {
+            mEndTime = System.nanoTime();
+            publish(mEndTime, true);
+        }
+    }
+
+    private void publish(long now, boolean force) {
+        OnMetricsListener listener = mListener;
+        if (listener == null) {
+            return;
+        }
+        long last = mLastPublishTime.get();
+        // 多个线程同时到达时只有一个推送
+        if (force || (now - last >= mInterval && mLastPublishTime.compareAndSet(last, now))) {
+            synchronized (mPublishLock) {
+                // 结束后与取消同时完成的分块不再推送，结束时的那一次总是最后一次
+                if (force || mState.get() == STATE_RUNNING) {
+                    listener.onMetrics(snapshot());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return 当前的统计，可以在任意线程调用
+     */
+    public Snapshot snapshot() {
+        long now = System.nanoTime();
+        int state = mState.get();
+        long start = mStartTime;
+        long end = mEndTime;
+        long wall = state == STATE_IDLE ? 0 : (end != 0 ? end : now) - start;
+        long firstPixel = mFirstPixelTime.get();
+        long firstFrame = mFirstFrameTime.get();
+        int[] histogram = new int[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            histogram[i] = mHistogram.get(i);
+        }
+        float[] utilization;
+        SchedulerBase scheduler = mScheduler.get();
+        if (scheduler == null) {
+            utilization = new float[0];
+        } else {
+            utilization = new float[scheduler.busy.length];
+            for (int i = 0; i < utilization.length; i++) {
+                long busy = scheduler.scheduler.getBusyTime(i) - scheduler.busy[i];
+                // 线程池的统计可能在渲染中途被清零
+                utilization[i] = wall <= 0 || busy < 0 ? 0 : Math.min(1f, (float) busy / wall);
+            }
+        }
+        long memoryHits = 0;
+        long diskHits = 0;
+        long computed = 0;
+        PyramidBase pyramid = mPyramid.get();
+        if (pyramid != null) {
+            memoryHits = pyramid.pyramid.getMemoryHitCount() - pyramid.memoryHits;
+            diskHits = pyramid.pyramid.getDiskHitCount() - pyramid.diskHits;
+            computed = pyramid.pyramid.getComputeCount() - pyramid.computed;
+        }
+        return new Snapshot(state == STATE_COMPLETE, state == STATE_CANCELLED, wall,
+                firstPixel == 0 ? -1 : firstPixel - start, firstFrame == 0 ? -1 : firstFrame - start,
+                mIterations.get(), mTiles.get(), mTilePixels.get(), mMirroredPixels.get(), mTileTime.get(),
+                mMaxTileTime.get(), histogram, mCancelledTiles.get(), utilization, memoryHits, diskHits, computed);
+    }
+
+    static int bucketOf(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) Math.max(0, nanos);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int) (nanos >>> (exponent - 2)) & (SUB_BUCKETS - 1);
+        return (exponent - 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return 第bucket档的最大值
+     */
+    static long bucketLimit(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + 1;
+        long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - 2);
+        return lower + (1L << (exponent - 2)) - 1;
+    }
+
+    private static final class SchedulerBase {
+
+        final TileScheduler scheduler;
+        final long[] busy;
+
+        SchedulerBase(TileScheduler scheduler) {
+            this.scheduler = scheduler;
+            busy = new long[scheduler.getParallelism()];
+            for (int i = 0; i < busy.length; i++) {
+                busy[i] = scheduler.getBusyTime(i);
+            }
+        }
+    }
+
+    private static final class PyramidBase {
+
+        final TilePyramid pyramid;
+        final long memoryHits;
+        final long diskHits;
+        final long computed;
+
+        PyramidBase(TilePyramid pyramid) {
+            this.pyramid = pyramid;
+            memoryHits = pyramid.getMemoryHitCount();
+            diskHits = pyramid.getDiskHitCount();
+            computed = pyramid.getComputeCount();
+        }
+    }
+
+    /**
+     * 某一时刻的统计，创建后不再改变。时间都是纳秒
+     */
+    public static final class Snapshot {
+
+        private final boolean mComplete;
+        private final boolean mCancelled;
+        private final long mWallTime;
+        private final long mTimeToFirstPixel;
+        private final long mTimeToFirstFrame;
+        private final long mIterations;
+        private final int mTiles;
+        private final long mTilePixels;
+        private final long mMirroredPixels;
+        private final long mTileTime;
+        private final long mMaxTileTime;
+        private final int[] mHistogram;
+        private final int mCancelledTiles;
+        private final float[] mUtilization;
+        private final long mMemoryHits;
+        private final long mDiskHits;
+        private final long mCacheMisses;
+
+        Snapshot(boolean complete, boolean cancelled, long wallTime, long timeToFirstPixel, long timeToFirstFrame,
+                 long iterations, int tiles, long tilePixels, long mirroredPixels, long tileTime, long maxTileTime,
+                 int[] histogram, int cancelledTiles, float[] utilization, long memoryHits, long diskHits, long cacheMisses) {
+            mComplete = complete;
+            mCancelled = cancelled;
+            mWallTime = wallTime;
+            mTimeToFirstPixel = timeToFirstPixel;
+            mTimeToFirstFrame = timeToFirstFrame;
+            mIterations = iterations;
+            mTiles = tiles;
+            mTilePixels = tilePixels;
+            mMirroredPixels = mirroredPixels;
+            mTileTime = tileTime;
+            mMaxTileTime = maxTileTime;
+            mHistogram = histogram;
+            mCancelledTiles = cancelledTiles;
+            mUtilization = utilization;
+            mMemoryHits = memoryHits;
+            mDiskHits = diskHits;
+            mCacheMisses = cacheMisses;
+        }
+
+        public boolean isComplete() {
+            return mComplete;
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        /**
+         * @return 从开始到完成或取消，尚未结束时到创建快照为止
+         */
+        public long getWallTime() {
+            return mWallTime;
+        }
+
+        /**
+         * @return 从开始到第一个分块完成，还没有分块完成时返回-1
+         */
+        public long getTimeToFirstPixel() {
+            return mTimeToFirstPixel;
+        }
+
+        /**
+         * @return 从开始到整个画面第一次全部填满，尚未填满时返回-1
+         */
+        public long getTimeToFirstFrame() {
+            return mTimeToFirstFrame;
+        }
+
+        public long getIterations() {
+            return mIterations;
+        }
+
+        public double getIterationsPerSecond() {
+            return mWallTime <= 0 ? 0 : mIterations * 1e9 / mWallTime;
+        }
+
+        /**
+         * @return 完成的分块数，渐进渲染的每一遍分别计数
+         */
+        public int getTiles() {
+            return mTiles;
+        }
+
+        /**
+         * @return 完成的分块和由它们镜像得到的区域的总面积，渐进渲染时是画面面积的几倍
+         */
+        public long getTilePixels() {
+            return mTilePixels;
+        }
+
+        /**
+         * @return {@link #getTilePixels()}中由对称性直接复制的部分，见{@link Symmetry}
+         */
+        public long getMirroredPixels() {
+            return mMirroredPixels;
+        }
+
+        /**
+         * @return 所有分块耗时之和，除以{@link #getWallTime()}约等于平均并行度
+         */
+        public long getTotalTileTime() {
+            return mTileTime;
+        }
+
+        public long getMeanTileTime() {
+            return mTiles == 0 ? 0 : mTileTime / mTiles;
+        }
+
+        public long getMaxTileTime() {
+            return mMaxTileTime;
+        }
+
+        /**
+         * @param percentile 0到100
+         * @return 不超过该比例分块的耗时上界，误差不超过25%；没有分块时返回-1
+         */
+        public long getTileTimePercentile(double percentile) {
+            if (mTiles == 0) {
+                return -1;
+            }
+            long total = 0;
+            for (int count : mHistogram) {
+                total += count;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+            long seen = 0;
+            for (int bucket = 0; bucket < mHistogram.length; bucket++) {
+                seen += mHistogram[bucket];
+                if (seen >= rank) {
+                    return Math.min(bucketLimit(bucket), mMaxTileTime);
+                }
+            }
+            return mMaxTileTime;
+        }
+
+        /**
+         * @return 因为渲染被取消而没有完成或被丢弃的分块数
+         */
+        public int getCancelledTiles() {
+            return mCancelledTiles;
+        }
+
+        /**
+         * @return 线程池的线程数，没有使用{@link TileScheduler}时为0
+         */
+        public int getWorkerCount() {
+            return mUtilization.length;
+        }
+
+        /**
+         * @return 工作线程worker执行任务的时间占{@link #getWallTime()}的比例，包括同一线程池中的其他任务
+         */
+        public float getWorkerUtilization(int worker) {
+            return mUtilization[worker];
+        }
+
+        /**
+         * @return 所有工作线程利用率的平均值
+         */
+        public float getUtilization() {
+            if (mUtilization.length == 0) {
+                return 0;
+            }
+            float sum = 0;
+            for (float value : mUtilization) {
+                sum += value;
+            }
+            return sum / mUtilization.length;
+        }
+
+        /**
+         * @return 从内存缓存和磁盘取得的金字塔分块数
+         */
+        public long getCacheHits() {
+            return mMemoryHits + mDiskHits;
+        }
+
+        public long getDiskHits() {
+            return mDiskHits;
+        }
+
+        /**
+         * @return 重新计算的金字塔分块数
+         */
+        public long getCacheMisses() {
+            return mCacheMisses;
+        }
+
+        /**
+         * @return 金字塔分块的命中率，没有使用分块金字塔时返回-1
+         */
+        public float getCacheHitRate() {
+            long lookups = getCacheHits() + mCacheMisses;
+            return lookups == 0 ? -1 : (float) getCacheHits() / lookups;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder(String.format(Locale.US,
+                    "metrics(%s): %.1fms, first pixel %.1fms, first frame %.1fms, %d iterations (%.1fM/s), "
+                            + "%d tiles p50 %.2fms p99 %.2fms max %.2fms, %.0f%% mirrored, %d cancelled",
+                    mComplete ? "complete" : mCancelled ? "cancelled" : "running", mWallTime / 1e6,
+                    mTimeToFirstPixel / 1e6, mTimeToFirstFrame / 1e6, mIterations, getIterationsPerSecond() / 1e6,
+                    mTiles, getTileTimePercentile(50) / 1e6, getTileTimePercentile(99) / 1e6,
+                    mMaxTileTime / 1e6, mTilePixels == 0 ? 0 : 100.0 * mMirroredPixels / mTilePixels,
+                    mCancelledTiles));
+            if (mUtilization.length > 0) {
+                builder.append(", utilization");
+                for (float value : mUtilization) {
+                    builder.append(String.format(Locale.US, " %.0f%%", value * 100));
+                }
+            }
+            if (getCacheHitRate() >= 0) {
+                builder.append(String.format(Locale.US, ", cache hits %d (%d from disk) misses %d",
+                        getCacheHits(), mDiskHits, mCacheMisses));
+            }
+            return builder.toString();
+        }
+    }
+
+    public interface OnMetricsListener {
+        /**
+         * 相邻两次至少间隔设置的时间，同一次渲染的最后一个快照{@link Snapshot#isComplete()}或
+         * {@link Snapshot#isCancelled()}为true
+         */
+        void onMetrics(Snapshot snapshot);
+    }
+}
@@ -0,0 +1,122 @@
+package com.lh.fractal.engine;
+
+import java.math.BigDecimal;
+
+/**
+ * 固定的参考画面，基准测试、回归测试和命令行渲染都按名字引用，保证比较的是同一幅图
+ */
+
+public final class Scene {
+
+    /**
+     * 应用默认显示的Julia集，c = 0.285 + 0.01i
+     */
+    public static final Scene JULIA = new Scene("julia", FractalKernel.MODE_JULIA, 0.285, 0.01,
+            "0", "0", 5);
+    /**
+     * 完整的Mandelbrot集，大片内部由心形线判断直接跳过
+     */
+    public static final Scene MANDELBROT = new Scene("mandelbrot", FractalKernel.MODE_MANDELBROT, 0, 0,
+            "-0.75", "0", 3.5);
+    /**
+     * 海马谷，边界细节多，大部分像素的迭代次数接近上限
+     */
+    public static final Scene SEAHORSE = new Scene("seahorse", FractalKernel.MODE_MANDELBROT, 0, 0,
+            "-0.745", "0.11", 0.02);
+    /**
+     * Misiurewicz点c = i附近放大到1e-40，需要微扰计算，在任何深度都有螺旋结构
+     */
+    public static final Scene DEEP = new Scene("deep", FractalKernel.MODE_MANDELBROT, 0, 0,
+            "0", "1", 4e-40);
+
+    private static final Scene[] VALUES = {JULIA, MANDELBROT, SEAHORSE, DEEP};
+
+    private final String mName;
+    private final int mMode;
+    private final double mRe;
+    private final double mIm;
+    private final BigDecimal mCenterX;
+    private final BigDecimal mCenterY;
+    private final double mViewWidth;
+
+    /**
+     * @param viewWidth 画面的实部宽度
+     */
+    private Scene(String name, int mode, double re, double im, String centerX, String centerY, double viewWidth) {
+        mName = name;
+        mMode = mode;
+        mRe = re;
+        mIm = im;
+        mCenterX = new BigDecimal(centerX);
+        mCenterY = new BigDecimal(centerY);
+        mViewWidth = viewWidth;
+    }
+
+    public static Scene[] values() {
+        return VALUES.clone();
+    }
+
+    /**
+     * @throws IllegalArgumentException 没有这个名字的画面
+     */
+    public static Scene forName(String name) {
+        for (Scene scene : VALUES) {
+            if (scene.mName.equals(name)) {
+                return scene;
+            }
+        }
+        throw new IllegalArgumentException("unknown scene " + name);
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int getMode() {
+        return mMode;
+    }
+
+    public double getRe() {
+        return mRe;
+    }
+
+    public double getIm() {
+        return mIm;
+    }
+
+    public BigDecimal getCenterX() {
+        return mCenterX;
+    }
+
+    public BigDecimal getCenterY() {
+        return mCenterY;
+    }
+
+    /**
+     * @return 画面的实部宽度
+     */
+    public double getViewWidth() {
+        return mViewWidth;
+    }
+
+    /**
+     * @return 以width x height像素显示这个画面的坐标范围，宽度固定，高度按像素比例
+     */
+    public Viewport viewport(int width, int height) {
+        Viewport viewport = new Viewport(width, height);
+        viewport.set(mCenterX, mCenterY, mViewWidth / width);
+        return viewport;
+    }
+
+    /**
+     * 以画面需要的精度创建内核
+     */
+    public FractalKernel createKernel(int width, int height, int iterateTimes, ColorMapper colorMapper) {
+        return Precision.createKernel(mMode, mRe, mIm, viewport(width, height), iterateTimes, colorMapper);
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+}
@@ -0,0 +1,228 @@
+package com.lh.fractal.engine;
+
+/**
+ * 参考轨道附近所有像素在前N次迭代中的偏差都可以用关于初始偏差x的三次多项式近似
+ * <pre>
+ * δ(n) ≈ A(n)x + B(n)x^2 + C(n)x^3
+ * A(n+1) = 2Z(n)A(n) + 1 (Mandelbrot，x = δc) 或 2Z(n)A(n) (Julia，x = δ(0))
+ * B(n+1) = 2Z(n)B(n) + A(n)^2
+ * C(n+1) = 2Z(n)C(n) + 2A(n)B(n)
+ * </pre>
+ * 系数只和参考轨道有关，计算一次就能让整个画面的像素直接从第N次迭代开始。
+ * N按误差估计自动选择：截断项|C|r^3相对一次项|A|r足够小，并且整个画面的偏差仍远小于|Z|(不会发散或glitch)，
+ * r为画面中离参考点最远的像素的距离；最后用画面四角的像素逐次迭代验证，不一致时减小N。
+ * <p>
+ * 深度缩放时|A|、|B|、|C|分别按r^-1、r^-2、r^-3增长，r约为1e-100时C会上溢，r^3会下溢。
+ * 因此保存按r缩放的系数a = Ar、b = Br^2、c = Cr^3，多项式的变量改为u = x / r(|u| <= 1)：
+ * <pre>
+ * δ(n) ≈ a(n)u + b(n)u^2 + c(n)u^3
+ * a(n+1) = 2Z(n)a(n) + r (Mandelbrot) 或 2Z(n)a(n) (Julia，a(0) = r)
+ * b(n+1) = 2Z(n)b(n) + a(n)^2
+ * c(n+1) = 2Z(n)c(n) + 2a(n)b(n)
+ * </pre>
+ * 缩放后的系数与偏差本身同一量级，只要偏差在double范围内就不会溢出
+ */
+
+public final class SeriesApproximation {
+
+    /**
+     * |c| = |C|r^3 <= TRUNCATION_TOLERANCE * |A|r
+     */
+    private static final double TRUNCATION_TOLERANCE = 1e-12;
+    /**
+     * |a| + |b| + |c| <= DELTA_TOLERANCE * |Z|
+     */
+    private static final double DELTA_TOLERANCE = 1e-3;
+    /**
+     * 验证像素的近似值与逐次迭代结果的相对误差上限
+     */
+    private static final double PROBE_TOLERANCE = 1e-6;
+
+    /**
+     * 不跳过任何迭代
+     */
+    public static final SeriesApproximation NONE = new SeriesApproximation(0, 1, 0, 0, 0, 0, 0, 0);
+
+    /**
+     * 可以跳过的迭代次数
+     */
+    public final int skip;
+
+    /**
+     * 系数缩放用的半径r
+     */
+    private final double mRadius;
+    /**
+     * 按r缩放的系数，见类的说明
+     */
+    private final double mAR;
+    private final double mAI;
+    private final double mBR;
+    private final double mBI;
+    private final double mCR;
+    private final double mCI;
+
+    private SeriesApproximation(int skip, double radius, double aR, double aI, double bR, double bI, double cR,
+                                double cI) {
+        this.skip = skip;
+        mRadius = radius;
+        mAR = aR;
+        mAI = aI;
+        mBR = bR;
+        mBI = bI;
+        mCR = cR;
+        mCI = cI;
+    }
+
+    /**
+     * @return 初始偏差为(xr, xi)的像素在第{@link #skip}次迭代时偏差的实部
+     */
+    public double getDeltaR(double xr, double xi) {
+        xr /= mRadius;
+        xi /= mRadius;
+        double x2r = xr * xr - xi * xi;
+        double x2i = 2 * xr * xi;
+        double x3r = x2r * xr - x2i * xi;
+        double x3i = x2r * xi + x2i * xr;
+        return mAR * xr - mAI * xi + mBR * x2r - mBI * x2i + mCR * x3r - mCI * x3i;
+    }
+
+    /**
+     * @return 初始偏差为(xr, xi)的像素在第{@link #skip}次迭代时偏差的虚部
+     */
+    public double getDeltaI(double xr, double xi) {
+        xr /= mRadius;
+        xi /= mRadius;
+        double x2r = xr * xr - xi * xi;
+        double x2i = 2 * xr * xi;
+        double x3r = x2r * xr - x2i * xi;
+        double x3i = x2r * xi + x2i * xr;
+        return mAR * xi + mAI * xr + mBR * x2i + mBI * x2r + mCR * x3i + mCI * x3r;
+    }
+
+    /**
+     * @param orbit  参考轨道
+     * @param julia  是否为Julia集，此时x为δ(0)，否则x为δc
+     * @param probeR 用于验证的像素相对参考点的初始偏差，同时决定误差估计用的半径r
+     * @param probeI 同上，虚部
+     * @param max    最大迭代次数
+     */
+    public static SeriesApproximation compute(ReferenceOrbit orbit, boolean julia,
+                                              double[] probeR, double[] probeI, int max) {
+        double radius = 0;
+        for (int p = 0; p < probeR.length; p++) {
+            radius = Math.max(radius, Math.hypot(probeR[p], probeI[p]));
+        }
+        if (!(radius > 0)) {
+            return NONE;
+        }
+        int skip = estimateSkip(orbit, julia, radius, max);
+        while (skip > 0) {
+            SeriesApproximation series = coefficients(orbit, julia, radius, skip);
+            if (series.verify(orbit, julia, probeR, probeI)) {
+                return series;
+            }
+            skip /= 2;
+        }
+        return NONE;
+    }
+
+    /**
+     * 按误差估计找到最大的N
+     */
+    private static int estimateSkip(ReferenceOrbit orbit, boolean julia, double r, int max) {
+        final double[] zR = orbit.re;
+        final double[] zI = orbit.im;
+        final int last = Math.min(orbit.length - 1, max);
+        double aR = julia ? r : 0;
+        double aI = 0;
+        double bR = 0;
+        double bI = 0;
+        double cR = 0;
+        double cI = 0;
+        int skip = 0;
+        for (int n = 0; n < last; n++) {
+            double zr = zR[n];
+            double zi = zI[n];
+            double tempR = 2 * (zr * aR - zi * aI) + (julia ? 0 : r);
+            double tempI = 2 * (zr * aI + zi * aR);
+            double nextBR = 2 * (zr * bR - zi * bI) + aR * aR - aI * aI;
+            double nextBI = 2 * (zr * bI + zi * bR) + 2 * aR * aI;
+            double nextCR = 2 * (zr * cR - zi * cI) + 2 * (aR * bR - aI * bI);
+            double nextCI = 2 * (zr * cI + zi * cR) + 2 * (aR * bI + aI * bR);
+            aR = tempR;
+            aI = tempI;
+            bR = nextBR;
+            bI = nextBI;
+            cR = nextCR;
+            cI = nextCI;
+
+            double a = Math.hypot(aR, aI);
+            double c = Math.hypot(cR, cI);
+            double delta = a + Math.hypot(bR, bI) + c;
+            double z = Math.hypot(zR[n + 1], zI[n + 1]);
+            if (c > TRUNCATION_TOLERANCE * a || delta > DELTA_TOLERANCE * z || Double.isNaN(delta)) {
+                break;
+            }
+            skip = n + 1;
+        }
+        return skip;
+    }
+
+    private static SeriesApproximation coefficients(ReferenceOrbit orbit, boolean julia, double r, int skip) {
+        final double[] zR = orbit.re;
+        final double[] zI = orbit.im;
+        double aR = julia ? r : 0;
+        double aI = 0;
+        double bR = 0;
+        double bI = 0;
+        double cR = 0;
+        double cI = 0;
+        for (int n = 0; n < skip; n++) {
+            double zr = zR[n];
+            double zi = zI[n];
+            double tempR = 2 * (zr * aR - zi * aI) + (julia ? 0 : r);
+            double tempI = 2 * (zr * aI + zi * aR);
+            double nextBR = 2 * (zr * bR - zi * bI) + aR * aR - aI * aI;
+            double nextBI = 2 * (zr * bI + zi * bR) + 2 * aR * aI;
+            double nextCR = 2 * (zr * cR - zi * cI) + 2 * (aR * bR - aI * bI);
+            double nextCI = 2 * (zr * cI + zi * cR) + 2 * (aR * bI + aI * bR);
+            aR = tempR;
+            aI = tempI;
+            bR = nextBR;
+            bI = nextBI;
+            cR = nextCR;
+            cI = nextCI;
+        }
+        return new SeriesApproximation(skip, r, aR, aI, bR, bI, cR, cI);
+    }
+
+    /**
+     * 逐次迭代验证像素的偏差，与近似值比较
+     */
+    private boolean verify(ReferenceOrbit orbit, boolean julia, double[] probeR, double[] probeI) {
+        final double[] zR = orbit.re;
+        final double[] zI = orbit.im;
+        for (int p = 0; p < probeR.length; p++) {
+            double xr = probeR[p];
+            double xi = probeI[p];
+            double dr = julia ? xr : 0;
+            double di = julia ? xi : 0;
+            double dcr = julia ? 0 : xr;
+            double dci = julia ? 0 : xi;
+            for (int n = 0; n < skip; n++) {
+                double zr = zR[n];
+                double zi = zI[n];
+                double temp = 2 * (zr * dr - zi * di) + dr * dr - di * di + dcr;
+                di = 2 * (zr * di + zi * dr) + 2 * dr * di + dci;
+                dr = temp;
+            }
+            double errorR = getDeltaR(xr, xi) - dr;
+            double errorI = getDeltaI(xr, xi) - di;
+            if (!(Math.hypot(errorR, errorI) <= PROBE_TOLERANCE * Math.hypot(dr, di))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
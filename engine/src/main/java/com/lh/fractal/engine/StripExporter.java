@@ -0,0 +1,352 @@
+package com.lh.fractal.engine;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.Deflater;
+
+/**
+ * 不经过屏幕，把任意大的画面按水平条带渲染并直接写成PNG。
+ * 同一时间只有两个条带的缓冲：工作线程计算下一个条带时，调用线程给当前条带编码，
+ * 内存占用只与宽度和条带高度有关，32k x 32k的画面也不需要整幅图的缓冲。
+ * 内核本身只保存每一列和每一行的坐标，所有条带共用一个内核
+ */
+
+public class StripExporter {
+
+    public static final int DEFAULT_STRIP_HEIGHT = 64;
+
+    /**
+     * 条带按该宽度切成列，分给各个工作线程
+     */
+    private static final int TILE_WIDTH = 256;
+
+    /**
+     * 直方图着色时先在整幅画面上均匀采样这么多个点估计直方图
+     */
+    private static final int PREVIEW_SAMPLES = 512 * 512;
+
+    private final TileScheduler mScheduler;
+    private int mStripHeight = DEFAULT_STRIP_HEIGHT;
+    private boolean mSubdivision = true;
+    private Coloring mColoring;
+    private int mCompressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private OnProgressListener mListener;
+
+    private volatile FractalKernel mKernel;
+    /**
+     * 本次导出是否细分
+     */
+    private volatile boolean mSubdivide;
+    private final AtomicLong mIterations = new AtomicLong();
+    private long mElapsedTime;
+    private long mEncodeTime;
+    private long mBytesWritten;
+
+    /**
+     * @param scheduler 计算条带的线程池，由调用者关闭
+     */
+    public StripExporter(TileScheduler scheduler) {
+        mScheduler = scheduler;
+    }
+
+    /**
+     * @param height 每个条带的行数，越高并行的分块越多，内存占用也越大
+     */
+    public void setStripHeight(int height) {
+        if (height < 1) {
+            throw new IllegalArgumentException("strip height must be positive: " + height);
+        }
+        mStripHeight = height;
+    }
+
+    public int getStripHeight() {
+        return mStripHeight;
+    }
+
+    /**
+     * 是否用矩形细分计算每个分块，默认开启。内核的公式不适合细分时(见{@link Formula#isSubdivisionSafe})不细分
+     */
+    public void setSubdivision(boolean subdivision) {
+        mSubdivision = subdivision;
+    }
+
+    /**
+     * @param coloring 为null时用内核的{@link ColorMapper}按迭代次数着色
+     */
+    public void setColoring(Coloring coloring) {
+        mColoring = coloring;
+    }
+
+    /**
+     * @param level 0到9，见{@link Deflater}
+     */
+    public void setCompressionLevel(int level) {
+        mCompressionLevel = level;
+    }
+
+    public void setOnProgressListener(OnProgressListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @return 上次导出实际执行的迭代次数
+     */
+    public long getIterations() {
+        return mIterations.get();
+    }
+
+    /**
+     * @return 上次导出的总纳秒数
+     */
+    public long getElapsedTime() {
+        return mElapsedTime;
+    }
+
+    /**
+     * @return 上次导出中调用线程着色以外用于PNG编码的纳秒数，与计算同时进行
+     */
+    public long getEncodeTime() {
+        return mEncodeTime;
+    }
+
+    /**
+     * @return 上次导出写入的PNG字节数
+     */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * @return 以该宽度导出时两个条带缓冲占用的字节数；牛顿迭代的画面总是保留magnitude，每像素还要多4字节
+     */
+    public long getBufferBytes(int width) {
+        long perPixel = 4 + 4 + (mColoring != null && mColoring.usesMagnitudes() ? 4 : 0);
+        return 2 * perPixel * width * mStripHeight;
+    }
+
+    /**
+     * 停止正在进行的导出，{@link #export}抛出{@link CancellationException}
+     */
+    public void cancel() {
+        FractalKernel kernel = mKernel;
+        if (kernel != null) {
+            kernel.cancel();
+        }
+    }
+
+    /**
+     * 渲染kernel覆盖的整幅画面并写入output，完成或失败后output都会被关闭
+     *
+     * @throws CancellationException 调用了{@link #cancel()}
+     */
+    public void export(FractalKernel kernel, OutputStream output) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        mKernel = kernel;
+        mSubdivide = mSubdivision && kernel.isSubdivisionSafe();
+        mIterations.set(0);
+        mEncodeTime = 0;
+        int width = kernel.getWidth();
+        int height = kernel.getHeight();
+        Coloring coloring = mColoring;
+        if (coloring != null && coloring.isGlobal()) {
+            coloring.prepare(preview(kernel), kernel.getIterateTimes());
+        }
+        PngWriter writer = new PngWriter(output, width, height, mCompressionLevel);
+        try {
+            int stripHeight = Math.min(mStripHeight, height);
+            Strip current = new Strip(width, stripHeight,
+                    coloring != null && (coloring.usesMagnitudes() || kernel.recordsRoots()));
+            Strip next = new Strip(width, stripHeight, current.mMagnitudes != null);
+            render(kernel, current, 0);
+            for (int top = 0; top < height; top += stripHeight) {
+                if (top + stripHeight < height) {
+                    render(kernel, next, top + stripHeight);
+                }
+                current.await();
+                if (kernel.isCancelled()) {
+                    throw new CancellationException();
+                }
+                long encodeStart = System.nanoTime();
+                for (int y = 0; y < current.mHeight; y++) {
+                    writer.writeRow(current.mPixels, y * width);
+                }
+                mEncodeTime += System.nanoTime() - encodeStart;
+                if (mListener != null) {
+                    mListener.onProgress(top + current.mHeight, height);
+                }
+                Strip strip = current;
+                current = next;
+                next = strip;
+            }
+            writer.close();
+        } catch (InterruptedException | RuntimeException | IOException e) {
+            // 让还在计算的分块尽快结束
+            kernel.cancel();
+            throw e;
+        } finally {
+            if (writer.getRowsWritten() != height) {
+                output.close();
+            }
+            mKernel = null;
+            mBytesWritten = writer.getBytesWritten();
+            mElapsedTime = System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * 把条带的每一列分块提交给线程池
+     */
+    private void render(final FractalKernel kernel, final Strip strip, int top) {
+        strip.reset(top, Math.min(strip.mCapacity, kernel.getHeight() - top));
+        int width = kernel.getWidth();
+        int tiles = (width + TILE_WIDTH - 1) / TILE_WIDTH;
+        final CountDownLatch pending = new CountDownLatch(tiles);
+        strip.mPending = pending;
+        for (int left = 0; left < width; left += TILE_WIDTH) {
+            final Tile r = new Tile(left, top, Math.min(left + TILE_WIDTH, width), top + strip.mHeight);
+            mScheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        renderTile(kernel, strip, r);
+                    } catch (RuntimeException | Error e) {
+                        strip.mError.compareAndSet(null, e);
+                    } finally {
+                        pending.countDown();
+                    }
+                }
+            });
+        }
+    }
+
+    private void renderTile(FractalKernel kernel, Strip strip, Tile r) {
+        if (kernel.isCancelled()) {
+            return;
+        }
+        int width = kernel.getWidth();
+        int[] counts = strip.mCounts;
+        float[] magnitudes = strip.mMagnitudes;
+        IterationCounter counter = new IterationCounter();
+        for (int y = r.top; y < r.bottom; y++) {
+            int row = (y - strip.mTop) * width;
+            Arrays.fill(counts, row + r.left, row + r.right, -1);
+        }
+        if (mSubdivide) {
+            MarianiSilver.render(kernel, counts, magnitudes, width, 0, strip.mTop, r, counter);
+        } else {
+            for (int y = r.top; y < r.bottom; y++) {
+                int row = (y - strip.mTop) * width;
+                for (int x = r.left; x < r.right; x++) {
+                    counts[row + x] = kernel.iterate(x, y, counter);
+                    if (magnitudes != null) {
+                        magnitudes[row + x] = counter.magnitude;
+                    }
+                }
+            }
+        }
+        mIterations.addAndGet(counter.iterations);
+        Coloring coloring = mColoring;
+        int max = kernel.getIterateTimes();
+        int[] pixels = strip.mPixels;
+        for (int y = r.top; y < r.bottom; y++) {
+            int row = (y - strip.mTop) * width;
+            for (int index = row + r.left, end = row + r.right; index < end; index++) {
+                int k = counts[index];
+                pixels[index] = coloring == null ? kernel.getColor(k)
+                        : coloring.getColor(k, magnitudes == null ? 0 : magnitudes[index], max);
+            }
+        }
+    }
+
+    /**
+     * 在整幅画面上均匀取样计算迭代次数，用于估计直方图
+     */
+    private int[] preview(final FractalKernel kernel) throws InterruptedException {
+        int width = kernel.getWidth();
+        int height = kernel.getHeight();
+        final int step = Math.max(1, (int) Math.ceil(Math.sqrt((double) width * height / PREVIEW_SAMPLES)));
+        final int columns = (width + step - 1) / step;
+        final int rows = (height + step - 1) / step;
+        final int[] counts = new int[columns * rows];
+        final CountDownLatch pending = new CountDownLatch(rows);
+        for (int row = 0; row < rows; row++) {
+            final int j = row;
+            mScheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        IterationCounter counter = new IterationCounter();
+                        int y = Math.min(j * step + step / 2, kernel.getHeight() - 1);
+                        for (int i = 0; i < columns; i++) {
+                            int x = Math.min(i * step + step / 2, kernel.getWidth() - 1);
+                            counts[j * columns + i] = kernel.iterate(x, y, counter);
+                        }
+                        mIterations.addAndGet(counter.iterations);
+                    } finally {
+                        pending.countDown();
+                    }
+                }
+            });
+        }
+        pending.await();
+        if (kernel.isCancelled()) {
+            throw new CancellationException();
+        }
+        return counts;
+    }
+
+    /**
+     * 一个条带的缓冲，在两次渲染之间重复使用
+     */
+    private static final class Strip {
+
+        final int mCapacity;
+        final int[] mCounts;
+        final float[] mMagnitudes;
+        final int[] mPixels;
+        int mTop;
+        int mHeight;
+        CountDownLatch mPending;
+        final AtomicReference<Throwable> mError = new AtomicReference<>();
+
+        Strip(int width, int capacity, boolean magnitudes) {
+            mCapacity = capacity;
+            mCounts = new int[width * capacity];
+            mMagnitudes = magnitudes ? new float[width * capacity] : null;
+            mPixels = new int[width * capacity];
+        }
+
+        void reset(int top, int height) {
+            mTop = top;
+            mHeight = height;
+            mError.set(null);
+        }
+
+        /**
+         * 等待所有分块完成，分块中的异常在调用线程重新抛出
+         */
+        void await() throws InterruptedException {
+            mPending.await();
+            Throwable error = mError.get();
+            if (error instanceof RuntimeException) {
+                throw (RuntimeException) error;
+            } else if (error != null) {
+                throw (Error) error;
+            }
+        }
+    }
+
+    public interface OnProgressListener {
+        /**
+         * 在调用{@link #export}的线程上，每写完一个条带回调一次
+         *
+         * @param rows 已经写入的行数
+         */
+        void onProgress(int rows, int height);
+    }
+}
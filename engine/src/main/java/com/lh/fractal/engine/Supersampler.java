@@ -0,0 +1,277 @@
+package com.lh.fractal.engine;
+
+import java.util.Locale;
+
+/**
+ * 自适应超采样抗锯齿：只在颜色或迭代次数与相邻像素相差很大的像素(细丝、集合边界)内
+ * 按分层抖动的位置补充子像素采样，取平均颜色。
+ * 总的采样数受预算限制，超出时优先处理对比最强的像素，整幅画面不会像均匀超采样那样慢几十倍
+ */
+
+public class Supersampler {
+
+    /**
+     * 每个需要细化的像素的采样数，4x4分层
+     */
+    public static final int DEFAULT_SAMPLES = 16;
+    /**
+     * 平均每个像素最多增加的采样数，1表示整幅画面最多多算一遍
+     */
+    public static final float DEFAULT_BUDGET = 1f;
+    /**
+     * 相邻像素RGB三个通道差的绝对值之和超过该值时细化
+     */
+    public static final int DEFAULT_COLOR_THRESHOLD = 48;
+    /**
+     * 相邻像素的迭代次数相差超过该值时细化，循环的调色板可能让相差很远的迭代次数颜色相近
+     */
+    public static final int DEFAULT_COUNT_THRESHOLD = 16;
+
+    /**
+     * 对比度的最大值，发散与不发散的像素相邻时取该值
+     */
+    private static final int MAX_CONTRAST = 255;
+
+    private final int mGrid;
+    private final float mBudget;
+    private volatile int mColorThreshold = DEFAULT_COLOR_THRESHOLD;
+    private volatile int mCountThreshold = DEFAULT_COUNT_THRESHOLD;
+
+    public Supersampler() {
+        this(DEFAULT_SAMPLES, DEFAULT_BUDGET);
+    }
+
+    /**
+     * @param samples 每个细化的像素的采样数，必须是平方数
+     * @param budget  平均每个像素最多增加的采样数
+     */
+    public Supersampler(int samples, float budget) {
+        int grid = (int) Math.round(Math.sqrt(samples));
+        if (samples < 1 || grid * grid != samples) {
+            throw new IllegalArgumentException("samples must be a square number: " + samples);
+        }
+        if (budget < 0) {
+            throw new IllegalArgumentException("negative budget " + budget);
+        }
+        mGrid = grid;
+        mBudget = budget;
+    }
+
+    public int getSamples() {
+        return mGrid * mGrid;
+    }
+
+    public float getBudget() {
+        return mBudget;
+    }
+
+    public void setColorThreshold(int threshold) {
+        mColorThreshold = threshold;
+    }
+
+    public void setCountThreshold(int threshold) {
+        mCountThreshold = threshold;
+    }
+
+    /**
+     * 按相邻像素的差异选出需要细化的像素，超出预算时只保留对比最强的
+     *
+     * @param counts 整幅画面的迭代次数，不能有尚未计算的像素
+     * @param pixels 与counts对应的颜色
+     */
+    public Selection select(int[] counts, int[] pixels, int width, int height, int maxIterations) {
+        byte[] contrast = new byte[width * height];
+        int[] histogram = new int[MAX_CONTRAST + 1];
+        int colorThreshold = mColorThreshold;
+        int countThreshold = mCountThreshold;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int index = y * width + x;
+                // 每对相邻像素只比较一次，两边都记下
+                if (x + 1 < width) {
+                    compare(counts, pixels, index, index + 1, maxIterations, colorThreshold, countThreshold,
+                            contrast);
+                }
+                if (y + 1 < height) {
+                    compare(counts, pixels, index, index + width, maxIterations, colorThreshold, countThreshold,
+                            contrast);
+                }
+            }
+        }
+        for (byte value : contrast) {
+            histogram[value & 0xff]++;
+        }
+        int candidates = width * height - histogram[0];
+        long allowed = (long) (mBudget * width * height / getSamples());
+        // 从对比最强的一档往下，直到再加一档就超出预算
+        int cutoff = MAX_CONTRAST + 1;
+        long selected = 0;
+        while (cutoff > 1 && selected + histogram[cutoff - 1] <= allowed) {
+            cutoff--;
+            selected += histogram[cutoff];
+        }
+        // 放不下的那一档按剩余的预算均匀地取一部分
+        int partial = cutoff - 1;
+        long remaining = partial > 0 ? allowed - selected : 0;
+        long accumulator = 0;
+        for (int index = 0; index < contrast.length; index++) {
+            int value = contrast[index] & 0xff;
+            boolean chosen = value >= cutoff;
+            if (value == partial && remaining > 0) {
+                accumulator += remaining;
+                if (accumulator >= histogram[partial]) {
+                    accumulator -= histogram[partial];
+                    chosen = true;
+                    selected++;
+                }
+            }
+            contrast[index] = chosen ? (byte) 1 : 0;
+        }
+        return new Selection(contrast, width, height, (int) selected, candidates);
+    }
+
+    /**
+     * 比较像素a和b，对比度超过阈值时更新两者在contrast中的值
+     */
+    private static void compare(int[] counts, int[] pixels, int a, int b, int maxIterations, int colorThreshold,
+                               int countThreshold, byte[] contrast) {
+        int ka = counts[a];
+        int kb = counts[b];
+        int value;
+        if ((ka >= maxIterations) != (kb >= maxIterations)) {
+            value = MAX_CONTRAST;
+        } else {
+            int ca = pixels[a];
+            int cb = pixels[b];
+            int distance = Math.abs(((ca >> 16) & 0xff) - ((cb >> 16) & 0xff))
+                    + Math.abs(((ca >> 8) & 0xff) - ((cb >> 8) & 0xff))
+                    + Math.abs((ca & 0xff) - (cb & 0xff));
+            if (distance > colorThreshold) {
+                value = Math.min(distance / 3 + 1, MAX_CONTRAST - 1);
+            } else if (Math.abs(ka - kb) > countThreshold) {
+                value = 1;
+            } else {
+                return;
+            }
+        }
+        if (value > (contrast[a] & 0xff)) {
+            contrast[a] = (byte) value;
+        }
+        if (value > (contrast[b] & 0xff)) {
+            contrast[b] = (byte) value;
+        }
+    }
+
+    /**
+     * 重新计算区域r内被选中的像素的颜色，可以在多个线程中处理不相交的区域
+     *
+     * @param coloring 为null时用内核的{@link ColorMapper}
+     * @param pixels   整幅画面的颜色，行优先，每行stride个像素
+     * @param counter  累加迭代统计，可以为null
+     * @return 细化的像素数；取消后直接返回，剩下的像素保持原样
+     */
+    public int refine(FractalKernel kernel, Coloring coloring, Selection selection, int[] pixels, int stride,
+                      Tile r, IterationCounter counter) {
+        if (counter == null) {
+            counter = new IterationCounter();
+        }
+        int max = kernel.getIterateTimes();
+        int grid = mGrid;
+        int samples = grid * grid;
+        int refined = 0;
+        for (int y = r.top; y < r.bottom && !kernel.isCancelled(); y++) {
+            for (int x = r.left; x < r.right; x++) {
+                if (!selection.isSelected(x, y)) {
+                    continue;
+                }
+                int a = 0;
+                int red = 0;
+                int green = 0;
+                int blue = 0;
+                for (int s = 0; s < samples; s++) {
+                    // 每个格子内的位置由像素坐标和格子编号决定，同一画面重复渲染的结果相同
+                    int hash = hash(x, y, s);
+                    double dx = ((s % grid) + (hash & 0xffff) / 65536.0) / grid - 0.5;
+                    double dy = ((s / grid) + (hash >>> 16) / 65536.0) / grid - 0.5;
+                    int k = kernel.iterate(x, y, dx, dy, counter);
+                    if (k == FractalKernel.CANCELLED) {
+                        return refined;
+                    }
+                    int color = coloring == null ? kernel.getColor(k)
+                            : coloring.getColor(k, counter.magnitude, max);
+                    a += color >>> 24;
+                    red += (color >> 16) & 0xff;
+                    green += (color >> 8) & 0xff;
+                    blue += color & 0xff;
+                }
+                int half = samples / 2;
+                pixels[y * stride + x] = (a + half) / samples << 24 | (red + half) / samples << 16
+                        | (green + half) / samples << 8 | (blue + half) / samples;
+                refined++;
+            }
+        }
+        return refined;
+    }
+
+    private static int hash(int x, int y, int sample) {
+        int h = x * 0x9e3779b1 + y * 0x85ebca6b + sample * 0xc2b2ae35;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * {@link #select}选出的像素，创建后不再改变
+     */
+    public static final class Selection {
+
+        private final byte[] mMask;
+        private final int mWidth;
+        private final int mHeight;
+        private final int mSelected;
+        private final int mCandidates;
+
+        Selection(byte[] mask, int width, int height, int selected, int candidates) {
+            mMask = mask;
+            mWidth = width;
+            mHeight = height;
+            mSelected = selected;
+            mCandidates = candidates;
+        }
+
+        public boolean isSelected(int x, int y) {
+            return mMask[y * mWidth + x] != 0;
+        }
+
+        /**
+         * @return 要细化的像素数
+         */
+        public int getSelected() {
+            return mSelected;
+        }
+
+        /**
+         * @return 超过阈值的像素数，大于{@link #getSelected()}说明预算不够
+         */
+        public int getCandidates() {
+            return mCandidates;
+        }
+
+        /**
+         * @return 细化的像素占整幅画面的比例
+         */
+        public float getRefinedFraction() {
+            return (float) mSelected / (mWidth * mHeight);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "antialias: refined %d of %d pixels (%.2f%%), %d over threshold", mSelected,
+                    mWidth * mHeight, 100f * getRefinedFraction(), mCandidates);
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package com.lh.fractal.engine;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 画面中互为镜像、只需计算一次的部分：z^2 + c的Julia集在z → -z下不变，是关于原点的中心对称；
+ * Mandelbrot集关于实轴对称。其他公式的对称性见{@link Formula}，两种都有时优先用中心对称。
+ * 只有对称中心(轴)正好落在像素上或两个像素正中时，镜像的像素才与另一个像素的采样点重合，
+ * 默认的居中画面和之后按整像素的平移都满足，任意缩放之后通常不满足。
+ * <p>
+ * 像素(i, j)的镜像是(axisX - i, axisY - j)，Mandelbrot集只翻转行。
+ * 对称轴下方、镜像也在画面内的矩形{@link #getMirrored()}由上方的结果复制，其余部分正常计算。
+ * 内核按同一个整数网格生成坐标表，镜像像素的坐标正好是取反，见{@link #mirrorCoordinates(double[], int)}，
+ * 复制的结果与直接计算逐位相同
+ */
+
+public final class Symmetry {
+
+    /**
+     * 镜像位置与像素网格的偏差小于这么多个像素时认为重合
+     */
+    private static final double TOLERANCE = 1e-6;
+
+    private final boolean mFlipX;
+    private final int mAxisX;
+    private final int mAxisY;
+    private final Tile mMirrored;
+
+    private Symmetry(boolean flipX, int axisX, int axisY, Tile mirrored) {
+        mFlipX = flipX;
+        mAxisX = axisX;
+        mAxisY = axisY;
+        mMirrored = mirrored;
+    }
+
+    /**
+     * @return kernel的画面中可以由镜像得到的部分，没有时返回null
+     */
+    public static Symmetry of(FractalKernel kernel) {
+        int width = kernel.getWidth();
+        int height = kernel.getHeight();
+        int rowAxis = axisOf(kernel.getMaxY(), (kernel.getMinY() - kernel.getMaxY()) / height, height);
+        if (rowAxis < 0) {
+            return null;
+        }
+        int top = rowAxis / 2 + 1;
+        int bottom = Math.min(rowAxis, height - 1) + 1;
+        if (top >= bottom) {
+            return null;
+        }
+        Formula formula = kernel.getFormula();
+        if (formula.isPointSymmetric(kernel.getMode())) {
+            int columnAxis = axisOf(kernel.getMinX(), (kernel.getMaxX() - kernel.getMinX()) / width, width);
+            if (columnAxis >= 0) {
+                int left = Math.max(0, columnAxis - width + 1);
+                int right = Math.min(columnAxis, width - 1) + 1;
+                return new Symmetry(true, columnAxis, rowAxis, new Tile(left, top, right, bottom));
+            }
+        }
+        if (formula.isConjugateSymmetric(kernel.getMode(), kernel.getIm())) {
+            return new Symmetry(false, 0, rowAxis, new Tile(0, top, width, bottom));
+        }
+        return null;
+    }
+
+    /**
+     * 第i个像素的坐标是first + i * step，镜像像素满足first + i' * step = -(first + i * step)
+     *
+     * @return 0在网格上时镜像两个像素的编号之和，否则返回-1
+     */
+    static int axisOf(double first, double step, int size) {
+        return toGrid(-2 * first / step, size);
+    }
+
+    /**
+     * 让坐标表关于0严格反对称：编号较大的一侧改为较小一侧的相反数，正好在轴上的像素为0。
+     * 乘法和加法的舍入与符号无关，这样镜像像素的轨道与源像素逐位相同(Mandelbrot集为共轭)
+     *
+     * @param axis {@link #axisOf}的结果，小于0时不变
+     */
+    static void mirrorCoordinates(double[] table, int axis) {
+        if (axis < 0) {
+            return;
+        }
+        for (int i = Math.max(0, axis - table.length + 1); 2 * i <= axis; i++) {
+            if (2 * i == axis) {
+                table[i] = 0;
+            } else if (axis - i < table.length) {
+                table[axis - i] = -table[i];
+            }
+        }
+    }
+
+    /**
+     * 同{@link #mirrorCoordinates(double[], int)}
+     */
+    static void mirrorCoordinates(float[] table, int axis) {
+        if (axis < 0) {
+            return;
+        }
+        for (int i = Math.max(0, axis - table.length + 1); 2 * i <= axis; i++) {
+            if (2 * i == axis) {
+                table[i] = 0;
+            } else if (axis - i < table.length) {
+                table[axis - i] = -table[i];
+            }
+        }
+    }
+
+    /**
+     * @param axis 对称轴两边像素编号之和
+     * @return axis在网格上并且镜像与画面重叠时返回它，否则返回-1
+     */
+    private static int toGrid(double axis, int size) {
+        if (!(axis >= -TOLERANCE && axis <= 2 * size - 2 + TOLERANCE)) {
+            return -1;
+        }
+        long rounded = Math.round(axis);
+        return Math.abs(axis - rounded) <= TOLERANCE ? (int) rounded : -1;
+    }
+
+    /**
+     * @return 由镜像复制、不需要计算的区域
+     */
+    public Tile getMirrored() {
+        return mMirrored;
+    }
+
+    public int mirrorColumn(int i) {
+        return mFlipX ? mAxisX - i : i;
+    }
+
+    public int mirrorRow(int j) {
+        return mAxisY - j;
+    }
+
+    /**
+     * 中心对称的两个像素的轨道从第一次迭代起完全相同；关于实轴对称时轨道是共轭，虚部取反
+     */
+    public boolean isConjugate() {
+        return !mFlipX;
+    }
+
+    /**
+     * @return region中不属于{@link #getMirrored()}、需要计算的部分，最多四块
+     */
+    public List<Tile> subtract(Tile region) {
+        List<Tile> result = new ArrayList<>(4);
+        Tile m = mMirrored;
+        int top = Math.max(region.top, m.top);
+        int bottom = Math.min(region.bottom, m.bottom);
+        int left = Math.max(region.left, m.left);
+        int right = Math.min(region.right, m.right);
+        if (top >= bottom || left >= right) {
+            result.add(region);
+            return result;
+        }
+        if (region.top < top) {
+            result.add(new Tile(region.left, region.top, region.right, top));
+        }
+        if (region.left < left) {
+            result.add(new Tile(region.left, top, left, bottom));
+        }
+        if (right < region.right) {
+            result.add(new Tile(right, top, region.right, bottom));
+        }
+        if (bottom < region.bottom) {
+            result.add(new Tile(region.left, bottom, region.right, region.bottom));
+        }
+        return result;
+    }
+
+    /**
+     * @return 计算完source后可以复制出的{@link #getMirrored()}中的区域，没有时返回null
+     */
+    public Tile mirror(Tile source) {
+        int top = Math.max(mAxisY - source.bottom + 1, mMirrored.top);
+        int bottom = Math.min(mAxisY - source.top + 1, mMirrored.bottom);
+        int left;
+        int right;
+        if (mFlipX) {
+            left = Math.max(mAxisX - source.right + 1, mMirrored.left);
+            right = Math.min(mAxisX - source.left + 1, mMirrored.right);
+        } else {
+            left = Math.max(source.left, mMirrored.left);
+            right = Math.min(source.right, mMirrored.right);
+        }
+        return top < bottom && left < right ? new Tile(left, top, right, bottom) : null;
+    }
+
+    @Override
+    public String toString() {
+        return (mFlipX ? "point symmetry at column " + mAxisX / 2.0 + ", row " : "axis symmetry at row ")
+                + mAxisY / 2.0 + ", mirrored " + mMirrored;
+    }
+}
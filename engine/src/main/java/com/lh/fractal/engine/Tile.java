@@ -0,0 +1,32 @@
+package com.lh.fractal.engine;
+
+/**
+ * 渲染区域，与android.graphics.Rect相同的半开区间约定[left, right) x [top, bottom)
+ */
+
+public final class Tile {
+    public final int left;
+    public final int top;
+    public final int right;
+    public final int bottom;
+
+    public Tile(int left, int top, int right, int bottom) {
+        this.left = left;
+        this.top = top;
+        this.right = right;
+        this.bottom = bottom;
+    }
+
+    public int width() {
+        return right - left;
+    }
+
+    public int height() {
+        return bottom - top;
+    }
+
+    @Override
+    public String toString() {
+        return "Tile(" + left + ", " + top + " - " + right + ", " + bottom + ")";
+    }
+}
@@ -0,0 +1,101 @@
+package com.lh.fractal.engine;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 分块迭代次数的内存缓存，按最近最少使用淘汰，总大小不超过设定的字节数
+ * 所有方法都是线程安全的
+ */
+
+public class TileCache {
+
+    private final LinkedHashMap<TileKey, int[]> mTiles = new LinkedHashMap<>(64, 0.75f, true);
+    private long mMaxBytes;
+    private long mBytes;
+
+    private long mHitCount;
+    private long mMissCount;
+    private long mEvictionCount;
+
+    public TileCache(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * @return 缓存的迭代次数，不存在时返回null。返回的数组不能被修改
+     */
+    public synchronized int[] get(TileKey key) {
+        int[] counts = mTiles.get(key);
+        if (counts != null) {
+            mHitCount++;
+        } else {
+            mMissCount++;
+        }
+        return counts;
+    }
+
+    public synchronized void put(TileKey key, int[] counts) {
+        int[] previous = mTiles.put(key, counts);
+        if (previous != null) {
+            mBytes -= sizeOf(previous);
+        }
+        mBytes += sizeOf(counts);
+        trimToSize(mMaxBytes);
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        mMaxBytes = maxBytes;
+        trimToSize(maxBytes);
+    }
+
+    public synchronized void clear() {
+        mTiles.clear();
+        mBytes = 0;
+    }
+
+    private void trimToSize(long maxBytes) {
+        Iterator<Map.Entry<TileKey, int[]>> iterator = mTiles.entrySet().iterator();
+        while (mBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<TileKey, int[]> eldest = iterator.next();
+            iterator.remove();
+            mBytes -= sizeOf(eldest.getValue());
+            mEvictionCount++;
+        }
+    }
+
+    private static long sizeOf(int[] counts) {
+        return 4L * counts.length;
+    }
+
+    public synchronized long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    public synchronized long getBytes() {
+        return mBytes;
+    }
+
+    public synchronized int getTileCount() {
+        return mTiles.size();
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "TileCache(" + mTiles.size() + " tiles, " + mBytes + "/" + mMaxBytes + " bytes, hits=" + mHitCount
+                + ", misses=" + mMissCount + ", evictions=" + mEvictionCount + ")";
+    }
+}
@@ -0,0 +1,64 @@
+package com.lh.fractal.engine;
+
+/**
+ * 金字塔中一个分块的地址：分形参数、迭代次数、缩放级别和分块坐标
+ */
+
+public final class TileKey {
+    public final int mode;
+    public final double re;
+    public final double im;
+    public final int iterateTimes;
+    public final int level;
+    public final long x;
+    public final long y;
+
+    public TileKey(int mode, double re, double im, int iterateTimes, int level, long x, long y) {
+        this.mode = mode;
+        // Mandelbrot集与参数c无关，统一为0，避免切换Julia参数后缓存失效
+        this.re = mode == FractalKernel.MODE_MANDELBROT ? 0 : re;
+        this.im = mode == FractalKernel.MODE_MANDELBROT ? 0 : im;
+        this.iterateTimes = iterateTimes;
+        this.level = level;
+        this.x = x;
+        this.y = y;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof TileKey)) {
+            return false;
+        }
+        TileKey key = (TileKey) o;
+        return mode == key.mode
+                && Double.compare(re, key.re) == 0
+                && Double.compare(im, key.im) == 0
+                && iterateTimes == key.iterateTimes
+                && level == key.level
+                && x == key.x
+                && y == key.y;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = mode;
+        long temp = Double.doubleToLongBits(re);
+        result = 31 * result + (int) (temp ^ (temp >>> 32));
+        temp = Double.doubleToLongBits(im);
+        result = 31 * result + (int) (temp ^ (temp >>> 32));
+        result = 31 * result + iterateTimes;
+        result = 31 * result + level;
+        result = 31 * result + (int) (x ^ (x >>> 32));
+        result = 31 * result + (int) (y ^ (y >>> 32));
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "TileKey(" + mode + ", " + re + ", " + im + ", " + iterateTimes
+                + ", level " + level + ", " + x + ", " + y + ")";
+    }
+}
@@ -0,0 +1,248 @@
+package com.lh.fractal.engine;
+
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 类似地图的分块金字塔：第level级把复平面切成边长为{@link #BASE_SPAN} / 2^level的正方形分块，
+ * 每个分块固定为{@link #TILE_SIZE} x {@link #TILE_SIZE}个像素。
+ * 分块(x, y)覆盖实部[x * span, (x + 1) * span)，虚部(-(y + 1) * span, -y * span]，y轴向下。
+ * 计算好的分块保存在{@link TileCache}中，回到同一位置和缩放级别时直接使用；
+ * 设置了{@link DiskTileStore}时还会写入磁盘，内存中没有的分块先从磁盘读取
+ */
+
+public class TilePyramid {
+
+    public static final int TILE_SIZE = 256;
+
+    /**
+     * 第0级分块的边长
+     */
+    public static final double BASE_SPAN = 8;
+
+    private final TileCache mCache;
+    private volatile DiskTileStore mDiskStore;
+    private final AtomicLong mDiskErrorCount = new AtomicLong();
+    private final AtomicLong mMemoryHitCount = new AtomicLong();
+    private final AtomicLong mDiskHitCount = new AtomicLong();
+    private final AtomicLong mComputeCount = new AtomicLong();
+
+    public TilePyramid(TileCache cache) {
+        mCache = cache;
+    }
+
+    public TileCache getCache() {
+        return mCache;
+    }
+
+    /**
+     * @param diskStore 内存缓存之后的第二级缓存，可以为null
+     */
+    public void setDiskStore(DiskTileStore diskStore) {
+        mDiskStore = diskStore;
+    }
+
+    public DiskTileStore getDiskStore() {
+        return mDiskStore;
+    }
+
+    /**
+     * @return 写入磁盘失败的次数
+     */
+    public long getDiskErrorCount() {
+        return mDiskErrorCount.get();
+    }
+
+    /**
+     * @return {@link #getTile}直接从内存缓存取得的分块数
+     */
+    public long getMemoryHitCount() {
+        return mMemoryHitCount.get();
+    }
+
+    /**
+     * @return {@link #getTile}从磁盘读取的分块数
+     */
+    public long getDiskHitCount() {
+        return mDiskHitCount.get();
+    }
+
+    /**
+     * @return {@link #getTile}在两级缓存中都没有找到、重新计算的分块数，包括中途被取消的
+     */
+    public long getComputeCount() {
+        return mComputeCount.get();
+    }
+
+    /**
+     * 选择分块像素间距最接近屏幕像素间距的级别
+     */
+    public static int levelFor(double pixelSpacing) {
+        double level = Math.log(BASE_SPAN / (TILE_SIZE * pixelSpacing)) / Math.log(2);
+        return (int) Math.round(level);
+    }
+
+    /**
+     * @return 第level级分块的边长
+     */
+    public static double tileSpan(int level) {
+        return Math.scalb(BASE_SPAN, -level);
+    }
+
+    public static TileKey keyFor(FractalKernel kernel, int level, long x, long y) {
+        return new TileKey(kernel.getMode(), kernel.getRe(), kernel.getIm(), kernel.getIterateTimes(), level, x, y);
+    }
+
+    /**
+     * 从缓存中取出分块，不存在时计算并放入缓存
+     *
+     * @param kernel  提供分形参数，坐标范围不使用
+     * @param counter 累加迭代统计，可以为null
+     * @return 分块的迭代次数，行优先，行长度为{@link #TILE_SIZE}。返回的数组不能被修改；
+     * 计算途中kernel被取消时返回null，不完整的结果不会放入缓存
+     */
+    public int[] getTile(FractalKernel kernel, int level, long x, long y, IterationCounter counter) {
+        TileKey key = keyFor(kernel, level, x, y);
+        int[] counts = mCache.get(key);
+        if (counts != null) {
+            mMemoryHitCount.incrementAndGet();
+            return counts;
+        }
+        DiskTileStore diskStore = mDiskStore;
+        IntBuffer stored = diskStore == null ? null : diskStore.read(key);
+        if (stored != null) {
+            // 只在命中时分配，从映射的内存整块复制一次放入内存缓存
+            counts = new int[TILE_SIZE * TILE_SIZE];
+            stored.get(counts);
+            mDiskHitCount.incrementAndGet();
+            mCache.put(key, counts);
+            return counts;
+        }
+        mComputeCount.incrementAndGet();
+        counts = computeTile(kernel, level, x, y, counter);
+        if (counts == null) {
+            return null;
+        }
+        mCache.put(key, counts);
+        if (diskStore != null) {
+            try {
+                diskStore.write(key, counts);
+            } catch (IOException e) {
+                // 磁盘缓存只是加速，写入失败时继续使用内存中的结果
+                mDiskErrorCount.incrementAndGet();
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * @return 分块的迭代次数，kernel被取消时返回null
+     */
+    public static int[] computeTile(FractalKernel kernel, int level, long x, long y, IterationCounter counter) {
+        double span = tileSpan(level);
+        FractalKernel tileKernel = kernel.withViewport(x * span, (x + 1) * span, -(y + 1) * span, -y * span,
+                TILE_SIZE, TILE_SIZE);
+        int[] counts = new int[TILE_SIZE * TILE_SIZE];
+        Arrays.fill(counts, -1);
+        Tile tile = new Tile(0, 0, TILE_SIZE, TILE_SIZE);
+        if (tileKernel.isSubdivisionSafe()) {
+            MarianiSilver.render(tileKernel, counts, TILE_SIZE, tile, counter);
+        } else {
+            // 不连通的Julia集
+            tileKernel.iterate(counts, TILE_SIZE, tile, counter);
+        }
+        return tileKernel.isCancelled() ? null : counts;
+    }
+
+    /**
+     * 计算覆盖kernel坐标范围的金字塔分块
+     *
+     * @throws IllegalArgumentException kernel不是z^2 + c，{@link TileKey}中没有记录公式
+     */
+    public static Layout layout(FractalKernel kernel) {
+        if (!Formula.QUADRATIC.equals(kernel.getFormula())) {
+            throw new IllegalArgumentException("tile pyramid only caches " + Formula.QUADRATIC + ", not "
+                    + kernel.getFormula());
+        }
+        return new Layout(kernel);
+    }
+
+    /**
+     * 屏幕与金字塔分块的对应关系
+     */
+    public static final class Layout {
+        public final int level;
+        public final double span;
+        /**
+         * 屏幕像素间距
+         */
+        public final double stepX;
+        public final double stepY;
+        /**
+         * 覆盖屏幕的分块坐标范围，闭区间
+         */
+        public final long x0;
+        public final long x1;
+        public final long y0;
+        public final long y1;
+
+        private final double mMinX;
+        private final double mMaxY;
+        private final int mWidth;
+        private final int mHeight;
+
+        private Layout(FractalKernel kernel) {
+            mWidth = kernel.getWidth();
+            mHeight = kernel.getHeight();
+            mMinX = kernel.getMinX();
+            mMaxY = kernel.getMaxY();
+            stepX = (kernel.getMaxX() - mMinX) / mWidth;
+            stepY = (mMaxY - kernel.getMinY()) / mHeight;
+            level = levelFor(stepX);
+            span = tileSpan(level);
+            x0 = (long) Math.floor(mMinX / span);
+            x1 = (long) Math.floor((mMinX + (mWidth - 1) * stepX) / span);
+            y0 = (long) Math.floor(-mMaxY / span);
+            y1 = (long) Math.floor((-mMaxY + (mHeight - 1) * stepY) / span);
+        }
+
+        public int getTileCount() {
+            return (int) ((x1 - x0 + 1) * (y1 - y0 + 1));
+        }
+
+        /**
+         * @return 世界坐标落在分块(x, y)内的屏幕像素
+         */
+        public Tile screenTile(long x, long y) {
+            int left = x == x0 ? 0 : clamp(Math.ceil((x * span - mMinX) / stepX), mWidth);
+            int right = x == x1 ? mWidth : clamp(Math.ceil(((x + 1) * span - mMinX) / stepX), mWidth);
+            int top = y == y0 ? 0 : clamp(Math.ceil((y * span + mMaxY) / stepY), mHeight);
+            int bottom = y == y1 ? mHeight : clamp(Math.ceil(((y + 1) * span + mMaxY) / stepY), mHeight);
+            return new Tile(left, top, right, bottom);
+        }
+
+        /**
+         * @return 屏幕第i列在分块x中对应的列
+         */
+        public int tileColumn(long x, int i) {
+            return clampTile((mMinX + i * stepX - x * span) * TILE_SIZE / span);
+        }
+
+        /**
+         * @return 屏幕第j行在分块y中对应的行
+         */
+        public int tileRow(long y, int j) {
+            return clampTile((-mMaxY + j * stepY - y * span) * TILE_SIZE / span);
+        }
+
+        private static int clamp(double value, int max) {
+            return (int) Math.max(0, Math.min(max, value));
+        }
+
+        private static int clampTile(double value) {
+            return (int) Math.max(0, Math.min(TILE_SIZE - 1, value));
+        }
+    }
+}
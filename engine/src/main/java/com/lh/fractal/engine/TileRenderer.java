@@ -0,0 +1,1185 @@
+package com.lh.fractal.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 将分块并行渲染到共享的int[]像素缓冲中
+ * 每个分块只写入自己的区域，工作线程之间不需要加锁
+ * <p>
+ * 开始新的渲染时取消上一次的内核，等待仍在写入缓冲区的分块退出后再开始；
+ * 之后才完成的旧分块结果直接丢弃，不会回调listener
+ */
+
+public class TileRenderer {
+
+    /**
+     * 渐进渲染时第一遍的采样间隔，之后每一遍减半直到逐像素
+     */
+    public static final int COARSEST_STEP = 8;
+
+    /**
+     * 为{@link #deepen}保存z的默认内存上限，1080x1920时整幅保存约需32MB，见{@link OrbitBuffer}
+     */
+    public static final long DEFAULT_ORBIT_MEMORY = 8L * 1024 * 1024;
+
+    /**
+     * 平移后露出的条带按该宽度切分成多个分块并行计算
+     */
+    private static final int STRIP_TILE_SIZE = 64;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int[] mPixels;
+    /**
+     * 每个像素的迭代次数，小于0表示尚未计算
+     */
+    private final int[] mCounts;
+    /**
+     * 每个像素最后的|z|^2，用于平滑着色，0表示未知
+     */
+    private final float[] mMagnitudes;
+    /**
+     * 迭代到上限仍未发散的像素最后的z，第一次使用{@link FractalKernel#isResumable()}的内核时创建，
+     * 只为保存了z的块分配内存，每次重新计算整个画面时释放
+     */
+    private OrbitBuffer mOrbits;
+    private volatile long mOrbitMemoryLimit = DEFAULT_ORBIT_MEMORY;
+    /**
+     * 缓冲区中的迭代次数是在这个上限下算出的，等于它的像素在mOrbits中保存了z；0表示不能继续迭代。
+     * 渲染完成时由mNextResumeLimit更新
+     */
+    private volatile int mResumeLimit;
+    private int mNextResumeLimit;
+    /**
+     * 大于0时本次渲染是{@link #deepen}，从这个上限继续
+     */
+    private int mResumeFrom;
+    /**
+     * 各区域最近一次的计算耗时，{@link TileScheduler}据此切分
+     */
+    private final CostMap mCostMap;
+    /**
+     * 抗锯齿的耗时集中在边缘，与渲染分开记录
+     */
+    private CostMap mAntialiasCostMap;
+    /**
+     * 最近一次{@link #antialias}细化的像素
+     */
+    private volatile Supersampler.Selection mSelection;
+    private volatile TileScheduler.Batch mAntialiasBatch;
+    private final AtomicLong mAntialiasIterations = new AtomicLong();
+
+    private volatile boolean mSubdivision = true;
+    /**
+     * 当前渲染的内核能否细分，每次开始渲染时更新
+     */
+    private volatile boolean mSubdivisionSafe;
+    private volatile boolean mSymmetry = true;
+    private volatile Coloring mColoring;
+    private volatile boolean mVerifySubdivision;
+    private final AtomicInteger mIteratedPixels = new AtomicInteger();
+    private final AtomicInteger mDifferentPixels = new AtomicInteger();
+    private final AtomicLong mIterations = new AtomicLong();
+    private final AtomicLong mSkippedIterations = new AtomicLong();
+
+    private volatile long mRenderStartTime;
+    private volatile long mFirstFrameTime;
+    private volatile long mCompleteTime;
+    private volatile boolean mComplete;
+
+    /**
+     * 当前渲染的内核和调度批次，被新的渲染代替时取消
+     */
+    private volatile FractalKernel mKernel;
+    private volatile TileScheduler.Batch mBatch;
+    /**
+     * 每次开始新的渲染或取消时加1，分块完成时与开始时的值不同说明结果已经过时
+     */
+    private final AtomicInteger mGeneration = new AtomicInteger();
+    /**
+     * 正在写入缓冲区的分块数，减到0时通知mIdleLock上等待的线程
+     */
+    private final AtomicInteger mActiveTasks = new AtomicInteger();
+    private final Object mIdleLock = new Object();
+    private final AtomicInteger mDiscardedTiles = new AtomicInteger();
+    private final RenderMetrics mMetrics = new RenderMetrics();
+
+    public TileRenderer(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        mPixels = new int[width * height];
+        mCounts = new int[width * height];
+        mMagnitudes = new float[width * height];
+        mCostMap = new CostMap(width, height);
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return argb像素，行优先，行长度为{@link #getWidth()}
+     */
+    public int[] getPixels() {
+        return mPixels;
+    }
+
+    /**
+     * @return 每个像素的迭代次数，行优先，行长度为{@link #getWidth()}，小于0表示尚未计算
+     */
+    public int[] getCounts() {
+        return mCounts;
+    }
+
+    /**
+     * @return 每个像素最后的|z|^2，行优先，行长度为{@link #getWidth()}，0表示未知
+     */
+    public float[] getMagnitudes() {
+        return mMagnitudes;
+    }
+
+    /**
+     * 设置着色方式，为null时使用内核的{@link ColorMapper}。只影响之后计算的分块，已有的像素用{@link #recolor}
+     */
+    public void setColoring(Coloring coloring) {
+        mColoring = coloring;
+    }
+
+    public Coloring getColoring() {
+        return mColoring;
+    }
+
+    /**
+     * 用保留的迭代次数和|z|^2重新计算所有像素的颜色，不重新迭代。
+     * 调用时不能有正在进行的渲染，正在进行的抗锯齿会先被取消
+     *
+     * @param maxIterations 这些迭代次数的上限
+     */
+    public void recolor(Coloring coloring, int maxIterations) {
+        cancelAntialias();
+        mColoring = coloring;
+        coloring.apply(mCounts, mMagnitudes, mPixels, maxIterations);
+    }
+
+    /**
+     * @return 能否用{@link #deepen}以kernel的迭代上限继续上一次渲染：上一次渲染已经完成，
+     * 保存了未发散像素的z，并且kernel计算的是同一个画面
+     */
+    public boolean canDeepen(FractalKernel kernel) {
+        FractalKernel previous = mKernel;
+        return mComplete && mResumeLimit > 0 && kernel.isResumable() && kernel.isSameView(previous);
+    }
+
+    /**
+     * 为{@link #deepen}保存z的内存上限，超过后其余像素在提高上限时从头迭代。下一次重新计算整个画面时生效
+     */
+    public void setOrbitMemoryLimit(long bytes) {
+        mOrbitMemoryLimit = bytes;
+    }
+
+    /**
+     * 是否使用{@link MarianiSilver}矩形细分代替逐像素计算，默认开启。
+     * 内核的公式不适合细分时(见{@link Formula#isSubdivisionSafe})总是逐像素计算
+     */
+    public void setSubdivision(boolean subdivision) {
+        mSubdivision = subdivision;
+    }
+
+    /**
+     * 是否利用分形的对称性，画面中与已经计算的部分互为镜像的区域直接复制，见{@link Symmetry}。
+     * 默认开启，只影响由{@link TileScheduler}调度的整个画面的渲染
+     */
+    public void setSymmetry(boolean symmetry) {
+        mSymmetry = symmetry;
+    }
+
+    /**
+     * 开启后每个分块额外做一次逐像素计算，统计与矩形细分结果不同的像素数，仅用于调试
+     */
+    public void setVerifySubdivision(boolean verify) {
+        mVerifySubdivision = verify;
+    }
+
+    /**
+     * @return 本次渲染中实际迭代计算的像素数
+     */
+    public int getIteratedPixels() {
+        return mIteratedPixels.get();
+    }
+
+    /**
+     * @return 开启{@link #setVerifySubdivision(boolean)}时，本次渲染中与逐像素计算结果不同的像素数
+     */
+    public int getDifferentPixels() {
+        return mDifferentPixels.get();
+    }
+
+    /**
+     * @return 本次渲染实际执行的迭代次数
+     */
+    public long getIterations() {
+        return mIterations.get();
+    }
+
+    /**
+     * @return 本次渲染中由心形线/圆盘判断和周期检测省去的迭代次数
+     */
+    public long getSkippedIterations() {
+        return mSkippedIterations.get();
+    }
+
+    /**
+     * @return 从开始渲染到整个画面第一次全部填满所用的纳秒数，尚未填满时返回-1
+     */
+    public long getTimeToFirstFrame() {
+        long firstFrameTime = mFirstFrameTime;
+        return firstFrameTime == 0 ? -1 : firstFrameTime - mRenderStartTime;
+    }
+
+    /**
+     * @return 最近一次渲染从开始到所有分块完成所用的纳秒数，尚未完成时返回-1
+     */
+    public long getRenderTime() {
+        return mComplete ? mCompleteTime - mRenderStartTime : -1;
+    }
+
+    /**
+     * @return 最近一次渲染的所有分块是否都已经完成，失败的渲染不会完成，见{@link #getError()}
+     */
+    public boolean isComplete() {
+        return mComplete;
+    }
+
+    /**
+     * @return 最近一次渲染或抗锯齿中分块抛出的异常，没有时返回null
+     */
+    public Throwable getError() {
+        TileScheduler.Batch batch = mBatch;
+        return batch == null ? null : batch.getError();
+    }
+
+    /**
+     * @return 当前渲染的编号，每次开始新的渲染或取消时加1
+     */
+    public int getGeneration() {
+        return mGeneration.get();
+    }
+
+    /**
+     * @return 累计因为渲染被取消而丢弃结果的分块数
+     */
+    public int getDiscardedTiles() {
+        return mDiscardedTiles.get();
+    }
+
+    /**
+     * @return 为{@link #deepen}保存的z占用的字节数，见{@link OrbitBuffer}
+     */
+    public long getOrbitMemory() {
+        OrbitBuffer orbits = mOrbits;
+        return orbits == null ? 0 : orbits.getAllocatedBytes();
+    }
+
+    /**
+     * @return 各区域最近一次的每像素耗时，工作线程同时在更新
+     */
+    public CostMap getCostMap() {
+        return mCostMap;
+    }
+
+    /**
+     * @return 当前或最近一次渲染的统计，可以设置监听器定期接收，见{@link RenderMetrics}
+     */
+    public RenderMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * 取消当前的渲染和抗锯齿，不等待，可以在主线程调用。
+     * 之后完成的分块与新的编号不符，结果直接丢弃，不再回调listener；
+     * 已经在写入缓冲区的分块还会写完当前的一行或{@link FractalKernel#CANCEL_CHECK_INTERVAL}次迭代，
+     * 需要接着读写缓冲区时用{@link #awaitIdle()}等待它们退出
+     */
+    public void cancel() {
+        mGeneration.incrementAndGet();
+        FractalKernel kernel = mKernel;
+        if (kernel != null) {
+            kernel.cancel();
+        }
+        TileScheduler.Batch batch = mBatch;
+        if (batch != null) {
+            batch.cancel();
+        }
+        batch = mAntialiasBatch;
+        if (batch != null) {
+            batch.cancel();
+        }
+        mMetrics.cancel();
+    }
+
+    /**
+     * 挂起当前线程直到没有分块在写入缓冲区，不占用工作线程需要的CPU，通常1ms内即可返回。
+     * 中断不会提前返回，否则过时的分块可能还在写入；返回前恢复中断状态。
+     * 开始新的渲染、{@link #shift}和{@link #recolor}会自己等待，不要在主线程调用
+     *
+     * @return 等待的纳秒数
+     */
+    public long awaitIdle() {
+        long start = System.nanoTime();
+        boolean interrupted = false;
+        synchronized (mIdleLock) {
+            while (mActiveTasks.get() > 0) {
+                try {
+                    mIdleLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private void enterTask() {
+        mActiveTasks.incrementAndGet();
+    }
+
+    /**
+     * 先减少计数再加锁通知，等待的一方在锁内检查计数，不会错过最后一次通知
+     */
+    private void exitTask() {
+        if (mActiveTasks.decrementAndGet() == 0) {
+            synchronized (mIdleLock) {
+                mIdleLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * 取消上一次渲染并开始新的一次。同一个内核再次渲染时不取消它，只等待上一次的分块退出
+     *
+     * @param batch 使用{@link TileScheduler}时的调度批次，否则为null
+     * @return 本次渲染的编号
+     */
+    private int begin(FractalKernel kernel, TileScheduler.Batch batch) {
+        FractalKernel previous = mKernel;
+        if (previous != null && previous != kernel) {
+            previous.cancel();
+        }
+        TileScheduler.Batch previousBatch = mBatch;
+        if (previousBatch != null) {
+            previousBatch.cancel();
+        }
+        int generation = mGeneration.incrementAndGet();
+        awaitIdle();
+        mKernel = kernel;
+        mBatch = batch;
+        mSubdivisionSafe = kernel.isSubdivisionSafe();
+        mResumeLimit = 0;
+        mNextResumeLimit = 0;
+        mResumeFrom = 0;
+        resetStatistics();
+        return generation;
+    }
+
+    /**
+     * 在{@link #begin}之后调用，本次渲染为不发散的像素保存z，完成后可以{@link #deepen}
+     *
+     * @param previousLimit 保留已有的迭代次数时，它们的{@link #mResumeLimit}；重新计算整个画面时为0
+     */
+    private void prepareOrbits(FractalKernel kernel, int previousLimit, boolean incremental) {
+        if (!kernel.isResumable()) {
+            return;
+        }
+        int max = kernel.getIterateTimes();
+        if (incremental && previousLimit < max) {
+            // 已有的像素没有保存到这个上限的z
+            return;
+        }
+        if (mOrbits == null || (!incremental && mOrbits.getMaxBytes() != mOrbitMemoryLimit)) {
+            mOrbits = new OrbitBuffer(mWidth, mHeight, mOrbitMemoryLimit);
+        } else if (!incremental) {
+            // 所有像素都要重新计算，旧的z不会再被读取
+            mOrbits.clear();
+        }
+        if (incremental && previousLimit > max) {
+            // 已有的像素是在更高的上限下算出的，降到当前上限，保存的z已经不对应
+            for (int index = 0; index < mCounts.length; index++) {
+                if (mCounts[index] >= max) {
+                    mCounts[index] = max;
+                    mOrbits.set(index, FractalKernel.ORBIT_UNKNOWN, 0);
+                }
+            }
+        }
+        mNextResumeLimit = max;
+    }
+
+    private void complete() {
+        mCompleteTime = System.nanoTime();
+        mResumeLimit = mNextResumeLimit;
+        mComplete = true;
+        mMetrics.complete();
+    }
+
+    /**
+     * 整个画面第一次全部填满
+     */
+    private void firstFrame() {
+        mFirstFrameTime = System.nanoTime();
+        mMetrics.firstFrame();
+    }
+
+    /**
+     * executor是{@link TileScheduler}时统计它的线程利用率
+     */
+    private void attach(Executor executor) {
+        if (executor instanceof TileScheduler) {
+            mMetrics.attach((TileScheduler) executor);
+        }
+    }
+
+    private boolean isCurrent(FractalKernel kernel, int generation) {
+        return generation == mGeneration.get() && !kernel.isCancelled();
+    }
+
+    /**
+     * 在工作线程计算一个分块，step大于1时只计算采样点。
+     * 先登记为正在写入再检查是否过时，与{@link #cancel()}先作废再等待配合，取消返回后不会再有写入。
+     * 统计也在登记期间记录，不会算到下一次渲染里
+     *
+     * @return 结果是否属于当前的渲染，否则已经丢弃
+     */
+    private boolean renderTask(FractalKernel kernel, int generation, Tile tile, int step) {
+        return renderTask(kernel, generation, tile, step, null);
+    }
+
+    /**
+     * @param symmetry 不为null时同时复制tile在{@link Symmetry#getMirrored()}中的镜像
+     */
+    private boolean renderTask(FractalKernel kernel, int generation, Tile tile, int step, Symmetry symmetry) {
+        enterTask();
+        try {
+            if (isCurrent(kernel, generation)) {
+                long start = System.nanoTime();
+                long iterations = step > 1 ? renderSamples(kernel, tile, step) : renderTile(kernel, tile);
+                Tile mirrored = symmetry == null ? null : symmetry.mirror(tile);
+                if (mirrored != null && isCurrent(kernel, generation)) {
+                    copyMirror(kernel, symmetry, mirrored);
+                    mMetrics.recordMirrored(mirrored);
+                }
+                if (isCurrent(kernel, generation)) {
+                    mMetrics.recordTile(tile, System.nanoTime() - start, iterations);
+                } else {
+                    mMetrics.recordCancelled();
+                }
+            } else {
+                mMetrics.recordCancelled();
+            }
+        } finally {
+            exitTask();
+        }
+        if (isCurrent(kernel, generation)) {
+            return true;
+        }
+        mDiscardedTiles.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * 把target镜像位置上刚算好的结果复制到target，不重新迭代。
+     * 渐进渲染的粗糙遍只复制已经采样的像素，其余仍是未计算。
+     * 共轭镜像的像素收敛到共轭的根，记录根的内核换成共轭的根后重新着色
+     */
+    private void copyMirror(FractalKernel kernel, Symmetry symmetry, Tile target) {
+        OrbitBuffer orbits = mNextResumeLimit > 0 ? mOrbits : null;
+        boolean conjugate = symmetry.isConjugate();
+        boolean roots = conjugate && kernel.recordsRoots();
+        for (int j = target.top; j < target.bottom; j++) {
+            int sourceRow = symmetry.mirrorRow(j) * mWidth;
+            for (int i = target.left, index = j * mWidth + i; i < target.right; i++, index++) {
+                int source = sourceRow + symmetry.mirrorColumn(i);
+                int k = mCounts[source];
+                float magnitude = mMagnitudes[source];
+                mCounts[index] = k;
+                if (roots && magnitude < 0) {
+                    magnitude = kernel.conjugateMagnitude(magnitude);
+                    mPixels[index] = getColor(kernel, k, magnitude);
+                } else {
+                    mPixels[index] = mPixels[source];
+                }
+                mMagnitudes[index] = magnitude;
+                if (orbits != null) {
+                    double zi = orbits.getImag(source);
+                    orbits.set(index, orbits.getReal(source), conjugate ? -zi : zi);
+                }
+            }
+        }
+    }
+
+    /**
+     * 整个画面中需要计算的区域，可以由镜像得到的部分已经去掉
+     *
+     * @param symmetry 为null时返回整个画面
+     */
+    private List<Tile> fullScreen(Symmetry symmetry) {
+        Tile full = new Tile(0, 0, mWidth, mHeight);
+        return symmetry == null ? Collections.singletonList(full) : symmetry.subtract(full);
+    }
+
+    private Symmetry symmetryOf(FractalKernel kernel) {
+        return mSymmetry ? Symmetry.of(kernel) : null;
+    }
+
+    /**
+     * 回调计算完成的r和同时复制出的镜像区域
+     */
+    private static void notifyRendered(OnTileRenderedListener listener, Symmetry symmetry, Tile r) {
+        if (listener == null) {
+            return;
+        }
+        listener.onTileRendered(r);
+        Tile mirrored = symmetry == null ? null : symmetry.mirror(r);
+        if (mirrored != null) {
+            listener.onTileRendered(mirrored);
+        }
+    }
+
+    private void resetStatistics() {
+        mIteratedPixels.set(0);
+        mDifferentPixels.set(0);
+        mIterations.set(0);
+        mSkippedIterations.set(0);
+        mFirstFrameTime = 0;
+        mComplete = false;
+        mRenderStartTime = System.nanoTime();
+        mMetrics.begin();
+    }
+
+    /**
+     * 每个分块作为一个任务提交给executor，完成后在工作线程回调listener
+     */
+    public void render(FractalKernel kernel, List<Tile> tiles, Executor executor, OnTileRenderedListener listener) {
+        int generation = begin(kernel, null);
+        prepareOrbits(kernel, 0, false);
+        Arrays.fill(mCounts, -1);
+        renderTiles(kernel, generation, tiles, executor, listener);
+    }
+
+    /**
+     * 只计算tiles中尚未计算的像素，已有的迭代次数保持不变，用于平移后补全露出的区域
+     *
+     * @see #shift(int, int)
+     */
+    public void renderIncremental(FractalKernel kernel, List<Tile> tiles, Executor executor,
+                                  OnTileRenderedListener listener) {
+        int previousLimit = mResumeLimit;
+        int generation = begin(kernel, null);
+        prepareOrbits(kernel, previousLimit, true);
+        renderTiles(kernel, generation, tiles, executor, listener);
+    }
+
+    private void renderTiles(final FractalKernel kernel, final int generation, List<Tile> tiles, Executor executor,
+                             final OnTileRenderedListener listener) {
+        attach(executor);
+        final AtomicInteger remaining = new AtomicInteger(tiles.size());
+        for (final Tile tile : tiles) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!renderTask(kernel, generation, tile, 1)) {
+                        return;
+                    }
+                    boolean last = remaining.decrementAndGet() == 0;
+                    if (last) {
+                        firstFrame();
+                    }
+                    if (listener != null) {
+                        listener.onTileRendered(tile);
+                    }
+                    if (last) {
+                        complete();
+                    }
+                }
+            });
+        }
+        if (tiles.isEmpty()) {
+            firstFrame();
+            complete();
+        }
+    }
+
+    /**
+     * 渲染整个画面，由scheduler按代价切分，从中心向外计算
+     *
+     * @return 本次渲染，可以取消
+     */
+    public TileScheduler.Batch render(FractalKernel kernel, TileScheduler scheduler, OnTileRenderedListener listener) {
+        TileScheduler.Batch batch = new TileScheduler.Batch();
+        int generation = begin(kernel, batch);
+        prepareOrbits(kernel, 0, false);
+        Arrays.fill(mCounts, -1);
+        scheduleTiles(kernel, generation, batch, symmetryOf(kernel), scheduler, listener);
+        return batch;
+    }
+
+    /**
+     * 与{@link #renderIncremental(FractalKernel, List, Executor, OnTileRenderedListener)}相同，
+     * 但regions由scheduler按代价切分
+     */
+    public TileScheduler.Batch renderIncremental(FractalKernel kernel, List<Tile> regions,
+                                                 TileScheduler scheduler, OnTileRenderedListener listener) {
+        TileScheduler.Batch batch = new TileScheduler.Batch();
+        int previousLimit = mResumeLimit;
+        int generation = begin(kernel, batch);
+        prepareOrbits(kernel, previousLimit, true);
+        scheduleTiles(kernel, generation, batch, regions, null, scheduler, listener);
+        return batch;
+    }
+
+    /**
+     * 以kernel的迭代上限重新渲染上一次的画面，不重新计算已经确定的像素：
+     * 提高上限时只从保存的z继续上次达到上限仍未发散的像素，降低上限时不做任何迭代，只重新着色。
+     * 调用前必须{@link #canDeepen}，否则用{@link #render(FractalKernel, TileScheduler, OnTileRenderedListener)}
+     *
+     * @return 本次渲染，可以取消；取消后不能再继续，下次要重新渲染
+     */
+    public TileScheduler.Batch deepen(FractalKernel kernel, TileScheduler scheduler, OnTileRenderedListener listener) {
+        if (!canDeepen(kernel)) {
+            throw new IllegalStateException("previous render can not be resumed");
+        }
+        int from = mResumeLimit;
+        TileScheduler.Batch batch = new TileScheduler.Batch();
+        int generation = begin(kernel, batch);
+        mResumeFrom = from;
+        // 降低上限时保留更深的迭代次数，超过上限的像素着色时当作不发散
+        mNextResumeLimit = Math.max(from, kernel.getIterateTimes());
+        scheduleTiles(kernel, generation, batch, symmetryOf(kernel), scheduler, listener);
+        return batch;
+    }
+
+    /**
+     * 对kernel已经渲染完成的画面做自适应超采样：选出与相邻像素差异大的像素，在工作线程中重新采样并着色，
+     * 每个区域完成后回调listener。迭代次数不变，之后{@link #recolor}或重新渲染会丢掉抗锯齿的结果。
+     * 要在kernel的所有分块都已回调之后调用，上一次抗锯齿会先被取消
+     *
+     * @return 本次抗锯齿，可以取消；kernel已经不是当前的渲染时返回null
+     */
+    public TileScheduler.Batch antialias(final FractalKernel kernel, final Supersampler sampler,
+                                         TileScheduler scheduler, final OnTileRenderedListener listener) {
+        cancelAntialias();
+        final int generation = mGeneration.get();
+        if (kernel != mKernel || !isCurrent(kernel, generation)) {
+            return null;
+        }
+        final Supersampler.Selection selection = sampler.select(mCounts, mPixels, mWidth, mHeight,
+                kernel.getIterateTimes());
+        mSelection = selection;
+        mAntialiasIterations.set(0);
+        if (mAntialiasCostMap == null) {
+            mAntialiasCostMap = new CostMap(mWidth, mHeight);
+        }
+        final TileScheduler.Batch batch = new TileScheduler.Batch();
+        // 新的渲染或cancel()同样会取消这一遍
+        mBatch = batch;
+        mAntialiasBatch = batch;
+        if (selection.getSelected() == 0) {
+            return batch;
+        }
+        final Coloring coloring = mColoring;
+        scheduler.schedule(batch, Collections.singletonList(new Tile(0, 0, mWidth, mHeight)), mWidth / 2,
+                mHeight / 2, mAntialiasCostMap, new TileScheduler.RegionJob() {
+                    @Override
+                    public void render(Tile r) {
+                        enterTask();
+                        try {
+                            if (batch.isCancelled() || !isCurrent(kernel, generation)) {
+                                return;
+                            }
+                            IterationCounter counter = new IterationCounter();
+                            sampler.refine(kernel, coloring, selection, mPixels, mWidth, r, counter);
+                            mAntialiasIterations.addAndGet(counter.iterations);
+                        } finally {
+                            exitTask();
+                        }
+                        if (batch.isCancelled() || !isCurrent(kernel, generation)) {
+                            mDiscardedTiles.incrementAndGet();
+                        } else if (listener != null) {
+                            listener.onTileRendered(r);
+                        }
+                    }
+
+                    @Override
+                    public void onComplete() {
+                    }
+                });
+        return batch;
+    }
+
+    /**
+     * 取消正在进行的抗锯齿，等待正在写入的区域退出
+     */
+    public void cancelAntialias() {
+        TileScheduler.Batch batch = mAntialiasBatch;
+        if (batch != null) {
+            batch.cancel();
+            mAntialiasBatch = null;
+            awaitIdle();
+        }
+    }
+
+    /**
+     * @return 最近一次抗锯齿实际执行的迭代次数，不计入{@link #getIterations()}
+     */
+    public long getAntialiasIterations() {
+        return mAntialiasIterations.get();
+    }
+
+    /**
+     * @return 最近一次{@link #antialias}选出的像素，没有做过抗锯齿时返回null
+     */
+    public Supersampler.Selection getAntialiasSelection() {
+        return mSelection;
+    }
+
+    private void scheduleTiles(FractalKernel kernel, int generation, TileScheduler.Batch batch,
+                               Symmetry symmetry, TileScheduler scheduler, OnTileRenderedListener listener) {
+        scheduleTiles(kernel, generation, batch, fullScreen(symmetry), symmetry, scheduler, listener);
+    }
+
+    /**
+     * @param symmetry 不为null时regions中不含可以由镜像得到的部分，每个区域完成后复制它的镜像
+     */
+    private void scheduleTiles(final FractalKernel kernel, final int generation, TileScheduler.Batch batch,
+                               List<Tile> regions, final Symmetry symmetry, TileScheduler scheduler,
+                               final OnTileRenderedListener listener) {
+        mMetrics.attach(scheduler);
+        scheduler.schedule(batch, regions, mWidth / 2, mHeight / 2, mCostMap, new TileScheduler.RegionJob() {
+            @Override
+            public void render(Tile r) {
+                if (renderTask(kernel, generation, r, 1, symmetry)) {
+                    notifyRendered(listener, symmetry, r);
+                }
+            }
+
+            @Override
+            public void onComplete() {
+                if (isCurrent(kernel, generation)) {
+                    firstFrame();
+                    complete();
+                }
+            }
+        });
+    }
+
+    /**
+     * 用分块金字塔拼出整个画面：覆盖画面的每个金字塔分块作为一个任务，
+     * 缓存中已有的分块直接重采样，没有的先计算再放入缓存。
+     * 每个屏幕像素取所在金字塔分块中最近的像素
+     *
+     * @see TilePyramid#layout(FractalKernel)
+     */
+    public void renderPyramid(final FractalKernel kernel, final TilePyramid pyramid, Executor executor,
+                              final OnTileRenderedListener listener) {
+        final int generation = begin(kernel, null);
+        attach(executor);
+        mMetrics.attach(pyramid);
+        final TilePyramid.Layout layout = TilePyramid.layout(kernel);
+        final AtomicInteger remaining = new AtomicInteger(layout.getTileCount());
+        for (long ty = layout.y0; ty <= layout.y1; ty++) {
+            for (long tx = layout.x0; tx <= layout.x1; tx++) {
+                final long x = tx;
+                final long y = ty;
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        Tile tile = layout.screenTile(x, y);
+                        IterationCounter counter = new IterationCounter();
+                        enterTask();
+                        try {
+                            long start = System.nanoTime();
+                            int[] counts = isCurrent(kernel, generation)
+                                    ? pyramid.getTile(kernel, layout.level, x, y, counter) : null;
+                            if (counts != null && isCurrent(kernel, generation)) {
+                                for (int j = tile.top; j < tile.bottom; j++) {
+                                    int row = layout.tileRow(y, j) * TilePyramid.TILE_SIZE;
+                                    for (int i = tile.left, index = j * mWidth + tile.left; i < tile.right;
+                                         i++, index++) {
+                                        int k = counts[row + layout.tileColumn(x, i)];
+                                        mCounts[index] = k;
+                                        mMagnitudes[index] = 0;
+                                        mPixels[index] = getColor(kernel, k, 0);
+                                    }
+                                }
+                            }
+                            if (isCurrent(kernel, generation)) {
+                                mMetrics.recordTile(tile, System.nanoTime() - start, counter.iterations);
+                            } else {
+                                mMetrics.recordCancelled();
+                            }
+                        } finally {
+                            exitTask();
+                        }
+                        if (!isCurrent(kernel, generation)) {
+                            mDiscardedTiles.incrementAndGet();
+                            return;
+                        }
+                        mIterations.addAndGet(counter.iterations);
+                        mSkippedIterations.addAndGet(counter.skipped);
+                        boolean last = remaining.decrementAndGet() == 0;
+                        if (last) {
+                            firstFrame();
+                        }
+                        if (listener != null) {
+                            listener.onTileRendered(tile);
+                        }
+                        if (last) {
+                            complete();
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * 将已经渲染的像素和迭代次数整体平移(dx, dy)，露出的区域标记为未计算，像素清为透明。
+     * 调用前最近一次渲染必须已经完成，之后用{@link #renderIncremental}计算返回的分块
+     *
+     * @param dx 画面内容向右移动的像素数，可以为负
+     * @param dy 画面内容向下移动的像素数，可以为负
+     * @return 覆盖露出区域的分块；平移距离超过画面大小时返回整个画面
+     */
+    public List<Tile> shift(int dx, int dy) {
+        cancel();
+        awaitIdle();
+        List<Tile> tiles = new ArrayList<>();
+        if (Math.abs(dx) >= mWidth || Math.abs(dy) >= mHeight) {
+            clear(0, 0, mWidth, mHeight);
+            splitStrip(tiles, 0, 0, mWidth, mHeight);
+            return tiles;
+        }
+        if (dx == 0 && dy == 0) {
+            return tiles;
+        }
+        shiftBuffer(mPixels, dx, dy);
+        shiftBuffer(mCounts, dx, dy);
+        shiftBuffer(mMagnitudes, dx, dy);
+        if (mOrbits != null) {
+            mOrbits.shift(dx, dy);
+        }
+
+        // 露出的竖直条带占满整个高度，水平条带去掉与之重叠的部分
+        int stripLeft = dx > 0 ? 0 : mWidth + dx;
+        int stripRight = dx > 0 ? dx : mWidth;
+        int stripTop = dy > 0 ? 0 : mHeight + dy;
+        int stripBottom = dy > 0 ? dy : mHeight;
+        int restLeft = dx > 0 ? dx : 0;
+        int restRight = dx > 0 ? mWidth : mWidth + dx;
+        if (dx != 0) {
+            clear(stripLeft, 0, stripRight, mHeight);
+            splitStrip(tiles, stripLeft, 0, stripRight, mHeight);
+        }
+        if (dy != 0) {
+            clear(restLeft, stripTop, restRight, stripBottom);
+            splitStrip(tiles, restLeft, stripTop, restRight, stripBottom);
+        }
+        return tiles;
+    }
+
+    /**
+     * @param buffer 行长度为mWidth的基本类型数组
+     */
+    private void shiftBuffer(Object buffer, int dx, int dy) {
+        int length = mWidth - Math.abs(dx);
+        int srcX = dx > 0 ? 0 : -dx;
+        int dstX = dx > 0 ? dx : 0;
+        if (dy > 0) {
+            for (int j = mHeight - 1; j >= dy; j--) {
+                System.arraycopy(buffer, (j - dy) * mWidth + srcX, buffer, j * mWidth + dstX, length);
+            }
+        } else {
+            for (int j = 0; j < mHeight + dy; j++) {
+                System.arraycopy(buffer, (j - dy) * mWidth + srcX, buffer, j * mWidth + dstX, length);
+            }
+        }
+    }
+
+    private void clear(int left, int top, int right, int bottom) {
+        for (int j = top; j < bottom; j++) {
+            Arrays.fill(mCounts, j * mWidth + left, j * mWidth + right, -1);
+            Arrays.fill(mPixels, j * mWidth + left, j * mWidth + right, 0);
+        }
+    }
+
+    /**
+     * 沿较长的一边把条带切成不超过{@link #STRIP_TILE_SIZE}的分块
+     */
+    private static void splitStrip(List<Tile> tiles, int left, int top, int right, int bottom) {
+        if (right - left >= bottom - top) {
+            for (int x = left; x < right; x += STRIP_TILE_SIZE) {
+                tiles.add(new Tile(x, top, Math.min(x + STRIP_TILE_SIZE, right), bottom));
+            }
+        } else {
+            for (int y = top; y < bottom; y += STRIP_TILE_SIZE) {
+                tiles.add(new Tile(left, y, right, Math.min(y + STRIP_TILE_SIZE, bottom)));
+            }
+        }
+    }
+
+    /**
+     * 渐进渲染：先以{@link #COARSEST_STEP}为间隔采样整个画面，用采样值填充周围的方块，
+     * 每一遍间隔减半，只计算上一遍没有采样过的点，最后一遍得到完整分辨率的结果。
+     * 所有分块完成一遍之后才开始下一遍，保证尽快得到一幅完整(模糊)的画面
+     *
+     * @param passListener 每一遍全部完成时在工作线程回调，可以为null
+     */
+    public void renderProgressive(final FractalKernel kernel, final List<Tile> tiles, final Executor executor,
+                                  final OnTileRenderedListener listener, final OnPassRenderedListener passListener) {
+        int generation = begin(kernel, null);
+        prepareOrbits(kernel, 0, false);
+        Arrays.fill(mCounts, -1);
+        schedulePass(kernel, generation, tiles, executor, COARSEST_STEP, listener, passListener);
+    }
+
+    private void schedulePass(final FractalKernel kernel, final int generation, final List<Tile> tiles,
+                              final Executor executor, final int step, final OnTileRenderedListener listener,
+                              final OnPassRenderedListener passListener) {
+        attach(executor);
+        final AtomicInteger remaining = new AtomicInteger(tiles.size());
+        for (final Tile tile : tiles) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!renderTask(kernel, generation, tile, step)) {
+                        return;
+                    }
+                    if (listener != null) {
+                        listener.onTileRendered(tile);
+                    }
+                    if (remaining.decrementAndGet() == 0) {
+                        if (step == COARSEST_STEP) {
+                            firstFrame();
+                        }
+                        if (passListener != null) {
+                            passListener.onPassRendered(step);
+                        }
+                        if (step > 1) {
+                            schedulePass(kernel, generation, tiles, executor, step / 2, listener, passListener);
+                        } else {
+                            complete();
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * 与{@link #renderProgressive(FractalKernel, List, Executor, OnTileRenderedListener, OnPassRenderedListener)}
+     * 相同，但每一遍都把整个画面交给scheduler按代价切分
+     *
+     * @return 本次渲染的所有遍，可以取消
+     */
+    public TileScheduler.Batch renderProgressive(FractalKernel kernel, TileScheduler scheduler,
+                                                 OnTileRenderedListener listener,
+                                                 OnPassRenderedListener passListener) {
+        TileScheduler.Batch batch = new TileScheduler.Batch();
+        int generation = begin(kernel, batch);
+        prepareOrbits(kernel, 0, false);
+        Arrays.fill(mCounts, -1);
+        schedulePass(kernel, generation, scheduler, batch, COARSEST_STEP, listener, passListener);
+        return batch;
+    }
+
+    private void schedulePass(final FractalKernel kernel, final int generation, final TileScheduler scheduler,
+                              final TileScheduler.Batch batch, final int step,
+                              final OnTileRenderedListener listener, final OnPassRenderedListener passListener) {
+        mMetrics.attach(scheduler);
+        final Symmetry symmetry = symmetryOf(kernel);
+        List<Tile> regions = fullScreen(symmetry);
+        scheduler.schedule(batch, regions, mWidth / 2, mHeight / 2, mCostMap, new TileScheduler.RegionJob() {
+            @Override
+            public void render(Tile r) {
+                if (renderTask(kernel, generation, r, step, symmetry)) {
+                    notifyRendered(listener, symmetry, r);
+                }
+            }
+
+            @Override
+            public void onComplete() {
+                if (!isCurrent(kernel, generation)) {
+                    return;
+                }
+                if (step == COARSEST_STEP) {
+                    firstFrame();
+                }
+                if (passListener != null) {
+                    passListener.onPassRendered(step);
+                }
+                if (step > 1) {
+                    schedulePass(kernel, generation, scheduler, batch, step / 2, listener, passListener);
+                } else {
+                    complete();
+                }
+            }
+        });
+    }
+
+    /**
+     * 在当前线程依次渲染所有分块
+     */
+    public void renderSync(FractalKernel kernel, List<Tile> tiles) {
+        begin(kernel, null);
+        prepareOrbits(kernel, 0, false);
+        Arrays.fill(mCounts, -1);
+        for (Tile tile : tiles) {
+            renderAndRecord(kernel, tile, 1);
+        }
+        firstFrame();
+        complete();
+    }
+
+    /**
+     * 在当前线程依次完成渐进渲染的每一遍
+     */
+    public void renderProgressiveSync(FractalKernel kernel, List<Tile> tiles) {
+        begin(kernel, null);
+        prepareOrbits(kernel, 0, false);
+        Arrays.fill(mCounts, -1);
+        for (int step = COARSEST_STEP; step > 1; step /= 2) {
+            for (Tile tile : tiles) {
+                renderAndRecord(kernel, tile, step);
+            }
+            if (step == COARSEST_STEP) {
+                firstFrame();
+            }
+        }
+        for (Tile tile : tiles) {
+            renderAndRecord(kernel, tile, 1);
+        }
+        complete();
+    }
+
+    /**
+     * 在当前线程计算一个分块并记入统计
+     */
+    private void renderAndRecord(FractalKernel kernel, Tile tile, int step) {
+        long start = System.nanoTime();
+        long iterations = step > 1 ? renderSamples(kernel, tile, step) : renderTile(kernel, tile);
+        mMetrics.recordTile(tile, System.nanoTime() - start, iterations);
+    }
+
+    /**
+     * 计算分块内以step为间隔(相对分块左上角)的采样点，每个采样点填充右下方step x step的方块。
+     * 上一遍已经采样过的点直接使用
+     *
+     * @return 执行的迭代次数
+     */
+    private long renderSamples(FractalKernel kernel, Tile tile, int step) {
+        IterationCounter counter = new IterationCounter();
+        OrbitBuffer orbits = mNextResumeLimit > 0 ? mOrbits : null;
+        int iterated = 0;
+        for (int y = tile.top; y < tile.bottom; y += step) {
+            int blockBottom = Math.min(y + step, tile.bottom);
+            for (int x = tile.left; x < tile.right; x += step) {
+                int index = y * mWidth + x;
+                int k = mCounts[index];
+                if (k < 0) {
+                    k = kernel.iterate(x, y, counter);
+                    if (k == FractalKernel.CANCELLED) {
+                        return counter.iterations;
+                    }
+                    FractalKernel.store(mCounts, mMagnitudes, orbits, index, k, kernel.getIterateTimes(), counter);
+                    iterated++;
+                }
+                int color = getColor(kernel, k, mMagnitudes[index]);
+                int blockRight = Math.min(x + step, tile.right);
+                for (int j = y; j < blockBottom; j++) {
+                    Arrays.fill(mPixels, j * mWidth + x, j * mWidth + blockRight, color);
+                }
+            }
+        }
+        mIteratedPixels.addAndGet(iterated);
+        mIterations.addAndGet(counter.iterations);
+        mSkippedIterations.addAndGet(counter.skipped);
+        return counter.iterations;
+    }
+
+    /**
+     * @return 执行的迭代次数
+     */
+    private long renderTile(FractalKernel kernel, Tile tile) {
+        IterationCounter counter = new IterationCounter();
+        OrbitBuffer orbits = mNextResumeLimit > 0 ? mOrbits : null;
+        if (mResumeFrom > 0) {
+            if (kernel.getIterateTimes() <= mResumeFrom) {
+                // 降低上限，所有像素都已确定
+                colorTile(kernel, tile);
+                return 0;
+            }
+            // 没有保存z的像素(矩形细分填充的内部)变为未计算，接着按普通的方式计算
+            mIteratedPixels.addAndGet(kernel.resume(mCounts, mMagnitudes, mOrbits, mWidth, tile, mResumeFrom,
+                    counter));
+        }
+        if (mSubdivision && mSubdivisionSafe) {
+            mIteratedPixels.addAndGet(MarianiSilver.render(kernel, mCounts, mMagnitudes, orbits, mWidth, tile,
+                    counter));
+            if (mVerifySubdivision && !kernel.isCancelled()) {
+                mDifferentPixels.addAndGet(MarianiSilver.countDifferences(kernel, tile));
+            }
+        } else {
+            mIteratedPixels.addAndGet(kernel.iterate(mCounts, mMagnitudes, orbits, mWidth, tile, counter));
+        }
+        if (!kernel.isCancelled()) {
+            colorTile(kernel, tile);
+        }
+        mIterations.addAndGet(counter.iterations);
+        mSkippedIterations.addAndGet(counter.skipped);
+        return counter.iterations;
+    }
+
+    private void colorTile(FractalKernel kernel, Tile tile) {
+        for (int j = tile.top; j < tile.bottom; j++) {
+            for (int index = j * mWidth + tile.left, end = j * mWidth + tile.right; index < end; index++) {
+                mPixels[index] = getColor(kernel, mCounts[index], mMagnitudes[index]);
+            }
+        }
+    }
+
+    private int getColor(FractalKernel kernel, int k, float magnitude) {
+        Coloring coloring = mColoring;
+        if (coloring != null) {
+            return coloring.getColor(k, magnitude, kernel.getIterateTimes());
+        }
+        // 降低上限后保留了更深的迭代次数
+        return kernel.getColor(Math.min(k, kernel.getIterateTimes()));
+    }
+
+    public interface OnTileRenderedListener {
+        /**
+         * 在工作线程调用，此时tile区域内的像素已经写入{@link #getPixels()}
+         */
+        void onTileRendered(Tile tile);
+    }
+
+    public interface OnPassRenderedListener {
+        /**
+         * 渐进渲染的一遍全部完成时在工作线程调用
+         *
+         * @param step 这一遍的采样间隔，1表示已经是完整分辨率
+         */
+        void onPassRendered(int step);
+    }
+}
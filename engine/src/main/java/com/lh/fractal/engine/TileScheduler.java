@@ -0,0 +1,422 @@
+package com.lh.fractal.engine;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 工作窃取的分块调度器
+ * <p>
+ * 每个工作线程有自己的双端队列，从队尾取最近放入的任务，空闲时从其他线程的队首窃取最早放入(通常也是最大)的任务。
+ * 用{@link #schedule}提交的区域在执行时按{@link CostMap}估计的代价递归对半切分：
+ * 靠近画面中心的一半立即计算，另一半放回队列等待自己或其他线程处理，因此画面从中心向外填充，
+ * 耗时的区域会被切得更细，最后不会只剩一两个线程在计算慢的分块。
+ * 有线程空闲时也会切分较小的区域喂给它们。
+ * <p>
+ * 切分位置对齐到{@link #ALIGNMENT}，渐进渲染各遍的采样网格在相邻区域之间保持一致
+ */
+
+public class TileScheduler implements Executor {
+
+    /**
+     * 切分位置对齐到该值的整数倍，与{@link TileRenderer#COARSEST_STEP}相同
+     */
+    public static final int ALIGNMENT = TileRenderer.COARSEST_STEP;
+
+    /**
+     * 区域的边长小于该值的两倍时不再切分
+     */
+    private static final int MIN_SIZE = 16;
+    /**
+     * 还没有代价观测时，面积超过该值的区域先切分
+     */
+    private static final int INITIAL_AREA = 64 * 64;
+    /**
+     * 估计耗时超过该值的区域一定切分
+     */
+    private static final long TARGET_TASK_NANOS = 2000000;
+    /**
+     * 有线程空闲时，估计耗时超过该值的区域也切分
+     */
+    private static final long MIN_SPLIT_NANOS = 200000;
+
+    private final Worker[] mWorkers;
+    private final Object mSignal = new Object();
+    private volatile int mIdleWorkers;
+    private volatile boolean mShutdown;
+    private final AtomicInteger mNextWorker = new AtomicInteger();
+
+    /**
+     * @param parallelism 工作线程数
+     */
+    public TileScheduler(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+        }
+        mWorkers = new Worker[parallelism];
+        for (int i = 0; i < parallelism; i++) {
+            mWorkers[i] = new Worker(i);
+        }
+        for (Worker worker : mWorkers) {
+            worker.start();
+        }
+    }
+
+    public int getParallelism() {
+        return mWorkers.length;
+    }
+
+    /**
+     * 作为普通线程池使用，任务不会被切分，但同样可以被空闲的线程窃取
+     */
+    @Override
+    public void execute(final Runnable command) {
+        push(new Task() {
+            @Override
+            void run(Worker worker) {
+                command.run();
+            }
+        });
+    }
+
+    /**
+     * 提交一组区域，全部计算完成后回调{@link RegionJob#onComplete()}
+     *
+     * @param batch   本次渲染，取消后尚未开始的区域直接跳过，也不再回调onComplete
+     * @param regions 需要计算的区域
+     * @param centerX 优先计算靠近该点的部分
+     * @param centerY 同上
+     * @param costMap 用于估计区域代价，计算完成的区域会记录实际耗时
+     * @param job     在工作线程计算切分后的每个区域
+     */
+    public void schedule(Batch batch, List<Tile> regions, int centerX, int centerY, CostMap costMap,
+                         RegionJob job) {
+        if (regions.isEmpty()) {
+            job.onComplete();
+            return;
+        }
+        Schedule schedule = new Schedule(batch, centerX, centerY, costMap, job, regions.size());
+        for (Tile region : regions) {
+            push(new RegionTask(schedule, region));
+        }
+    }
+
+    /**
+     * @return 工作线程worker执行任务的总纳秒数
+     */
+    public long getBusyTime(int worker) {
+        return mWorkers[worker].mBusyNanos;
+    }
+
+    /**
+     * @return 工作线程worker等待任务的总纳秒数
+     */
+    public long getIdleTime(int worker) {
+        return mWorkers[worker].mIdleNanos;
+    }
+
+    /**
+     * @return 工作线程worker从其他线程窃取的任务数
+     */
+    public int getStealCount(int worker) {
+        return mWorkers[worker].mSteals;
+    }
+
+    public void resetStatistics() {
+        for (Worker worker : mWorkers) {
+            worker.mBusyNanos = 0;
+            worker.mIdleNanos = 0;
+            worker.mSteals = 0;
+        }
+    }
+
+    /**
+     * 停止所有工作线程，队列中剩余的任务不再执行
+     */
+    public void shutdown() {
+        mShutdown = true;
+        synchronized (mSignal) {
+            mSignal.notifyAll();
+        }
+    }
+
+    private void push(Task task) {
+        Thread current = Thread.currentThread();
+        Worker target;
+        if (current instanceof Worker && ((Worker) current).mScheduler == this) {
+            target = (Worker) current;
+        } else {
+            target = mWorkers[(mNextWorker.getAndIncrement() & Integer.MAX_VALUE) % mWorkers.length];
+        }
+        synchronized (target.mDeque) {
+            target.mDeque.addLast(task);
+        }
+        synchronized (mSignal) {
+            mSignal.notifyAll();
+        }
+    }
+
+    private Task steal(Worker thief) {
+        int count = mWorkers.length;
+        for (int n = 1; n < count; n++) {
+            Worker victim = mWorkers[(thief.mIndex + n) % count];
+            Task task;
+            synchronized (victim.mDeque) {
+                task = victim.mDeque.pollFirst();
+            }
+            if (task != null) {
+                thief.mSteals++;
+                return task;
+            }
+        }
+        return null;
+    }
+
+    private boolean hasWork() {
+        for (Worker worker : mWorkers) {
+            synchronized (worker.mDeque) {
+                if (!worker.mDeque.isEmpty()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 从region开始，切下远离中心的一半放回队列，直到剩下的部分足够小，然后计算它
+     */
+    private void runRegion(Worker worker, Schedule schedule, Tile region) {
+        try {
+            Tile r = region;
+            while (!schedule.batch.isCancelled() && shouldSplit(schedule.costMap, r)) {
+                Tile[] halves = split(r, schedule.centerX, schedule.centerY);
+                if (halves == null) {
+                    break;
+                }
+                schedule.pending.incrementAndGet();
+                push(new RegionTask(schedule, halves[1]));
+                r = halves[0];
+            }
+            if (!schedule.batch.isCancelled()) {
+                long start = System.nanoTime();
+                schedule.job.render(r);
+                // 中途取消的区域耗时偏小，不记录
+                if (!schedule.batch.isCancelled()) {
+                    schedule.costMap.record(r, System.nanoTime() - start);
+                }
+            }
+        } catch (Throwable e) {
+            // 包括OutOfMemoryError、StackOverflowError等Error：缺了一块的画面不能算完成，
+            // 整批作废，剩下的区域跳过，不回调onComplete，调用方通过Batch#getError()得知失败
+            schedule.batch.fail(e);
+        } finally {
+            if (schedule.pending.decrementAndGet() == 0 && !schedule.batch.isCancelled()) {
+                schedule.job.onComplete();
+            }
+        }
+    }
+
+    private boolean shouldSplit(CostMap costMap, Tile r) {
+        if (Math.max(r.width(), r.height()) < 2 * MIN_SIZE) {
+            return false;
+        }
+        long estimate = costMap.estimate(r);
+        if (estimate < 0) {
+            return r.width() * r.height() > INITIAL_AREA;
+        }
+        return estimate > TARGET_TASK_NANOS || (mIdleWorkers > 0 && estimate > MIN_SPLIT_NANOS);
+    }
+
+    /**
+     * 沿较长的一边对半切分，切分位置对齐到{@link #ALIGNMENT}
+     *
+     * @return [靠近中心的一半, 另一半]，无法切分时返回null
+     */
+    static Tile[] split(Tile r, int centerX, int centerY) {
+        Tile first;
+        Tile second;
+        if (r.width() >= r.height()) {
+            int middle = (r.left + r.right) / 2 / ALIGNMENT * ALIGNMENT;
+            if (middle <= r.left || middle >= r.right) {
+                return null;
+            }
+            first = new Tile(r.left, r.top, middle, r.bottom);
+            second = new Tile(middle, r.top, r.right, r.bottom);
+            if (centerX >= middle) {
+                return new Tile[]{second, first};
+            }
+        } else {
+            int middle = (r.top + r.bottom) / 2 / ALIGNMENT * ALIGNMENT;
+            if (middle <= r.top || middle >= r.bottom) {
+                return null;
+            }
+            first = new Tile(r.left, r.top, r.right, middle);
+            second = new Tile(r.left, middle, r.right, r.bottom);
+            if (centerY >= middle) {
+                return new Tile[]{second, first};
+            }
+        }
+        return new Tile[]{first, second};
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("TileScheduler(");
+        for (Worker worker : mWorkers) {
+            if (worker.mIndex > 0) {
+                builder.append(", ");
+            }
+            builder.append("worker ").append(worker.mIndex)
+                    .append(": busy ").append(worker.mBusyNanos / 1000000).append("ms")
+                    .append(" idle ").append(worker.mIdleNanos / 1000000).append("ms")
+                    .append(" steals ").append(worker.mSteals);
+        }
+        return builder.append(")").toString();
+    }
+
+    /**
+     * 一次渲染，可以取消
+     */
+    public static class Batch {
+
+        private volatile boolean mCancelled;
+        private volatile Throwable mError;
+
+        public void cancel() {
+            mCancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        /**
+         * 某个区域计算时抛出异常，记录第一个异常并取消整批
+         */
+        void fail(Throwable e) {
+            if (mError == null) {
+                mError = e;
+            }
+            cancel();
+        }
+
+        /**
+         * @return 使批次失败的异常，没有时返回null；失败的批次不会回调{@link RegionJob#onComplete()}
+         */
+        public Throwable getError() {
+            return mError;
+        }
+    }
+
+    public interface RegionJob {
+        /**
+         * 在工作线程计算区域r
+         */
+        void render(Tile r);
+
+        /**
+         * 同一次{@link #schedule}提交的所有区域都完成时在工作线程调用
+         */
+        void onComplete();
+    }
+
+    private static final class Schedule {
+
+        final Batch batch;
+        final int centerX;
+        final int centerY;
+        final CostMap costMap;
+        final RegionJob job;
+        /**
+         * 尚未完成的区域数，切分时增加
+         */
+        final AtomicInteger pending;
+
+        Schedule(Batch batch, int centerX, int centerY, CostMap costMap, RegionJob job, int regions) {
+            this.batch = batch;
+            this.centerX = centerX;
+            this.centerY = centerY;
+            this.costMap = costMap;
+            this.job = job;
+            this.pending = new AtomicInteger(regions);
+        }
+    }
+
+    private abstract static class Task {
+        abstract void run(Worker worker);
+    }
+
+    private final class RegionTask extends Task {
+
+        private final Schedule mSchedule;
+        private final Tile mRegion;
+
+        RegionTask(Schedule schedule, Tile region) {
+            mSchedule = schedule;
+            mRegion = region;
+        }
+
+        @Override
+        void run(Worker worker) {
+            runRegion(worker, mSchedule, mRegion);
+        }
+    }
+
+    private final class Worker extends Thread {
+
+        final TileScheduler mScheduler = TileScheduler.this;
+        final int mIndex;
+        final ArrayDeque<Task> mDeque = new ArrayDeque<>();
+        volatile long mBusyNanos;
+        volatile long mIdleNanos;
+        volatile int mSteals;
+
+        Worker(int index) {
+            super("TileScheduler-" + index);
+            mIndex = index;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (!mShutdown) {
+                Task task;
+                synchronized (mDeque) {
+                    task = mDeque.pollLast();
+                }
+                if (task == null) {
+                    task = steal(this);
+                }
+                if (task == null) {
+                    long start = System.nanoTime();
+                    synchronized (mSignal) {
+                        mIdleWorkers++;
+                        try {
+                            if (!mShutdown && !hasWork()) {
+                                mSignal.wait();
+                            }
+                        } catch (InterruptedException e) {
+                            return;
+                        } finally {
+                            mIdleWorkers--;
+                        }
+                    }
+                    mIdleNanos += System.nanoTime() - start;
+                    continue;
+                }
+                long start = System.nanoTime();
+                try {
+                    task.run(this);
+                } catch (Throwable e) {
+                    // 与线程池一样交给未捕获异常的处理器报告，但工作线程继续执行其他任务，
+                    // 否则抛出Error的任务会让线程池永久少一个线程，只有一个线程时之后的渲染全部挂起
+                    getUncaughtExceptionHandler().uncaughtException(this, e);
+                } finally {
+                    mBusyNanos += System.nanoTime() - start;
+                }
+            }
+        }
+    }
+}
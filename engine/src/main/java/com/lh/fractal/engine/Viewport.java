@@ -0,0 +1,145 @@
+package com.lh.fractal.engine;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+
+/**
+ * 屏幕显示的复平面区域：高精度的中心坐标加上每个像素的大小
+ * 像素大小用double保存，缩放到1e-300仍然可以表示；中心用BigDecimal保存，平移和缩放不会丢失精度。
+ * 平移和缩放的运算方式跟随{@link #getPrecision()}：double足够时直接用double计算，否则用位数与缩放深度匹配的BigDecimal
+ */
+
+public class Viewport {
+
+    private final int mWidth;
+    private final int mHeight;
+    private BigDecimal mCenterX = BigDecimal.ZERO;
+    private BigDecimal mCenterY = BigDecimal.ZERO;
+    private double mPixelSize;
+
+    public Viewport(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+    }
+
+    public Viewport(Viewport viewport) {
+        mWidth = viewport.mWidth;
+        mHeight = viewport.mHeight;
+        mCenterX = viewport.mCenterX;
+        mCenterY = viewport.mCenterY;
+        mPixelSize = viewport.mPixelSize;
+    }
+
+    /**
+     * 以原点为中心，实部范围为[-halfWidth, halfWidth]
+     */
+    public void reset(double halfWidth) {
+        mCenterX = BigDecimal.ZERO;
+        mCenterY = BigDecimal.ZERO;
+        mPixelSize = 2 * halfWidth / mWidth;
+    }
+
+    public void set(BigDecimal centerX, BigDecimal centerY, double pixelSize) {
+        mCenterX = centerX;
+        mCenterY = centerY;
+        mPixelSize = pixelSize;
+    }
+
+    /**
+     * 视野在屏幕坐标中移动(dx, dy)个像素，画面内容向相反方向移动
+     */
+    public void translate(double dx, double dy) {
+        if (!isDeep()) {
+            mCenterX = new BigDecimal(mCenterX.doubleValue() + dx * mPixelSize);
+            mCenterY = new BigDecimal(mCenterY.doubleValue() - dy * mPixelSize);
+            return;
+        }
+        MathContext mc = getMathContext();
+        mCenterX = mCenterX.add(new BigDecimal(dx * mPixelSize), mc);
+        mCenterY = mCenterY.subtract(new BigDecimal(dy * mPixelSize), mc);
+    }
+
+    /**
+     * 以屏幕上的点(x, y)为中心缩放，该点对应的复数保持不变
+     *
+     * @param scale 像素大小的倍数，小于1时放大
+     */
+    public void scale(double scale, double x, double y) {
+        double factor = (1 - scale) * mPixelSize;
+        mPixelSize *= scale;
+        if (!isDeep()) {
+            mCenterX = new BigDecimal(mCenterX.doubleValue() + (x - mWidth / 2.0) * factor);
+            mCenterY = new BigDecimal(mCenterY.doubleValue() - (y - mHeight / 2.0) * factor);
+            return;
+        }
+        MathContext mc = getMathContext();
+        mCenterX = mCenterX.add(new BigDecimal((x - mWidth / 2.0) * factor), mc);
+        mCenterY = mCenterY.subtract(new BigDecimal((y - mHeight / 2.0) * factor), mc);
+    }
+
+    /**
+     * @return 足够区分相邻像素的有效数字位数
+     */
+    public MathContext getMathContext() {
+        double magnitude = Math.max(1, Math.max(Math.abs(mCenterX.doubleValue()), Math.abs(mCenterY.doubleValue())));
+        int digits = (int) Math.ceil(Math.log10(magnitude / mPixelSize)) + 10;
+        return new MathContext(Math.max(20, digits));
+    }
+
+    /**
+     * @return 能正确计算当前画面的最便宜的精度，{@link Precision}中的常量
+     */
+    public int getPrecision() {
+        double magnitude = Math.max(1, Math.max(Math.abs(mCenterX.doubleValue()), Math.abs(mCenterY.doubleValue())));
+        return Precision.choose(mPixelSize / magnitude);
+    }
+
+    /**
+     * @return double是否已经不足以表示相邻像素的差别
+     */
+    public boolean isDeep() {
+        return getPrecision() > Precision.DOUBLE;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public BigDecimal getCenterX() {
+        return mCenterX;
+    }
+
+    public BigDecimal getCenterY() {
+        return mCenterY;
+    }
+
+    public double getPixelSize() {
+        return mPixelSize;
+    }
+
+    public double getMinX() {
+        return mCenterX.doubleValue() - mWidth / 2.0 * mPixelSize;
+    }
+
+    public double getMaxX() {
+        return mCenterX.doubleValue() + mWidth / 2.0 * mPixelSize;
+    }
+
+    public double getMinY() {
+        return mCenterY.doubleValue() - mHeight / 2.0 * mPixelSize;
+    }
+
+    public double getMaxY() {
+        return mCenterY.doubleValue() + mHeight / 2.0 * mPixelSize;
+    }
+
+    @Override
+    public String toString() {
+        return "Viewport(" + mCenterX.round(new MathContext(20)) + ", " + mCenterY.round(new MathContext(20))
+                + ", pixel " + mPixelSize + ")";
+    }
+}
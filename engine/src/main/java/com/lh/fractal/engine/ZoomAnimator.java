@@ -0,0 +1,403 @@
+package com.lh.fractal.engine;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.Deflater;
+
+/**
+ * 向一点放大的动画，输出为编号的PNG序列。
+ * 画面宽度每缩小{@link #KEYFRAME_ZOOM}倍只渲染一个关键帧，关键帧的分辨率是输出的{@link #KEYFRAME_ZOOM}倍，
+ * 两个关键帧之间的帧都由前一个关键帧的中间部分重采样得到，每个输出像素至少对应一个关键帧像素。
+ * 深度缩放时所有关键帧共用最深一帧的参考轨道，不再逐帧用任意精度计算。
+ * <p>
+ * 同一时间最多保留两个关键帧：工作线程渲染下一个关键帧的同时，其他线程并行重采样和编码上一个关键帧的各帧
+ */
+
+public class ZoomAnimator {
+
+    /**
+     * 相邻关键帧的缩放倍数，同时也是关键帧相对输出的分辨率倍数
+     */
+    public static final int KEYFRAME_ZOOM = 2;
+
+    private final TileScheduler mScheduler;
+    private Coloring mColoring;
+    private int mIterateTimes;
+    private int mCompressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private String mFileNamePattern = "frame%05d.png";
+    private OnFrameWrittenListener mListener;
+
+    private volatile boolean mCancelled;
+    private volatile FractalKernel mKernel;
+    private int mKeyframes;
+    private int mSharedReferences;
+    private long mIterations;
+    private long mRenderTime;
+    private long mElapsedTime;
+    private final AtomicInteger mFramesWritten = new AtomicInteger();
+
+    /**
+     * @param scheduler 渲染关键帧和编码各帧的线程池，由调用者关闭
+     */
+    public ZoomAnimator(TileScheduler scheduler) {
+        mScheduler = scheduler;
+    }
+
+    /**
+     * @param coloring 各帧共用的着色方式，不能为null；直方图均衡按每个关键帧分别统计，画面会闪烁
+     */
+    public void setColoring(Coloring coloring) {
+        mColoring = coloring;
+    }
+
+    /**
+     * @param times 所有关键帧的迭代上限，0表示按每个关键帧的缩放深度选择，见{@link IterationBudget#forZoom}
+     */
+    public void setIterateTimes(int times) {
+        mIterateTimes = times;
+    }
+
+    /**
+     * @param level 0到9，见{@link Deflater}
+     */
+    public void setCompressionLevel(int level) {
+        mCompressionLevel = level;
+    }
+
+    /**
+     * @param pattern 由帧的编号生成文件名，默认"frame%05d.png"
+     */
+    public void setFileNamePattern(String pattern) {
+        mFileNamePattern = pattern;
+    }
+
+    public void setOnFrameWrittenListener(OnFrameWrittenListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @return 上次渲染的关键帧数
+     */
+    public int getKeyframes() {
+        return mKeyframes;
+    }
+
+    /**
+     * @return 上次渲染中直接使用了共享参考轨道的关键帧数
+     */
+    public int getSharedReferences() {
+        return mSharedReferences;
+    }
+
+    /**
+     * @return 上次渲染关键帧实际执行的迭代次数
+     */
+    public long getIterations() {
+        return mIterations;
+    }
+
+    /**
+     * @return 上次渲染中等待关键帧渲染完成的纳秒数
+     */
+    public long getRenderTime() {
+        return mRenderTime;
+    }
+
+    /**
+     * @return 上次渲染的总纳秒数
+     */
+    public long getElapsedTime() {
+        return mElapsedTime;
+    }
+
+    public int getFramesWritten() {
+        return mFramesWritten.get();
+    }
+
+    /**
+     * @return 上次渲染平均每分钟写出的帧数
+     */
+    public double getFramesPerMinute() {
+        return mElapsedTime == 0 ? 0 : mFramesWritten.get() * 60e9 / mElapsedTime;
+    }
+
+    /**
+     * 停止正在进行的渲染，{@link #render}抛出{@link CancellationException}
+     */
+    public void cancel() {
+        mCancelled = true;
+        FractalKernel kernel = mKernel;
+        if (kernel != null) {
+            kernel.cancel();
+        }
+    }
+
+    /**
+     * 从startWidth放大到endWidth，画面宽度按帧等比变化，写出frames个width x height的PNG
+     *
+     * @param startWidth 第一帧的实部宽度
+     * @param endWidth   最后一帧的实部宽度，小于startWidth
+     * @param directory  输出目录，必须已经存在
+     * @throws CancellationException 调用了{@link #cancel()}
+     */
+    public void render(int mode, double re, double im, BigDecimal centerX, BigDecimal centerY, double startWidth,
+                       double endWidth, int width, int height, int frames, File directory)
+            throws IOException, InterruptedException {
+        if (frames < 1 || !(endWidth > 0) || endWidth > startWidth) {
+            throw new IllegalArgumentException("invalid zoom from " + startWidth + " to " + endWidth
+                    + " in " + frames + " frames");
+        }
+        if (mColoring == null) {
+            throw new IllegalStateException("coloring is not set");
+        }
+        long start = System.nanoTime();
+        mCancelled = false;
+        mIterations = 0;
+        mRenderTime = 0;
+        mSharedReferences = 0;
+        mFramesWritten.set(0);
+        // 关键帧的宽高取偶数，画面中心正好落在像素上，深度缩放时才能共用参考轨道
+        int keyWidth = (width * KEYFRAME_ZOOM + 1) & ~1;
+        int keyHeight = (height * KEYFRAME_ZOOM + 1) & ~1;
+        mKeyframes = 0;
+        double ratio = frames > 1 ? Math.pow(endWidth / startWidth, 1.0 / (frames - 1)) : 1;
+
+        PerturbationKernel reference = null;
+        Keyframe[] slots = {new Keyframe(keyWidth, keyHeight), new Keyframe(keyWidth, keyHeight)};
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        int frame = 0;
+        try {
+            while (frame < frames) {
+                // 每一帧放大太多时中间的关键帧没有帧使用，直接跳过
+                int m = keyframeOf(startWidth, frameWidth(startWidth, endWidth, ratio, frames, frame));
+                Keyframe slot = slots[mKeyframes++ % 2];
+                // 等上上个关键帧的各帧写完，再覆盖它的缓冲
+                slot.await();
+                checkError(error);
+                double keyViewWidth = startWidth / Math.pow(KEYFRAME_ZOOM, m);
+                Viewport viewport = new Viewport(keyWidth, keyHeight);
+                viewport.set(centerX, centerY, keyViewWidth / keyWidth);
+                int limit = mIterateTimes > 0 ? mIterateTimes : IterationBudget.forZoom(keyViewWidth);
+                FractalKernel kernel;
+                if (viewport.getPrecision() > Precision.DOUBLE) {
+                    // double不够时都用微扰，才能共用参考轨道
+                    if (reference == null) {
+                        reference = deepestReference(mode, re, im, centerX, centerY, startWidth, endWidth, keyWidth,
+                                keyHeight);
+                    }
+                    PerturbationKernel perturbation = new PerturbationKernel(mode, re, im, viewport, limit, mColoring);
+                    if (perturbation.shareReference(reference)) {
+                        mSharedReferences++;
+                    }
+                    kernel = perturbation;
+                } else {
+                    kernel = Precision.createKernel(mode, re, im, viewport, limit, mColoring);
+                }
+                renderKeyframe(kernel, slot.mRenderer);
+
+                // 宽度在(keyViewWidth / KEYFRAME_ZOOM, keyViewWidth]内的帧由这个关键帧得到
+                int first = frame;
+                while (frame < frames
+                        && keyframeOf(startWidth, frameWidth(startWidth, endWidth, ratio, frames, frame)) == m) {
+                    frame++;
+                }
+                slot.mPending = new CountDownLatch(frame - first);
+                for (int f = first; f < frame; f++) {
+                    submitFrame(slot, f, keyViewWidth / frameWidth(startWidth, endWidth, ratio, frames, f), width,
+                            height, directory, error);
+                }
+            }
+            for (Keyframe slot : slots) {
+                slot.await();
+            }
+            checkError(error);
+        } catch (InterruptedException | RuntimeException | IOException e) {
+            cancel();
+            throw e;
+        } finally {
+            mKernel = null;
+            mElapsedTime = System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * 最后一帧直接取endWidth，不受等比数列舍入误差的影响
+     */
+    private static double frameWidth(double startWidth, double endWidth, double ratio, int frames, int frame) {
+        return frame == frames - 1 ? endWidth : startWidth * Math.pow(ratio, frame);
+    }
+
+    /**
+     * @return 宽度为viewWidth的帧所用的关键帧编号
+     */
+    private static int keyframeOf(double startWidth, double viewWidth) {
+        // 略微放宽，避免等比数列的舍入误差让正好是整数倍的帧落到下一个关键帧
+        return (int) Math.floor(Math.log(startWidth / viewWidth) / Math.log(KEYFRAME_ZOOM) + 1e-9);
+    }
+
+    /**
+     * 最深的关键帧的内核，只用来计算共用的参考轨道：它的精度和迭代上限不低于任何一个关键帧
+     */
+    private PerturbationKernel deepestReference(int mode, double re, double im, BigDecimal centerX,
+                                                BigDecimal centerY, double startWidth, double endWidth,
+                                                int keyWidth, int keyHeight) {
+        double deepest = startWidth / Math.pow(KEYFRAME_ZOOM, keyframeOf(startWidth, endWidth));
+        Viewport viewport = new Viewport(keyWidth, keyHeight);
+        viewport.set(centerX, centerY, deepest / keyWidth);
+        int limit = mIterateTimes > 0 ? mIterateTimes : IterationBudget.forZoom(deepest);
+        return new PerturbationKernel(mode, re, im, viewport, limit, mColoring);
+    }
+
+    private void renderKeyframe(FractalKernel kernel, TileRenderer renderer) throws InterruptedException {
+        long start = System.nanoTime();
+        mKernel = kernel;
+        if (mCancelled) {
+            kernel.cancel();
+            throw new CancellationException();
+        }
+        final int area = renderer.getWidth() * renderer.getHeight();
+        final AtomicInteger rendered = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(1);
+        renderer.setColoring(mColoring);
+        renderer.render(kernel, mScheduler, new TileRenderer.OnTileRenderedListener() {
+            @Override
+            public void onTileRendered(Tile tile) {
+                if (rendered.addAndGet(tile.width() * tile.height()) == area) {
+                    done.countDown();
+                }
+            }
+        });
+        // 取消后不会再回调，定期检查
+        while (!done.await(100, TimeUnit.MILLISECONDS)) {
+            if (kernel.isCancelled()) {
+                throw new CancellationException();
+            }
+        }
+        if (mColoring.isGlobal()) {
+            renderer.recolor(mColoring, kernel.getIterateTimes());
+        }
+        mIterations += renderer.getIterations();
+        mRenderTime += System.nanoTime() - start;
+    }
+
+    private void submitFrame(final Keyframe slot, final int index, final double zoom, final int width,
+                             final int height, final File directory, final AtomicReference<Throwable> error) {
+        mScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (mCancelled || error.get() != null) {
+                        return;
+                    }
+                    TileRenderer renderer = slot.mRenderer;
+                    int[] pixels = new int[width * height];
+                    resample(renderer.getPixels(), renderer.getWidth(), renderer.getHeight(),
+                            renderer.getWidth() / (zoom * width), pixels, width, height);
+                    File file = new File(directory, String.format(Locale.US, mFileNamePattern, index));
+                    PngWriter writer = new PngWriter(new BufferedOutputStream(new FileOutputStream(file)),
+                            width, height, mCompressionLevel);
+                    for (int y = 0; y < height; y++) {
+                        writer.writeRow(pixels, y * width);
+                    }
+                    writer.close();
+                    mFramesWritten.incrementAndGet();
+                    OnFrameWrittenListener listener = mListener;
+                    if (listener != null) {
+                        listener.onFrameWritten(index, file);
+                    }
+                } catch (IOException | RuntimeException | Error e) {
+                    error.compareAndSet(null, e);
+                } finally {
+                    slot.mPending.countDown();
+                }
+            }
+        });
+    }
+
+    private static void checkError(AtomicReference<Throwable> error) throws IOException {
+        Throwable e = error.get();
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        } else if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        } else if (e != null) {
+            throw (Error) e;
+        }
+    }
+
+    /**
+     * 以源图像中心为中心缩小或放大，每个输出像素取2x2个双线性插值的平均
+     *
+     * @param scale 每个输出像素对应的源像素数
+     */
+    static void resample(int[] source, int sourceWidth, int sourceHeight, double scale, int[] target, int width,
+                         int height) {
+        double offset = scale / 4;
+        for (int y = 0; y < height; y++) {
+            double v = sourceHeight / 2 + (y - height / 2) * scale;
+            for (int x = 0; x < width; x++) {
+                double u = sourceWidth / 2 + (x - width / 2) * scale;
+                int a = 0;
+                int r = 0;
+                int g = 0;
+                int b = 0;
+                for (int s = 0; s < 4; s++) {
+                    int color = bilinear(source, sourceWidth, sourceHeight, u + ((s & 1) == 0 ? -offset : offset),
+                            v + ((s & 2) == 0 ? -offset : offset));
+                    a += color >>> 24;
+                    r += (color >> 16) & 0xff;
+                    g += (color >> 8) & 0xff;
+                    b += color & 0xff;
+                }
+                target[y * width + x] = (a + 2) / 4 << 24 | (r + 2) / 4 << 16 | (g + 2) / 4 << 8 | (b + 2) / 4;
+            }
+        }
+    }
+
+    private static int bilinear(int[] source, int width, int height, double u, double v) {
+        u = Math.max(0, Math.min(width - 1, u));
+        v = Math.max(0, Math.min(height - 1, v));
+        int x0 = Math.min((int) u, width - 2 < 0 ? 0 : width - 2);
+        int y0 = Math.min((int) v, height - 2 < 0 ? 0 : height - 2);
+        int x1 = Math.min(x0 + 1, width - 1);
+        int y1 = Math.min(y0 + 1, height - 1);
+        float tx = (float) (u - x0);
+        float ty = (float) (v - y0);
+        int top = Palette.lerp(source[y0 * width + x0], source[y0 * width + x1], tx);
+        int bottom = Palette.lerp(source[y1 * width + x0], source[y1 * width + x1], tx);
+        return Palette.lerp(top, bottom, ty);
+    }
+
+    /**
+     * 一个关键帧的渲染缓冲，等由它得到的帧全部写完后才能渲染下一个关键帧
+     */
+    private static final class Keyframe {
+
+        final TileRenderer mRenderer;
+        volatile CountDownLatch mPending = new CountDownLatch(0);
+
+        Keyframe(int width, int height) {
+            mRenderer = new TileRenderer(width, height);
+        }
+
+        void await() throws InterruptedException {
+            mPending.await();
+        }
+    }
+
+    public interface OnFrameWrittenListener {
+        /**
+         * 在工作线程回调，各帧不一定按顺序完成
+         */
+        void onFrameWritten(int index, File file);
+    }
+}
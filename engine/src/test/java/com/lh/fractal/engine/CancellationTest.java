@@ -0,0 +1,165 @@
+package com.lh.fractal.engine;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * 取消渲染：正在计算的分块要尽快退出，过时的结果不能写入缓冲区或回调
+ */
+public class CancellationTest {
+
+    private static final int WIDTH = 96;
+    private static final int HEIGHT = 64;
+
+    /**
+     * 取消到所有分块退出的目标时间。逐像素的循环每{@link FractalKernel#CANCEL_CHECK_INTERVAL}次迭代检查一次取消，
+     * 参考轨道的任意精度迭代每次都检查，多核上实测在0.1ms到0.3ms之间
+     */
+    private static final long CANCEL_TARGET_NANOS = 1000000;
+
+    /**
+     * 只有一个核时的目标时间，比{@link #CANCEL_TARGET_NANOS}多一个调度周期(约4ms)：工作线程、测试线程和JIT编译线程
+     * 轮流使用这个核，定点数的乘法和BigDecimal在前几秒里反复被重新编译，刚被取消的工作线程常要等编译线程用完
+     * 一个调度周期才能退出。单核上实测一半以上在0.3ms以内，其余集中在4ms附近。使用哪个目标写在断言的消息中
+     */
+    private static final long SINGLE_CORE_TARGET_NANOS = 5000000;
+
+    /**
+     * 每种精度测量的次数，断言取中位数：繁忙的CI机器上偶尔要多等一个调度周期，这种离群值由中位数吸收
+     */
+    private static final int CANCEL_SAMPLES = 5;
+
+    private static final ColorMapper IDENTITY = new ColorMapper() {
+        @Override
+        public int getColor(int k, int maxIterations) {
+            return k;
+        }
+    };
+
+    /**
+     * 每个像素都迭代到上限的画面。c = 0.25的Julia集：内部的点像1/n一样慢慢收敛到抛物不动点1/2，
+     * 周期检测等不到它收敛，Julia模式也没有心形线判断。微扰使用主心形线内部的深度画面，
+     * 画面中心的参考轨道要用BigDecimal迭代几秒，取消时工作线程正在计算它
+     */
+    private static FractalKernel slowKernel(int precision) {
+        Viewport viewport = new Viewport(WIDTH, HEIGHT);
+        if (precision == Precision.PERTURBATION) {
+            viewport.set(new BigDecimal("-0.1234567890123456789012345678901"),
+                    new BigDecimal("0.2345678901234567890123456789012"), 1e-32);
+            // 参考轨道按上限分配数组，不能用和其他精度一样大的上限
+            return Precision.createKernel(precision, FractalKernel.MODE_MANDELBROT, 0, 0, viewport, 1000000,
+                    IDENTITY);
+        }
+        viewport.reset(1.5);
+        return Precision.createKernel(precision, FractalKernel.MODE_JULIA, 0.25, 0, viewport, 100000000, IDENTITY);
+    }
+
+    private static long measureCancel(int precision) throws Exception {
+        TileScheduler scheduler = new TileScheduler(2);
+        try {
+            TileRenderer renderer = new TileRenderer(WIDTH, HEIGHT);
+            final AtomicInteger rendered = new AtomicInteger();
+            FractalKernel kernel = slowKernel(precision);
+            renderer.render(kernel, scheduler, new TileRenderer.OnTileRenderedListener() {
+                @Override
+                public void onTileRendered(Tile tile) {
+                    rendered.incrementAndGet();
+                }
+            });
+            // 等到边缘的分块完成，内部的分块还在计算
+            Thread.sleep(100);
+            // cancel()不等待，马上返回；之后的awaitIdle()量出分块退出用的时间
+            renderer.cancel();
+            assertTrue(kernel.isCancelled());
+            long waited = renderer.awaitIdle();
+
+            int renderedAtCancel = rendered.get();
+            Thread.sleep(50);
+            assertEquals("late tiles must be discarded", renderedAtCancel, rendered.get());
+            assertTrue(renderer.getDiscardedTiles() > 0);
+            assertFalse(renderer.isComplete());
+            return waited;
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void cancel_stopsRunningTilesPromptly() throws Exception {
+        int[] precisions = {Precision.DOUBLE, Precision.DOUBLE_DOUBLE, Precision.FIXED_POINT,
+                Precision.PERTURBATION};
+        boolean singleCore = Runtime.getRuntime().availableProcessors() < 2;
+        long target = singleCore ? SINGLE_CORE_TARGET_NANOS : CANCEL_TARGET_NANOS;
+        for (int precision : precisions) {
+            // 第一次运行时内核还在解释执行或者正在编译，不计入
+            measureCancel(precision);
+            long[] waited = new long[CANCEL_SAMPLES];
+            for (int i = 0; i < waited.length; i++) {
+                waited[i] = measureCancel(precision);
+            }
+            Arrays.sort(waited);
+            long median = waited[waited.length / 2];
+            assertTrue(Precision.getName(precision) + " waited " + Arrays.toString(waited) + "ns, median must be below "
+                            + target + "ns" + (singleCore ? " (single-core target)" : ""),
+                    median < target);
+        }
+    }
+
+    @Test
+    public void iterate_returnsCancelledAfterCancel() throws Exception {
+        FractalKernel kernel = new FractalKernel(FractalKernel.MODE_JULIA, -0.8, 0.156, -1.5, 1.5, -1, 1,
+                WIDTH, HEIGHT, 1000, IDENTITY);
+        assertTrue(kernel.iterate(WIDTH / 2, HEIGHT / 2) >= 0);
+        kernel.cancel();
+        assertEquals(FractalKernel.CANCELLED, kernel.iterate(WIDTH / 2, HEIGHT / 2));
+        // 由它派生的金字塔分块内核一起取消，不完整的分块不会进入缓存
+        assertTrue(kernel.withViewport(0, 1, 0, 1, 8, 8).isCancelled());
+        assertNull(TilePyramid.computeTile(kernel, 0, 0, 0, null));
+    }
+
+    @Test
+    public void newRender_afterCancelMatchesSync() throws Exception {
+        FractalKernel fast = new FractalKernel(FractalKernel.MODE_MANDELBROT, 0, 0, -2.2, 0.8, -1.125, 1.125,
+                WIDTH, HEIGHT, 512, IDENTITY);
+        TileRenderer sync = new TileRenderer(WIDTH, HEIGHT);
+        sync.renderSync(fast, Collections.singletonList(new Tile(0, 0, WIDTH, HEIGHT)));
+
+        TileScheduler scheduler = new TileScheduler(2);
+        try {
+            TileRenderer renderer = new TileRenderer(WIDTH, HEIGHT);
+            final AtomicInteger stale = new AtomicInteger();
+            renderer.render(slowKernel(Precision.DOUBLE_DOUBLE), scheduler, new TileRenderer.OnTileRenderedListener() {
+                @Override
+                public void onTileRendered(Tile tile) {
+                    stale.incrementAndGet();
+                }
+            });
+            Thread.sleep(50);
+            int staleAtRestart = stale.get();
+
+            // 新的渲染直接代替上一次，不需要先调用cancel
+            final CountDownLatch done = new CountDownLatch(1);
+            renderer.renderProgressive(fast, scheduler, null, new TileRenderer.OnPassRenderedListener() {
+                @Override
+                public void onPassRendered(int step) {
+                    if (step == 1) {
+                        done.countDown();
+                    }
+                }
+            });
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            assertEquals(staleAtRestart, stale.get());
+            assertArrayEquals(sync.getPixels(), renderer.getPixels());
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+}
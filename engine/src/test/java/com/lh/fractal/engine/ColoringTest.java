@@ -0,0 +1,96 @@
+package com.lh.fractal.engine;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * 保留迭代次数后重新着色，不重新迭代
+ */
+public class ColoringTest {
+
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+    private static final int MAX_ITERATIONS = 200;
+
+    private static final Palette PALETTE = Palette.gradient(32, 0xff000000, 0xff0000ff, 0xffffffff, 0xffff8000);
+
+    private static final List<Tile> FULL = Collections.singletonList(new Tile(0, 0, WIDTH, HEIGHT));
+
+    private static FractalKernel newKernel() {
+        return new FractalKernel(FractalKernel.MODE_MANDELBROT, 0, 0,
+                -2.5, 1, -1.3125, 1.3125, WIDTH, HEIGHT, MAX_ITERATIONS, new Coloring(PALETTE, Coloring.MODE_BANDED));
+    }
+
+    @Test
+    public void recolor_matchesFreshRender() throws Exception {
+        TileRenderer renderer = new TileRenderer(WIDTH, HEIGHT);
+        renderer.renderSync(newKernel(), FULL);
+
+        Coloring smooth = new Coloring(PALETTE, Coloring.MODE_SMOOTH);
+        renderer.recolor(smooth, MAX_ITERATIONS);
+        int[] recolored = renderer.getPixels().clone();
+
+        TileRenderer fresh = new TileRenderer(WIDTH, HEIGHT);
+        fresh.setColoring(smooth);
+        fresh.renderSync(newKernel(), FULL);
+        assertArrayEquals(fresh.getPixels(), recolored);
+    }
+
+    @Test
+    public void render_recordsEscapeMagnitude() throws Exception {
+        TileRenderer renderer = new TileRenderer(WIDTH, HEIGHT);
+        renderer.renderSync(newKernel(), FULL);
+        int[] counts = renderer.getCounts();
+        float[] magnitudes = renderer.getMagnitudes();
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] < MAX_ITERATIONS) {
+                assertTrue("pixel " + i + " escaped with |z|^2 " + magnitudes[i], magnitudes[i] > 16);
+            }
+        }
+    }
+
+    @Test
+    public void smooth_withinPreviousBand() throws Exception {
+        // 逃逸半径为4，刚发散时16 < |z|^2 <= 256
+        float previous = Coloring.smooth(10, 16.001f);
+        assertEquals(10, previous, 1e-3);
+        for (float magnitude = 17; magnitude <= 256; magnitude *= 1.2f) {
+            float value = Coloring.smooth(10, magnitude);
+            assertTrue(value >= 9 && value < 10);
+            // |z|越大说明逃逸得越早，连续值单调减小
+            assertTrue(value <= previous);
+            previous = value;
+        }
+    }
+
+    @Test
+    public void histogram_spreadsColors() throws Exception {
+        // 大部分像素集中在很少几个迭代次数上
+        int[] counts = new int[1000];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = i < 900 ? 1 + i % 3 : 4 + i % 50;
+        }
+        int[] banded = new int[counts.length];
+        int[] equalized = new int[counts.length];
+        new Coloring(PALETTE, Coloring.MODE_BANDED).apply(counts, null, banded, MAX_ITERATIONS);
+        new Coloring(PALETTE, Coloring.MODE_HISTOGRAM).apply(counts, null, equalized, MAX_ITERATIONS);
+
+        // 次数最多的像素分到调色板前部，最大的次数对应调色板末尾
+        assertEquals(PALETTE.getColor(PALETTE.size() - 1f), equalized[999]);
+        assertTrue(distinct(equalized) >= distinct(banded));
+    }
+
+    private static int distinct(int[] pixels) {
+        Set<Integer> set = new HashSet<>();
+        for (int pixel : pixels) {
+            set.add(pixel);
+        }
+        return set.size();
+    }
+}
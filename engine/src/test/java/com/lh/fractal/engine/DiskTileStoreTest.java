@@ -0,0 +1,190 @@
+package com.lh.fractal.engine;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * 磁盘分块存储的读写、重新打开、校验和淘汰
+ */
+public class DiskTileStoreTest {
+
+    private static final int TILE_INTS = TilePyramid.TILE_SIZE * TilePyramid.TILE_SIZE;
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = File.createTempFile("tiles", "");
+        assertTrue(mDirectory.delete());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                assertTrue(file.delete());
+            }
+        }
+        assertTrue(mDirectory.delete());
+    }
+
+    private static TileKey key(long x) {
+        return new TileKey(FractalKernel.MODE_JULIA, 0.285, 0.01, 256, 4, x, -3);
+    }
+
+    private static int[] tile(int seed) {
+        int[] counts = new int[TILE_INTS];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = (i * 31 + seed) % 257;
+        }
+        return counts;
+    }
+
+    @Test
+    public void survivesReopen() throws Exception {
+        DiskTileStore store = DiskTileStore.open(mDirectory, 64L << 20);
+        store.write(key(1), tile(1));
+        store.write(key(2), tile(2));
+        store.close();
+
+        store = DiskTileStore.open(mDirectory, 64L << 20);
+        assertEquals(2, store.getTileCount());
+        int[] dst = new int[TILE_INTS];
+        assertTrue(store.read(key(2), dst));
+        assertArrayEquals(tile(2), dst);
+        assertTrue(store.read(key(1), dst));
+        assertArrayEquals(tile(1), dst);
+        assertFalse(store.read(key(3), dst));
+        store.close();
+    }
+
+    @Test
+    public void readsViewWhileWriting() throws Exception {
+        // 200个分块不会触发淘汰
+        final DiskTileStore store = DiskTileStore.open(mDirectory, 256L << 20);
+        store.write(key(0), tile(0));
+        IntBuffer view = store.read(key(0));
+        assertEquals(TILE_INTS, view.remaining());
+        assertEquals(tile(0)[100], view.get(100));
+        try {
+            view.put(0, 1);
+            fail();
+        } catch (ReadOnlyBufferException expected) {
+            // 映射的内存不能通过视图修改
+        }
+
+        // 一个线程不断写入新分块，其他线程同时读取已经写入的分块，读到的内容必须完整
+        final int tiles = 200;
+        final AtomicInteger written = new AtomicInteger(1);
+        final AtomicInteger errors = new AtomicInteger();
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int n = 1; n < tiles; n++) {
+                        store.write(key(n), tile(n));
+                        written.set(n + 1);
+                    }
+                } catch (Exception e) {
+                    errors.incrementAndGet();
+                }
+            }
+        };
+        Thread[] readers = new Thread[4];
+        for (int t = 0; t < readers.length; t++) {
+            final int seed = t;
+            readers[t] = new Thread() {
+                @Override
+                public void run() {
+                    int[] dst = new int[TILE_INTS];
+                    for (int n = 0; n < 2000; n++) {
+                        int x = (n * 7 + seed) % written.get();
+                        if (!store.read(key(x), dst) || dst[TILE_INTS - 1] != tile(x)[TILE_INTS - 1]) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                }
+            };
+        }
+        writer.start();
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        writer.join();
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertEquals(0, errors.get());
+        assertEquals(tiles, store.getTileCount());
+        assertEquals(0, store.getChecksumFailureCount());
+        store.close();
+    }
+
+    @Test
+    public void corruptedTileIsDropped() throws Exception {
+        DiskTileStore store = DiskTileStore.open(mDirectory, 64L << 20);
+        store.write(key(1), tile(1));
+        store.close();
+
+        File segment = mDirectory.listFiles()[0];
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        file.seek(64 + 1000);
+        file.writeInt(123456);
+        file.close();
+
+        store = DiskTileStore.open(mDirectory, 64L << 20);
+        int[] dst = new int[TILE_INTS];
+        assertFalse(store.read(key(1), dst));
+        assertEquals(1, store.getChecksumFailureCount());
+        assertEquals(0, store.getTileCount());
+        store.close();
+    }
+
+    @Test
+    public void oldestSegmentEvicted() throws Exception {
+        // the minimum budget keeps two segments
+        DiskTileStore store = DiskTileStore.open(mDirectory, 0);
+        int total = DiskTileStore.SLOTS_PER_SEGMENT * 2 + 1;
+        for (int i = 0; i < total; i++) {
+            store.write(key(i), tile(i));
+        }
+        assertEquals(1, store.getEvictedSegmentCount());
+        assertEquals(DiskTileStore.SLOTS_PER_SEGMENT + 1, store.getTileCount());
+        assertEquals(2, mDirectory.listFiles().length);
+        int[] dst = new int[TILE_INTS];
+        assertFalse(store.read(key(0), dst));
+        assertTrue(store.read(key(total - 1), dst));
+        assertArrayEquals(tile(total - 1), dst);
+        store.close();
+    }
+
+    @Test
+    public void pyramidReadsFromDisk() throws Exception {
+        FractalKernel kernel = new FractalKernel(FractalKernel.MODE_MANDELBROT, 0, 0, -2, 2, -2, 2, 4, 4, 64, null);
+        DiskTileStore store = DiskTileStore.open(mDirectory, 64L << 20);
+        TilePyramid pyramid = new TilePyramid(new TileCache(64L << 20));
+        pyramid.setDiskStore(store);
+        int[] computed = pyramid.getTile(kernel, 1, -1, 0, null).clone();
+        store.close();
+
+        // a new process: empty memory cache, same directory
+        store = DiskTileStore.open(mDirectory, 64L << 20);
+        pyramid = new TilePyramid(new TileCache(64L << 20));
+        pyramid.setDiskStore(store);
+        IterationCounter counter = new IterationCounter();
+        assertArrayEquals(computed, pyramid.getTile(kernel, 1, -1, 0, counter));
+        assertEquals(0, counter.iterations);
+        assertEquals(1, store.getReadCount());
+        store.close();
+    }
+}
@@ -0,0 +1,288 @@
+package com.lh.fractal.engine;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * 各个公式的内核与直接按定义写出的迭代一致，并且可以对称复制和继续迭代
+ */
+public class FormulaTest {
+
+    private static final int WIDTH = 160;
+    private static final int HEIGHT = 120;
+    private static final Tile FULL = new Tile(0, 0, WIDTH, HEIGHT);
+
+    private static final ColorMapper COLOR_MAPPER = new ColorMapper() {
+        @Override
+        public int getColor(int k, int maxIterations) {
+            return k;
+        }
+    };
+
+    private static FractalKernel kernel(Formula formula, int mode, double re, double im, int limit) {
+        return formula.createKernel(mode, re, im, -2, 2, -1.5, 1.5, WIDTH, HEIGHT, limit, COLOR_MAPPER);
+    }
+
+    @Test
+    public void forName_roundTrips() {
+        Formula[] formulas = {Formula.QUADRATIC, Formula.power(3), Formula.power(7), Formula.BURNING_SHIP,
+                Formula.TRICORN, Formula.NEWTON, Formula.newton(1, 0, -2, 2)};
+        for (Formula formula : formulas) {
+            assertEquals(formula, Formula.forName(formula.getName()));
+        }
+        assertSame(Formula.QUADRATIC, Formula.power(2));
+        assertSame(Formula.NEWTON, Formula.forName("newton:1,0,0,-1"));
+        assertEquals(3, Formula.forName("Z^3").getDegree());
+        for (String name : new String[]{"z^1", "z^x", "newton:0,1,1", "newton:1,2", "mandelbrot"}) {
+            try {
+                Formula.forName(name);
+                fail(name);
+            } catch (IllegalArgumentException expected) {
+                // 预期的异常
+            }
+        }
+    }
+
+    @Test
+    public void createKernel_usesSpecializedKernels() {
+        Viewport viewport = new Viewport(WIDTH, HEIGHT);
+        viewport.set(BigDecimal.ZERO, BigDecimal.ZERO, 4.0 / WIDTH);
+        assertSame(FloatKernel.class, Formula.QUADRATIC.createKernel(FractalKernel.MODE_MANDELBROT, 0, 0,
+                viewport, 64, COLOR_MAPPER).getClass());
+        assertTrue(Formula.power(5).createKernel(FractalKernel.MODE_MANDELBROT, 0, 0, viewport, 64, COLOR_MAPPER)
+                instanceof MultibrotKernel);
+        FractalKernel ship = kernel(Formula.BURNING_SHIP, FractalKernel.MODE_MANDELBROT, 0, 0, 64);
+        assertTrue(ship instanceof BurningShipKernel);
+        assertEquals(Formula.BURNING_SHIP, ship.getFormula());
+        // 公式不同的画面不能继续迭代
+        assertFalse(kernel(Formula.power(3), FractalKernel.MODE_MANDELBROT, 0, 0, 64)
+                .isSameView(kernel(Formula.power(4), FractalKernel.MODE_MANDELBROT, 0, 0, 64)));
+        // 子区域的内核使用相同的公式
+        assertEquals(Formula.TRICORN, kernel(Formula.TRICORN, FractalKernel.MODE_JULIA, 0, 0, 64)
+                .withViewport(0, 1, 0, 1, 8, 8).getFormula());
+    }
+
+    /**
+     * 按定义逐次迭代，不做周期检测，作为各个内核的参照
+     */
+    private static int reference(Formula formula, int mode, double re, double im, double x, double y, int max) {
+        if (formula.getName().startsWith("newton")) {
+            return referenceNewton(x, y, max);
+        }
+        boolean julia = mode == FractalKernel.MODE_JULIA;
+        double zr = julia ? x : 0;
+        double zi = julia ? y : 0;
+        double cr = julia ? re : x;
+        double ci = julia ? im : y;
+        for (int k = 0; k < max; k++) {
+            if (zr * zr + zi * zi > 16) {
+                return k;
+            }
+            if (formula == Formula.BURNING_SHIP) {
+                zr = Math.abs(zr);
+                zi = Math.abs(zi);
+            } else if (formula == Formula.TRICORN) {
+                zi = -zi;
+            }
+            double pr = 1;
+            double pi = 0;
+            for (int p = 0; p < formula.getDegree(); p++) {
+                double r = pr * zr - pi * zi;
+                pi = pr * zi + pi * zr;
+                pr = r;
+            }
+            zr = pr + cr;
+            zi = pi + ci;
+        }
+        return max;
+    }
+
+    /**
+     * z^3 - 1的牛顿迭代 z - (z^3 - 1) / 3z^2
+     */
+    private static int referenceNewton(double zr, double zi, int max) {
+        for (int k = 0; k < max; k++) {
+            double z2r = zr * zr - zi * zi;
+            double z2i = 2 * zr * zi;
+            double pr = z2r * zr - z2i * zi - 1;
+            double pi = z2r * zi + z2i * zr;
+            double dr = 3 * z2r;
+            double di = 3 * z2i;
+            double d = dr * dr + di * di;
+            double sr = (pr * dr + pi * di) / d;
+            double si = (pi * dr - pr * di) / d;
+            zr -= sr;
+            zi -= si;
+            if (sr * sr + si * si < 1e-12) {
+                return k + 1;
+            }
+        }
+        return max;
+    }
+
+    @Test
+    public void kernels_matchReferenceIteration() {
+        Formula[] formulas = {Formula.power(3), Formula.power(4), Formula.power(5), Formula.power(6),
+                Formula.power(8), Formula.BURNING_SHIP, Formula.TRICORN, Formula.NEWTON};
+        int[] modes = {FractalKernel.MODE_JULIA, FractalKernel.MODE_MANDELBROT};
+        for (Formula formula : formulas) {
+            for (int mode : modes) {
+                FractalKernel kernel = kernel(formula, mode, -0.4, 0.6, 256);
+                int[] counts = new int[WIDTH * HEIGHT];
+                Arrays.fill(counts, -1);
+                assertEquals(WIDTH * HEIGHT, kernel.iterate(counts, WIDTH, FULL, null));
+                int different = 0;
+                for (int j = 0; j < HEIGHT; j++) {
+                    for (int i = 0; i < WIDTH; i++) {
+                        int k = counts[j * WIDTH + i];
+                        assertEquals(k, kernel.iterate(i, j));
+                        assertEquals(k, kernel.iterate(i, j, 0, 0, null));
+                        // 与内核相同的像素坐标，混沌的区域对最后一位也很敏感
+                        double x = kernel.mColumnX[i];
+                        double y = kernel.mRowY[j];
+                        if (k != reference(formula, mode, -0.4, 0.6, x, y, 256)) {
+                            different++;
+                        }
+                    }
+                }
+                // 展开的乘法和周期检测只在舍入上不同，边界附近极少数像素可能不一致
+                assertTrue(formula + " mode " + mode + " different " + different, different < WIDTH * HEIGHT / 200);
+            }
+        }
+    }
+
+    @Test
+    public void newton_convergesToRoots() {
+        // z^3 - 1走两项式的循环，(z - 1)(z + 1)(z + 2)走Horner法
+        Formula[] formulas = {Formula.NEWTON, Formula.newton(1, 2, -1, -2)};
+        for (Formula formula : formulas) {
+            FractalKernel kernel = kernel(formula, FractalKernel.MODE_JULIA, 0, 0, 64);
+            int[] counts = new int[WIDTH * HEIGHT];
+            Arrays.fill(counts, -1);
+            kernel.iterate(counts, WIDTH, FULL, null);
+            int converged = 0;
+            for (int k : counts) {
+                if (k < 64) {
+                    converged++;
+                }
+            }
+            assertTrue(formula.toString(), converged > WIDTH * HEIGHT * 99 / 100);
+            // 根1附近一两步就收敛
+            assertTrue(formula.toString(), counts[(HEIGHT / 2) * WIDTH + WIDTH * 3 / 4] <= 4);
+        }
+    }
+
+    @Test
+    public void newton_recordsConvergedRoot() throws Exception {
+        Formula[] formulas = {Formula.NEWTON, Formula.newton(1, 2, -1, -2)};
+        Coloring coloring = new Coloring(Palette.gradient(30, 0xff000000, 0xffff0000, 0xff00ff00, 0xff0000ff),
+                Coloring.MODE_BANDED);
+        TileScheduler scheduler = new TileScheduler(2);
+        try {
+            for (Formula formula : formulas) {
+                NewtonKernel kernel = (NewtonKernel) kernel(formula, FractalKernel.MODE_JULIA, 0, 0, 64);
+                int[] counts = new int[WIDTH * HEIGHT];
+                float[] magnitudes = new float[WIDTH * HEIGHT];
+                Arrays.fill(counts, -1);
+                kernel.iterate(counts, magnitudes, WIDTH, FULL, new IterationCounter());
+                int[] pixelsPerRoot = new int[3];
+                for (int index = 0; index < counts.length; index++) {
+                    if (counts[index] < 64) {
+                        assertTrue(formula.toString(), magnitudes[index] < 0);
+                        pixelsPerRoot[Coloring.decodeRoot(magnitudes[index], 3)]++;
+                    }
+                }
+                for (int r = 0; r < 3; r++) {
+                    assertTrue(formula + " root " + r, pixelsPerRoot[r] > 0);
+                }
+                // 根1附近的像素记录的是根1
+                int root = Coloring.decodeRoot(magnitudes[(HEIGHT / 2) * WIDTH + WIDTH * 3 / 4], 3);
+                assertEquals(1, kernel.getRootReal(root), 1e-12);
+                assertEquals(0, kernel.getRootImag(root), 1e-12);
+
+                // 实轴下方由上方共轭复制，记录的根和颜色换成共轭的根，与直接计算相同
+                TileRenderer direct = new TileRenderer(WIDTH, HEIGHT);
+                direct.setColoring(coloring);
+                direct.setSymmetry(false);
+                render(direct, kernel(formula, FractalKernel.MODE_JULIA, 0, 0, 64), scheduler, false);
+                TileRenderer mirrored = new TileRenderer(WIDTH, HEIGHT);
+                mirrored.setColoring(coloring);
+                render(mirrored, kernel(formula, FractalKernel.MODE_JULIA, 0, 0, 64), scheduler, false);
+                assertTrue(mirrored.getMetrics().snapshot().getMirroredPixels() > 0);
+                assertArrayEquals(formula.toString(), direct.getMagnitudes(), mirrored.getMagnitudes(), 0);
+                assertArrayEquals(formula.toString(), direct.getPixels(), mirrored.getPixels());
+            }
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void symmetry_followsFormula() {
+        int julia = FractalKernel.MODE_JULIA;
+        int mandelbrot = FractalKernel.MODE_MANDELBROT;
+        assertNull(Symmetry.of(kernel(Formula.BURNING_SHIP, mandelbrot, 0, 0, 64)));
+        assertTrue(Symmetry.of(kernel(Formula.TRICORN, mandelbrot, 0, 0, 64)).isConjugate());
+        assertFalse(Symmetry.of(kernel(Formula.BURNING_SHIP, julia, -0.4, 0.6, 64)).isConjugate());
+        assertFalse(Symmetry.of(kernel(Formula.power(4), julia, -0.4, 0.6, 64)).isConjugate());
+        // 奇数次的Julia集只在c为实数时关于实轴对称
+        assertNull(Symmetry.of(kernel(Formula.power(3), julia, -0.4, 0.6, 64)));
+        assertTrue(Symmetry.of(kernel(Formula.power(3), julia, -0.4, 0, 64)).isConjugate());
+        assertTrue(Symmetry.of(kernel(Formula.NEWTON, julia, 0, 0, 64)).isConjugate());
+    }
+
+    @Test
+    public void scheduledRender_deepensAndMirrors() throws Exception {
+        Formula[] formulas = {Formula.power(3), Formula.BURNING_SHIP, Formula.TRICORN, Formula.NEWTON};
+        TileScheduler scheduler = new TileScheduler(2);
+        try {
+            for (Formula formula : formulas) {
+                FractalKernel shallow = kernel(formula, FractalKernel.MODE_JULIA, -0.4, 0, 128);
+                FractalKernel deep = kernel(formula, FractalKernel.MODE_JULIA, -0.4, 0, 512);
+                TileRenderer full = new TileRenderer(WIDTH, HEIGHT);
+                full.setSubdivision(false);
+                full.setSymmetry(false);
+                render(full, deep, scheduler, false);
+
+                TileRenderer deepened = new TileRenderer(WIDTH, HEIGHT);
+                deepened.setSubdivision(false);
+                render(deepened, shallow, scheduler, false);
+                assertTrue(formula.toString(), deepened.getMetrics().snapshot().getMirroredPixels() > 0);
+                render(deepened, deep, scheduler, true);
+
+                int[] expected = full.getCounts();
+                int[] actual = deepened.getCounts();
+                int different = 0;
+                for (int index = 0; index < expected.length; index++) {
+                    if (expected[index] != actual[index]) {
+                        different++;
+                    }
+                }
+                assertTrue(formula + " different " + different, different < expected.length / 200);
+                assertTrue(deepened.getIterations() < full.getIterations());
+            }
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    private static void render(TileRenderer renderer, FractalKernel kernel, TileScheduler scheduler,
+                               boolean deepen) throws Exception {
+        if (deepen) {
+            assertTrue(renderer.canDeepen(kernel));
+            renderer.deepen(kernel, scheduler, null);
+        } else {
+            renderer.render(kernel, scheduler, null);
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (!renderer.isComplete()) {
+            assertTrue(System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.lh.fractal.engine;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * 原始内核与直接按定义计算的结果对比
+ */
+public class FractalKernelTest {
+
+    /**
+     * 按定义逐步计算，每次迭代都开方求模
+     */
+    private static int reference(double zr, double zi, double cr, double ci, int max) {
+        int k = 0;
+        for (; k < max; k++) {
+            if (Math.sqrt(zr * zr + zi * zi) > 4) {
+                break;
+            }
+            double temp = zr * zr - zi * zi + cr;
+            zi = 2 * zr * zi + ci;
+            zr = temp;
+        }
+        return k;
+    }
+
+    @Test
+    public void julia_matchesReference() throws Exception {
+        for (double y = -1.5; y <= 1.5; y += 0.0137) {
+            for (double x = -2; x <= 2; x += 0.0113) {
+                assertEquals(reference(x, y, 0.285, 0.01, 256),
+                        FractalKernel.iterateJulia(x, y, 0.285, 0.01, 256));
+            }
+        }
+    }
+
+    @Test
+    public void mandelbrot_matchesReference() throws Exception {
+        for (double y = -1.5; y <= 1.5; y += 0.0137) {
+            for (double x = -2.5; x <= 1; x += 0.0113) {
+                assertEquals(reference(0, 0, x, y, 256), FractalKernel.iterateMandelbrot(x, y, 256));
+            }
+        }
+    }
+
+    @Test
+    public void mandelbrot_knownPoints() throws Exception {
+        assertEquals(1000, FractalKernel.iterateMandelbrot(0, 0, 1000));
+        assertEquals(1000, FractalKernel.iterateMandelbrot(-1, 0, 1000));
+        assertEquals(2, FractalKernel.iterateMandelbrot(2, 0, 1000));
+    }
+
+    @Test
+    public void mandelbrot_cardioidAndBulbSkipped() throws Exception {
+        assertTrue(FractalKernel.isInCardioidOrBulb(0, 0));
+        assertTrue(FractalKernel.isInCardioidOrBulb(-1, 0.1));
+        assertTrue(FractalKernel.isInCardioidOrBulb(0.24, 0));
+        assertFalse(FractalKernel.isInCardioidOrBulb(0.26, 0));
+        assertFalse(FractalKernel.isInCardioidOrBulb(-1.3, 0));
+
+        IterationCounter counter = new IterationCounter();
+        assertEquals(5000, FractalKernel.iterateMandelbrot(-0.1, 0.2, 5000, counter));
+        assertEquals(0, counter.iterations);
+        assertEquals(5000, counter.skipped);
+    }
+
+    @Test
+    public void periodicOrbitStopsEarly() throws Exception {
+        IterationCounter counter = new IterationCounter();
+        // period-3 bulb, outside the analytic cardioid/bulb test
+        assertEquals(100000, FractalKernel.iterateMandelbrot(-0.1226, 0.7449, 100000, counter));
+        assertTrue(counter.iterations < 1000);
+        assertEquals(100000, counter.iterations + counter.skipped);
+
+        counter.reset();
+        // basilica, z = 0 is attracted to the 0 -> -1 cycle
+        assertEquals(100000, FractalKernel.iterateJulia(0.1, 0.1, -1, 0, 100000, counter));
+        assertTrue(counter.iterations < 100000);
+        assertEquals(100000, counter.iterations + counter.skipped);
+    }
+
+    @Test
+    public void escapingOrbitCountsEveryIteration() throws Exception {
+        IterationCounter counter = new IterationCounter();
+        int k = FractalKernel.iterateMandelbrot(0.3, 0.6, 100000, counter);
+        assertTrue(k < 100000);
+        assertEquals(k, counter.iterations);
+        assertEquals(0, counter.skipped);
+    }
+}
@@ -0,0 +1,109 @@
+package com.lh.fractal.engine;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+/**
+ * 参考画面的迭代次数和颜色的校验和。优化内核、调度或着色之后结果必须逐像素不变；
+ * 有意改变结果时(例如调整精度阶梯)在这里更新校验和，并说明原因
+ */
+public class GoldenChecksumTest {
+
+    private static final int WIDTH = 160;
+    private static final int HEIGHT = 120;
+    private static final List<Tile> FULL = Collections.singletonList(new Tile(0, 0, WIDTH, HEIGHT));
+
+    private static final Palette PALETTE = Palette.gradient(64, 0xff000000, 0xff000764, 0xff206bcb,
+            0xffedffff, 0xffffaa00, 0xff000200);
+
+    /**
+     * 画面、迭代上限，逐像素计算的迭代次数、矩形细分的迭代次数、色带着色和直方图着色的校验和。
+     * Mandelbrot画面的实轴落在像素网格上，坐标表改为严格反对称后实轴下方的坐标在最后一位上变化，校验和随之更新
+     */
+    private static final Object[][] GOLDEN = {
+            {Scene.JULIA, 64, 1946046983L, 1946046983L, 2451992969L, 3077513969L},
+            {Scene.JULIA, 1024, 2603812503L, 2603812503L, 1452036275L, 3529422454L},
+            {Scene.MANDELBROT, 64, 1508593572L, 1508593572L, 2515212432L, 4216847357L},
+            {Scene.MANDELBROT, 1024, 639043221L, 639043221L, 1586030863L, 3385087265L},
+            {Scene.SEAHORSE, 64, 840239967L, 840239967L, 3590103488L, 2275281476L},
+            {Scene.SEAHORSE, 1024, 1957510153L, 1588087269L, 41959417L, 1336273475L},
+            {Scene.DEEP, 256, 2066718613L, 2066718613L, 379651354L, 769445952L},
+            {Scene.DEEP, 1024, 3831215931L, 3831215931L, 379651354L, 769445952L},
+    };
+
+    static long checksum(int[] values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 4);
+        buffer.asIntBuffer().put(values);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array());
+        return crc.getValue();
+    }
+
+    private static FractalKernel kernel(Scene scene, int limit) {
+        return scene.createKernel(WIDTH, HEIGHT, limit, new Coloring(PALETTE, Coloring.MODE_BANDED));
+    }
+
+    private static TileRenderer renderSync(Scene scene, int limit, boolean subdivision) {
+        TileRenderer renderer = new TileRenderer(WIDTH, HEIGHT);
+        renderer.setSubdivision(subdivision);
+        renderer.renderSync(kernel(scene, limit), FULL);
+        return renderer;
+    }
+
+    private static void awaitComplete(TileRenderer renderer) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        while (!renderer.isComplete()) {
+            assertTrue(System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void referenceScenes_matchGoldenChecksums() throws Exception {
+        StringBuilder actual = new StringBuilder();
+        boolean matches = true;
+        for (Object[] golden : GOLDEN) {
+            Scene scene = (Scene) golden[0];
+            int limit = (Integer) golden[1];
+            TileRenderer perPixel = renderSync(scene, limit, false);
+            TileRenderer subdivided = renderSync(scene, limit, true);
+            int[] histogram = new int[WIDTH * HEIGHT];
+            new Coloring(PALETTE, Coloring.MODE_HISTOGRAM).apply(perPixel.getCounts(), null, histogram, limit);
+            long[] sums = {checksum(perPixel.getCounts()), checksum(subdivided.getCounts()),
+                    checksum(perPixel.getPixels()), checksum(histogram)};
+            actual.append(String.format("{Scene.%s, %d, %dL, %dL, %dL, %dL},%n", scene.getName().toUpperCase(),
+                    limit, sums[0], sums[1], sums[2], sums[3]));
+            for (int i = 0; i < sums.length; i++) {
+                matches &= sums[i] == (Long) golden[2 + i];
+            }
+        }
+        assertTrue("checksums changed:\n" + actual, matches);
+    }
+
+    @Test
+    public void parallelRender_matchesSync() throws Exception {
+        int[] threads = {1, 4};
+        for (Scene scene : Scene.values()) {
+            long expected = checksum(renderSync(scene, 256, true).getCounts());
+            for (int parallelism : threads) {
+                TileScheduler scheduler = new TileScheduler(parallelism);
+                try {
+                    TileRenderer renderer = new TileRenderer(WIDTH, HEIGHT);
+                    renderer.render(kernel(scene, 256), scheduler, null);
+                    awaitComplete(renderer);
+                    assertEquals(scene + " with " + parallelism + " threads", expected,
+                            checksum(renderer.getCounts()));
+                } finally {
+                    scheduler.shutdown();
+                }
+            }
+        }
+    }
+}
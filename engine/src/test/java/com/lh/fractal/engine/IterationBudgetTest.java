@@ -0,0 +1,65 @@
+package com.lh.fractal.engine;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * 按缩放深度和上一次渲染的统计选择迭代上限
+ */
+public class IterationBudgetTest {
+
+    private static final long SECOND = 1000000000L;
+
+    /**
+     * 1000个像素，前escaped个的迭代次数在[0, spread)内均匀分布，其余达到上限
+     */
+    private static int[] counts(int escaped, int spread, int limit) {
+        int[] counts = new int[1000];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = i < escaped ? i % spread : limit;
+        }
+        return counts;
+    }
+
+    @Test
+    public void forZoom_growsWithDepth() throws Exception {
+        assertEquals(IterationBudget.DEFAULT_LIMIT, IterationBudget.forZoom(5));
+        assertEquals(IterationBudget.DEFAULT_LIMIT, IterationBudget.forZoom(10));
+        int previous = IterationBudget.forZoom(5);
+        for (double width = 1; width > 1e-12; width /= 10) {
+            int limit = IterationBudget.forZoom(width);
+            assertTrue(limit > previous);
+            previous = limit;
+        }
+    }
+
+    @Test
+    public void next_raisesWhenDetailIsCut() throws Exception {
+        IterationBudget budget = new IterationBudget(SECOND);
+        // 发散的像素一直分布到上限，说明边界细节被截断
+        int next = budget.next(5, counts(800, 64, 64), 64, 1000000, 0, SECOND / 100);
+        assertEquals(128, next);
+        // 之后的画面沿用统计得到的修正
+        assertEquals(128, budget.initial(5, 1000));
+    }
+
+    @Test
+    public void next_lowersWhenCappedPixelsAreInterior() throws Exception {
+        IterationBudget budget = new IterationBudget(SECOND);
+        // 所有发散的像素都在20次以内逃逸，达到上限的都是内部
+        assertEquals(48, budget.next(5, counts(600, 20, 1024), 1024, 1000000, 0, SECOND / 100));
+        // 变化不大时保持不变
+        assertEquals(48, budget.next(5, counts(600, 20, 48), 48, 100000, 0, SECOND / 100));
+    }
+
+    @Test
+    public void next_staysWithinTimeBudget() throws Exception {
+        IterationBudget budget = new IterationBudget(SECOND * 3 / 10);
+        // 尾部被截断，按细节应该提高到512。每秒1e6次迭代，发散的像素平均每个约64次，
+        // 一半像素达到上限并且没有被周期检测省去：0.3秒只够上限约470
+        int next = budget.next(5, counts(500, 256, 256), 256, 1000000, 0, SECOND);
+        assertEquals(480, next);
+        assertTrue(budget.initial(5, 1000) <= 480);
+    }
+}
@@ -0,0 +1,39 @@
+package com.lh.fractal.engine;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * 延迟样本的百分位数
+ */
+public class LatencyRecorderTest {
+
+    @Test
+    public void percentile_nearestRank() throws Exception {
+        LatencyRecorder recorder = new LatencyRecorder(100);
+        assertEquals(-1, recorder.getPercentile(50));
+        for (int i = 100; i >= 1; i--) {
+            recorder.record(i);
+        }
+        assertEquals(1, recorder.getPercentile(0));
+        assertEquals(50, recorder.getPercentile(50));
+        assertEquals(90, recorder.getPercentile(90));
+        assertEquals(99, recorder.getPercentile(99));
+        assertEquals(100, recorder.getPercentile(100));
+    }
+
+    @Test
+    public void record_overwritesOldestWhenFull() throws Exception {
+        LatencyRecorder recorder = new LatencyRecorder(4);
+        for (int i = 1; i <= 6; i++) {
+            recorder.record(i * 1000);
+        }
+        assertEquals(4, recorder.getCount());
+        // 1000和2000已经被覆盖
+        assertEquals(3000, recorder.getPercentile(0));
+        assertEquals(6000, recorder.getPercentile(100));
+        recorder.reset();
+        assertEquals(0, recorder.getCount());
+    }
+}
@@ -0,0 +1,169 @@
+package com.lh.fractal.engine;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * 矩形细分与逐像素计算的对比
+ */
+public class MarianiSilverTest {
+
+    private static final int WIDTH = 400;
+    private static final int HEIGHT = 300;
+
+    private static final ColorMapper IDENTITY = new ColorMapper() {
+        @Override
+        public int getColor(int k, int maxIterations) {
+            return k;
+        }
+    };
+
+    private static FractalKernel kernel(int mode) {
+        return new FractalKernel(mode, 0.285, 0.01, -2.5, 2.5, -1.875, 1.875, WIDTH, HEIGHT, 1024, IDENTITY);
+    }
+
+    @Test
+    public void render_writesIterationCountsOfEveryPixel() throws Exception {
+        FractalKernel kernel = kernel(FractalKernel.MODE_MANDELBROT);
+        Tile tile = new Tile(0, 0, WIDTH, HEIGHT);
+        int[] counts = new int[WIDTH * HEIGHT];
+        Arrays.fill(counts, -1);
+        int iterated = MarianiSilver.render(kernel, counts, WIDTH, tile, null);
+        assertTrue(iterated < WIDTH * HEIGHT / 2);
+        int differences = 0;
+        for (int j = 0; j < HEIGHT; j++) {
+            for (int i = 0; i < WIDTH; i++) {
+                if (counts[j * WIDTH + i] != kernel.iterate(i, j)) {
+                    differences++;
+                }
+            }
+        }
+        assertEquals(MarianiSilver.countDifferences(kernel, tile), differences);
+    }
+
+    @Test
+    public void countDifferences_fewPixelsDiffer() throws Exception {
+        Tile tile = new Tile(0, 0, WIDTH, HEIGHT);
+        int total = WIDTH * HEIGHT;
+        assertTrue(MarianiSilver.countDifferences(kernel(FractalKernel.MODE_MANDELBROT), tile) < total / 1000);
+        assertTrue(MarianiSilver.countDifferences(kernel(FractalKernel.MODE_JULIA), tile) < total / 1000);
+    }
+
+    @Test
+    public void subdivisionSafe_onlyForConnectedSets() throws Exception {
+        assertTrue(Formula.QUADRATIC.isSubdivisionSafe(FractalKernel.MODE_MANDELBROT, 0, 0));
+        assertTrue(Formula.power(5).isSubdivisionSafe(FractalKernel.MODE_MANDELBROT, 0, 0));
+        assertTrue(Formula.TRICORN.isSubdivisionSafe(FractalKernel.MODE_MANDELBROT, 0, 0));
+        // 兔子(c = -0.123 + 0.745i)连通，c = 0.3 + 0.6i在Mandelbrot集外，Julia集是康托尘
+        assertTrue(Formula.QUADRATIC.isSubdivisionSafe(FractalKernel.MODE_JULIA, -0.123, 0.745));
+        assertFalse(Formula.QUADRATIC.isSubdivisionSafe(FractalKernel.MODE_JULIA, 0.3, 0.6));
+        assertTrue(Formula.TRICORN.isSubdivisionSafe(FractalKernel.MODE_JULIA, -0.5, 0));
+        assertFalse(Formula.power(3).isSubdivisionSafe(FractalKernel.MODE_JULIA, 0.6, 0.6));
+        assertFalse(Formula.BURNING_SHIP.isSubdivisionSafe(FractalKernel.MODE_MANDELBROT, 0, 0));
+        assertFalse(Formula.NEWTON.isSubdivisionSafe(FractalKernel.MODE_MANDELBROT, 0, 0));
+    }
+
+    @Test
+    public void countDifferences_unsafeFormulasRenderIdentically() throws Exception {
+        Tile tile = new Tile(0, 0, WIDTH, HEIGHT);
+        FractalKernel[] kernels = {
+                Formula.BURNING_SHIP.createKernel(FractalKernel.MODE_MANDELBROT, 0, 0, -1.8, -1.7, -0.08, 0,
+                        WIDTH, HEIGHT, 256, IDENTITY),
+                Formula.newton(1, 0, -2, 2).createKernel(FractalKernel.MODE_MANDELBROT, 0, 0, -2, 2, -1.5, 1.5,
+                        WIDTH, HEIGHT, 256, IDENTITY),
+                Formula.power(3).createKernel(FractalKernel.MODE_JULIA, 0.6, 0.6, -1.6, 1.6, -1.2, 1.2,
+                        WIDTH, HEIGHT, 256, IDENTITY)};
+        for (FractalKernel kernel : kernels) {
+            // 细分默认开启，这些公式仍然逐像素计算
+            TileRenderer renderer = new TileRenderer(WIDTH, HEIGHT);
+            renderer.setVerifySubdivision(true);
+            renderer.renderSync(kernel, Collections.singletonList(tile));
+            assertEquals(kernel.getFormula().toString(), WIDTH * HEIGHT, renderer.getIteratedPixels());
+            assertEquals(0, renderer.getDifferentPixels());
+            int[] counts = renderer.getCounts();
+            int differences = 0;
+            for (int j = 0; j < HEIGHT; j++) {
+                for (int i = 0; i < WIDTH; i++) {
+                    if (counts[j * WIDTH + i] != kernel.iterate(i, j)) {
+                        differences++;
+                    }
+                }
+            }
+            assertEquals(kernel.getFormula().toString(), 0, differences);
+        }
+    }
+
+    @Test
+    public void render_offsetTile() throws Exception {
+        FractalKernel kernel = kernel(FractalKernel.MODE_JULIA);
+        Tile tile = new Tile(37, 21, 101, 77);
+        int[] pixels = new int[WIDTH * HEIGHT];
+        MarianiSilver.renderPixels(kernel, pixels, WIDTH, tile);
+        assertEquals(0, pixels[20 * WIDTH + 37]);
+        assertEquals(0, pixels[21 * WIDTH + 36]);
+        assertEquals(kernel.iterate(37, 21), pixels[21 * WIDTH + 37]);
+        assertEquals(kernel.iterate(100, 76), pixels[76 * WIDTH + 100]);
+    }
+
+    @Test
+    public void render_reusesKnownCounts() throws Exception {
+        FractalKernel kernel = kernel(FractalKernel.MODE_JULIA);
+        Tile tile = new Tile(0, 0, WIDTH, HEIGHT);
+        int[] counts = new int[WIDTH * HEIGHT];
+        Arrays.fill(counts, -1);
+        int full = MarianiSilver.render(kernel, counts, WIDTH, tile, null);
+
+        Arrays.fill(counts, -1);
+        for (int j = 0; j < HEIGHT; j += 2) {
+            for (int i = 0; i < WIDTH; i += 2) {
+                counts[j * WIDTH + i] = kernel.iterate(i, j);
+            }
+        }
+        int seeded = MarianiSilver.render(kernel, counts, WIDTH, tile, null);
+        assertTrue(seeded < full);
+        for (int index = 0; index < counts.length; index++) {
+            assertTrue(counts[index] >= 0);
+        }
+    }
+
+    @Test
+    public void render_withMagnitudesStillFillsBands() throws Exception {
+        FractalKernel kernel = kernel(FractalKernel.MODE_MANDELBROT);
+        Tile tile = new Tile(0, 0, WIDTH, HEIGHT);
+        int[] counts = new int[WIDTH * HEIGHT];
+        Arrays.fill(counts, -1);
+        int withoutMagnitudes = MarianiSilver.render(kernel, counts, WIDTH, tile, null);
+
+        int[] smoothCounts = new int[WIDTH * HEIGHT];
+        Arrays.fill(smoothCounts, -1);
+        float[] magnitudes = new float[WIDTH * HEIGHT];
+        int withMagnitudes = MarianiSilver.render(kernel, smoothCounts, magnitudes, WIDTH, tile, null);
+        // 记录|z|^2不影响细分，发散的色带同样直接填充
+        assertEquals(withoutMagnitudes, withMagnitudes);
+        assertArrayEquals(counts, smoothCounts);
+
+        // 插值出的连续迭代次数与逐像素计算相差不到一条色带的几分之一
+        IterationCounter counter = new IterationCounter();
+        int escaped = 0;
+        int close = 0;
+        for (int j = 0; j < HEIGHT; j++) {
+            for (int i = 0; i < WIDTH; i++) {
+                int index = j * WIDTH + i;
+                int k = kernel.iterate(i, j, counter);
+                if (k != smoothCounts[index] || k >= kernel.getIterateTimes()) {
+                    continue;
+                }
+                escaped++;
+                float expected = Coloring.smooth(k, counter.magnitude);
+                if (Math.abs(Coloring.smooth(k, magnitudes[index]) - expected) < 0.05) {
+                    close++;
+                }
+            }
+        }
+        assertTrue(close > escaped * 0.99);
+    }
+}
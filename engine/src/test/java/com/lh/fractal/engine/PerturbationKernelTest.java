@@ -0,0 +1,201 @@
+package com.lh.fractal.engine;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+
+import static org.junit.Assert.*;
+
+/**
+ * 微扰内核与直接计算的对比
+ */
+public class PerturbationKernelTest {
+
+    private static final int WIDTH = 120;
+    private static final int HEIGHT = 90;
+
+    private static final ColorMapper IDENTITY = new ColorMapper() {
+        @Override
+        public int getColor(int k, int maxIterations) {
+            return k;
+        }
+    };
+
+    /**
+     * 按定义用BigDecimal逐像素计算
+     */
+    private static int reference(Viewport viewport, int i, int j, int max) {
+        MathContext mc = new MathContext(viewport.getMathContext().getPrecision() + 20);
+        BigDecimal cr = viewport.getCenterX().add(new BigDecimal((i - WIDTH / 2.0) * viewport.getPixelSize()), mc);
+        BigDecimal ci = viewport.getCenterY().subtract(new BigDecimal((j - HEIGHT / 2.0) * viewport.getPixelSize()), mc);
+        BigDecimal zr = BigDecimal.ZERO;
+        BigDecimal zi = BigDecimal.ZERO;
+        int k = 0;
+        for (; k < max; k++) {
+            double r = zr.doubleValue();
+            double m = zi.doubleValue();
+            if (r * r + m * m > 16) {
+                break;
+            }
+            BigDecimal temp = zr.multiply(zr, mc).subtract(zi.multiply(zi, mc), mc).add(cr, mc);
+            zi = zr.multiply(zi, mc).multiply(BigDecimal.valueOf(2), mc).add(ci, mc);
+            zr = temp;
+        }
+        return k;
+    }
+
+    private static Viewport seahorse(double pixelSize) {
+        Viewport viewport = new Viewport(WIDTH, HEIGHT);
+        viewport.set(new BigDecimal("-0.743643887037158704752191506114774"),
+                new BigDecimal("0.131825904205311970493132056385139"), pixelSize);
+        return viewport;
+    }
+
+    /**
+     * 在(i, j)上按固定步长抽样，统计与BigDecimal结果一致的像素数
+     */
+    private static int countMatches(Viewport viewport, FractalKernel kernel, int max, int[] total) {
+        int matches = 0;
+        for (int j = 3; j < HEIGHT; j += 11) {
+            for (int i = 5; i < WIDTH; i += 13) {
+                total[0]++;
+                if (reference(viewport, i, j, max) == kernel.iterate(i, j)) {
+                    matches++;
+                }
+            }
+        }
+        return matches;
+    }
+
+    @Test
+    public void shallowZoom_atLeastAsAccurateAsDouble() throws Exception {
+        Viewport viewport = seahorse(1e-9);
+        assertFalse(viewport.isDeep());
+        FractalKernel direct = new FractalKernel(FractalKernel.MODE_MANDELBROT, 0, 0, viewport.getMinX(),
+                viewport.getMaxX(), viewport.getMinY(), viewport.getMaxY(), WIDTH, HEIGHT, 2000, IDENTITY);
+        PerturbationKernel perturbation = new PerturbationKernel(FractalKernel.MODE_MANDELBROT, 0, 0, viewport,
+                2000, IDENTITY);
+        int[] total = new int[1];
+        int directMatches = countMatches(viewport, direct, 2000, total);
+        int perturbationMatches = countMatches(viewport, perturbation, 2000, new int[1]);
+        assertTrue(perturbationMatches >= directMatches);
+        assertTrue(perturbationMatches >= total[0] * 9 / 10);
+    }
+
+    @Test
+    public void deepZoom_matchesArbitraryPrecision() throws Exception {
+        Viewport viewport = seahorse(1e-22);
+        assertTrue(viewport.isDeep());
+        PerturbationKernel perturbation = new PerturbationKernel(FractalKernel.MODE_MANDELBROT, 0, 0, viewport,
+                10000, IDENTITY);
+        int[][] samples = {{0, 0}, {WIDTH - 1, HEIGHT - 1}, {WIDTH / 2, HEIGHT / 2}, {17, 63}, {101, 5}, {60, 44}};
+        for (int[] sample : samples) {
+            assertEquals(reference(viewport, sample[0], sample[1], 10000),
+                    perturbation.iterate(sample[0], sample[1]));
+        }
+        // 相邻像素可以区分，画面不是由大块的相同颜色组成
+        int distinct = 0;
+        int previous = -1;
+        for (int i = 0; i < WIDTH; i++) {
+            int k = perturbation.iterate(i, HEIGHT / 2);
+            if (k != previous) {
+                distinct++;
+            }
+            previous = k;
+        }
+        assertTrue(distinct > WIDTH / 4);
+    }
+
+    @Test
+    public void seriesApproximation_skipsIterationsWithoutChangingImage() throws Exception {
+        Viewport viewport = seahorse(1e-22);
+        PerturbationKernel plain = new PerturbationKernel(FractalKernel.MODE_MANDELBROT, 0, 0, viewport,
+                10000, IDENTITY);
+        plain.setSeriesApproximation(false);
+        PerturbationKernel series = new PerturbationKernel(FractalKernel.MODE_MANDELBROT, 0, 0, viewport,
+                10000, IDENTITY);
+        assertEquals(0, plain.getSeriesSkip());
+        assertTrue(series.getSeriesSkip() > 1000);
+
+        IterationCounter plainCounter = new IterationCounter();
+        IterationCounter seriesCounter = new IterationCounter();
+        int differences = 0;
+        for (int j = 0; j < HEIGHT; j += 2) {
+            for (int i = 0; i < WIDTH; i += 2) {
+                if (plain.iterate(i, j, plainCounter) != series.iterate(i, j, seriesCounter)) {
+                    differences++;
+                }
+            }
+        }
+        assertTrue(differences < WIDTH * HEIGHT / 4 / 100);
+        assertTrue(seriesCounter.iterations < plainCounter.iterations);
+        assertTrue(seriesCounter.skipped > 0);
+    }
+
+    @Test
+    public void seriesApproximation_scalesToTinyPixels() throws Exception {
+        // c = i是Misiurewicz点，轨道不发散也不收敛，偏差每次迭代约放大2.8倍
+        ReferenceOrbit orbit = ReferenceOrbit.compute(0, 0, BigDecimal.ZERO, BigDecimal.ZERO, BigDecimal.ZERO,
+                BigDecimal.ONE, 5000, new MathContext(60));
+        int[] skips = new int[2];
+        double[] radii = {1e-100, 1e-150};
+        for (int n = 0; n < radii.length; n++) {
+            double r = radii[n];
+            double[] probeR = {r, -r, 0.3 * r, -0.7 * r};
+            double[] probeI = {0, 0.2 * r, -0.9 * r, 0.7 * r};
+            SeriesApproximation series = SeriesApproximation.compute(orbit, false, probeR, probeI, 5000);
+            skips[n] = series.skip;
+            double xr = 0.41 * r;
+            double xi = -0.33 * r;
+            double dr = 0;
+            double di = 0;
+            for (int k = 0; k < series.skip; k++) {
+                double temp = 2 * (orbit.re[k] * dr - orbit.im[k] * di) + dr * dr - di * di + xr;
+                di = 2 * (orbit.re[k] * di + orbit.im[k] * dr) + 2 * dr * di + xi;
+                dr = temp;
+            }
+            double error = Math.hypot(series.getDeltaR(xr, xi) - dr, series.getDeltaI(xr, xi) - di);
+            assertTrue(r + " error " + error, error <= 1e-6 * Math.hypot(dr, di));
+        }
+        // 像素越小可以跳过的迭代越多，未缩放的系数在1e-110附近溢出，之后不再增加
+        assertTrue(skips[0] > 200);
+        assertTrue(skips[0] + " " + skips[1], skips[1] > skips[0] * 5 / 4);
+    }
+
+    @Test
+    public void cancelledReference_isNotKept() throws Exception {
+        // 迭代上限很高，任意精度的参考轨道要算很久，取消时还远没有完成
+        final PerturbationKernel kernel = new PerturbationKernel(FractalKernel.MODE_MANDELBROT, 0, 0,
+                seahorse(1e-50), 10000000, IDENTITY);
+        final int[] result = new int[1];
+        Thread worker = new Thread() {
+            @Override
+            public void run() {
+                result[0] = kernel.iterate(0, 0);
+            }
+        };
+        worker.start();
+        Thread.sleep(50);
+        kernel.cancel();
+        worker.join(10000);
+        assertFalse(worker.isAlive());
+        assertEquals(FractalKernel.CANCELLED, result[0]);
+        assertEquals(0, kernel.getReferenceCount());
+        assertEquals(0, kernel.getSeriesSkip());
+    }
+
+    @Test
+    public void viewportScaleKeepsAnchorPoint() throws Exception {
+        Viewport viewport = seahorse(1e-3);
+        MathContext mc = new MathContext(80);
+        for (int n = 0; n < 40; n++) {
+            BigDecimal before = viewport.getCenterX().add(new BigDecimal(30 * viewport.getPixelSize()), mc);
+            viewport.scale(0.1, WIDTH / 2.0 + 30, HEIGHT / 2.0);
+            BigDecimal after = viewport.getCenterX().add(new BigDecimal(30 * viewport.getPixelSize()), mc);
+            assertTrue(after.subtract(before).abs().doubleValue() < viewport.getPixelSize() * 1e-3);
+        }
+        assertEquals(1e-43, viewport.getPixelSize(), 1e-55);
+        assertTrue(viewport.isDeep());
+    }
+}
@@ -0,0 +1,88 @@
+package com.lh.fractal.engine;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.*;
+
+/**
+ * 写出的PNG由标准的解码器读回，像素必须完全一致
+ */
+public class PngWriterTest {
+
+    private static int[] decode(byte[] png, int width, int height) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(png));
+        assertEquals(width, image.getWidth());
+        assertEquals(height, image.getHeight());
+        return image.getRGB(0, 0, width, height, null, 0, width);
+    }
+
+    private static byte[] encode(int[] pixels, int width, int height, int level) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        PngWriter writer = new PngWriter(output, width, height, level);
+        for (int y = 0; y < height; y++) {
+            writer.writeRow(pixels, y * width);
+        }
+        writer.close();
+        assertEquals(output.size(), writer.getBytesWritten());
+        return output.toByteArray();
+    }
+
+    @Test
+    public void roundTrip_gradientAndNoise() throws Exception {
+        int width = 301;
+        int height = 97;
+        int[] pixels = new int[width * height];
+        Random random = new Random(42);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                // 上半部分是渐变，适合Sub/Up/Paeth；下半部分是噪声，只能用None
+                int color = y < height / 2 ? (x & 0xff) << 16 | (y * 3 & 0xff) << 8 | (x + y) & 0xff
+                        : random.nextInt();
+                pixels[y * width + x] = 0xff000000 | color;
+            }
+        }
+        for (int level = 0; level <= 9; level += 9) {
+            assertArrayEquals(pixels, decode(encode(pixels, width, height, level), width, height));
+        }
+    }
+
+    @Test
+    public void roundTrip_spansSeveralDataChunks() throws Exception {
+        int width = 512;
+        int height = 256;
+        int[] pixels = new int[width * height];
+        Random random = new Random(7);
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = 0xff000000 | random.nextInt();
+        }
+        byte[] png = encode(pixels, width, height, 0);
+        assertTrue(png.length > 3 * 64 * 1024);
+        assertArrayEquals(pixels, decode(png, width, height));
+    }
+
+    @Test
+    public void close_rejectsMissingRows() throws Exception {
+        PngWriter writer = new PngWriter(new ByteArrayOutputStream(), 4, 4);
+        writer.writeRow(new int[4], 0);
+        try {
+            writer.close();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void paethPredictor_matchesSpecification() {
+        assertEquals(10, PngWriter.paethPredictor(10, 20, 20));
+        assertEquals(20, PngWriter.paethPredictor(10, 20, 10));
+        assertEquals(15, PngWriter.paethPredictor(10, 20, 15));
+    }
+}
@@ -0,0 +1,119 @@
+package com.lh.fractal.engine;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+
+import static org.junit.Assert.*;
+
+/**
+ * 精度阶梯各级内核的选择和结果
+ */
+public class PrecisionTest {
+
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+
+    private static final ColorMapper IDENTITY = new ColorMapper() {
+        @Override
+        public int getColor(int k, int maxIterations) {
+            return k;
+        }
+    };
+
+    private static Viewport seahorse(double pixelSize) {
+        Viewport viewport = new Viewport(WIDTH, HEIGHT);
+        viewport.set(new BigDecimal("-0.743643887037158704752191506114774"),
+                new BigDecimal("0.131825904205311970493132056385139"), pixelSize);
+        return viewport;
+    }
+
+    /**
+     * 按定义用BigDecimal计算Mandelbrot集的像素
+     */
+    private static int reference(Viewport viewport, int i, int j, int max) {
+        MathContext mc = new MathContext(viewport.getMathContext().getPrecision() + 20);
+        BigDecimal cr = viewport.getCenterX().add(new BigDecimal((i - WIDTH / 2.0) * viewport.getPixelSize()), mc);
+        BigDecimal ci = viewport.getCenterY().subtract(new BigDecimal((j - HEIGHT / 2.0) * viewport.getPixelSize()), mc);
+        BigDecimal zr = BigDecimal.ZERO;
+        BigDecimal zi = BigDecimal.ZERO;
+        int k = 0;
+        for (; k < max; k++) {
+            double r = zr.doubleValue();
+            double m = zi.doubleValue();
+            if (r * r + m * m > 16) {
+                break;
+            }
+            BigDecimal temp = zr.multiply(zr, mc).subtract(zi.multiply(zi, mc), mc).add(cr, mc);
+            zi = zr.multiply(zi, mc).multiply(BigDecimal.valueOf(2), mc).add(ci, mc);
+            zr = temp;
+        }
+        return k;
+    }
+
+    @Test
+    public void choose_stepsThroughLadder() throws Exception {
+        Viewport viewport = new Viewport(WIDTH, HEIGHT);
+        viewport.reset(2.5);
+        assertEquals(Precision.FLOAT, viewport.getPrecision());
+        assertEquals(Precision.DOUBLE, seahorse(1e-8).getPrecision());
+        assertEquals(Precision.DOUBLE_DOUBLE, seahorse(1e-20).getPrecision());
+        // 定点数比微扰慢得多，double-double不够时直接使用微扰
+        assertEquals(Precision.PERTURBATION, seahorse(1e-32).getPrecision());
+        assertEquals(Precision.PERTURBATION, seahorse(1e-50).getPrecision());
+        assertTrue(Precision.createKernel(FractalKernel.MODE_MANDELBROT, 0, 0, seahorse(1e-20), 100, IDENTITY)
+                instanceof DoubleDoubleKernel);
+    }
+
+    @Test
+    public void floatKernel_matchesDoubleOnOverview() throws Exception {
+        Viewport viewport = new Viewport(WIDTH, HEIGHT);
+        viewport.reset(2.5);
+        for (int mode = FractalKernel.MODE_JULIA; mode <= FractalKernel.MODE_MANDELBROT; mode++) {
+            FractalKernel single = Precision.createKernel(Precision.FLOAT, mode, 0.285, 0.01, viewport, 256, IDENTITY);
+            FractalKernel dual = Precision.createKernel(Precision.DOUBLE, mode, 0.285, 0.01, viewport, 256, IDENTITY);
+            int differences = 0;
+            for (int j = 0; j < HEIGHT; j++) {
+                for (int i = 0; i < WIDTH; i++) {
+                    if (single.iterate(i, j) != dual.iterate(i, j)) {
+                        differences++;
+                    }
+                }
+            }
+            assertTrue(differences <= WIDTH * HEIGHT / 100);
+        }
+    }
+
+    @Test
+    public void extendedKernels_matchArbitraryPrecision() throws Exception {
+        Viewport viewport = seahorse(1e-20);
+        FractalKernel doubleDouble = Precision.createKernel(Precision.DOUBLE_DOUBLE, FractalKernel.MODE_MANDELBROT,
+                0, 0, viewport, 2000, IDENTITY);
+        FractalKernel fixedPoint = Precision.createKernel(Precision.FIXED_POINT, FractalKernel.MODE_MANDELBROT,
+                0, 0, viewport, 2000, IDENTITY);
+        int[][] samples = {{0, 0}, {WIDTH - 1, HEIGHT - 1}, {WIDTH / 2, HEIGHT / 2}, {9, 40}, {50, 3}};
+        for (int[] sample : samples) {
+            int expected = reference(viewport, sample[0], sample[1], 2000);
+            assertEquals(expected, doubleDouble.iterate(sample[0], sample[1]));
+            assertEquals(expected, fixedPoint.iterate(sample[0], sample[1]));
+        }
+    }
+
+    @Test
+    public void fixedPoint_signedArithmetic() throws Exception {
+        int limbs = 4;
+        int[] a = FixedPoint.valueOf(-1.75, limbs);
+        int[] b = FixedPoint.valueOf(0.5, limbs);
+        int[] product = new int[limbs];
+        FixedPoint.multiply(a, b, product, new int[limbs], new int[limbs], new long[limbs + 1]);
+        assertEquals(-0.875, FixedPoint.toDouble(product), 0);
+        int[] sum = new int[limbs];
+        FixedPoint.add(a, b, sum);
+        assertEquals(-1.25, FixedPoint.toDouble(sum), 0);
+        FixedPoint.subtract(b, a, sum);
+        assertEquals(2.25, FixedPoint.toDouble(sum), 0);
+        FixedPoint.multiply(a, a, product, new int[limbs], new int[limbs], new long[limbs + 1]);
+        assertEquals(3.0625, FixedPoint.toDouble(product), 0);
+    }
+}
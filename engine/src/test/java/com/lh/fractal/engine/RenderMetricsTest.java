@@ -0,0 +1,157 @@
+package com.lh.fractal.engine;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * 渲染统计的一致性和推送的节流
+ */
+public class RenderMetricsTest {
+
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+
+    private static final ColorMapper COLOR_MAPPER = new ColorMapper() {
+        @Override
+        public int getColor(int k, int maxIterations) {
+            return k;
+        }
+    };
+
+    private static FractalKernel mandelbrot(int limit) {
+        return new FractalKernel(FractalKernel.MODE_MANDELBROT, 0, 0, -2.5, 1.5, -1.5, 1.5, WIDTH, HEIGHT, limit,
+                COLOR_MAPPER);
+    }
+
+    @Test
+    public void bucket_limitCoversValue() {
+        for (long nanos : new long[]{0, 1, 3, 4, 7, 8, 100, 1000, 123456789, Long.MAX_VALUE / 3}) {
+            int bucket = RenderMetrics.bucketOf(nanos);
+            assertTrue(nanos + " in " + bucket, RenderMetrics.bucketLimit(bucket) >= nanos);
+            assertTrue(bucket == 0 || RenderMetrics.bucketLimit(bucket - 1) < nanos);
+            // 上界与值相差不超过25%
+            assertTrue(RenderMetrics.bucketLimit(bucket) <= nanos + nanos / 4 + 1);
+        }
+    }
+
+    @Test
+    public void scheduledRender_reportsConsistentTotals() throws Exception {
+        TileScheduler scheduler = new TileScheduler(2);
+        try {
+            TileRenderer renderer = new TileRenderer(WIDTH, HEIGHT);
+            final List<RenderMetrics.Snapshot> published = Collections.synchronizedList(
+                    new ArrayList<RenderMetrics.Snapshot>());
+            final CountDownLatch done = new CountDownLatch(1);
+            // 间隔很长，只推送最后一次
+            renderer.getMetrics().setOnMetricsListener(new RenderMetrics.OnMetricsListener() {
+                @Override
+                public void onMetrics(RenderMetrics.Snapshot snapshot) {
+                    published.add(snapshot);
+                    if (snapshot.isComplete()) {
+                        done.countDown();
+                    }
+                }
+            }, TimeUnit.HOURS.toNanos(1));
+            renderer.render(mandelbrot(512), scheduler, null);
+            assertTrue(done.await(30, TimeUnit.SECONDS));
+
+            assertEquals(1, published.size());
+            RenderMetrics.Snapshot snapshot = published.get(0);
+            assertTrue(snapshot.isComplete());
+            assertEquals(renderer.getIterations(), snapshot.getIterations());
+            assertEquals((long) WIDTH * HEIGHT, snapshot.getTilePixels());
+            assertTrue(snapshot.getTiles() > 1);
+            assertTrue(snapshot.getTimeToFirstPixel() > 0);
+            assertTrue(snapshot.getTimeToFirstPixel() <= snapshot.getTimeToFirstFrame());
+            assertTrue(snapshot.getTimeToFirstFrame() <= snapshot.getWallTime());
+            assertTrue(snapshot.getTileTimePercentile(50) <= snapshot.getTileTimePercentile(99));
+            assertTrue(snapshot.getTileTimePercentile(100) <= snapshot.getMaxTileTime());
+            assertEquals(0, snapshot.getCancelledTiles());
+            assertEquals(2, snapshot.getWorkerCount());
+            assertTrue(snapshot.getUtilization() > 0 && snapshot.getUtilization() <= 1);
+            assertEquals(-1, snapshot.getCacheHitRate(), 0);
+            // 完成后不再变化
+            assertEquals(snapshot.getWallTime(), renderer.getMetrics().snapshot().getWallTime());
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void cancel_publishesCancelledSnapshot() throws Exception {
+        TileScheduler scheduler = new TileScheduler(2);
+        try {
+            TileRenderer renderer = new TileRenderer(WIDTH, HEIGHT);
+            final List<RenderMetrics.Snapshot> published = Collections.synchronizedList(
+                    new ArrayList<RenderMetrics.Snapshot>());
+            renderer.getMetrics().setOnMetricsListener(new RenderMetrics.OnMetricsListener() {
+                @Override
+                public void onMetrics(RenderMetrics.Snapshot snapshot) {
+                    published.add(snapshot);
+                }
+            }, 0);
+            final CountDownLatch first = new CountDownLatch(1);
+            renderer.render(mandelbrot(100000), scheduler, new TileRenderer.OnTileRenderedListener() {
+                @Override
+                public void onTileRendered(Tile tile) {
+                    first.countDown();
+                }
+            });
+            assertTrue(first.await(30, TimeUnit.SECONDS));
+            renderer.cancel();
+            int count = published.size();
+            renderer.awaitIdle();
+            // 取消之后退出的分块不再推送
+            assertEquals(count, published.size());
+            RenderMetrics.Snapshot last = published.get(published.size() - 1);
+            assertTrue(last.isCancelled());
+            assertFalse(last.isComplete());
+            assertTrue(last.getTiles() >= 1);
+            // 第一个分块完成后立即取消，画面远没有完成
+            assertTrue(last.getTilePixels() < (long) WIDTH * HEIGHT);
+            assertEquals(-1, last.getTimeToFirstFrame());
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void pyramid_countsCacheHits() throws Exception {
+        TilePyramid pyramid = new TilePyramid(new TileCache(64L * 1024 * 1024));
+        TileRenderer renderer = new TileRenderer(WIDTH, HEIGHT);
+        TileScheduler scheduler = new TileScheduler(2);
+        try {
+            for (int pass = 0; pass < 2; pass++) {
+                final CountDownLatch done = new CountDownLatch(1);
+                final RenderMetrics.Snapshot[] result = new RenderMetrics.Snapshot[1];
+                renderer.getMetrics().setOnMetricsListener(new RenderMetrics.OnMetricsListener() {
+                    @Override
+                    public void onMetrics(RenderMetrics.Snapshot snapshot) {
+                        if (snapshot.isComplete()) {
+                            result[0] = snapshot;
+                            done.countDown();
+                        }
+                    }
+                }, RenderMetrics.DEFAULT_INTERVAL_NANOS);
+                renderer.renderPyramid(mandelbrot(256), pyramid, scheduler, null);
+                assertTrue(done.await(30, TimeUnit.SECONDS));
+                if (pass == 0) {
+                    assertEquals(0, result[0].getCacheHitRate(), 0);
+                } else {
+                    // 同一画面再渲染一次，全部来自缓存
+                    assertEquals(1, result[0].getCacheHitRate(), 0);
+                    assertEquals(0, result[0].getIterations());
+                }
+            }
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.lh.fractal.engine;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.*;
+
+/**
+ * 按条带导出的图像必须与一次渲染整幅画面的结果逐像素一致
+ */
+public class StripExporterTest {
+
+    private static final int WIDTH = 300;
+    private static final int HEIGHT = 100;
+
+    private static final Palette PALETTE = Palette.gradient(64, 0xff000000, 0xff000764, 0xff206bcb,
+            0xffedffff, 0xffffaa00, 0xff000200);
+
+    private static int[] export(FractalKernel kernel, Coloring coloring, boolean subdivision, int stripHeight,
+                                int threads) throws Exception {
+        TileScheduler scheduler = new TileScheduler(threads);
+        try {
+            StripExporter exporter = new StripExporter(scheduler);
+            exporter.setColoring(coloring);
+            exporter.setSubdivision(subdivision);
+            exporter.setStripHeight(stripHeight);
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            exporter.export(kernel, output);
+            assertTrue(exporter.getIterations() > 0);
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(output.toByteArray()));
+            return image.getRGB(0, 0, WIDTH, HEIGHT, null, 0, WIDTH);
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    private static int[] renderWhole(FractalKernel kernel, Coloring coloring) {
+        TileRenderer renderer = new TileRenderer(WIDTH, HEIGHT);
+        renderer.setColoring(coloring);
+        renderer.setSubdivision(false);
+        renderer.renderSync(kernel, Collections.singletonList(new Tile(0, 0, WIDTH, HEIGHT)));
+        return renderer.getPixels();
+    }
+
+    @Test
+    public void export_matchesWholeRender() throws Exception {
+        for (Scene scene : new Scene[]{Scene.JULIA, Scene.SEAHORSE}) {
+            Coloring coloring = new Coloring(PALETTE, Coloring.MODE_SMOOTH);
+            FractalKernel kernel = scene.createKernel(WIDTH, HEIGHT, 256, coloring);
+            int[] expected = renderWhole(kernel, coloring);
+            // 条带高度不整除图像高度，最后一个条带不满
+            assertArrayEquals(scene.getName(), expected, export(kernel, coloring, false, 7, 3));
+        }
+    }
+
+    @Test
+    public void export_subdivisionMatchesBandedRender() throws Exception {
+        Coloring coloring = new Coloring(PALETTE, Coloring.MODE_BANDED);
+        FractalKernel kernel = Scene.MANDELBROT.createKernel(WIDTH, HEIGHT, 256, coloring);
+        int[] plain = export(kernel, coloring, false, 64, 2);
+        int[] subdivided = export(kernel, coloring, true, 64, 2);
+        int differences = 0;
+        for (int i = 0; i < plain.length; i++) {
+            if (plain[i] != subdivided[i]) {
+                differences++;
+            }
+        }
+        // 矩形细分只在极少数细丝穿过均匀边框时出错
+        assertTrue("differences " + differences, differences < plain.length / 100);
+    }
+}
@@ -0,0 +1,179 @@
+package com.lh.fractal.engine;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * 自适应超采样只细化边缘像素，结果比单次采样更接近高倍均匀超采样
+ */
+public class SupersamplerTest {
+
+    private static final int WIDTH = 96;
+    private static final int HEIGHT = 64;
+
+    private static final Palette PALETTE = Palette.gradient(64, 0xff000000, 0xff000764, 0xff206bcb,
+            0xffedffff, 0xffffaa00, 0xff000200);
+
+    private static TileRenderer render(FractalKernel kernel, Coloring coloring) {
+        TileRenderer renderer = new TileRenderer(WIDTH, HEIGHT);
+        renderer.setColoring(coloring);
+        renderer.setSubdivision(false);
+        renderer.renderSync(kernel, Collections.singletonList(new Tile(0, 0, WIDTH, HEIGHT)));
+        return renderer;
+    }
+
+    /**
+     * 每个像素8x8均匀采样的平均颜色
+     */
+    private static int[] reference(FractalKernel kernel, Coloring coloring) {
+        int grid = 8;
+        int[] pixels = new int[WIDTH * HEIGHT];
+        IterationCounter counter = new IterationCounter();
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int red = 0;
+                int green = 0;
+                int blue = 0;
+                for (int s = 0; s < grid * grid; s++) {
+                    int k = kernel.iterate(x, y, (s % grid + 0.5) / grid - 0.5, (s / grid + 0.5) / grid - 0.5,
+                            counter);
+                    int color = coloring.getColor(k, counter.magnitude, kernel.getIterateTimes());
+                    red += (color >> 16) & 0xff;
+                    green += (color >> 8) & 0xff;
+                    blue += color & 0xff;
+                }
+                pixels[y * WIDTH + x] = red / 64 << 16 | green / 64 << 8 | blue / 64;
+            }
+        }
+        return pixels;
+    }
+
+    private static long error(int[] pixels, int[] reference) {
+        long sum = 0;
+        for (int i = 0; i < pixels.length; i++) {
+            for (int shift = 0; shift <= 16; shift += 8) {
+                sum += Math.abs(((pixels[i] >> shift) & 0xff) - ((reference[i] >> shift) & 0xff));
+            }
+        }
+        return sum;
+    }
+
+    @Test
+    public void refine_reducesAliasingWithinBudget() throws Exception {
+        Coloring coloring = new Coloring(PALETTE, Coloring.MODE_SMOOTH);
+        FractalKernel kernel = Scene.SEAHORSE.createKernel(WIDTH, HEIGHT, 256, coloring);
+        TileRenderer renderer = render(kernel, coloring);
+        int[] single = renderer.getPixels().clone();
+
+        Supersampler sampler = new Supersampler(16, 2f);
+        Supersampler.Selection selection = sampler.select(renderer.getCounts(), single, WIDTH, HEIGHT, 256);
+        assertTrue(selection.getSelected() > 0);
+        assertTrue(selection.getSelected() <= 2f * WIDTH * HEIGHT / 16);
+        assertTrue(selection.getCandidates() >= selection.getSelected());
+        assertEquals((float) selection.getSelected() / (WIDTH * HEIGHT), selection.getRefinedFraction(), 1e-6f);
+
+        int[] refined = single.clone();
+        int count = sampler.refine(kernel, coloring, selection, refined, WIDTH, new Tile(0, 0, WIDTH, HEIGHT),
+                null);
+        assertEquals(selection.getSelected(), count);
+        int[] reference = reference(kernel, coloring);
+        long before = error(single, reference);
+        long after = error(refined, reference);
+        assertTrue("error " + before + " -> " + after, after < before * 0.8);
+    }
+
+    @Test
+    public void select_uniformImageSelectsNothing() {
+        int[] counts = new int[WIDTH * HEIGHT];
+        int[] pixels = new int[WIDTH * HEIGHT];
+        Supersampler.Selection selection = new Supersampler().select(counts, pixels, WIDTH, HEIGHT, 100);
+        assertEquals(0, selection.getCandidates());
+        assertEquals(0, selection.getSelected());
+    }
+
+    @Test
+    public void select_prefersSetBoundaryWhenOverBudget() {
+        // 左半边不发散，右半边是每列不同的颜色
+        int[] counts = new int[WIDTH * HEIGHT];
+        int[] pixels = new int[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                counts[y * WIDTH + x] = x < WIDTH / 2 ? 100 : x;
+                pixels[y * WIDTH + x] = x < WIDTH / 2 ? 0 : (x % 2) * 0xffffff;
+            }
+        }
+        // 只够细化边界两侧的两列
+        float budget = 2f * HEIGHT * 16 / (WIDTH * HEIGHT);
+        Supersampler.Selection selection = new Supersampler(16, budget).select(counts, pixels, WIDTH, HEIGHT, 100);
+        assertEquals(2 * HEIGHT, selection.getSelected());
+        for (int y = 0; y < HEIGHT; y++) {
+            assertTrue(selection.isSelected(WIDTH / 2 - 1, y));
+            assertTrue(selection.isSelected(WIDTH / 2, y));
+        }
+    }
+
+    @Test
+    public void subpixelOffset_matchesNeighbourPixelAtEveryPrecision() {
+        int[] precisions = {Precision.DOUBLE, Precision.DOUBLE_DOUBLE, Precision.FIXED_POINT, Precision.PERTURBATION};
+        double[] pixelSizes = {1e-8, 1e-20, 1e-32, 1e-50};
+        for (int p = 0; p < precisions.length; p++) {
+            Viewport viewport = new Viewport(WIDTH, HEIGHT);
+            viewport.set(new BigDecimal("-0.743643887037158704752191506114774"),
+                    new BigDecimal("0.131825904205311970493132056385139"), pixelSizes[p]);
+            FractalKernel kernel = Precision.createKernel(precisions[p], FractalKernel.MODE_MANDELBROT, 0, 0,
+                    viewport, 500, null);
+            int differences = 0;
+            for (int j = 0; j < HEIGHT - 1; j += 3) {
+                for (int i = 0; i < WIDTH - 1; i += 3) {
+                    assertEquals(kernel.iterate(i, j), kernel.iterate(i, j, 0, 0, null));
+                    if (kernel.iterate(i, j, 1, 1, null) != kernel.iterate(i + 1, j + 1)) {
+                        differences++;
+                    }
+                }
+            }
+            assertTrue(Precision.getName(precisions[p]) + ": " + differences, differences <= 2);
+        }
+    }
+
+    @Test
+    public void antialias_scheduledMatchesSync() throws Exception {
+        Coloring coloring = new Coloring(PALETTE, Coloring.MODE_BANDED);
+        FractalKernel kernel = Scene.MANDELBROT.createKernel(WIDTH, HEIGHT, 128, coloring);
+        TileRenderer renderer = render(kernel, coloring);
+        Supersampler sampler = new Supersampler();
+        int[] expected = renderer.getPixels().clone();
+        Supersampler.Selection selection = sampler.select(renderer.getCounts(), expected, WIDTH, HEIGHT, 128);
+        sampler.refine(kernel, coloring, selection, expected, WIDTH, new Tile(0, 0, WIDTH, HEIGHT), null);
+
+        TileScheduler scheduler = new TileScheduler(3);
+        try {
+            final CountDownLatch done = new CountDownLatch(1);
+            final int[] remaining = {WIDTH * HEIGHT};
+            TileScheduler.Batch batch = renderer.antialias(kernel, sampler, scheduler,
+                    new TileRenderer.OnTileRenderedListener() {
+                        @Override
+                        public void onTileRendered(Tile tile) {
+                            synchronized (remaining) {
+                                remaining[0] -= tile.width() * tile.height();
+                                if (remaining[0] == 0) {
+                                    done.countDown();
+                                }
+                            }
+                        }
+                    });
+            assertNotNull(batch);
+            assertTrue(done.await(30, TimeUnit.SECONDS));
+            assertArrayEquals(expected, renderer.getPixels());
+            assertEquals(selection.getSelected(), renderer.getAntialiasSelection().getSelected());
+            assertTrue(renderer.getAntialiasIterations() > 0);
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+}
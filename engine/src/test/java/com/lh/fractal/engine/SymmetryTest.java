@@ -0,0 +1,173 @@
+package com.lh.fractal.engine;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * 对称区域的识别，以及镜像复制与直接计算的结果一致
+ */
+public class SymmetryTest {
+
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+
+    private static final ColorMapper COLOR_MAPPER = new ColorMapper() {
+        @Override
+        public int getColor(int k, int maxIterations) {
+            return k;
+        }
+    };
+
+    private static FractalKernel julia(double minX, double maxX, double minY, double maxY) {
+        return new FractalKernel(FractalKernel.MODE_JULIA, 0.285, 0.01, minX, maxX, minY, maxY, WIDTH, HEIGHT, 512,
+                COLOR_MAPPER);
+    }
+
+    private static FractalKernel mandelbrot(double minX, double maxX, double minY, double maxY) {
+        return new FractalKernel(FractalKernel.MODE_MANDELBROT, 0, 0, minX, maxX, minY, maxY, WIDTH, HEIGHT, 512,
+                COLOR_MAPPER);
+    }
+
+    @Test
+    public void of_detectsAxisOnPixelGrid() {
+        // 第120行正好是实轴，第121到239行是第119到1行的镜像
+        Symmetry axis = Symmetry.of(mandelbrot(-2.5, 1.5, -1.5, 1.5));
+        assertNotNull(axis);
+        assertTrue(axis.isConjugate());
+        assertTile(0, 121, WIDTH, HEIGHT, axis.getMirrored());
+        assertEquals(1, axis.mirrorRow(239));
+
+        // 原点在第160列，第0列的镜像在画面外
+        Symmetry point = Symmetry.of(julia(-2, 2, -1.5, 1.5));
+        assertNotNull(point);
+        assertFalse(point.isConjugate());
+        assertTile(1, 121, WIDTH, HEIGHT, point.getMirrored());
+        assertEquals(319, point.mirrorColumn(1));
+
+        // 平移半个像素后对称中心落在两个像素正中，仍然可以镜像
+        double step = 4.0 / WIDTH;
+        assertNotNull(Symmetry.of(julia(-2 + step / 2, 2 + step / 2, -1.5, 1.5)));
+        assertNull(Symmetry.of(julia(-2 + step * 0.3, 2 + step * 0.3, -1.5, 1.5)));
+        assertNull(Symmetry.of(mandelbrot(-2.5, 1.5, -1.5 + step * 0.3, 1.5 + step * 0.3)));
+        // 对称轴在画面外
+        assertNull(Symmetry.of(mandelbrot(-2.5, 1.5, 0.5, 3.5)));
+    }
+
+    private static void assertTile(int left, int top, int right, int bottom, Tile tile) {
+        assertEquals(left, tile.left);
+        assertEquals(top, tile.top);
+        assertEquals(right, tile.right);
+        assertEquals(bottom, tile.bottom);
+    }
+
+    @Test
+    public void subtractAndMirror_coverViewportOnce() {
+        FractalKernel[] kernels = {julia(-2, 2, -1.5, 1.5), mandelbrot(-2.5, 1.5, -1.5, 1.5),
+                julia(-1, 3, -0.5, 2.5)};
+        for (FractalKernel kernel : kernels) {
+            Symmetry symmetry = Symmetry.of(kernel);
+            assertNotNull(symmetry);
+            int[] visits = new int[WIDTH * HEIGHT];
+            for (Tile region : symmetry.subtract(new Tile(0, 0, WIDTH, HEIGHT))) {
+                // 按调度器的方式切成小块，每一块和它的镜像各覆盖一次
+                for (int y = region.top; y < region.bottom; y += 32) {
+                    for (int x = region.left; x < region.right; x += 32) {
+                        Tile tile = new Tile(x, y, Math.min(x + 32, region.right), Math.min(y + 32, region.bottom));
+                        visit(visits, tile);
+                        Tile mirrored = symmetry.mirror(tile);
+                        if (mirrored != null) {
+                            visit(visits, mirrored);
+                        }
+                    }
+                }
+            }
+            for (int index = 0; index < visits.length; index++) {
+                assertEquals(symmetry + " pixel " + index, 1, visits[index]);
+            }
+        }
+    }
+
+    private static void visit(int[] visits, Tile tile) {
+        for (int y = tile.top; y < tile.bottom; y++) {
+            for (int x = tile.left; x < tile.right; x++) {
+                visits[y * WIDTH + x]++;
+            }
+        }
+    }
+
+    @Test
+    public void scheduledRender_mirrorsMatchDirectComputation() throws Exception {
+        TileScheduler scheduler = new TileScheduler(2);
+        try {
+            FractalKernel[] kernels = {julia(-2, 2, -1.5, 1.5), mandelbrot(-2.5, 1.5, -1.5, 1.5)};
+            for (FractalKernel kernel : kernels) {
+                TileRenderer mirrored = render(kernel, scheduler, true);
+                TileRenderer direct = render(kernel, scheduler, false);
+                RenderMetrics.Snapshot snapshot = mirrored.getMetrics().snapshot();
+                assertEquals((long) WIDTH * HEIGHT, snapshot.getTilePixels());
+                assertTrue(snapshot.getMirroredPixels() > WIDTH * HEIGHT * 2 / 5);
+                assertEquals(0, direct.getMetrics().snapshot().getMirroredPixels());
+                assertTrue(mirrored.getIterations() < direct.getIterations() * 2 / 3);
+
+                // 坐标表严格反对称，镜像与直接计算的迭代次数逐像素相同
+                assertArrayEquals(kernel.getMode() + " counts", direct.getCounts(), mirrored.getCounts());
+            }
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void deepen_resumesMirroredOrbits() throws Exception {
+        TileScheduler scheduler = new TileScheduler(2);
+        try {
+            FractalKernel[] kernels = {julia(-2, 2, -1.5, 1.5), mandelbrot(-2.5, 1.5, -1.5, 1.5)};
+            for (FractalKernel kernel : kernels) {
+                TileRenderer renderer = render(kernel, scheduler, true);
+                FractalKernel deeper = new FractalKernel(kernel.getMode(), kernel.getRe(), kernel.getIm(),
+                        kernel.getMinX(), kernel.getMaxX(), kernel.getMinY(), kernel.getMaxY(), WIDTH, HEIGHT, 2048,
+                        COLOR_MAPPER);
+                assertTrue(renderer.canDeepen(deeper));
+                renderer.deepen(deeper, scheduler, null);
+                awaitComplete(renderer);
+
+                // 镜像区域保存的z(Mandelbrot集取共轭)继续迭代，结果与源像素相同
+                Symmetry symmetry = Symmetry.of(deeper);
+                Tile m = symmetry.getMirrored();
+                int[] counts = renderer.getCounts();
+                int different = 0;
+                for (int j = m.top; j < m.bottom; j++) {
+                    for (int i = m.left; i < m.right; i++) {
+                        int source = symmetry.mirrorRow(j) * WIDTH + symmetry.mirrorColumn(i);
+                        if (counts[j * WIDTH + i] != counts[source]) {
+                            different++;
+                        }
+                    }
+                }
+                assertEquals(0, different);
+            }
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    private static TileRenderer render(FractalKernel kernel, TileScheduler scheduler, boolean symmetry)
+            throws InterruptedException {
+        TileRenderer renderer = new TileRenderer(WIDTH, HEIGHT);
+        renderer.setSymmetry(symmetry);
+        renderer.render(kernel, scheduler, null);
+        awaitComplete(renderer);
+        return renderer;
+    }
+
+    private static void awaitComplete(TileRenderer renderer) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (!renderer.isComplete()) {
+            assertTrue(System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.lh.fractal.engine;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * 分块缓存和金字塔拼图
+ */
+public class TileCacheTest {
+
+    private static final ColorMapper IDENTITY = new ColorMapper() {
+        @Override
+        public int getColor(int k, int maxIterations) {
+            return k;
+        }
+    };
+
+    private static TileKey key(int x) {
+        return new TileKey(FractalKernel.MODE_JULIA, 0.285, 0.01, 256, 3, x, 0);
+    }
+
+    @Test
+    public void lruEviction() throws Exception {
+        TileCache cache = new TileCache(3 * 400);
+        cache.put(key(0), new int[100]);
+        cache.put(key(1), new int[100]);
+        cache.put(key(2), new int[100]);
+        assertNotNull(cache.get(key(0)));
+        cache.put(key(3), new int[100]);
+        // key(1) is the least recently used one
+        assertNull(cache.get(key(1)));
+        assertNotNull(cache.get(key(0)));
+        assertNotNull(cache.get(key(2)));
+        assertNotNull(cache.get(key(3)));
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(4, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1200, cache.getBytes());
+
+        cache.setMaxBytes(400);
+        assertEquals(1, cache.getTileCount());
+        assertEquals(3, cache.getEvictionCount());
+    }
+
+    @Test
+    public void mandelbrotKeyIgnoresJuliaParameter() throws Exception {
+        assertEquals(new TileKey(FractalKernel.MODE_MANDELBROT, 0.285, 0.01, 256, 0, 1, 1),
+                new TileKey(FractalKernel.MODE_MANDELBROT, -1, 0, 256, 0, 1, 1));
+        assertNotEquals(new TileKey(FractalKernel.MODE_JULIA, 0.285, 0.01, 256, 0, 1, 1),
+                new TileKey(FractalKernel.MODE_JULIA, -1, 0, 256, 0, 1, 1));
+    }
+
+    private static void render(TileRenderer renderer, FractalKernel kernel, TilePyramid pyramid) throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            renderer.renderPyramid(kernel, pyramid, executor, null);
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+        assertTrue(renderer.isComplete());
+    }
+
+    @Test
+    public void pyramid_secondVisitHitsCache() throws Exception {
+        int width = 320;
+        int height = 240;
+        // level 2: tile span 2, tile pixel spacing 1 / 128, same as the screen
+        double step = 1.0 / 128;
+        FractalKernel kernel = new FractalKernel(FractalKernel.MODE_MANDELBROT, 0, 0,
+                -1, -1 + width * step, 1 - height * step, 1, width, height, 256, IDENTITY);
+        assertEquals(2, TilePyramid.levelFor(step));
+
+        TilePyramid pyramid = new TilePyramid(new TileCache(64L << 20));
+        TileRenderer renderer = new TileRenderer(width, height);
+        render(renderer, kernel, pyramid);
+        TileCache cache = pyramid.getCache();
+        // x tiles [-1, 0], y tiles [-1, 0]
+        assertEquals(4, cache.getMissCount());
+        assertEquals(4, cache.getTileCount());
+        assertTrue(renderer.getIterations() > 0);
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                assertEquals(kernel.iterate(i, j), renderer.getPixels()[j * width + i]);
+            }
+        }
+
+        int[] first = renderer.getPixels().clone();
+        render(renderer, kernel, pyramid);
+        assertEquals(4, cache.getHitCount());
+        assertEquals(0, renderer.getIterations());
+        assertArrayEquals(first, renderer.getPixels());
+    }
+}
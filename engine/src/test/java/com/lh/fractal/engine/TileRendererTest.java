@@ -0,0 +1,276 @@
+package com.lh.fractal.engine;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * 并行渲染的结果必须与单线程渲染逐像素一致
+ */
+public class TileRendererTest {
+
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final int COUNT = 8;
+
+    private static final ColorMapper COLOR_MAPPER = new ColorMapper() {
+        @Override
+        public int getColor(int k, int maxIterations) {
+            return k >= maxIterations ? 0xff000000 : 0xff000000 | (k * 8 % 256) << 16 | (k * 12 % 256) << 8 | 100;
+        }
+    };
+
+    private static List<Tile> grid() {
+        List<Tile> list = new ArrayList<>(COUNT * COUNT);
+        int xSize = WIDTH / COUNT;
+        int ySize = HEIGHT / COUNT;
+        for (int i = 0; i < COUNT; i++) {
+            for (int j = 0; j < COUNT; j++) {
+                list.add(new Tile(i * xSize, j * ySize, (i + 1) * xSize, (j + 1) * ySize));
+            }
+        }
+        return list;
+    }
+
+    private static void assertParallelMatchesSync(FractalKernel kernel) throws Exception {
+        List<Tile> tiles = grid();
+        TileRenderer sync = new TileRenderer(WIDTH, HEIGHT);
+        sync.renderSync(kernel, tiles);
+
+        TileRenderer parallel = new TileRenderer(WIDTH, HEIGHT);
+        final CountDownLatch latch = new CountDownLatch(tiles.size());
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            parallel.render(kernel, tiles, executor, new TileRenderer.OnTileRenderedListener() {
+                @Override
+                public void onTileRendered(Tile tile) {
+                    latch.countDown();
+                }
+            });
+            assertTrue(latch.await(30, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdown();
+        }
+        assertArrayEquals(sync.getPixels(), parallel.getPixels());
+    }
+
+    @Test
+    public void julia_parallelMatchesSync() throws Exception {
+        assertParallelMatchesSync(new FractalKernel(FractalKernel.MODE_JULIA, 0.285f, 0.01f,
+                -2.5f, 2.5f, -1.875f, 1.875f, WIDTH, HEIGHT, 256, COLOR_MAPPER));
+    }
+
+    @Test
+    public void mandelbrot_parallelMatchesSync() throws Exception {
+        assertParallelMatchesSync(new FractalKernel(FractalKernel.MODE_MANDELBROT, 0f, 0f,
+                -2.5f, 2.5f, -1.875f, 1.875f, WIDTH, HEIGHT, 256, COLOR_MAPPER));
+    }
+
+    @Test
+    public void progressive_matchesSync() throws Exception {
+        FractalKernel kernel = new FractalKernel(FractalKernel.MODE_JULIA, 0.285, 0.01,
+                -2.5, 2.5, -1.875, 1.875, WIDTH, HEIGHT, 256, COLOR_MAPPER);
+        List<Tile> tiles = grid();
+        TileRenderer sync = new TileRenderer(WIDTH, HEIGHT);
+        sync.setSubdivision(false);
+        sync.renderSync(kernel, tiles);
+
+        final TileRenderer progressive = new TileRenderer(WIDTH, HEIGHT);
+        progressive.setSubdivision(false);
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<int[]> firstFrame = new AtomicReference<>();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            progressive.renderProgressive(kernel, tiles, executor, null, new TileRenderer.OnPassRenderedListener() {
+                @Override
+                public void onPassRendered(int step) {
+                    if (step == TileRenderer.COARSEST_STEP) {
+                        firstFrame.set(progressive.getPixels().clone());
+                    } else if (step == 1) {
+                        latch.countDown();
+                    }
+                }
+            });
+            assertTrue(latch.await(30, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdown();
+        }
+        assertArrayEquals(sync.getPixels(), progressive.getPixels());
+        assertTrue(progressive.getTimeToFirstFrame() >= 0);
+        // every pixel covered by the grid is already filled after the coarsest pass
+        int[] first = firstFrame.get();
+        for (Tile tile : tiles) {
+            for (int j = tile.top; j < tile.bottom; j++) {
+                for (int i = tile.left; i < tile.right; i++) {
+                    assertNotEquals(0, first[j * WIDTH + i]);
+                }
+            }
+        }
+        assertEquals(sync.getIteratedPixels(), progressive.getIteratedPixels());
+    }
+
+    private static FractalKernel panned(int dx, int dy) {
+        // 5 / 320 = 1 / 64, pixel coordinates are exact after an integer shift
+        double step = 5.0 / WIDTH;
+        return new FractalKernel(FractalKernel.MODE_MANDELBROT, 0, 0,
+                -2.5 - dx * step, 2.5 - dx * step, -1.875 + dy * step, 1.875 + dy * step,
+                WIDTH, HEIGHT, 256, COLOR_MAPPER);
+    }
+
+    private static void assertShiftMatchesFullRender(int dx, int dy) throws Exception {
+        TileRenderer full = new TileRenderer(WIDTH, HEIGHT);
+        full.setSubdivision(false);
+        full.renderSync(panned(dx, dy), grid());
+
+        TileRenderer incremental = new TileRenderer(WIDTH, HEIGHT);
+        incremental.setSubdivision(false);
+        incremental.renderSync(panned(0, 0), grid());
+        List<Tile> exposed = incremental.shift(dx, dy);
+        final CountDownLatch latch = new CountDownLatch(exposed.size());
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            incremental.renderIncremental(panned(dx, dy), exposed, executor, new TileRenderer.OnTileRenderedListener() {
+                @Override
+                public void onTileRendered(Tile tile) {
+                    latch.countDown();
+                }
+            });
+            assertTrue(latch.await(30, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdown();
+        }
+        assertArrayEquals(full.getPixels(), incremental.getPixels());
+        int exposedArea = WIDTH * HEIGHT - (WIDTH - Math.abs(dx)) * (HEIGHT - Math.abs(dy));
+        assertEquals(exposedArea, incremental.getIteratedPixels());
+    }
+
+    @Test
+    public void shift_recomputesOnlyExposedArea() throws Exception {
+        assertShiftMatchesFullRender(20, 0);
+        assertShiftMatchesFullRender(0, -20);
+        assertShiftMatchesFullRender(13, -7);
+        assertShiftMatchesFullRender(-100, 33);
+    }
+
+    /**
+     * 海马谷附近，大部分像素在低上限下不发散
+     */
+    private static FractalKernel seahorse(int precision, int iterateTimes) {
+        Viewport viewport = new Viewport(WIDTH, HEIGHT);
+        viewport.set(new BigDecimal("-0.745"), new BigDecimal("0.11"), 0.02 / WIDTH);
+        return Precision.createKernel(precision, FractalKernel.MODE_MANDELBROT, 0, 0, viewport, iterateTimes,
+                COLOR_MAPPER);
+    }
+
+    private static void render(TileRenderer renderer, FractalKernel kernel, TileScheduler scheduler,
+                               boolean deepen) throws Exception {
+        if (deepen) {
+            assertTrue(renderer.canDeepen(kernel));
+            renderer.deepen(kernel, scheduler, null);
+        } else {
+            renderer.render(kernel, scheduler, null);
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (!renderer.isComplete()) {
+            assertTrue(System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * 矩形细分在低上限下填充的像素提高上限时逐个计算，结果比直接细分更准确，所以这里都逐像素比较
+     */
+    private static TileRenderer perPixel() {
+        TileRenderer renderer = new TileRenderer(WIDTH, HEIGHT);
+        renderer.setSubdivision(false);
+        return renderer;
+    }
+
+    private static void assertDeepenMatchesFullRender(int precision) throws Exception {
+        TileScheduler scheduler = new TileScheduler(4);
+        try {
+            TileRenderer full = perPixel();
+            render(full, seahorse(precision, 1024), scheduler, false);
+
+            TileRenderer deepened = perPixel();
+            render(deepened, seahorse(precision, 256), scheduler, false);
+            render(deepened, seahorse(precision, 1024), scheduler, true);
+            assertArrayEquals(full.getCounts(), deepened.getCounts());
+            assertArrayEquals(full.getPixels(), deepened.getPixels());
+            assertTrue(deepened.getIterations() < full.getIterations());
+
+            // 降低上限不需要迭代，颜色与直接以低上限渲染相同
+            TileRenderer shallow = perPixel();
+            render(shallow, seahorse(precision, 256), scheduler, false);
+            render(deepened, seahorse(precision, 256), scheduler, true);
+            assertEquals(0, deepened.getIteratedPixels());
+            assertArrayEquals(shallow.getPixels(), deepened.getPixels());
+
+            // 再提高上限时从更深的结果开始，同样与完整渲染一致
+            TileRenderer deeper = perPixel();
+            render(deeper, seahorse(precision, 2048), scheduler, false);
+            render(deepened, seahorse(precision, 2048), scheduler, true);
+            assertArrayEquals(deeper.getPixels(), deepened.getPixels());
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void deepen_matchesFullRender() throws Exception {
+        assertDeepenMatchesFullRender(Precision.DOUBLE);
+        assertDeepenMatchesFullRender(Precision.FLOAT);
+    }
+
+    @Test
+    public void deepen_savesOrbitsOnlyWithinLimit() throws Exception {
+        TileScheduler scheduler = new TileScheduler(4);
+        try {
+            TileRenderer full = perPixel();
+            render(full, seahorse(Precision.DOUBLE, 1024), scheduler, false);
+            int inside = 0;
+            TileRenderer sparse = perPixel();
+            render(sparse, seahorse(Precision.DOUBLE, 256), scheduler, false);
+            for (int k : sparse.getCounts()) {
+                if (k == 256) {
+                    inside++;
+                }
+            }
+            // 只为有不发散像素的块分配，少于整幅缓冲
+            long dense = 16L * WIDTH * HEIGHT;
+            assertTrue(sparse.getOrbitMemory() > 0);
+            assertTrue(sparse.getOrbitMemory() < dense);
+            assertTrue(sparse.getOrbitMemory() >= 16L * inside);
+
+            // 超过上限的像素没有保存z，继续时从头迭代，结果不变
+            TileRenderer limited = perPixel();
+            limited.setOrbitMemoryLimit(dense / 8);
+            render(limited, seahorse(Precision.DOUBLE, 256), scheduler, false);
+            assertTrue(limited.getOrbitMemory() <= dense / 8);
+            render(limited, seahorse(Precision.DOUBLE, 1024), scheduler, true);
+            assertArrayEquals(full.getCounts(), limited.getCounts());
+            assertArrayEquals(full.getPixels(), limited.getPixels());
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void deepen_unsupportedWithoutSavedOrbits() throws Exception {
+        TileRenderer renderer = new TileRenderer(WIDTH, HEIGHT);
+        renderer.renderSync(seahorse(Precision.DOUBLE_DOUBLE, 256), grid());
+        assertFalse(renderer.canDeepen(seahorse(Precision.DOUBLE_DOUBLE, 1024)));
+        renderer.renderSync(seahorse(Precision.DOUBLE, 256), grid());
+        assertTrue(renderer.canDeepen(seahorse(Precision.DOUBLE, 1024)));
+        assertFalse(renderer.canDeepen(panned(0, 0)));
+    }
+}
@@ -0,0 +1,285 @@
+package com.lh.fractal.engine;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.*;
+
+/**
+ * 工作窃取调度器：覆盖整个区域、从中心开始、可以取消
+ */
+public class TileSchedulerTest {
+
+    private static final int WIDTH = 203;
+    private static final int HEIGHT = 157;
+
+    private static final ColorMapper IDENTITY = new ColorMapper() {
+        @Override
+        public int getColor(int k, int maxIterations) {
+            return k;
+        }
+    };
+
+    private static FractalKernel mandelbrot(int width, int height) {
+        return new FractalKernel(FractalKernel.MODE_MANDELBROT, 0, 0, -2.2, 0.8, -1.125, 1.125,
+                width, height, 512, IDENTITY);
+    }
+
+    @Test
+    public void schedule_coversEveryPixelOnce() throws Exception {
+        TileScheduler scheduler = new TileScheduler(4);
+        try {
+            final AtomicIntegerArray visits = new AtomicIntegerArray(WIDTH * HEIGHT);
+            final CountDownLatch done = new CountDownLatch(1);
+            final AtomicInteger leaves = new AtomicInteger();
+            scheduler.schedule(new TileScheduler.Batch(), Collections.singletonList(new Tile(0, 0, WIDTH, HEIGHT)),
+                    WIDTH / 2, HEIGHT / 2, new CostMap(WIDTH, HEIGHT), new TileScheduler.RegionJob() {
+                        @Override
+                        public void render(Tile r) {
+                            leaves.incrementAndGet();
+                            for (int j = r.top; j < r.bottom; j++) {
+                                for (int i = r.left; i < r.right; i++) {
+                                    visits.incrementAndGet(j * WIDTH + i);
+                                }
+                            }
+                        }
+
+                        @Override
+                        public void onComplete() {
+                            done.countDown();
+                        }
+                    });
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            for (int index = 0; index < WIDTH * HEIGHT; index++) {
+                assertEquals("pixel " + index, 1, visits.get(index));
+            }
+            assertTrue(leaves.get() > 1);
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void render_matchesSyncWhenSizeNotDivisible() throws Exception {
+        FractalKernel kernel = mandelbrot(WIDTH, HEIGHT);
+        TileRenderer sync = new TileRenderer(WIDTH, HEIGHT);
+        sync.renderSync(kernel, Collections.singletonList(new Tile(0, 0, WIDTH, HEIGHT)));
+
+        TileScheduler scheduler = new TileScheduler(3);
+        try {
+            TileRenderer parallel = new TileRenderer(WIDTH, HEIGHT);
+            parallel.render(kernel, scheduler, null);
+            long deadline = System.currentTimeMillis() + 10000;
+            while (!parallel.isComplete() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertTrue(parallel.isComplete());
+            assertArrayEquals(sync.getPixels(), parallel.getPixels());
+
+            long busy = 0;
+            for (int worker = 0; worker < scheduler.getParallelism(); worker++) {
+                assertTrue(scheduler.getIdleTime(worker) >= 0);
+                busy += scheduler.getBusyTime(worker);
+            }
+            assertTrue(busy > 0);
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void progressive_matchesSync() throws Exception {
+        FractalKernel kernel = mandelbrot(WIDTH, HEIGHT);
+        TileRenderer sync = new TileRenderer(WIDTH, HEIGHT);
+        sync.renderSync(kernel, Collections.singletonList(new Tile(0, 0, WIDTH, HEIGHT)));
+
+        TileScheduler scheduler = new TileScheduler(4);
+        try {
+            TileRenderer parallel = new TileRenderer(WIDTH, HEIGHT);
+            final List<Integer> steps = Collections.synchronizedList(new ArrayList<Integer>());
+            final CountDownLatch done = new CountDownLatch(1);
+            parallel.renderProgressive(kernel, scheduler, null, new TileRenderer.OnPassRenderedListener() {
+                @Override
+                public void onPassRendered(int step) {
+                    steps.add(step);
+                    if (step == 1) {
+                        done.countDown();
+                    }
+                }
+            });
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            assertEquals(Arrays.asList(8, 4, 2, 1), steps);
+            assertArrayEquals(sync.getPixels(), parallel.getPixels());
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void schedule_startsAtCenter() throws Exception {
+        TileScheduler scheduler = new TileScheduler(1);
+        try {
+            final List<Tile> order = Collections.synchronizedList(new ArrayList<Tile>());
+            final CountDownLatch done = new CountDownLatch(1);
+            scheduler.schedule(new TileScheduler.Batch(), Collections.singletonList(new Tile(0, 0, 512, 512)),
+                    300, 200, new CostMap(512, 512), new TileScheduler.RegionJob() {
+                        @Override
+                        public void render(Tile r) {
+                            order.add(r);
+                        }
+
+                        @Override
+                        public void onComplete() {
+                            done.countDown();
+                        }
+                    });
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            Tile first = order.get(0);
+            assertTrue(first.toString(), first.left <= 300 && 300 < first.right && first.top <= 200 && 200 < first.bottom);
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void cancel_skipsRemainingRegions() throws Exception {
+        TileScheduler scheduler = new TileScheduler(2);
+        try {
+            final TileScheduler.Batch batch = new TileScheduler.Batch();
+            final AtomicInteger rendered = new AtomicInteger();
+            final AtomicInteger completed = new AtomicInteger();
+            scheduler.schedule(batch, Collections.singletonList(new Tile(0, 0, 1024, 1024)), 512, 512,
+                    new CostMap(1024, 1024), new TileScheduler.RegionJob() {
+                        @Override
+                        public void render(Tile r) {
+                            if (rendered.incrementAndGet() == 1) {
+                                batch.cancel();
+                            }
+                        }
+
+                        @Override
+                        public void onComplete() {
+                            completed.incrementAndGet();
+                        }
+                    });
+            Thread.sleep(200);
+            assertTrue(rendered.get() < 1024 * 1024 / (64 * 64));
+            assertEquals(0, completed.get());
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void failingRegion_failsBatchAndKeepsWorker() throws Exception {
+        // 只有一个工作线程，它退出后第二批永远不会完成
+        TileScheduler scheduler = new TileScheduler(1);
+        try {
+            final TileScheduler.Batch failed = new TileScheduler.Batch();
+            final AtomicInteger completed = new AtomicInteger();
+            final IllegalStateException error = new IllegalStateException("tile failed");
+            scheduler.schedule(failed, Collections.singletonList(new Tile(0, 0, 512, 512)), 256, 256,
+                    new CostMap(512, 512), new TileScheduler.RegionJob() {
+                        @Override
+                        public void render(Tile r) {
+                            throw error;
+                        }
+
+                        @Override
+                        public void onComplete() {
+                            completed.incrementAndGet();
+                        }
+                    });
+
+            final CountDownLatch done = new CountDownLatch(1);
+            scheduler.schedule(new TileScheduler.Batch(), Collections.singletonList(new Tile(0, 0, 512, 512)),
+                    256, 256, new CostMap(512, 512), new TileScheduler.RegionJob() {
+                        @Override
+                        public void render(Tile r) {
+                        }
+
+                        @Override
+                        public void onComplete() {
+                            done.countDown();
+                        }
+                    });
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            // 任务按后进先出执行，第二批可能先完成
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (failed.getError() == null && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            assertSame(error, failed.getError());
+            assertTrue(failed.isCancelled());
+            assertEquals(0, completed.get());
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void errorInRegion_failsBatchInsteadOfHanging() throws Exception {
+        TileScheduler scheduler = new TileScheduler(1);
+        try {
+            // 切分成多个区域，第一个区域抛出Error后其余区域都要跳过，并且不回调onComplete
+            final TileScheduler.Batch failed = new TileScheduler.Batch();
+            final AtomicInteger completed = new AtomicInteger();
+            final StackOverflowError error = new StackOverflowError("tile failed");
+            scheduler.schedule(failed, Arrays.asList(new Tile(0, 0, 256, 256), new Tile(256, 0, 512, 256)),
+                    256, 128, new CostMap(512, 256), new TileScheduler.RegionJob() {
+                        @Override
+                        public void render(Tile r) {
+                            throw error;
+                        }
+
+                        @Override
+                        public void onComplete() {
+                            completed.incrementAndGet();
+                        }
+                    });
+
+            // 任务按后进先出执行，先等第一批失败
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (failed.getError() == null && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            final CountDownLatch thrown = new CountDownLatch(1);
+            scheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    thrown.countDown();
+                    throw new AssertionError("task failed");
+                }
+            });
+            assertTrue(thrown.await(10, TimeUnit.SECONDS));
+
+            // 唯一的工作线程必须还活着
+            final CountDownLatch done = new CountDownLatch(1);
+            scheduler.schedule(new TileScheduler.Batch(), Collections.singletonList(new Tile(0, 0, 512, 512)),
+                    256, 256, new CostMap(512, 512), new TileScheduler.RegionJob() {
+                        @Override
+                        public void render(Tile r) {
+                        }
+
+                        @Override
+                        public void onComplete() {
+                            done.countDown();
+                        }
+                    });
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            assertSame(error, failed.getError());
+            assertTrue(failed.isCancelled());
+            assertEquals(0, completed.get());
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+}
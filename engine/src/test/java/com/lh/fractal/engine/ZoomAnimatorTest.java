@@ -0,0 +1,118 @@
+package com.lh.fractal.engine;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collections;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.*;
+
+/**
+ * 缩放动画的重采样与共用参考轨道
+ */
+public class ZoomAnimatorTest {
+
+    private static final Palette PALETTE = Palette.gradient(64, 0xff000000, 0xff000764, 0xff206bcb,
+            0xffedffff, 0xffffaa00, 0xff000200);
+
+    private static final BigDecimal SEAHORSE_X = new BigDecimal("-0.743643887037158704752191506114774");
+    private static final BigDecimal SEAHORSE_Y = new BigDecimal("0.131825904205311970493132056385139");
+
+    @Test
+    public void resample_keepsCenterAndFlatColor() {
+        int[] source = new int[8 * 6];
+        Arrays.fill(source, 0xff336699);
+        // 中心像素与其他像素不同，放大一倍后中心仍主要由它决定
+        source[3 * 8 + 4] = 0xffffffff;
+        int[] target = new int[4 * 4];
+        ZoomAnimator.resample(source, 8, 6, 0.5, target, 4, 4);
+        assertTrue(((target[2 * 4 + 2] >> 16) & 0xff) > 0xc0);
+        assertTrue(((target[0] >> 16) & 0xff) < ((target[2 * 4 + 2] >> 16) & 0xff));
+
+        ZoomAnimator.resample(source, 8, 6, 2, target, 4, 3);
+        assertEquals(0xff336699, target[0]);
+        assertNotEquals(0xff336699, target[4 + 2]);
+    }
+
+    @Test
+    public void sharedReference_matchesOwnReference() {
+        Coloring coloring = new Coloring(PALETTE, Coloring.MODE_BANDED);
+        Viewport deep = new Viewport(64, 48);
+        deep.set(SEAHORSE_X, SEAHORSE_Y, 1e-22);
+        PerturbationKernel source = new PerturbationKernel(FractalKernel.MODE_MANDELBROT, 0, 0, deep, 4000, coloring);
+
+        Viewport viewport = new Viewport(64, 48);
+        viewport.set(SEAHORSE_X, SEAHORSE_Y, 1e-18);
+        PerturbationKernel own = new PerturbationKernel(FractalKernel.MODE_MANDELBROT, 0, 0, viewport, 3000, coloring);
+        PerturbationKernel shared = new PerturbationKernel(FractalKernel.MODE_MANDELBROT, 0, 0, viewport, 3000,
+                coloring);
+        assertTrue(shared.shareReference(source));
+        // 迭代上限比共用的轨道高时不能共用
+        assertFalse(new PerturbationKernel(FractalKernel.MODE_MANDELBROT, 0, 0, viewport, 5000, coloring)
+                .shareReference(source));
+
+        int matches = 0;
+        for (int j = 0; j < 48; j += 3) {
+            for (int i = 0; i < 64; i += 3) {
+                if (own.iterate(i, j) == shared.iterate(i, j)) {
+                    matches++;
+                }
+            }
+        }
+        assertTrue("matches " + matches, matches >= 16 * 22 * 98 / 100);
+    }
+
+    @Test
+    public void render_writesEveryFrame() throws Exception {
+        File directory = File.createTempFile("zoom", "");
+        assertTrue(directory.delete() && directory.mkdir());
+        TileScheduler scheduler = new TileScheduler(2);
+        try {
+            ZoomAnimator animator = new ZoomAnimator(scheduler);
+            Coloring coloring = new Coloring(PALETTE, Coloring.MODE_SMOOTH);
+            animator.setColoring(coloring);
+            animator.setIterateTimes(256);
+            // 宽度从4到0.25，正好跨过4个关键帧
+            animator.render(FractalKernel.MODE_JULIA, Scene.JULIA.getRe(), Scene.JULIA.getIm(), BigDecimal.ZERO,
+                    BigDecimal.ZERO, 4, 0.25, 40, 30, 9, directory);
+            assertEquals(9, animator.getFramesWritten());
+            assertEquals(5, animator.getKeyframes());
+            assertTrue(animator.getFramesPerMinute() > 0);
+
+            // 与关键帧宽度相同的帧和直接渲染一半分辨率的画面相近
+            BufferedImage image = ImageIO.read(new File(directory, "frame00004.png"));
+            assertEquals(40, image.getWidth());
+            assertEquals(30, image.getHeight());
+            Viewport viewport = new Viewport(40, 30);
+            viewport.set(BigDecimal.ZERO, BigDecimal.ZERO, 1.0 / 40);
+            TileRenderer renderer = new TileRenderer(40, 30);
+            renderer.setColoring(coloring);
+            renderer.renderSync(Precision.createKernel(FractalKernel.MODE_JULIA, Scene.JULIA.getRe(),
+                    Scene.JULIA.getIm(), viewport, 256, coloring), Collections.singletonList(new Tile(0, 0, 40, 30)));
+            int[] expected = renderer.getPixels();
+            long difference = 0;
+            for (int y = 0; y < 30; y++) {
+                for (int x = 0; x < 40; x++) {
+                    int a = image.getRGB(x, y);
+                    int b = expected[y * 40 + x];
+                    difference += Math.abs(((a >> 8) & 0xff) - ((b >> 8) & 0xff));
+                }
+            }
+            assertTrue("mean difference " + difference / 1200.0, difference / 1200.0 < 24);
+        } finally {
+            scheduler.shutdown();
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+}